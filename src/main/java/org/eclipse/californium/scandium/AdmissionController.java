@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.scandium.util.HashedWheelTimer;
+import org.eclipse.californium.scandium.util.HashedWheelTimer.Timeout;
+
+/**
+ * Decides whether a connector starts a server-side handshake with a peer.
+ * <p>
+ * The number of concurrent handshakes is capped. Full handshakes may only use
+ * nine tenths of the capacity, the rest is reserved for abbreviated ones, so
+ * peers resuming their sessions still get through while the server is flooded
+ * with new peers. A handshake counts until it completes, fails, or is
+ * abandoned for {@link #HANDSHAKE_TIMEOUT} milliseconds.
+ * <p>
+ * Additionally, the rate at which a single IP address and a single subnet may
+ * start handshakes is limited by token buckets. The buckets are kept in fixed
+ * tables of atomic slots indexed by a hash of the address, so checking a limit
+ * neither allocates nor locks. Addresses sharing a slot share their bucket,
+ * which only makes the limit stricter for them.
+ * <p>
+ * The connector asks for admission only after the peer proved its address with
+ * a cookie or offered a session to resume, so spoofed ClientHellos cannot
+ * exhaust the buckets of other peers. Rejected ClientHellos are dropped
+ * silently and counted, the peer retransmits them later.
+ */
+class AdmissionController {
+
+	private static final Logger LOGGER = Logger.getLogger(AdmissionController.class.getCanonicalName());
+
+	/** The share of the capacity in percent reserved for abbreviated handshakes. */
+	private static final int RESUMPTION_RESERVE = 10;
+
+	/** The time in milliseconds after which a pending handshake is considered abandoned. */
+	static final long HANDSHAKE_TIMEOUT = 60000;
+
+	/** The interval between two sweeps in milliseconds. */
+	private static final long SWEEP_INTERVAL = 10000;
+
+	/** The number of token buckets per limit, a power of two. */
+	private static final int BUCKETS = 16384;
+
+	// Members ////////////////////////////////////////////////////////
+
+	private final PeerAddressMap<PendingHandshake> pending = new PeerAddressMap<PendingHandshake>();
+
+	private final AtomicLong rejectedByCapacity = new AtomicLong();
+
+	private final AtomicLong rejectedByRate = new AtomicLong();
+
+	private volatile int maxHandshakes;
+
+	private volatile RateLimiter addressLimiter;
+
+	private volatile RateLimiter subnetLimiter;
+
+	private Timeout sweeper;
+
+	// Methods ////////////////////////////////////////////////////////
+
+	/**
+	 * Applies the limits of the configuration and starts sweeping abandoned
+	 * handshakes.
+	 *
+	 * @param config
+	 *            the connector's configuration
+	 * @param timer
+	 *            the timer to run the sweeper on
+	 */
+	synchronized void start(DTLSConnectorConfig config, final HashedWheelTimer timer) {
+		maxHandshakes = config.getMaxConcurrentHandshakes();
+		addressLimiter = RateLimiter.create(config.getAddressHandshakeLimit());
+		subnetLimiter = RateLimiter.create(config.getSubnetHandshakeLimit());
+
+		sweeper = new Timeout(new Runnable() {
+
+			@Override
+			public void run() {
+				sweep(System.currentTimeMillis());
+				synchronized (AdmissionController.this) {
+					if (sweeper != null) {
+						timer.schedule(sweeper, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+					}
+				}
+			}
+		});
+		timer.schedule(sweeper, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void stop() {
+		if (sweeper != null) {
+			sweeper.cancel();
+			sweeper = null;
+		}
+	}
+
+	/**
+	 * Checks whether a handshake with a peer may start and registers it as
+	 * pending if so. A peer restarting its handshake does not need further
+	 * capacity. The capacity is checked without locking all peers, so the cap
+	 * may be exceeded slightly by concurrent peers.
+	 *
+	 * @param peerAddress
+	 *            the peer's address
+	 * @param resumption
+	 *            <code>true</code> for an abbreviated handshake
+	 * @return <code>true</code> if the handshake may start
+	 */
+	boolean admit(InetSocketAddress peerAddress, boolean resumption) {
+		int max = maxHandshakes;
+		if (max > 0 && !pending.containsKey(peerAddress)) {
+			int capacity = resumption ? max : max - max * RESUMPTION_RESERVE / 100;
+			if (pending.size() >= capacity) {
+				long rejected = rejectedByCapacity.incrementAndGet();
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.fine("Dropped ClientHello from " + peerAddress + ", too many handshakes in progress (" + rejected + " dropped so far)");
+				}
+				return false;
+			}
+		}
+
+		RateLimiter addresses = addressLimiter;
+		RateLimiter subnets = subnetLimiter;
+		if (addresses != null || subnets != null) {
+			long now = System.nanoTime();
+			InetAddress address = peerAddress.getAddress();
+			if ((addresses != null && !addresses.acquire(hashAddress(address), now))
+					|| (subnets != null && !subnets.acquire(hashSubnet(address), now))) {
+				long rejected = rejectedByRate.incrementAndGet();
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.fine("Dropped ClientHello from " + peerAddress + ", handshake rate limit exceeded (" + rejected + " dropped so far)");
+				}
+				return false;
+			}
+		}
+
+		if (max > 0) {
+			pending.put(peerAddress, new PendingHandshake(peerAddress, System.currentTimeMillis()));
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the capacity of a handshake once it completed or failed.
+	 *
+	 * @param peerAddress
+	 *            the peer's address
+	 */
+	void completed(InetSocketAddress peerAddress) {
+		pending.remove(peerAddress);
+	}
+
+	int getPendingHandshakes() {
+		return pending.size();
+	}
+
+	long getRejectedByCapacity() {
+		return rejectedByCapacity.get();
+	}
+
+	long getRejectedByRate() {
+		return rejectedByRate.get();
+	}
+
+	/**
+	 * Releases the capacity of abandoned handshakes.
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	void sweep(long now) {
+		int abandoned = 0;
+		for (PendingHandshake handshake : pending.values()) {
+			if (now - handshake.started >= HANDSHAKE_TIMEOUT && pending.remove(handshake.peerAddress, handshake)) {
+				abandoned++;
+			}
+		}
+		if (abandoned > 0 && LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Released " + abandoned + " abandoned handshakes");
+		}
+	}
+
+	private static int hashAddress(InetAddress address) {
+		if (address instanceof Inet4Address) {
+			return address.hashCode();
+		}
+		return hash(address.getAddress(), 16);
+	}
+
+	private static int hashSubnet(InetAddress address) {
+		if (address instanceof Inet4Address) {
+			// the /24 network
+			return address.hashCode() & 0xFFFFFF00;
+		}
+		// the /64 network
+		return hash(address.getAddress(), 8);
+	}
+
+	private static int hash(byte[] address, int length) {
+		int hash = 1;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + address[i];
+		}
+		return hash;
+	}
+
+	private static final class PendingHandshake {
+
+		private final InetSocketAddress peerAddress;
+
+		private final long started;
+
+		private PendingHandshake(InetSocketAddress peerAddress, long started) {
+			this.peerAddress = peerAddress;
+			this.started = started;
+		}
+	}
+
+	/**
+	 * Token buckets implemented with the generic cell rate algorithm. Each
+	 * slot holds the theoretical arrival time of the next handshake, a
+	 * handshake conforms if it does not arrive earlier than this time minus
+	 * the burst tolerance.
+	 */
+	private static final class RateLimiter {
+
+		private final AtomicLongArray arrivals = new AtomicLongArray(BUCKETS);
+
+		/** The time in nanoseconds between two handshakes at the sustained rate. */
+		private final long interval;
+
+		/** The time in nanoseconds a burst may run ahead of the sustained rate. */
+		private final long tolerance;
+
+		/** The time the arrivals are relative to, so they start at zero. */
+		private final long origin = System.nanoTime();
+
+		private RateLimiter(int perMinute) {
+			this.interval = TimeUnit.MINUTES.toNanos(1) / perMinute;
+			this.tolerance = interval * (perMinute - 1);
+		}
+
+		static RateLimiter create(int perMinute) {
+			return perMinute > 0 ? new RateLimiter(perMinute) : null;
+		}
+
+		boolean acquire(int hash, long nanoTime) {
+			int slot = mix(hash) & (BUCKETS - 1);
+			long now = nanoTime - origin;
+			while (true) {
+				long arrival = arrivals.get(slot);
+				long next = Math.max(arrival, now);
+				if (next - now > tolerance) {
+					return false;
+				}
+				if (arrivals.compareAndSet(slot, arrival, next + interval)) {
+					return true;
+				}
+			}
+		}
+
+		private static int mix(int hash) {
+			hash ^= hash >>> 16;
+			hash *= 0x85ebca6b;
+			hash ^= hash >>> 13;
+			hash *= 0xc2b2ae35;
+			return hash ^ (hash >>> 16);
+		}
+	}
+}
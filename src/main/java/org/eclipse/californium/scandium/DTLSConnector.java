@@ -18,24 +18,27 @@
 package org.eclipse.californium.scandium;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.eclipse.californium.elements.Connector;
 import org.eclipse.californium.elements.ConnectorBase;
 import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+import org.eclipse.californium.scandium.DTLSConnectorConfig.PendingMessagePolicy;
 import org.eclipse.californium.scandium.dtls.AlertMessage;
 import org.eclipse.californium.scandium.dtls.AlertMessage.AlertDescription;
 import org.eclipse.californium.scandium.dtls.AlertMessage.AlertLevel;
@@ -43,6 +46,7 @@ import org.eclipse.californium.scandium.dtls.ApplicationMessage;
 import org.eclipse.californium.scandium.dtls.ClientHandshaker;
 import org.eclipse.californium.scandium.dtls.ClientHello;
 import org.eclipse.californium.scandium.dtls.ContentType;
+import org.eclipse.californium.scandium.dtls.CookieGenerator;
 import org.eclipse.californium.scandium.dtls.DTLSFlight;
 import org.eclipse.californium.scandium.dtls.DTLSMessage;
 import org.eclipse.californium.scandium.dtls.DTLSSession;
@@ -50,12 +54,17 @@ import org.eclipse.californium.scandium.dtls.FragmentedHandshakeMessage;
 import org.eclipse.californium.scandium.dtls.HandshakeException;
 import org.eclipse.californium.scandium.dtls.HandshakeMessage;
 import org.eclipse.californium.scandium.dtls.Handshaker;
+import org.eclipse.californium.scandium.dtls.HelloVerifyRequest;
+import org.eclipse.californium.scandium.dtls.ProtocolVersion;
 import org.eclipse.californium.scandium.dtls.Record;
 import org.eclipse.californium.scandium.dtls.ResumingClientHandshaker;
 import org.eclipse.californium.scandium.dtls.ResumingServerHandshaker;
 import org.eclipse.californium.scandium.dtls.ServerHandshaker;
 import org.eclipse.californium.scandium.dtls.ServerHello;
+import org.eclipse.californium.scandium.dtls.SessionTicketExtension;
 import org.eclipse.californium.scandium.util.ByteArrayUtils;
+import org.eclipse.californium.scandium.util.HashedWheelTimer;
+import org.eclipse.californium.scandium.util.HashedWheelTimer.Timeout;
 
 
 /**
@@ -70,24 +79,82 @@ public class DTLSConnector extends ConnectorBase {
 	
 	private final static Logger LOGGER = Logger.getLogger(DTLSConnector.class.getCanonicalName());
 
+	/** The time in milliseconds to wait for the lanes to finish their tasks on stop. */
+	private final static long STOP_TIMEOUT = 2000;
+
 	/** all the configuration options for the DTLS connector */ 
 	private final DTLSConnectorConfig config = new DTLSConnectorConfig(this);
 	
 	private final InetSocketAddress address;
 	
-	private DatagramSocket socket;
+	/** The transport to send and receive datagrams with, see {@link DTLSConnectorConfig#setUseDatagramChannel(boolean)}. */
+	private DatagramTransport transport;
+
+	/**
+	 * The single threaded worker lanes to process received datagrams and
+	 * outgoing messages with, <code>null</code> if the receiver thread
+	 * processes received datagrams itself. All work for a peer is done by the
+	 * same lane, see {@link DTLSConnectorConfig#setWorkerLanes(int)}.
+	 */
+	private volatile ExecutorService[] lanes;
+
+	/**
+	 * The thread to run expired timeouts with, if the connector does not use
+	 * worker lanes. The timer thread is shared by all connectors and must not
+	 * wait for encryption or a full send buffer.
+	 */
+	private volatile ExecutorService timeoutExecutor;
+
+	/** Whether the connector is being stopped, failing sends are expected then. */
+	private volatile boolean stopping;
+
+	/** The buffer to receive datagrams in, only used by the receiver thread. */
+	private ByteBuffer receiveBuffer;
 	
-	/** The timer daemon to schedule retransmissions. */
-	private Timer timer = new Timer(true); // run as daemon
+	/** The timer to schedule retransmissions, taken from the config on start. */
+	private HashedWheelTimer timer;
+
+	/** The generator of HelloVerifyRequest cookies, taken from the config on start. */
+	private CookieGenerator cookieGenerator;
 	
-	/** Storing sessions according to peer-addresses */
-	private Map<String, DTLSSession> dtlsSessions = new ConcurrentHashMap<String, DTLSSession>();
+	/** Storing sessions according to peer-addresses and session identifiers */
+	private final SessionCache dtlsSessions = new SessionCache(new SessionCache.EvictionListener() {
+
+		@Override
+		public void sessionEvicted(final InetSocketAddress peerAddress, DTLSSession session) {
+			// the peer vanished or was displaced, drop its remaining state
+			execute(peerAddress, new Runnable() {
+
+				@Override
+				public void run() {
+					cancelPreviousFlight(peerAddress);
+					handshakers.remove(peerAddress);
+					admission.completed(peerAddress);
+				}
+			});
+		}
+	});
+
+	/** Limiting the server-side handshakes started by peers. */
+	private final AdmissionController admission = new AdmissionController();
+
+	/** The number of messages dropped because the peer's queue of pending messages was full. */
+	private final AtomicLong droppedPendingMessages = new AtomicLong();
 
 	/** Storing handshakers according to peer-addresses. */
-	private Map<String, Handshaker> handshakers = new ConcurrentHashMap<String, Handshaker>();
+	private final PeerAddressMap<Handshaker> handshakers = new PeerAddressMap<Handshaker>();
 
 	/** Storing flights according to peer-addresses. */
-	private Map<String, DTLSFlight> flights = new ConcurrentHashMap<String, DTLSFlight>();
+	private final PeerAddressMap<DTLSFlight> flights = new PeerAddressMap<DTLSFlight>();
+
+	/** Storing application records waiting to be sent together according to peer-addresses. */
+	private final PeerAddressMap<CoalescedDatagram> coalescedDatagrams = new PeerAddressMap<CoalescedDatagram>();
+	
+	/**
+	 * The buffers to assemble outgoing datagrams in. Flights are sent from the
+	 * sender, receiver, lane and timeout threads, so each thread reuses its own.
+	 */
+	private final ThreadLocal<ByteBuffer> sendBuffer = new ThreadLocal<ByteBuffer>();
 	
 	/** root authorities certificates */
 	private final Certificate[] rootCerts;
@@ -122,14 +189,24 @@ public class DTLSConnector extends ConnectorBase {
 	}
 	
 	/**
-	 * Close the DTLS session with the given peer.
+	 * Close the DTLS session with the given peer. If the connector uses
+	 * worker lanes, the session is closed by the peer's lane.
 	 * 
 	 * @param peerAddress the remote endpoint of the session to close
 	 */
-	public void close(InetSocketAddress peerAddress) {
-		String addrKey = addressToKey(peerAddress);
+	public void close(final InetSocketAddress peerAddress) {
+		execute(peerAddress, new Runnable() {
+
+			@Override
+			public void run() {
+				closeSession(peerAddress);
+			}
+		});
+	}
+
+	private void closeSession(InetSocketAddress peerAddress) {
 		try {
-			DTLSSession session = dtlsSessions.get(addrKey);
+			DTLSSession session = dtlsSessions.get(peerAddress);
 
 			if (session != null) {
 				DTLSMessage closeNotify = new AlertMessage(AlertLevel.WARNING, AlertDescription.CLOSE_NOTIFY);
@@ -155,15 +232,32 @@ public class DTLSConnector extends ConnectorBase {
 			}
 		} finally {
 			// clear session
-			dtlsSessions.remove(addrKey);
-			handshakers.remove(addrKey);
-			flights.remove(addrKey);
+			dtlsSessions.remove(peerAddress);
+			handshakers.remove(peerAddress);
+			flights.remove(peerAddress);
 		}
 	}
 	
 	@Override
 	public synchronized void start() throws IOException {
-		socket = new DatagramSocket(address.getPort(), address.getAddress());
+		stopping = false;
+		timer = config.getRetransmissionTimer();
+		cookieGenerator = config.getCookieGenerator();
+		dtlsSessions.start(config, timer);
+		admission.start(config, timer);
+		if (config.isUseDatagramChannel()) {
+			transport = new DatagramChannelTransport(address, config);
+		} else {
+			transport = new DatagramSocketTransport(address, config);
+		}
+		if (config.getWorkerLanes() > 0) {
+			lanes = new ExecutorService[config.getWorkerLanes()];
+			for (int i = 0; i < lanes.length; i++) {
+				lanes[i] = Executors.newSingleThreadExecutor(new DaemonThreadFactory("DTLS-Lane-" + i));
+			}
+		} else {
+			timeoutExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("DTLS-Timeouts"));
+		}
 		super.start();
 		if (LOGGER.isLoggable(Level.INFO)) {
 			LOGGER.info("DLTS connector listening on "+address);
@@ -172,39 +266,143 @@ public class DTLSConnector extends ConnectorBase {
 	
 	@Override
 	public synchronized void stop() {
+		stopping = true;
+		dtlsSessions.stop();
+		admission.stop();
 		this.close();
-		this.socket.close();
+		ExecutorService[] lanes = this.lanes;
+		if (lanes != null) {
+			// let the lanes send the CLOSE_NOTIFYs, further tasks are rejected
+			for (ExecutorService lane : lanes) {
+				lane.shutdown();
+			}
+			awaitTermination(lanes);
+		}
+		ExecutorService timeoutExecutor = this.timeoutExecutor;
+		if (timeoutExecutor != null) {
+			timeoutExecutor.shutdown();
+			awaitTermination(new ExecutorService[] { timeoutExecutor });
+		}
+		// the timer is shared with other connectors, cancel the own timeouts
+		for (DTLSFlight flight : flights.values()) {
+			if (flight.getRetransmitTimeout() != null) {
+				flight.getRetransmitTimeout().cancel();
+			}
+			flights.remove(flight.getPeerAddress(), flight);
+		}
+		this.transport.close();
+		this.lanes = null;
+		this.timeoutExecutor = null;
 		super.stop();
 	}
+
+	private static void awaitTermination(ExecutorService[] lanes) {
+		long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+		try {
+			for (ExecutorService lane : lanes) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0 || !lane.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (ExecutorService lane : lanes) {
+			if (!lane.isTerminated()) {
+				LOGGER.warning("Worker threads did not finish within " + STOP_TIMEOUT + " ms, interrupting them");
+				for (ExecutorService other : lanes) {
+					other.shutdownNow();
+				}
+				return;
+			}
+		}
+	}
 	
 	@Override
 	protected RawData receiveNext() throws IOException {
-		byte[] buffer = new byte[config.getMaxPayloadSize()];
-		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-		socket.receive(packet);
+		if (receiveBuffer == null || receiveBuffer.capacity() != config.getMaxPayloadSize()) {
+			receiveBuffer = ByteBuffer.allocate(config.getMaxPayloadSize());
+		}
+		receiveBuffer.clear();
+		InetSocketAddress peerAddress = transport.receive(receiveBuffer);
 		
-		if (packet.getLength() == 0)
+		if (receiveBuffer.position() == 0)
 			return null;
 
-		InetSocketAddress peerAddress = new InetSocketAddress(packet.getAddress(), packet.getPort());
+		if (lanes == null) {
+			// the records refer to the receive buffer, no need to copy the datagram
+			List<Record> records = Record.fromByteArray(receiveBuffer.array(), receiveBuffer.arrayOffset(), receiveBuffer.position());
+			List<RawData> messages = processRecords(peerAddress, records);
+			if (messages == null) {
+				return null;
+			}
+			// the last message is passed on by the caller, after the preceding ones
+			int last = messages.size() - 1;
+			deliver(messages.subList(0, last));
+			return messages.get(last);
+		}
+
+		// the lane processes the records later, copy them out of the reused receive buffer
+		byte[] datagram = Arrays.copyOfRange(receiveBuffer.array(), receiveBuffer.arrayOffset(), receiveBuffer.arrayOffset() + receiveBuffer.position());
+		dispatch(peerAddress, new ProcessRecordsTask(peerAddress, Record.fromByteArray(datagram)));
+		return null;
+	}
 
+	/**
+	 * Processes the records received in a single datagram from a peer.
+	 * 
+	 * @param peerAddress the peer's address
+	 * @param records the records
+	 * @return the application data contained in the records in their order,
+	 *         <code>null</code> if none
+	 */
+	private List<RawData> processRecords(InetSocketAddress peerAddress, List<Record> records) {
 		if (LOGGER.isLoggable(Level.FINEST)) {
 			LOGGER.finest(" => find handshaker for key "+peerAddress.toString());
 		}
-		DTLSSession session = dtlsSessions.get(addressToKey(peerAddress));
-		Handshaker handshaker = handshakers.get(addressToKey(peerAddress));
-		byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getLength());
+		DTLSSession session = dtlsSessions.get(peerAddress);
+		Handshaker handshaker = handshakers.get(peerAddress);
+		if (handshaker != null && !handshaker.getSession().isActive()) {
+			// a resumed session is only stored once its handshake completed
+			session = handshaker.getSession();
+		}
+		List<RawData> messages = null;
 
 		try {
-			List<Record> records = Record.fromByteArray(data);
-
 			for (Record record : records) {
-				record.setSession(session);
+				if (session != null && record.getEpoch() == 0 && session.getReadEpoch() > 0) {
+					// e.g. a ClientHello resuming the session, records of epoch 0 are not protected
+					record.setSession(null);
+				} else {
+					record.setSession(session);
+				}
+
+				if (record.isDuplicate()) {
+					// replayed or retransmitted record, drop it before spending
+					// any cycles on decryption (RFC 6347, section 4.1.2.6)
+					if (LOGGER.isLoggable(Level.FINER)) {
+						LOGGER.finer("Discarded duplicate record with epoch " + record.getEpoch() + " and sequence number "
+								+ record.getSequenceNumber() + " from " + peerAddress.toString());
+					}
+					continue;
+				}
 
 				RawData raw = null;
+				List<RawData> pendingMessages = null;
 
 				ContentType contentType = record.getType();
 				LOGGER.finest(" => contentType: "+contentType);
+				if ((contentType == ContentType.APPLICATION_DATA || contentType == ContentType.ALERT)
+						&& session != null && record.getEpoch() != session.getReadEpoch()) {
+					// e.g. protected with the keys of the session the peer is resuming,
+					// the current read state cannot decrypt it
+					if (LOGGER.isLoggable(Level.FINER)) {
+						LOGGER.finer("Discarded record with epoch " + record.getEpoch() + " from " + peerAddress.toString()
+								+ " in read epoch " + session.getReadEpoch());
+					}
+					continue;
+				}
 				DTLSFlight flight = null;
 				switch (contentType) {
 				case APPLICATION_DATA:
@@ -214,18 +412,25 @@ public class DTLSConnector extends ConnectorBase {
 						if (LOGGER.isLoggable(Level.INFO)) {
 							LOGGER.info("Discarded unexpected application data message from " + peerAddress.toString());
 						}
-						return null;
+						continue;
 					}
 					// at this point, the current handshaker is not needed
 					// anymore, remove it
 					//FIXME what about parallel sessions with different credentials?
-					handshakers.remove(addressToKey(peerAddress));
+					handshakers.remove(peerAddress);
 
 					ApplicationMessage applicationData = (ApplicationMessage) record.getFragment();
 					raw = new RawData(applicationData.getData());
 					break;
 
 				case ALERT:
+					if (session == null) {
+						// e.g. the peer's answer to our CLOSE_NOTIFY, the session is gone already
+						if (LOGGER.isLoggable(Level.FINE)) {
+							LOGGER.fine("Discarded alert from " + peerAddress.toString() + " without session");
+						}
+						continue;
+					}
 					AlertMessage alert = (AlertMessage) record.getFragment();
 					switch (alert.getDescription()) {
 					case CLOSE_NOTIFY:
@@ -239,7 +444,9 @@ public class DTLSConnector extends ConnectorBase {
 						flight.addMessage(new Record(ContentType.ALERT, session.getWriteEpoch(), session.getSequenceNumber(), closeNotify, session));
 						flight.setRetransmissionNeeded(false);
 						
-						if (dtlsSessions.remove(addressToKey(peerAddress))!=null) {
+						// a later handshake with the peer starts afresh
+						handshakers.remove(peerAddress);
+						if (dtlsSessions.remove(peerAddress)!=null) {
 							if (LOGGER.isLoggable(Level.INFO)) {
 								LOGGER.info("Closed session with peer: " + peerAddress.toString());
 							}
@@ -258,8 +465,9 @@ public class DTLSConnector extends ConnectorBase {
 						}
 						// cleaning up
 						cancelPreviousFlight(peerAddress);
-						dtlsSessions.remove(addressToKey(peerAddress));
-						handshakers.remove(addressToKey(peerAddress));
+						dtlsSessions.invalidate(peerAddress);
+						handshakers.remove(peerAddress);
+						admission.completed(peerAddress);
 						break;
 						
 						//TODO somehow tell CoAP endpoint to cancel
@@ -292,7 +500,7 @@ public class DTLSConnector extends ConnectorBase {
 								// create new session
 								session = new DTLSSession(peerAddress, true);
 								// store session according to peer address
-								dtlsSessions.put(addressToKey(peerAddress), session);
+								dtlsSessions.put(peerAddress, session);
 
 								if (LOGGER.isLoggable(Level.INFO)) {
 									LOGGER.info("Created new session as client with peer: " + peerAddress.toString());
@@ -301,7 +509,7 @@ public class DTLSConnector extends ConnectorBase {
 							handshaker = new ClientHandshaker(peerAddress, null, session, rootCerts, config);
 							handshaker.setMaxFragmentLength(config.getMaxFragmentLength());
 							
-							handshakers.put(addressToKey(peerAddress), handshaker);
+							handshakers.put(peerAddress, handshaker);
 							
 							if (LOGGER.isLoggable(Level.FINEST)) {
 								LOGGER.finest("Stored re-handshaker: " + handshaker.toString() + " for " + peerAddress.toString());
@@ -318,17 +526,43 @@ public class DTLSConnector extends ConnectorBase {
 							 * full handshake with fresh session.
 							 */
 
-							if (!(handshake instanceof FragmentedHandshakeMessage)) {
-								// check if session identifier set
-								ClientHello clientHello = (ClientHello) handshake;
-								session = getSessionByIdentifier(clientHello.getSessionId().getSessionId());
+							if (handshake instanceof FragmentedHandshakeMessage) {
+								// the cookie cannot be verified without reassembling the
+								// ClientHello, which would require state for the peer
+								if (LOGGER.isLoggable(Level.FINE)) {
+									LOGGER.fine("Discarded fragmented ClientHello from " + peerAddress.toString());
+								}
+								continue;
 							}
-							
-							if (session == null) {
+
+							ClientHello clientHello = (ClientHello) handshake;
+							if (!cookieGenerator.isValidCookie(peerAddress, clientHello)) {
+								// no state is kept and no session is looked up before the client
+								// proved that it can receive datagrams at its address, whether it
+								// starts a new session or resumes one
+								sendHelloVerifyRequest(peerAddress, record, clientHello);
+								continue;
+							}
+
+							// check if session ticket or session identifier set
+							DTLSSession resumableSession;
+							SessionTicketExtension ticket = clientHello.getSessionTicketExtension();
+							if (ticket != null && ticket.getTicket().length > 0) {
+								// RFC 5077 forbids resuming by identifier if a ticket is presented
+								resumableSession = dtlsSessions.findByTicket(ticket.getTicket());
+							} else {
+								resumableSession = dtlsSessions.findById(clientHello.getSessionId());
+							}
+
+							if (!admission.admit(peerAddress, resumableSession != null)) {
+								// dropped silently, the peer retransmits its ClientHello
+								continue;
+							}
+							if (resumableSession == null) {
 								// create new session
 								session = new DTLSSession(peerAddress, false);
 								// store session according to peer address
-								dtlsSessions.put(addressToKey(peerAddress), session);
+								dtlsSessions.put(peerAddress, session);
 
 								if (LOGGER.isLoggable(Level.INFO)) {
 									LOGGER.info("Created new session as server with peer: " + peerAddress.toString());
@@ -336,10 +570,15 @@ public class DTLSConnector extends ConnectorBase {
 								handshaker = new ServerHandshaker(peerAddress, session, rootCerts, config);
 								handshaker.setMaxFragmentLength(config.getMaxFragmentLength());
 							} else {
+								// resume on a copy, the session and the address it is used with
+								// stay untouched until the peer proved that it knows the master secret
+								session = new DTLSSession(peerAddress, resumableSession);
 								handshaker = new ResumingServerHandshaker(peerAddress, session, rootCerts, config);
 								handshaker.setMaxFragmentLength(config.getMaxFragmentLength());
 							}
-							handshakers.put(addressToKey(peerAddress), handshaker);
+							// the connector already performed the cookie exchange
+							handshaker.skipMessages(clientHello.getMessageSeq());
+							handshakers.put(peerAddress, handshaker);
 							if (LOGGER.isLoggable(Level.FINEST)) {
 								LOGGER.finest("Stored handshaker: " + handshaker.toString() + " for " + peerAddress.toString());
 							}
@@ -351,10 +590,20 @@ public class DTLSConnector extends ConnectorBase {
 						}
 					}
 					flight = handshaker.processMessage(record);
+					// the server sets the session identifier when processing the ClientHello
+					dtlsSessions.index(peerAddress);
+					if (session != null && session.isActive()) {
+						if (handshaker instanceof ResumingServerHandshaker && dtlsSessions.get(peerAddress) != session) {
+							// the client's Finished message has been verified
+							dtlsSessions.resume(peerAddress, session);
+						}
+						admission.completed(peerAddress);
+						pendingMessages = handshaker.takePendingMessages();
+					}
 					break;
 
 				default:
-					LOGGER.severe("Received unknown DTLS record from " + peerAddress.toString() + ":\n" + ByteArrayUtils.toHexString(data));
+					LOGGER.severe("Received unknown DTLS record from " + peerAddress.toString() + ":\n" + ByteArrayUtils.toHexString(record.getFragmentBytes()));
 					break;
 				}
 
@@ -365,19 +614,26 @@ public class DTLSConnector extends ConnectorBase {
 					flight.setSession(session);
 
 					if (flight.isRetransmissionNeeded()) {
-						flights.put(addressToKey(peerAddress), flight);
+						flights.put(peerAddress, flight);
 						scheduleRetransmission(flight);
 					}
 
 					sendFlight(flight);
 				}
 
+				if (pendingMessages != null && !pendingMessages.isEmpty()) {
+					sendPendingMessages(peerAddress, session, pendingMessages);
+				}
+
 				if (raw != null) {
 
-					raw.setAddress(packet.getAddress());
-					raw.setPort(packet.getPort());
+					raw.setAddress(peerAddress.getAddress());
+					raw.setPort(peerAddress.getPort());
 
-					return raw;
+					if (messages == null) {
+						messages = new ArrayList<RawData>(records.size());
+					}
+					messages.add(raw);
 				}
 			}
 
@@ -399,26 +655,53 @@ public class DTLSConnector extends ConnectorBase {
 				flight.addMessage(new Record(ContentType.ALERT, session.getWriteEpoch(), session.getSequenceNumber(), e.getAlert(), session));
 				sendFlight(flight);
 				
-				// clear session
-				String addrKey = addressToKey(peerAddress);
-				dtlsSessions.remove(addrKey);
-				handshakers.remove(addrKey);
-				flights.remove(addrKey);
+				// clear session, a failed resumption leaves the session it resumed intact
+				if (dtlsSessions.get(peerAddress) == session) {
+					dtlsSessions.invalidate(peerAddress);
+				}
+				handshakers.remove(peerAddress);
+				flights.remove(peerAddress);
+				admission.completed(peerAddress);
 			} else {
 				LOGGER.severe("Handshake Exception without session (" + peerAddress.toString() + "): " + e.getMessage());
 			}
 		} // receive()
-		return null;
+		// application data received before a failure has been authenticated
+		return messages;
+	}
+
+	/**
+	 * Passes received application data to the upper layer.
+	 * 
+	 * @param messages the messages in the order of their records
+	 */
+	private void deliver(List<RawData> messages) {
+		RawDataChannel receiver = getReceiver();
+		if (receiver == null) {
+			return;
+		}
+		for (RawData message : messages) {
+			receiver.receiveData(message);
+		}
 	}
 
 	@Override
 	protected void sendNext(RawData message) throws Exception {
+		if (lanes == null) {
+			sendMessage(message);
+		} else {
+			// keep the peer's state confined to its lane
+			dispatch(message.getInetSocketAddress(), new SendTask(message));
+		}
+	}
+
+	private void sendMessage(RawData message) throws HandshakeException, GeneralSecurityException {
 		
 		InetSocketAddress peerAddress = message.getInetSocketAddress();
 		if (LOGGER.isLoggable(Level.FINE)) {
 			LOGGER.fine("Sending message to " + peerAddress+" with message "+message.toString());
 		}
-		DTLSSession session = dtlsSessions.get(addressToKey(peerAddress));
+		DTLSSession session = dtlsSessions.get(peerAddress);
 		
 		/*
 		 * When the DTLS layer receives a message from an upper layer, there is
@@ -429,13 +712,13 @@ public class DTLSConnector extends ConnectorBase {
 		 */
 		Record encryptedMessage = null;
 		/* TODO: Check whether fetching a previous handshaker violates the resumption process*/
-		Handshaker handshaker = handshakers.get(addressToKey(peerAddress));
+		Handshaker handshaker = handshakers.get(peerAddress);
 
 		if (session == null) {
 			// no session with endpoint available, create new empty session,
 			// start fresh handshake
 			session = new DTLSSession(peerAddress, true);
-			dtlsSessions.put(addressToKey(peerAddress), session);
+			dtlsSessions.put(peerAddress, session);
 			handshaker = new ClientHandshaker(peerAddress, message, session, rootCerts, config);
 			handshaker.setMaxFragmentLength(config.getMaxFragmentLength());
 			
@@ -445,16 +728,24 @@ public class DTLSConnector extends ConnectorBase {
 				// session to peer is active, send encrypted message
 				DTLSMessage fragment = new ApplicationMessage(message.getBytes());
 				encryptedMessage = new Record(ContentType.APPLICATION_DATA, session.getWriteEpoch(), session.getSequenceNumber(), fragment, session);
+				// a completed handshaker is only kept to answer retransmissions,
+				// it must not start a new handshake
+				handshaker = null;
 				
 			} else if (handshaker == null){
 				
 				LOGGER.finest("USE Resuming client handshaker");
-				// try resuming session
+				// try resuming session, with connection states starting at epoch 0
+				session = new DTLSSession(peerAddress, session);
+				dtlsSessions.put(peerAddress, session);
 				handshaker = new ResumingClientHandshaker(peerAddress, message, session, rootCerts, config);
 				handshaker.setMaxFragmentLength(config.getMaxFragmentLength());
-			} else if (handshaker != null && flights.containsKey(addressToKey(peerAddress))){
-				LOGGER.warning("There is an ongoing handshake and now a new request arrived. We simply ignoring the new one");
-				return;
+			} else {
+				// the message is sent once the ongoing handshake completed
+				addPendingMessage(handshaker, message);
+				if (flights.containsKey(peerAddress)) {
+					return;
+				}
 			}
 			
 		}
@@ -464,17 +755,21 @@ public class DTLSConnector extends ConnectorBase {
 		// available, start DTLS handshake protocol
 		if (handshaker != null) {
 			// get starting handshake message
-			handshakers.put(addressToKey(peerAddress), handshaker);
+			handshakers.put(peerAddress, handshaker);
 			if (LOGGER.isLoggable(Level.FINEST)) {
 				LOGGER.finest("Stored handshaker on send: " + handshaker.toString() + " for " + peerAddress.toString());
 			}
 			flight = handshaker.getStartHandshakeMessage();
-			flights.put(addressToKey(peerAddress), flight);
+			flights.put(peerAddress, flight);
 			scheduleRetransmission(flight);
 		}
 		
 		// the CoAP message has been encrypted and can be sent to the peer
 		if (encryptedMessage != null) {
+			if (handshaker == null && config.getCoalescingDelay() > 0) {
+				coalesce(peerAddress, encryptedMessage);
+				return;
+			}
 			flight.addMessage(encryptedMessage);
 		}
 		
@@ -483,6 +778,61 @@ public class DTLSConnector extends ConnectorBase {
 		sendFlight(flight);
 	}
 
+	/**
+	 * Queues a message to send once the ongoing handshake with its peer
+	 * completed, dropping a message if the peer's queue is full.
+	 * 
+	 * @param handshaker the handshaker of the ongoing handshake
+	 * @param message the message
+	 */
+	private void addPendingMessage(Handshaker handshaker, RawData message) {
+		boolean dropOldest = config.getPendingMessagePolicy() == PendingMessagePolicy.DROP_OLDEST;
+		RawData dropped = handshaker.addPendingMessage(message, config.getMaxPendingMessages(), dropOldest);
+		if (dropped != null) {
+			long count = droppedPendingMessages.incrementAndGet();
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Dropped message to " + message.getInetSocketAddress() + ", too many messages wait for the handshake (" + count + " dropped so far)");
+			}
+		} else if (LOGGER.isLoggable(Level.FINER)) {
+			LOGGER.finer("Queued message to " + message.getInetSocketAddress() + " until the handshake completed");
+		}
+	}
+
+	/**
+	 * Sends the messages queued during a handshake right after its last
+	 * flight.
+	 * 
+	 * @param peerAddress the peer's address
+	 * @param session the established session
+	 * @param messages the messages in the order they were queued
+	 */
+	private void sendPendingMessages(InetSocketAddress peerAddress, DTLSSession session, List<RawData> messages) {
+		DTLSFlight flight = new DTLSFlight();
+		for (RawData message : messages) {
+			DTLSMessage fragment = new ApplicationMessage(message.getBytes());
+			flight.addMessage(new Record(ContentType.APPLICATION_DATA, session.getWriteEpoch(), session.getSequenceNumber(), fragment, session));
+		}
+		// application data is not retransmitted
+		flight.setRetransmissionNeeded(false);
+		flight.setPeerAddress(peerAddress);
+		flight.setSession(session);
+		sendFlight(flight);
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Sent " + messages.size() + " messages queued during the handshake to " + peerAddress.toString());
+		}
+	}
+
+	/**
+	 * Gets the number of messages dropped because too many messages to their
+	 * peer were waiting for an ongoing handshake, or because that handshake
+	 * timed out.
+	 * 
+	 * @return the number of dropped messages
+	 */
+	public long getDroppedPendingMessageCount() {
+		return droppedPendingMessages.get();
+	}
+
 	/**
 	 * Returns the {@link DTLSSession} related to the given peer address.
 	 * 
@@ -493,99 +843,180 @@ public class DTLSConnector extends ConnectorBase {
 		if (address == null) {
 			return null;
 		}
-		return dtlsSessions.get(addressToKey(address));
+		return dtlsSessions.get(address);
 	}
 
 	/**
-	 * Searches through all stored sessions and returns that session which
-	 * matches the session identifier or <code>null</code> if no such session
-	 * available. This method is used when the server receives a
-	 * {@link ClientHello} containing a session identifier indicating that the
-	 * client wants to resume a previous session. If a matching session is
-	 * found, the server will resume the session with a abbreviated handshake,
-	 * otherwise a full handshake (with new session identifier in
-	 * {@link ServerHello}) is conducted.
+	 * Returns the handshaker of a handshake with the given peer address.
 	 * 
-	 * @param sessionID
-	 *            the client's session identifier.
-	 * @return the session which matches the session identifier or
-	 *         <code>null</code> if no such session exists.
+	 * @param address the peer address
+	 * @return the handshaker or <code>null</code> if no handshake has been started.
 	 */
-	private DTLSSession getSessionByIdentifier(byte[] sessionID) {
-		if (sessionID == null || sessionID.length == 0) {
-			return null;
-		}
-		
-		for (Entry<String, DTLSSession> entry : dtlsSessions.entrySet()) {
-			// FIXME session identifiers may not be set, when the handshake failed after the initial message
-			// these sessions must be deleted when this happens
-			try {
-				byte[] id = entry.getValue().getSessionIdentifier().getSessionId();
-				if (Arrays.equals(sessionID, id)) {
-					return entry.getValue();
-				}
-			} catch (Exception e) {
-				continue;
-			}
+	Handshaker getHandshaker(InetSocketAddress address) {
+		return handshakers.get(address);
+	}
+
+	/**
+	 * Answers a ClientHello without a valid cookie with a HelloVerifyRequest
+	 * without creating any state for the peer, see <a
+	 * href="http://tools.ietf.org/html/rfc6347#section-4.2.1">RFC 6347</a>.
+	 * 
+	 * @param peerAddress the peer's address
+	 * @param record the record containing the ClientHello
+	 * @param clientHello the ClientHello
+	 */
+	private void sendHelloVerifyRequest(InetSocketAddress peerAddress, Record record, ClientHello clientHello) {
+		HelloVerifyRequest helloVerifyRequest = new HelloVerifyRequest(new ProtocolVersion(), cookieGenerator.generateCookie(peerAddress, clientHello));
+		// the server's first message has the message_seq of the ClientHello
+		helloVerifyRequest.setMessageSeq(clientHello.getMessageSeq());
+		// the record sequence number is copied from the ClientHello, so no sequence numbers are kept
+		Record response = new Record(ContentType.HANDSHAKE, 0, (int) record.getSequenceNumber(), helloVerifyRequest, null);
+
+		ByteBuffer buffer = getSendBuffer(response.size());
+		try {
+			response.writeTo(buffer);
+			sendDatagram(buffer, peerAddress);
+		} catch (IOException | GeneralSecurityException e) {
+			logSendFailure(e);
 		}
-		
-		for (DTLSSession session:dtlsSessions.values()) {
-			try {
-				byte[] id = session.getSessionIdentifier().getSessionId();
-				if (Arrays.equals(sessionID, id)) {
-					return session;
-				}
-			} catch (Exception e) {
-				continue;
-			}
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Sent HelloVerifyRequest to " + peerAddress.toString());
 		}
-		
-		return null;
 	}
-	
-	private void sendFlight(DTLSFlight flight) {
-		byte[] payload = new byte[] {};
-		
-		// put as many records into one datagram as allowed by the block size
-		List<DatagramPacket> datagrams = new ArrayList<DatagramPacket>();
-
-		for (Record record : flight.getMessages()) {
-			if (flight.getTries() > 0) {
-				
-				// adjust the record sequence number
-				int epoch = record.getEpoch();
-				record.setSequenceNumber(flight.getSession().getSequenceNumber(epoch));
-			}
-			
-			byte[] recordBytes = record.toByteArray();
-			if (payload.length + recordBytes.length > config.getMaxPayloadSize()) {
-				// can't add the next record, send current payload as datagram
-				DatagramPacket datagram = new DatagramPacket(payload, payload.length, flight.getPeerAddress().getAddress(), flight.getPeerAddress().getPort());
-				datagrams.add(datagram);
-				payload = new byte[] {};
-			}
 
-			// retrieve payload
-			payload = ByteArrayUtils.concatenate(payload, recordBytes);
+	private void sendFlight(DTLSFlight flight) {
+		// application records sent before must not be overtaken, e.g. by a CLOSE_NOTIFY
+		CoalescedDatagram coalesced = coalescedDatagrams.get(flight.getPeerAddress());
+		if (coalesced != null) {
+			coalesced.flush();
 		}
-		DatagramPacket datagram = new DatagramPacket(payload, payload.length, flight.getPeerAddress().getAddress(), flight.getPeerAddress().getPort());
-		datagrams.add(datagram);
+
+		int maxPayloadSize = config.getMaxPayloadSize();
+		ByteBuffer buffer = getSendBuffer(maxPayloadSize);
 
 		// send it over the UDP socket
 		try {
 			if(LOGGER.isLoggable(Level.FINEST))
 				LOGGER.finest("==>> sending flight "+flight.hashCode()+" with "+flight.getTries() +"th trial, the flight: "+flight);
-			for (DatagramPacket datagramPacket : datagrams) {
-				socket.send(datagramPacket);
+
+			// a flight sent again, on a timeout or when the peer retransmitted its
+			// last flight, must not reuse the sequence numbers (and nonces)
+			boolean resend = flight.isSent();
+			flight.setSent(true);
+
+			// put as many records into one datagram as allowed by the block size
+			for (Record record : flight.getMessages()) {
+				if (resend) {
+					
+					// adjust the record sequence number
+					int epoch = record.getEpoch();
+					record.setSequenceNumber(flight.getSession().getSequenceNumber(epoch));
+				}
+				
+				int recordSize = record.size();
+				if (buffer.position() > 0 && buffer.position() + recordSize > maxPayloadSize) {
+					// can't add the next record, send current payload as datagram
+					sendDatagram(buffer, flight.getPeerAddress());
+				}
+				if (recordSize > buffer.remaining()) {
+					// a single record exceeding the payload size is sent on its own
+					buffer = getSendBuffer(recordSize);
+				}
+				record.writeTo(buffer);
+			}
+			if (buffer.position() > 0) {
+				sendDatagram(buffer, flight.getPeerAddress());
 			}
 			
 		} catch (IOException e) {
+			logSendFailure(e);
+		} catch (GeneralSecurityException e) {
+			// the rest of the flight is not sent, it would be incomplete anyway
+			LOGGER.log(Level.SEVERE, "Could not encrypt a record of the flight to " + flight.getPeerAddress(), e);
+		}
+	}
+
+	/**
+	 * Adds an application record to the datagram coalescing the records to
+	 * its peer. The datagram is sent once the next record does not fit
+	 * anymore, it reached the coalescing threshold or the coalescing delay
+	 * expired.
+	 * 
+	 * @param peerAddress the peer's address
+	 * @param record the encrypted application record
+	 * @throws GeneralSecurityException if the record cannot be encrypted
+	 */
+	private void coalesce(InetSocketAddress peerAddress, Record record) throws GeneralSecurityException {
+		int maxPayloadSize = config.getMaxPayloadSize();
+		int threshold = config.getCoalescingThreshold();
+		if (threshold == 0 || threshold > maxPayloadSize) {
+			threshold = maxPayloadSize;
+		}
+		int recordSize = record.size();
+
+		CoalescedDatagram datagram = coalescedDatagrams.get(peerAddress);
+		if (datagram != null && datagram.add(record, recordSize, threshold)) {
+			return;
+		}
+		if (recordSize >= threshold) {
+			// nothing to wait for
+			ByteBuffer buffer = getSendBuffer(recordSize);
+			record.writeTo(buffer);
+			try {
+				sendDatagram(buffer, peerAddress);
+			} catch (IOException e) {
+				logSendFailure(e);
+			}
+			return;
+		}
+		datagram = new CoalescedDatagram(peerAddress, maxPayloadSize);
+		datagram.add(record, recordSize, threshold);
+		coalescedDatagrams.put(peerAddress, datagram);
+		timer.schedule(datagram.timeout, config.getCoalescingDelay(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the calling thread's buffer to assemble outgoing datagrams in.
+	 * 
+	 * @param capacity the minimum capacity of the buffer
+	 * @return the empty buffer
+	 */
+	private ByteBuffer getSendBuffer(int capacity) {
+		ByteBuffer buffer = sendBuffer.get();
+		if (buffer == null || buffer.capacity() < capacity) {
+			buffer = ByteBuffer.allocate(capacity);
+			sendBuffer.set(buffer);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	private void logSendFailure(Exception e) {
+		if (stopping) {
+			// the transport is closed while the last datagrams are sent
+			LOGGER.log(Level.FINE, "Could not send the datagram, connector stopped", e);
+		} else {
 			LOGGER.log(Level.SEVERE, "Could not send the datagram", e);
 		}
 	}
+
+	/**
+	 * Sends the content of the buffer as a single datagram and clears the
+	 * buffer.
+	 */
+	private void sendDatagram(ByteBuffer buffer, InetSocketAddress peerAddress) throws IOException {
+		buffer.flip();
+		transport.send(buffer, peerAddress);
+		buffer.clear();
+	}
 	
 	private void handleTimeout(DTLSFlight flight) {
 
+		if (flights.get(flight.getPeerAddress()) != flight) {
+			// cancelled while the retransmission waited for the peer's lane
+			return;
+		}
+
 		// set DTLS retransmission maximum
 		final int max = config.getMaxRetransmit();
 
@@ -601,19 +1032,48 @@ public class DTLSConnector extends ConnectorBase {
 
 		} else {
 			LOGGER.fine("Maximum retransmissions reached.");
+			abandonHandshake(flight.getPeerAddress());
+		}
+	}
+
+	/**
+	 * Drops the state of a handshake whose peer did not answer any of the
+	 * retransmissions. The messages waiting for the handshake are dropped, the
+	 * next message to the peer starts a fresh handshake.
+	 * 
+	 * @param peerAddress the peer's address
+	 */
+	private void abandonHandshake(InetSocketAddress peerAddress) {
+		flights.remove(peerAddress);
+		Handshaker handshaker = handshakers.remove(peerAddress);
+		if (handshaker != null) {
+			int dropped = handshaker.takePendingMessages().size();
+			if (dropped > 0) {
+				long count = droppedPendingMessages.addAndGet(dropped);
+				if (LOGGER.isLoggable(Level.WARNING)) {
+					LOGGER.warning("Dropped " + dropped + " messages to " + peerAddress + ", the handshake timed out (" + count + " dropped so far)");
+				}
+			}
 		}
+		DTLSSession session = dtlsSessions.get(peerAddress);
+		if (session != null && !session.isActive()) {
+			dtlsSessions.remove(peerAddress);
+		}
+		admission.completed(peerAddress);
 	}
 
 	private void scheduleRetransmission(DTLSFlight flight) {
 
-		// cancel existing schedule (if any)
-		if (flight.getRetransmitTask() != null) {
-			flight.getRetransmitTask().cancel();
-		}
-		
-		if (flight.isRetransmissionNeeded()) {
-			// create new retransmission task
-			flight.setRetransmitTask(new RetransmitTask(flight));
+		if (!flight.isRetransmissionNeeded()) {
+			// cancel existing schedule (if any)
+			if (flight.getRetransmitTimeout() != null) {
+				flight.getRetransmitTimeout().cancel();
+			}
+		} else {
+			// the handle is reused for all retransmissions of the flight
+			if (flight.getRetransmitTimeout() == null) {
+				flight.setRetransmitTimeout(new Timeout(new RetransmitTask(flight)));
+			}
 	
 			// calculate timeout using exponential back-off
 			if (flight.getTimeout() == 0) {
@@ -624,8 +1084,8 @@ public class DTLSConnector extends ConnectorBase {
 				flight.incrementTimeout();
 			}
 	
-			// schedule retransmission task
-			timer.schedule(flight.getRetransmitTask(), flight.getTimeout());
+			// (re)schedule retransmission task
+			timer.schedule(flight.getRetransmitTimeout(), flight.getTimeout(), TimeUnit.MILLISECONDS);
 		}
 	}
 	
@@ -637,15 +1097,16 @@ public class DTLSConnector extends ConnectorBase {
 	 */
 	private void cancelPreviousFlight(InetSocketAddress peerAddress) {
 		
-		DTLSFlight previousFlight = flights.get(addressToKey(peerAddress));
+		DTLSFlight previousFlight = flights.get(peerAddress);
 		if(LOGGER.isLoggable(Level.FINEST))
-			LOGGER.finest("Entered to cancelling previous flights of "+flights.size()+" with keys "+flights.keySet());
+			LOGGER.finest("Entered to cancelling previous flights of "+flights.size());
 		if (previousFlight != null) {
 			if(LOGGER.isLoggable(Level.FINEST))
 				LOGGER.finest("Cancelling the previous flights: "+previousFlight.hashCode()+" "+ previousFlight.toString());
-			previousFlight.getRetransmitTask().cancel();
-			previousFlight.setRetransmitTask(null);
-			flights.remove(addressToKey(peerAddress));
+			if (previousFlight.getRetransmitTimeout() != null) {
+				previousFlight.getRetransmitTimeout().cancel();
+			}
+			flights.remove(peerAddress);
 		}
 	}
 
@@ -654,14 +1115,232 @@ public class DTLSConnector extends ConnectorBase {
 		return "DTLS";
 	}
 
+	/**
+	 * Gets the number of ClientHellos dropped because too many handshakes
+	 * were in progress or their source exceeded its handshake rate limit.
+	 * 
+	 * @return the number of rejected handshakes
+	 */
+	public long getRejectedHandshakeCount() {
+		return admission.getRejectedByCapacity() + admission.getRejectedByRate();
+	}
+
+	/**
+	 * Gets the number of datagrams the transport dropped because the socket's
+	 * send buffer stayed full, see {@link DTLSConnectorConfig#setSendBufferSize(int)}.
+	 * 
+	 * @return the number of dropped datagrams
+	 */
+	public long getDroppedDatagramCount() {
+		DatagramTransport transport = this.transport;
+		return transport == null ? 0 : transport.getDroppedDatagramCount();
+	}
+
 	public InetSocketAddress getAddress() {
-		if (socket == null) return getLocalAddr();
-		else return new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort());
+		if (transport == null) return getLocalAddr();
+		else return transport.getLocalAddress();
 	}
 	
-	private class RetransmitTask extends TimerTask {
+	/**
+	 * Executes a task for a peer on its lane, or right away by the calling
+	 * thread if the connector does not use worker lanes.
+	 */
+	private void execute(InetSocketAddress peerAddress, Runnable task) {
+		if (lanes == null) {
+			task.run();
+		} else {
+			dispatch(peerAddress, task);
+		}
+	}
 
-		private DTLSFlight flight;
+	/**
+	 * Executes a task for a peer whose timeout expired. The task is handed
+	 * over from the shared timer thread to the peer's lane, or to the
+	 * connector's timeout thread if the connector does not use worker lanes.
+	 */
+	private void executeTimeout(InetSocketAddress peerAddress, Runnable task) {
+		ExecutorService timeoutExecutor = this.timeoutExecutor;
+		if (timeoutExecutor == null) {
+			dispatch(peerAddress, task);
+			return;
+		}
+		try {
+			timeoutExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// connector has been stopped
+			LOGGER.finest("Discarded timeout for " + peerAddress + ", connector stopped");
+		}
+	}
+
+	/**
+	 * Executes a task on the lane of the given peer. Lanes are chosen by the
+	 * hash of the peer's address, so all tasks for a peer are executed in
+	 * order by the same thread.
+	 */
+	private void dispatch(InetSocketAddress peerAddress, Runnable task) {
+		ExecutorService[] lanes = this.lanes;
+		if (lanes == null) {
+			return;
+		}
+		int lane = (peerAddress.hashCode() & Integer.MAX_VALUE) % lanes.length;
+		try {
+			lanes[lane].execute(task);
+		} catch (RejectedExecutionException e) {
+			// connector has been stopped
+			LOGGER.finest("Discarded task for " + peerAddress + ", connector stopped");
+		}
+	}
+
+	private class ProcessRecordsTask implements Runnable {
+
+		private final InetSocketAddress peerAddress;
+
+		private final List<Record> records;
+
+		ProcessRecordsTask(InetSocketAddress peerAddress, List<Record> records) {
+			this.peerAddress = peerAddress;
+			this.records = records;
+		}
+
+		@Override
+		public void run() {
+			try {
+				List<RawData> messages = processRecords(peerAddress, records);
+				if (messages != null) {
+					deliver(messages);
+				}
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.SEVERE, "Could not process datagram from " + peerAddress, e);
+			}
+		}
+	}
+
+	private class SendTask implements Runnable {
+
+		private final RawData message;
+
+		SendTask(RawData message) {
+			this.message = message;
+		}
+
+		@Override
+		public void run() {
+			try {
+				sendMessage(message);
+			} catch (Exception e) {
+				LOGGER.log(Level.SEVERE, "Could not send message to " + message.getInetSocketAddress(), e);
+			}
+		}
+	}
+
+	/**
+	 * The application records to a peer waiting to be sent in one datagram.
+	 * Records are added by the thread sending to the peer, while the peer's
+	 * lane or the connector's timeout thread sends the datagram once the
+	 * coalescing delay expired.
+	 */
+	private class CoalescedDatagram implements Runnable {
+
+		private final InetSocketAddress peerAddress;
+
+		private final ByteBuffer buffer;
+
+		private final Timeout timeout = new Timeout(new Runnable() {
+
+			@Override
+			public void run() {
+				// the send may block, keep it off the shared timer thread
+				executeTimeout(peerAddress, CoalescedDatagram.this);
+			}
+		});
+
+		private int records;
+
+		private boolean flushed;
+
+		CoalescedDatagram(InetSocketAddress peerAddress, int maxPayloadSize) {
+			this.peerAddress = peerAddress;
+			this.buffer = ByteBuffer.allocate(maxPayloadSize);
+		}
+
+		/**
+		 * Adds a record, unless the datagram has been sent already or the
+		 * record does not fit anymore. In the latter case the datagram is sent.
+		 * 
+		 * @return <code>true</code> if the record has been added
+		 * @throws GeneralSecurityException if the record cannot be encrypted
+		 */
+		synchronized boolean add(Record record, int recordSize, int threshold) throws GeneralSecurityException {
+			if (flushed) {
+				return false;
+			}
+			if (buffer.position() + recordSize > buffer.capacity()) {
+				flush();
+				return false;
+			}
+			record.writeTo(buffer);
+			records++;
+			if (buffer.position() >= threshold) {
+				flush();
+			}
+			return true;
+		}
+
+		synchronized void flush() {
+			if (flushed) {
+				return;
+			}
+			flushed = true;
+			timeout.cancel();
+			coalescedDatagrams.remove(peerAddress, this);
+			try {
+				sendDatagram(buffer, peerAddress);
+			} catch (IOException e) {
+				logSendFailure(e);
+			}
+			if (LOGGER.isLoggable(Level.FINEST)) {
+				LOGGER.finest("Sent " + records + " coalesced records to " + peerAddress.toString());
+			}
+		}
+
+		@Override
+		public void run() {
+			flush();
+		}
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+
+		private final String name;
+
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, name);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Retransmits a flight once its timeout expired. The timer thread hands
+	 * the retransmission over to the peer's lane, which owns the flight and
+	 * its session, or to the connector's timeout thread.
+	 */
+	private class RetransmitTask implements Runnable {
+
+		private final DTLSFlight flight;
+
+		private final Runnable retransmission = new Runnable() {
+
+			@Override
+			public void run() {
+				handleTimeout(flight);
+			}
+		};
 
 		RetransmitTask(DTLSFlight flight) {
 			this.flight = flight;
@@ -669,13 +1348,9 @@ public class DTLSConnector extends ConnectorBase {
 
 		@Override
 		public void run() {
-			handleTimeout(flight);
+			executeTimeout(flight.getPeerAddress(), retransmission);
 		}
 	}
-	
-	private String addressToKey(InetSocketAddress address) {
-		return address.toString().split("/")[1];
-	}
 
 
     public DTLSConnectorConfig getConfig() {
@@ -22,14 +22,32 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.Certificate;
 
+import org.eclipse.californium.scandium.dtls.CookieGenerator;
 import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
 import org.eclipse.californium.scandium.dtls.pskstore.PskStore;
+import org.eclipse.californium.scandium.dtls.sessionstore.SessionStore;
+import org.eclipse.californium.scandium.dtls.sessionstore.SessionTicketProtector;
+import org.eclipse.californium.scandium.util.HashedWheelTimer;
 
 /**
  * A class centralizing configuration options for the DTLS connector.
  */
 public class DTLSConnectorConfig {
 
+	/** The default maximum number of sessions of a connector. */
+	public static final int DEFAULT_MAX_SESSIONS = 150000;
+
+	/**
+	 * The message dropped when a peer's queue of messages waiting for its
+	 * handshake is full.
+	 */
+	public enum PendingMessagePolicy {
+		/** Drops the new message, the queued messages are sent in order. */
+		DROP_NEWEST,
+		/** Drops the oldest queued message, it is the most likely to be retransmitted already. */
+		DROP_OLDEST
+	}
+
 	/** the maximum fragment size before DTLS fragmentation must be applied */
 	private int maxFragmentLength = 4096;
 
@@ -48,6 +66,76 @@ public class DTLSConnectorConfig {
 	 */
 	private int maxRetransmit = 4;
 
+	/**
+	 * the timer to schedule retransmissions with, <code>null</code> for the
+	 * timer shared by all connectors
+	 */
+	private HashedWheelTimer retransmissionTimer = null;
+
+	/**
+	 * Use a non-blocking NIO DatagramChannel with direct buffers instead of a
+	 * DatagramSocket to send and receive datagrams
+	 */
+	private boolean useDatagramChannel = false;
+
+	/** the size of the socket's receive buffer (SO_RCVBUF), 0 for the OS default */
+	private int receiveBufferSize = 0;
+
+	/** the size of the socket's send buffer (SO_SNDBUF), 0 for the OS default */
+	private int sendBufferSize = 0;
+
+	/** the IP traffic class (type-of-service octet) of sent datagrams, -1 for the OS default */
+	private int trafficClass = -1;
+
+	/**
+	 * the number of worker lanes processing received datagrams, 0 to process
+	 * them on the receiver thread
+	 */
+	private int workerLanes = 0;
+
+	/**
+	 * the time in milliseconds an application record waits for further
+	 * records to the same peer to share its datagram, 0 to send each record
+	 * in its own datagram
+	 */
+	private int coalescingDelay = 0;
+
+	/** the datagram size at which coalesced records are sent without waiting, 0 for the maximum payload size */
+	private int coalescingThreshold = 0;
+
+	/** the maximum number of messages to a peer waiting for its handshake to complete, 0 to drop them */
+	private int maxPendingMessages = 16;
+
+	/** the message to drop when a peer's queue of pending messages is full */
+	private PendingMessagePolicy pendingMessagePolicy = PendingMessagePolicy.DROP_NEWEST;
+
+	/** the maximum number of sessions, further sessions evict the least recently used ones */
+	private int maxSessions = DEFAULT_MAX_SESSIONS;
+
+	/** the time in milliseconds after which an idle session is evicted, 0 to never evict idle sessions */
+	private long sessionIdleTimeout = 60 * 60 * 1000;
+
+	/** the time in milliseconds after which a session cannot be used or resumed anymore, 0 for no limit */
+	private long sessionLifetime = 24 * 60 * 60 * 1000;
+
+	/** the store keeping established sessions resumable across restarts, <code>null</code> to keep them in memory only */
+	private SessionStore sessionStore = null;
+
+	/** the protector of session tickets, <code>null</code> to not issue tickets */
+	private SessionTicketProtector sessionTicketProtector = null;
+
+	/** generates and verifies the cookies of HelloVerifyRequests */
+	private CookieGenerator cookieGenerator = new CookieGenerator();
+
+	/** the maximum number of concurrent handshakes, 0 for no limit */
+	private int maxConcurrentHandshakes = 10000;
+
+	/** the number of handshakes a single IP address may start per minute, 0 for no limit (default) */
+	private int addressHandshakeLimit = 0;
+
+	/** the number of handshakes a single subnet (/24 or /64) may start per minute, 0 for no limit (default) */
+	private int subnetHandshakeLimit = 0;
+
 	/** do the server require the client to authenticate */
 	public boolean requireClientAuth = true;
 
@@ -203,4 +291,373 @@ public class DTLSConnectorConfig {
 	public void setMaxRetransmit(int maxRetransmit) {
 		this.maxRetransmit = maxRetransmit;
 	}
+
+	public HashedWheelTimer getRetransmissionTimer() {
+		if (retransmissionTimer == null) {
+			return HashedWheelTimer.getSharedTimer();
+		}
+		return retransmissionTimer;
+	}
+
+	/**
+	 * Sets the timer to schedule flight retransmissions with. By default, all
+	 * connectors share a timer with a tick duration of
+	 * {@value HashedWheelTimer#DEFAULT_TICK_MILLIS} ms. A timer with a
+	 * different resolution can be shared by passing it to several
+	 * configurations. The timer thread only hands expired retransmissions
+	 * over to the connector's worker lanes, or to a timeout thread of the
+	 * connector if it uses no lanes, so a slow connector does not delay the
+	 * timeouts of the others.
+	 * 
+	 * @param retransmissionTimer
+	 *            the timer, <code>null</code> for the shared default timer
+	 */
+	public void setRetransmissionTimer(HashedWheelTimer retransmissionTimer) {
+		assertNotStarted();
+		this.retransmissionTimer = retransmissionTimer;
+	}
+
+	public boolean isUseDatagramChannel() {
+		return useDatagramChannel;
+	}
+
+	/**
+	 * Selects the transport used by the connector. The NIO transport drains
+	 * all ready datagrams per wakeup and uses pooled direct buffers, which
+	 * copes better with bursts of traffic from many peers.
+	 * 
+	 * @param useDatagramChannel
+	 *            <code>true</code> to use a NIO DatagramChannel,
+	 *            <code>false</code> to use a DatagramSocket (default)
+	 */
+	public void setUseDatagramChannel(boolean useDatagramChannel) {
+		assertNotStarted();
+		this.useDatagramChannel = useDatagramChannel;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * Sets the size of the socket's receive buffer (SO_RCVBUF). The OS may
+	 * limit the actual size, e.g. to <code>net.core.rmem_max</code> on Linux.
+	 * 
+	 * @param receiveBufferSize
+	 *            the size in bytes, 0 for the OS default
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		assertNotStarted();
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Sets the size of the socket's send buffer (SO_SNDBUF).
+	 * 
+	 * @param sendBufferSize
+	 *            the size in bytes, 0 for the OS default
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		assertNotStarted();
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	public int getTrafficClass() {
+		return trafficClass;
+	}
+
+	/**
+	 * Sets the IP traffic class (type-of-service octet) of sent datagrams.
+	 * 
+	 * @param trafficClass
+	 *            the traffic class (0 - 255), -1 for the OS default
+	 */
+	public void setTrafficClass(int trafficClass) {
+		assertNotStarted();
+		if (trafficClass < -1 || trafficClass > 255)
+			throw new IllegalArgumentException("the traffic class must be in range 0 - 255");
+		this.trafficClass = trafficClass;
+	}
+
+	public int getWorkerLanes() {
+		return workerLanes;
+	}
+
+	/**
+	 * Sets the number of worker lanes. If set, the receiver thread only
+	 * parses the record headers of received datagrams and dispatches them to
+	 * a lane chosen by the hash of the peer's address. Outgoing messages are
+	 * dispatched the same way. A peer's records and messages are thus
+	 * processed strictly in order by a single thread, while decryption and
+	 * handshakes of different peers run in parallel.
+	 * 
+	 * @param workerLanes
+	 *            the number of lanes, e.g. the number of available cores, or
+	 *            0 to process everything on the receiver and sender threads
+	 *            (default)
+	 */
+	public void setWorkerLanes(int workerLanes) {
+		assertNotStarted();
+		if (workerLanes < 0)
+			throw new IllegalArgumentException("the number of worker lanes must not be negative");
+		this.workerLanes = workerLanes;
+	}
+
+	public int getCoalescingDelay() {
+		return coalescingDelay;
+	}
+
+	/**
+	 * Enables coalescing of outgoing application records. A record to a peer
+	 * with an active session is held back for at most the given delay, so
+	 * records sent to the same peer meanwhile, e.g. a burst of notifications,
+	 * are packed into the same datagram up to the maximum payload size. The
+	 * delay is rounded up to the tick of the retransmission timer.
+	 * 
+	 * @param coalescingDelay
+	 *            the delay in milliseconds, 0 to send each record in its own
+	 *            datagram (default)
+	 */
+	public void setCoalescingDelay(int coalescingDelay) {
+		assertNotStarted();
+		if (coalescingDelay < 0)
+			throw new IllegalArgumentException("the coalescing delay must not be negative");
+		this.coalescingDelay = coalescingDelay;
+	}
+
+	public int getCoalescingThreshold() {
+		return coalescingThreshold;
+	}
+
+	/**
+	 * Sets the size at which a datagram of coalesced records is sent without
+	 * waiting for the coalescing delay to expire.
+	 * 
+	 * @param coalescingThreshold
+	 *            the size in bytes, 0 to fill datagrams up to the maximum
+	 *            payload size (default)
+	 */
+	public void setCoalescingThreshold(int coalescingThreshold) {
+		assertNotStarted();
+		if (coalescingThreshold < 0)
+			throw new IllegalArgumentException("the coalescing threshold must not be negative");
+		this.coalescingThreshold = coalescingThreshold;
+	}
+
+	public int getMaxPendingMessages() {
+		return maxPendingMessages;
+	}
+
+	/**
+	 * Sets the maximum number of messages to a peer which are queued while a
+	 * handshake with the peer is in progress. The queued messages are sent
+	 * right after the handshake completed.
+	 * 
+	 * @param maxPendingMessages
+	 *            the maximum number of messages per peer, 0 to drop messages
+	 *            sent during a handshake
+	 */
+	public void setMaxPendingMessages(int maxPendingMessages) {
+		assertNotStarted();
+		if (maxPendingMessages < 0)
+			throw new IllegalArgumentException("the maximum number of pending messages must not be negative");
+		this.maxPendingMessages = maxPendingMessages;
+	}
+
+	public PendingMessagePolicy getPendingMessagePolicy() {
+		return pendingMessagePolicy;
+	}
+
+	/**
+	 * Sets which message is dropped when a peer's queue of messages waiting
+	 * for its handshake is full.
+	 * 
+	 * @param pendingMessagePolicy
+	 *            the policy
+	 */
+	public void setPendingMessagePolicy(PendingMessagePolicy pendingMessagePolicy) {
+		assertNotStarted();
+		if (pendingMessagePolicy == null)
+			throw new IllegalArgumentException("the pending message policy should not be null");
+		this.pendingMessagePolicy = pendingMessagePolicy;
+	}
+
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	/**
+	 * Sets the maximum number of sessions. A new session with a further peer
+	 * evicts the least recently used of a few sampled sessions. Established
+	 * sessions stay resumable after their eviction, the number of these is
+	 * limited by the same maximum.
+	 * 
+	 * @param maxSessions
+	 *            the maximum number of sessions
+	 */
+	public void setMaxSessions(int maxSessions) {
+		assertNotStarted();
+		if (maxSessions <= 0)
+			throw new IllegalArgumentException("the maximum number of sessions must be positive");
+		this.maxSessions = maxSessions;
+	}
+
+	public long getSessionIdleTimeout() {
+		return sessionIdleTimeout;
+	}
+
+	/**
+	 * Sets the time after which a session without traffic is evicted. This
+	 * also removes the state of handshakes the peer abandoned halfway.
+	 * 
+	 * @param sessionIdleTimeout
+	 *            the timeout in milliseconds, 0 to never evict idle sessions
+	 */
+	public void setSessionIdleTimeout(long sessionIdleTimeout) {
+		assertNotStarted();
+		if (sessionIdleTimeout < 0)
+			throw new IllegalArgumentException("the session idle timeout must not be negative");
+		this.sessionIdleTimeout = sessionIdleTimeout;
+	}
+
+	public long getSessionLifetime() {
+		return sessionLifetime;
+	}
+
+	/**
+	 * Sets the absolute lifetime of sessions, after which they are neither
+	 * used nor resumed anymore. RFC 5246, appendix F.1.4, suggests an upper
+	 * limit of 24 hours (default).
+	 * 
+	 * @param sessionLifetime
+	 *            the lifetime in milliseconds, 0 for no limit
+	 */
+	public void setSessionLifetime(long sessionLifetime) {
+		assertNotStarted();
+		if (sessionLifetime < 0)
+			throw new IllegalArgumentException("the session lifetime must not be negative");
+		this.sessionLifetime = sessionLifetime;
+	}
+
+	public SessionStore getSessionStore() {
+		return sessionStore;
+	}
+
+	/**
+	 * Sets the store for established sessions, so peers can resume them after
+	 * the connector has been restarted.
+	 * 
+	 * @param sessionStore
+	 *            the store or <code>null</code> to keep sessions in memory only
+	 */
+	public void setSessionStore(SessionStore sessionStore) {
+		assertNotStarted();
+		this.sessionStore = sessionStore;
+	}
+
+	public SessionTicketProtector getSessionTicketProtector() {
+		return sessionTicketProtector;
+	}
+
+	/**
+	 * Enables session tickets (RFC 5077). The server issues a ticket holding
+	 * the encrypted session state to clients supporting tickets and does not
+	 * keep their sessions once they are evicted. All servers configured with
+	 * the same ticket secret can resume these sessions.
+	 * 
+	 * @param sessionTicketProtector
+	 *            the protector or <code>null</code> to not issue tickets
+	 */
+	public void setSessionTicketProtector(SessionTicketProtector sessionTicketProtector) {
+		assertNotStarted();
+		this.sessionTicketProtector = sessionTicketProtector;
+	}
+
+	public CookieGenerator getCookieGenerator() {
+		return cookieGenerator;
+	}
+
+	/**
+	 * Sets the generator of the cookies the server uses to verify the
+	 * addresses of clients, e.g. to rotate its secret at a different interval
+	 * than {@link CookieGenerator#DEFAULT_ROTATION_INTERVAL}.
+	 * 
+	 * @param cookieGenerator
+	 *            the cookie generator
+	 */
+	public void setCookieGenerator(CookieGenerator cookieGenerator) {
+		assertNotStarted();
+		if (cookieGenerator == null)
+			throw new IllegalArgumentException("the cookie generator should not be null");
+		this.cookieGenerator = cookieGenerator;
+	}
+
+	public int getMaxConcurrentHandshakes() {
+		return maxConcurrentHandshakes;
+	}
+
+	/**
+	 * Sets the maximum number of concurrent handshakes. New full handshakes
+	 * are rejected once nine tenths of them are in progress, the remaining
+	 * tenth is reserved for peers resuming a session.
+	 * 
+	 * @param maxConcurrentHandshakes
+	 *            the maximum number of handshakes, 0 for no limit
+	 */
+	public void setMaxConcurrentHandshakes(int maxConcurrentHandshakes) {
+		assertNotStarted();
+		if (maxConcurrentHandshakes < 0)
+			throw new IllegalArgumentException("the maximum number of handshakes must not be negative");
+		this.maxConcurrentHandshakes = maxConcurrentHandshakes;
+	}
+
+	public int getAddressHandshakeLimit() {
+		return addressHandshakeLimit;
+	}
+
+	/**
+	 * Sets the number of handshakes a single IP address may start per
+	 * minute. The limit also applies to bursts, further handshakes of the
+	 * address are dropped until its rate falls below the limit again.
+	 * <p>
+	 * The limit is disabled by default: many devices behind a NAT or a
+	 * gateway share a single address, so a suitable limit depends on the
+	 * deployment, e.g. 60 handshakes per minute for directly connected
+	 * devices.
+	 * 
+	 * @param addressHandshakeLimit
+	 *            the handshakes per minute, 0 for no limit (default)
+	 */
+	public void setAddressHandshakeLimit(int addressHandshakeLimit) {
+		assertNotStarted();
+		if (addressHandshakeLimit < 0)
+			throw new IllegalArgumentException("the handshake limit must not be negative");
+		this.addressHandshakeLimit = addressHandshakeLimit;
+	}
+
+	public int getSubnetHandshakeLimit() {
+		return subnetHandshakeLimit;
+	}
+
+	/**
+	 * Sets the number of handshakes the addresses of a subnet, i.e. an IPv4
+	 * /24 or an IPv6 /64 network, may start per minute together. The limit
+	 * should leave room for networks with many devices behind a NAT.
+	 * <p>
+	 * The limit is disabled by default, like
+	 * {@link #setAddressHandshakeLimit(int)}.
+	 * 
+	 * @param subnetHandshakeLimit
+	 *            the handshakes per minute, 0 for no limit (default)
+	 */
+	public void setSubnetHandshakeLimit(int subnetHandshakeLimit) {
+		assertNotStarted();
+		if (subnetHandshakeLimit < 0)
+			throw new IllegalArgumentException("the handshake limit must not be negative");
+		this.subnetHandshakeLimit = subnetHandshakeLimit;
+	}
 }
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link DatagramTransport} based on a non-blocking {@link DatagramChannel}.
+ * <p>
+ * Datagrams are received into and sent from pooled direct buffers, so the
+ * channel does not need to copy them into temporary native memory. The
+ * receiver only waits on the selector once all datagrams ready in the socket
+ * have been drained. A sender finding the socket's send buffer full waits
+ * until the channel becomes writable again, like a blocking socket would, but
+ * at most {@link #SEND_TIMEOUT} milliseconds.
+ */
+class DatagramChannelTransport implements DatagramTransport {
+
+	private static final Logger LOGGER = Logger.getLogger(DatagramChannelTransport.class.getCanonicalName());
+
+	/** The maximum time in milliseconds to wait for room in the socket's send buffer. */
+	static final long SEND_TIMEOUT = 1000;
+
+	private final DatagramChannel channel;
+
+	private final Selector selector;
+
+	/** The selector to wait for room in the send buffer with, senders wait one at a time. */
+	private final Selector writeSelector;
+
+	/** The number of datagrams dropped because the send buffer stayed full. */
+	private final AtomicLong droppedDatagrams = new AtomicLong();
+
+	/** The capacity of the direct buffers, i.e. the maximum datagram size. */
+	private final int bufferSize;
+
+	/** The direct buffer to receive datagrams in, only used by the receiver thread. */
+	private final ByteBuffer receiveBuffer;
+
+	/** The direct buffers to send datagrams from, one per sending thread. */
+	private final ThreadLocal<ByteBuffer> sendBuffer = new ThreadLocal<ByteBuffer>();
+
+	/**
+	 * Opens a new channel bound to the given address.
+	 *
+	 * @param address
+	 *            the local address to bind to
+	 * @param config
+	 *            the configuration to take the socket options and buffer
+	 *            sizes from
+	 * @throws IOException
+	 *             if the channel cannot be opened or bound
+	 */
+	DatagramChannelTransport(InetSocketAddress address, DTLSConnectorConfig config) throws IOException {
+		bufferSize = config.getMaxPayloadSize();
+		receiveBuffer = ByteBuffer.allocateDirect(bufferSize);
+		channel = DatagramChannel.open();
+		try {
+			if (config.getReceiveBufferSize() > 0) {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+			}
+			if (config.getSendBufferSize() > 0) {
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
+			}
+			if (config.getTrafficClass() >= 0) {
+				channel.setOption(StandardSocketOptions.IP_TOS, config.getTrafficClass());
+			}
+			channel.bind(address);
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+			writeSelector = Selector.open();
+			channel.register(writeSelector, SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Opened datagram channel on " + getLocalAddress() + " with SO_RCVBUF "
+					+ channel.getOption(StandardSocketOptions.SO_RCVBUF) + " and SO_SNDBUF "
+					+ channel.getOption(StandardSocketOptions.SO_SNDBUF));
+		}
+	}
+
+	@Override
+	public InetSocketAddress receive(ByteBuffer buffer) throws IOException {
+		receiveBuffer.clear();
+		InetSocketAddress source;
+		try {
+			while ((source = (InetSocketAddress) channel.receive(receiveBuffer)) == null) {
+				// all ready datagrams have been drained, wait for new ones
+				selector.select();
+				selector.selectedKeys().clear();
+			}
+		} catch (ClosedSelectorException e) {
+			throw new ClosedChannelException();
+		}
+		receiveBuffer.flip();
+		if (receiveBuffer.remaining() > buffer.remaining()) {
+			receiveBuffer.limit(receiveBuffer.position() + buffer.remaining());
+		}
+		buffer.put(receiveBuffer);
+		return source;
+	}
+
+	@Override
+	public void send(ByteBuffer buffer, InetSocketAddress peerAddress) throws IOException {
+		ByteBuffer directBuffer = sendBuffer.get();
+		if (directBuffer == null || directBuffer.capacity() < buffer.remaining()) {
+			directBuffer = ByteBuffer.allocateDirect(Math.max(bufferSize, buffer.remaining()));
+			sendBuffer.set(directBuffer);
+		}
+		directBuffer.clear();
+		directBuffer.put(buffer);
+		directBuffer.flip();
+		// a non-blocking channel does not send at all if the socket's send buffer is full
+		if (channel.send(directBuffer, peerAddress) == 0 && !sendWhenWritable(directBuffer, peerAddress)) {
+			long count = droppedDatagrams.incrementAndGet();
+			if (LOGGER.isLoggable(Level.WARNING)) {
+				LOGGER.warning("Dropped datagram to " + peerAddress + ", socket send buffer stayed full for "
+						+ SEND_TIMEOUT + " ms (" + count + " dropped so far)");
+			}
+		}
+	}
+
+	/**
+	 * Waits until the socket's send buffer has room for the datagram and
+	 * sends it.
+	 * 
+	 * @return <code>true</code> if the datagram has been sent,
+	 *         <code>false</code> if the send buffer stayed full
+	 */
+	private boolean sendWhenWritable(ByteBuffer datagram, InetSocketAddress peerAddress) throws IOException {
+		long deadline = System.nanoTime() + SEND_TIMEOUT * 1000000L;
+		try {
+			synchronized (writeSelector) {
+				while (channel.send(datagram, peerAddress) == 0) {
+					long remaining = (deadline - System.nanoTime()) / 1000000L;
+					if (remaining <= 0) {
+						return false;
+					}
+					writeSelector.select(remaining);
+					writeSelector.selectedKeys().clear();
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			throw new ClosedChannelException();
+		}
+		return true;
+	}
+
+	@Override
+	public long getDroppedDatagramCount() {
+		return droppedDatagrams.get();
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		try {
+			return (InetSocketAddress) channel.getLocalAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			selector.close();
+			writeSelector.close();
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not close datagram channel", e);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DatagramTransport} based on a blocking {@link DatagramSocket}. The
+ * buffers passed in must be backed by an array.
+ */
+class DatagramSocketTransport implements DatagramTransport {
+
+	private final DatagramSocket socket;
+
+	/** The packet to receive datagrams with, only used by the receiver thread. */
+	private final DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+
+	/** The packets to send datagrams with, one per sending thread. */
+	private final ThreadLocal<DatagramPacket> sendPacket = new ThreadLocal<DatagramPacket>() {
+
+		@Override
+		protected DatagramPacket initialValue() {
+			return new DatagramPacket(new byte[0], 0);
+		}
+	};
+
+	/**
+	 * Binds a new socket to the given address.
+	 *
+	 * @param address
+	 *            the local address to bind to
+	 * @param config
+	 *            the configuration to take the socket options from
+	 * @throws IOException
+	 *             if the socket cannot be bound
+	 */
+	DatagramSocketTransport(InetSocketAddress address, DTLSConnectorConfig config) throws IOException {
+		socket = new DatagramSocket(null);
+		try {
+			if (config.getReceiveBufferSize() > 0) {
+				socket.setReceiveBufferSize(config.getReceiveBufferSize());
+			}
+			if (config.getSendBufferSize() > 0) {
+				socket.setSendBufferSize(config.getSendBufferSize());
+			}
+			if (config.getTrafficClass() >= 0) {
+				socket.setTrafficClass(config.getTrafficClass());
+			}
+			socket.bind(address);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public InetSocketAddress receive(ByteBuffer buffer) throws IOException {
+		receivePacket.setData(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		socket.receive(receivePacket);
+		buffer.position(buffer.position() + receivePacket.getLength());
+		return (InetSocketAddress) receivePacket.getSocketAddress();
+	}
+
+	@Override
+	public void send(ByteBuffer buffer, InetSocketAddress peerAddress) throws IOException {
+		DatagramPacket datagram = sendPacket.get();
+		datagram.setData(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		datagram.setSocketAddress(peerAddress);
+		socket.send(datagram);
+		buffer.position(buffer.limit());
+	}
+
+	@Override
+	public long getDroppedDatagramCount() {
+		// the socket blocks until the datagram fits into the send buffer
+		return 0;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort());
+	}
+
+	@Override
+	public void close() {
+		socket.close();
+	}
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The UDP transport the {@link DTLSConnector} sends and receives its datagrams
+ * with. The implementation is selected by
+ * {@link DTLSConnectorConfig#setUseDatagramChannel(boolean)}.
+ * <p>
+ * {@link #receive(ByteBuffer)} is only called by the connector's receiver
+ * thread, whereas {@link #send(ByteBuffer, InetSocketAddress)} is called
+ * concurrently by the sender, receiver, lane and timeout threads.
+ */
+interface DatagramTransport {
+
+	/**
+	 * Receives the next datagram, blocking until one is available.
+	 *
+	 * @param buffer
+	 *            the buffer to receive the datagram in, starting at its
+	 *            position. A datagram larger than the remaining bytes is
+	 *            truncated.
+	 * @return the address of the datagram's sender
+	 * @throws IOException
+	 *             if the transport has been closed or receiving fails
+	 */
+	InetSocketAddress receive(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Sends the remaining bytes of the buffer as a single datagram.
+	 *
+	 * @param buffer
+	 *            the datagram's content
+	 * @param peerAddress
+	 *            the address to send the datagram to
+	 * @throws IOException
+	 *             if sending fails
+	 */
+	void send(ByteBuffer buffer, InetSocketAddress peerAddress) throws IOException;
+
+	/**
+	 * Gets the number of datagrams dropped by the transport, because the
+	 * socket's send buffer stayed full.
+	 *
+	 * @return the number of dropped datagrams
+	 */
+	long getDroppedDatagramCount();
+
+	/**
+	 * Gets the local address the transport is bound to.
+	 *
+	 * @return the local address
+	 */
+	InetSocketAddress getLocalAddress();
+
+	/**
+	 * Closes the transport, a thread blocked in {@link #receive(ByteBuffer)}
+	 * returns with an exception.
+	 */
+	void close();
+}
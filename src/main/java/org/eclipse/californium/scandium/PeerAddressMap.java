@@ -0,0 +1,392 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A thread-safe map from peer addresses to values.
+ * <p>
+ * IPv4 peers are keyed by their address and port packed into a
+ * <code>long</code> and stored in open-addressing tables, so looking them up
+ * does not allocate. Other peers, i.e. IPv6 peers, are keyed by a small
+ * immutable {@link Ipv6Key}. The map is split into segments with a lock each,
+ * so lookups of different peers rarely contend.
+ *
+ * @param <V>
+ *            the type of the values
+ */
+class PeerAddressMap<V> {
+
+	private static final int SEGMENTS = 16;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Segment<V>[] segments;
+
+	@SuppressWarnings("unchecked")
+	PeerAddressMap() {
+		segments = (Segment<V>[]) new Segment<?>[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment<V>();
+		}
+	}
+
+	// Methods ////////////////////////////////////////////////////////
+
+	V get(InetSocketAddress peerAddress) {
+		InetAddress address = peerAddress.getAddress();
+		if (address instanceof Inet4Address) {
+			long key = packIpv4(address, peerAddress.getPort());
+			return segmentFor(key).get(key);
+		} else {
+			Object key = otherKey(peerAddress);
+			return segmentFor(key.hashCode()).get(key);
+		}
+	}
+
+	boolean containsKey(InetSocketAddress peerAddress) {
+		return get(peerAddress) != null;
+	}
+
+	/**
+	 * Maps the peer address to a value.
+	 *
+	 * @param peerAddress
+	 *            the peer's address
+	 * @param value
+	 *            the value, must not be <code>null</code>
+	 * @return the previous value or <code>null</code>
+	 */
+	V put(InetSocketAddress peerAddress, V value) {
+		if (value == null) {
+			throw new NullPointerException("value must not be null");
+		}
+		InetAddress address = peerAddress.getAddress();
+		if (address instanceof Inet4Address) {
+			long key = packIpv4(address, peerAddress.getPort());
+			return segmentFor(key).put(key, value);
+		} else {
+			Object key = otherKey(peerAddress);
+			return segmentFor(key.hashCode()).put(key, value);
+		}
+	}
+
+	V remove(InetSocketAddress peerAddress) {
+		InetAddress address = peerAddress.getAddress();
+		if (address instanceof Inet4Address) {
+			long key = packIpv4(address, peerAddress.getPort());
+			return segmentFor(key).remove(key);
+		} else {
+			Object key = otherKey(peerAddress);
+			return segmentFor(key.hashCode()).remove(key);
+		}
+	}
+
+	/**
+	 * Removes the mapping of the peer address only if it maps to the given
+	 * value.
+	 *
+	 * @param peerAddress
+	 *            the peer's address
+	 * @param value
+	 *            the expected value
+	 * @return <code>true</code> if the value was removed
+	 */
+	boolean remove(InetSocketAddress peerAddress, V value) {
+		InetAddress address = peerAddress.getAddress();
+		if (address instanceof Inet4Address) {
+			long key = packIpv4(address, peerAddress.getPort());
+			return segmentFor(key).remove(key, value);
+		} else {
+			Object key = otherKey(peerAddress);
+			return segmentFor(key.hashCode()).remove(key, value);
+		}
+	}
+
+	int size() {
+		int size = 0;
+		for (Segment<V> segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Gets a snapshot of the values. Changes of the map are not reflected by
+	 * the returned list and vice versa.
+	 *
+	 * @return the values
+	 */
+	List<V> values() {
+		List<V> values = new ArrayList<V>();
+		for (Segment<V> segment : segments) {
+			segment.addValuesTo(values);
+		}
+		return values;
+	}
+
+	/**
+	 * Gets a value picked at random, e.g. to approximate LRU eviction by
+	 * sampling. Values are not picked uniformly, but each value can be picked.
+	 *
+	 * @param random
+	 *            a random number choosing the value
+	 * @return a value or <code>null</code> if the map is empty
+	 */
+	V sample(int random) {
+		for (int i = 0; i < SEGMENTS; i++) {
+			V value = segments[(random + i) & (SEGMENTS - 1)].sample(random >>> 4);
+			if (value != null) {
+				return value;
+			}
+		}
+		return null;
+	}
+
+	private Segment<V> segmentFor(long key) {
+		return segments[(int) (mix(key) >>> 60)];
+	}
+
+	/**
+	 * Packs an IPv4 address and port into a long. The Inet4Address's hash
+	 * code is its address, so unlike {@link InetAddress#getAddress()} this
+	 * does not copy the address bytes.
+	 */
+	private static long packIpv4(InetAddress address, int port) {
+		return ((address.hashCode() & 0xFFFFFFFFL) << 16) | port;
+	}
+
+	private static Object otherKey(InetSocketAddress peerAddress) {
+		if (peerAddress.getAddress() instanceof Inet6Address) {
+			return new Ipv6Key(peerAddress.getAddress().getAddress(), peerAddress.getPort());
+		}
+		// unresolved address
+		return peerAddress;
+	}
+
+	private static long mix(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return key ^ (key >>> 29);
+	}
+
+	// Segment ////////////////////////////////////////////////////////
+
+	/**
+	 * A part of the map guarded by its own lock. IPv4 entries are kept in an
+	 * open-addressing table with linear probing, a slot is free if its value
+	 * is <code>null</code>.
+	 */
+	private static final class Segment<V> {
+
+		private long[] keys = new long[INITIAL_CAPACITY];
+
+		private Object[] values = new Object[INITIAL_CAPACITY];
+
+		private int ipv4Size;
+
+		private final Map<Object, V> others = new HashMap<Object, V>();
+
+		@SuppressWarnings("unchecked")
+		synchronized V get(long key) {
+			int mask = keys.length - 1;
+			for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					return (V) values[i];
+				}
+			}
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V put(long key, V value) {
+			int mask = keys.length - 1;
+			int i = slot(key, mask);
+			for (; values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					V previous = (V) values[i];
+					values[i] = value;
+					return previous;
+				}
+			}
+			keys[i] = key;
+			values[i] = value;
+			// keep the load factor below 1/2
+			if (++ipv4Size * 2 > keys.length) {
+				resize(keys.length * 2);
+			}
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V remove(long key) {
+			int mask = keys.length - 1;
+			for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					V previous = (V) values[i];
+					values[i] = null;
+					ipv4Size--;
+					closeGap(i, mask);
+					return previous;
+				}
+			}
+			return null;
+		}
+
+		synchronized boolean remove(long key, V value) {
+			if (get(key) != value) {
+				return false;
+			}
+			remove(key);
+			return true;
+		}
+
+		synchronized V get(Object key) {
+			return others.get(key);
+		}
+
+		synchronized V put(Object key, V value) {
+			return others.put(key, value);
+		}
+
+		synchronized V remove(Object key) {
+			return others.remove(key);
+		}
+
+		synchronized boolean remove(Object key, V value) {
+			if (others.get(key) != value) {
+				return false;
+			}
+			others.remove(key);
+			return true;
+		}
+
+		synchronized int size() {
+			return ipv4Size + others.size();
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized void addValuesTo(List<V> list) {
+			for (Object value : values) {
+				if (value != null) {
+					list.add((V) value);
+				}
+			}
+			list.addAll(others.values());
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V sample(int random) {
+			if (ipv4Size > 0) {
+				int mask = keys.length - 1;
+				int i = random & mask;
+				while (values[i] == null) {
+					i = (i + 1) & mask;
+				}
+				return (V) values[i];
+			}
+			if (!others.isEmpty()) {
+				return others.values().iterator().next();
+			}
+			return null;
+		}
+
+		/**
+		 * Shifts the entries following a removed one back, so that no entry
+		 * is separated from its home slot by a free slot.
+		 */
+		private void closeGap(int gap, int mask) {
+			for (int i = (gap + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+				int home = slot(keys[i], mask);
+				// move the entry if its home slot is not within (gap, i]
+				if (((i - home) & mask) >= ((i - gap) & mask)) {
+					keys[gap] = keys[i];
+					values[gap] = values[i];
+					values[i] = null;
+					gap = i;
+				}
+			}
+		}
+
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new long[capacity];
+			values = new Object[capacity];
+			int mask = capacity - 1;
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldValues[j] != null) {
+					int i = slot(oldKeys[j], mask);
+					while (values[i] != null) {
+						i = (i + 1) & mask;
+					}
+					keys[i] = oldKeys[j];
+					values[i] = oldValues[j];
+				}
+			}
+		}
+
+		private static int slot(long key, int mask) {
+			return (int) mix(key) & mask;
+		}
+	}
+
+	// Ipv6Key ////////////////////////////////////////////////////////
+
+	/**
+	 * The key of an IPv6 peer.
+	 */
+	static final class Ipv6Key {
+
+		private final byte[] address;
+
+		private final int port;
+
+		private final int hash;
+
+		Ipv6Key(byte[] address, int port) {
+			this.address = address;
+			this.port = port;
+			this.hash = 31 * Arrays.hashCode(address) + port;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Ipv6Key)) {
+				return false;
+			}
+			Ipv6Key other = (Ipv6Key) obj;
+			return port == other.port && Arrays.equals(address, other.address);
+		}
+	}
+}
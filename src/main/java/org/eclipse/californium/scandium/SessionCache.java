@@ -0,0 +1,551 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.scandium.dtls.DTLSSession;
+import org.eclipse.californium.scandium.dtls.SessionId;
+import org.eclipse.californium.scandium.dtls.sessionstore.SessionStore;
+import org.eclipse.californium.scandium.dtls.sessionstore.SessionTicketProtector;
+import org.eclipse.californium.scandium.util.HashedWheelTimer;
+import org.eclipse.californium.scandium.util.HashedWheelTimer.Timeout;
+
+/**
+ * The {@link DTLSSession}s of a connector, stored according to the peer's
+ * address. The server-side sessions are additionally indexed by their session
+ * identifier, so a session to resume is found without scanning all sessions.
+ * Both maps are kept consistent when sessions are stored and removed.
+ * <p>
+ * The cache holds at most a maximum number of sessions. If it is full, the
+ * least recently used of a few randomly sampled sessions is evicted, which
+ * approximates LRU eviction without maintaining a global access order. A
+ * sweeper running on the connector's timer evicts sessions which have been
+ * idle for too long and removes sessions which exceeded their lifetime.
+ * <p>
+ * Evicted or closed sessions with a completed handshake stay resumable: they
+ * are moved to a bounded LRU map by session identifier, so the peer can resume
+ * them with an abbreviated handshake until they exceed their lifetime or are
+ * displaced. If a {@link SessionStore} is configured, established sessions are
+ * also stored there and restored from it when they are not in memory anymore,
+ * e.g. after a restart. The store is updated on a thread of its own, so its
+ * I/O does not delay the processing of records. Sessions with a session
+ * ticket have no identifier, the client keeps their state and they are
+ * dropped once evicted.
+ */
+class SessionCache {
+
+	private static final Logger LOGGER = Logger.getLogger(SessionCache.class.getCanonicalName());
+
+	/** The number of sessions sampled to choose the one to evict. */
+	private static final int EVICTION_SAMPLES = 5;
+
+	/** The interval between two sweeps in milliseconds. */
+	private static final long SWEEP_INTERVAL = 10000;
+
+	/** The time to wait for pending updates of the store when stopping, in milliseconds. */
+	private static final long STORE_TIMEOUT = 2000;
+
+	/**
+	 * Notified when the cache evicts or expires a session with a peer, so the
+	 * peer's other state can be cleaned up as well.
+	 */
+	interface EvictionListener {
+
+		void sessionEvicted(InetSocketAddress peerAddress, DTLSSession session);
+	}
+
+	// Members ////////////////////////////////////////////////////////
+
+	private final PeerAddressMap<CacheEntry> sessionsByAddress = new PeerAddressMap<CacheEntry>();
+
+	private final ConcurrentMap<SessionId, CacheEntry> sessionsById = new ConcurrentHashMap<SessionId, CacheEntry>();
+
+	/** The evicted sessions which can still be resumed, in access order. */
+	private final Map<SessionId, CacheEntry> resumableSessions = new LinkedHashMap<SessionId, CacheEntry>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<SessionId, CacheEntry> eldest) {
+			return size() > maxSessions;
+		}
+	};
+
+	private final EvictionListener listener;
+
+	private volatile int maxSessions = DTLSConnectorConfig.DEFAULT_MAX_SESSIONS;
+
+	private volatile long idleTimeout;
+
+	private volatile long lifetime;
+
+	private volatile SessionStore store;
+
+	private volatile SessionTicketProtector ticketProtector;
+
+	private Timeout sweeper;
+
+	/** Updating the store, <code>null</code> if there is none or the cache is stopped. */
+	private volatile ExecutorService storeWriter;
+
+	// Constructors ///////////////////////////////////////////////////
+
+	SessionCache(EvictionListener listener) {
+		this.listener = listener;
+	}
+
+	// Methods ////////////////////////////////////////////////////////
+
+	/**
+	 * Applies the limits of the configuration and starts sweeping.
+	 *
+	 * @param config
+	 *            the connector's configuration
+	 * @param timer
+	 *            the timer to run the sweeper on
+	 */
+	synchronized void start(DTLSConnectorConfig config, final HashedWheelTimer timer) {
+		maxSessions = config.getMaxSessions();
+		idleTimeout = config.getSessionIdleTimeout();
+		lifetime = config.getSessionLifetime();
+		store = config.getSessionStore();
+		ticketProtector = config.getSessionTicketProtector();
+		if (store != null) {
+			storeWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DTLS-SessionStore");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		sweeper = new Timeout(new Runnable() {
+
+			@Override
+			public void run() {
+				sweep(System.currentTimeMillis());
+				synchronized (SessionCache.this) {
+					if (sweeper != null) {
+						timer.schedule(sweeper, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+					}
+				}
+			}
+		});
+		timer.schedule(sweeper, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops sweeping and waits for the pending updates of the store. Later
+	 * updates are applied synchronously.
+	 */
+	synchronized void stop() {
+		if (sweeper != null) {
+			sweeper.cancel();
+			sweeper = null;
+		}
+		ExecutorService writer = storeWriter;
+		if (writer != null) {
+			storeWriter = null;
+			writer.shutdown();
+			try {
+				if (!writer.awaitTermination(STORE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					LOGGER.warning("Session store was not updated within " + STORE_TIMEOUT + " ms");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Gets the session with a peer and marks it as used.
+	 *
+	 * @param peerAddress
+	 *            the peer's address
+	 * @return the session or <code>null</code>
+	 */
+	DTLSSession get(InetSocketAddress peerAddress) {
+		CacheEntry entry = sessionsByAddress.get(peerAddress);
+		if (entry == null) {
+			return null;
+		}
+		entry.lastAccess = System.currentTimeMillis();
+		return entry.session;
+	}
+
+	/**
+	 * Stores a session according to the peer's address, replacing the
+	 * previous session with the peer. If the cache is full, another session
+	 * is evicted.
+	 *
+	 * @param peerAddress
+	 *            the peer's address
+	 * @param session
+	 *            the session
+	 */
+	void put(InetSocketAddress peerAddress, DTLSSession session) {
+		if (sessionsByAddress.size() >= maxSessions && sessionsByAddress.get(peerAddress) == null) {
+			evictLeastRecentlyUsed();
+		}
+		CacheEntry entry = new CacheEntry(peerAddress, session);
+		CacheEntry previous = sessionsByAddress.put(peerAddress, entry);
+		if (previous != null) {
+			unindex(previous);
+		}
+		index(entry);
+	}
+
+	/**
+	 * Stores a session resumed by a peer once the abbreviated handshake
+	 * completed. The session replaces the one it has been resumed from, which
+	 * is removed from the address it was used with before.
+	 *
+	 * @param peerAddress
+	 *            the address the peer resumed the session from
+	 * @param session
+	 *            the resumed session
+	 */
+	void resume(InetSocketAddress peerAddress, DTLSSession session) {
+		SessionId id = session.getSessionIdentifier();
+		CacheEntry previous = id == null ? null : sessionsById.get(id);
+		put(peerAddress, session);
+		if (previous != null && !previous.peerAddress.equals(peerAddress)
+				&& sessionsByAddress.remove(previous.peerAddress, previous)) {
+			// the peer moved to a new address, drop the state of the old one
+			listener.sessionEvicted(previous.peerAddress, previous.session);
+		}
+	}
+
+	/**
+	 * Removes the session with a peer which has been closed properly. An
+	 * established session can still be resumed.
+	 *
+	 * @param peerAddress
+	 *            the peer's address
+	 * @return the removed session or <code>null</code>
+	 */
+	DTLSSession remove(InetSocketAddress peerAddress) {
+		CacheEntry entry = sessionsByAddress.remove(peerAddress);
+		if (entry == null) {
+			return null;
+		}
+		retire(entry);
+		return entry.session;
+	}
+
+	/**
+	 * Removes the session with a peer after a failure, e.g. a fatal alert. The
+	 * session cannot be resumed anymore.
+	 *
+	 * @param peerAddress
+	 *            the peer's address
+	 * @return the removed session or <code>null</code>
+	 */
+	DTLSSession invalidate(InetSocketAddress peerAddress) {
+		CacheEntry entry = sessionsByAddress.remove(peerAddress);
+		if (entry == null) {
+			return null;
+		}
+		unindex(entry);
+		SessionId id = entry.session.getSessionIdentifier();
+		if (id != null && id.length() > 0) {
+			synchronized (resumableSessions) {
+				resumableSessions.remove(id);
+			}
+			if (entry.established && store != null) {
+				storeRemove(id);
+			}
+		}
+		return entry.session;
+	}
+
+	/**
+	 * Indexes the server-side session with a peer by its identifier. Must be
+	 * called once the identifier is set, i.e. after the handshaker processed
+	 * the ClientHello.
+	 *
+	 * @param peerAddress
+	 *            the peer's address
+	 */
+	void index(InetSocketAddress peerAddress) {
+		CacheEntry entry = sessionsByAddress.get(peerAddress);
+		if (entry != null) {
+			index(entry);
+		}
+	}
+
+	/**
+	 * Gets the session to resume for a session ticket offered in a ClientHello.
+	 * The session is not kept by the cache, it has no identifier and is only
+	 * stored for the peer's address by the caller.
+	 *
+	 * @param ticket
+	 *            the ticket
+	 * @return the session or <code>null</code> if tickets are disabled, the
+	 *         ticket is invalid or the session exceeded its lifetime
+	 */
+	DTLSSession findByTicket(byte[] ticket) {
+		SessionTicketProtector protector = ticketProtector;
+		if (protector == null) {
+			return null;
+		}
+		DTLSSession session = protector.unprotect(ticket);
+		if (session == null || isExpired(session, System.currentTimeMillis())) {
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * Gets the session to resume for a session identifier offered in a
+	 * ClientHello. The returned session must not be modified, the caller
+	 * resumes it on a copy and stores that once the abbreviated handshake
+	 * completed. Evicted sessions stay resumable until then, so a peer whose
+	 * handshake is not admitted or fails can still resume later.
+	 *
+	 * @param id
+	 *            the session identifier
+	 * @return the session or <code>null</code> if no such session exists or
+	 *         it exceeded its lifetime
+	 */
+	DTLSSession findById(SessionId id) {
+		if (id == null || id.length() == 0) {
+			return null;
+		}
+		CacheEntry entry = sessionsById.get(id);
+		if (entry == null) {
+			synchronized (resumableSessions) {
+				entry = resumableSessions.get(id);
+			}
+		}
+		if (entry != null) {
+			return isExpired(entry.session, System.currentTimeMillis()) ? null : entry.session;
+		}
+		if (store != null) {
+			DTLSSession session = store.get(id);
+			if (session != null && isExpired(session, System.currentTimeMillis())) {
+				storeRemove(id);
+				return null;
+			}
+			return session;
+		}
+		return null;
+	}
+
+	int size() {
+		return sessionsByAddress.size();
+	}
+
+	/**
+	 * Gets a snapshot of the sessions.
+	 *
+	 * @return the sessions
+	 */
+	List<DTLSSession> values() {
+		List<CacheEntry> entries = sessionsByAddress.values();
+		List<DTLSSession> sessions = new ArrayList<DTLSSession>(entries.size());
+		for (CacheEntry entry : entries) {
+			sessions.add(entry.session);
+		}
+		return sessions;
+	}
+
+	/**
+	 * Evicts idle sessions and removes sessions exceeding their lifetime.
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	void sweep(long now) {
+		int evicted = 0;
+		for (CacheEntry entry : sessionsByAddress.values()) {
+			if (isExpired(entry.session, now) || (idleTimeout > 0 && now - entry.lastAccess > idleTimeout)) {
+				evict(entry);
+				evicted++;
+			}
+		}
+		synchronized (resumableSessions) {
+			Iterator<CacheEntry> iterator = resumableSessions.values().iterator();
+			while (iterator.hasNext()) {
+				CacheEntry entry = iterator.next();
+				if (isExpired(entry.session, now)) {
+					iterator.remove();
+					if (store != null) {
+						storeRemove(entry.session.getSessionIdentifier());
+					}
+				}
+			}
+		}
+		if (evicted > 0 && LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Evicted " + evicted + " idle or expired sessions, " + size() + " sessions left");
+		}
+	}
+
+	private void evictLeastRecentlyUsed() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		CacheEntry oldest = null;
+		for (int i = 0; i < EVICTION_SAMPLES; i++) {
+			CacheEntry entry = sessionsByAddress.sample(random.nextInt());
+			if (entry != null && (oldest == null || entry.lastAccess < oldest.lastAccess)) {
+				oldest = entry;
+			}
+		}
+		if (oldest != null) {
+			evict(oldest);
+		}
+	}
+
+	/**
+	 * Removes a session from the address map.
+	 */
+	private void evict(CacheEntry entry) {
+		if (!sessionsByAddress.remove(entry.peerAddress, entry)) {
+			// removed or replaced concurrently
+			return;
+		}
+		retire(entry);
+		if (LOGGER.isLoggable(Level.FINER)) {
+			LOGGER.finer("Evicted session with peer " + entry.peerAddress);
+		}
+		listener.sessionEvicted(entry.peerAddress, entry.session);
+	}
+
+	/**
+	 * Keeps a session removed from the address map resumable if its
+	 * handshake completed, unless it exceeded its lifetime.
+	 */
+	private void retire(CacheEntry entry) {
+		unindex(entry);
+		SessionId id = entry.session.getSessionIdentifier();
+		if (entry.established && id != null && id.length() > 0) {
+			if (!isExpired(entry.session, System.currentTimeMillis())) {
+				synchronized (resumableSessions) {
+					resumableSessions.put(id, entry);
+				}
+			} else if (store != null) {
+				storeRemove(id);
+			}
+		}
+	}
+
+	private boolean isExpired(DTLSSession session, long now) {
+		return lifetime > 0 && now - session.getCreationTime() > lifetime;
+	}
+
+	private void index(CacheEntry entry) {
+		SessionId id = entry.session.getSessionIdentifier();
+		if (!entry.session.isClient() && id != null && id.length() > 0) {
+			if (sessionsById.put(id, entry) == null) {
+				// a resumed session is not evicted anymore
+				synchronized (resumableSessions) {
+					resumableSessions.remove(id);
+				}
+			}
+			if (!entry.established && entry.session.isActive()) {
+				// the handshake completed, the session can be resumed from now on
+				entry.established = true;
+				if (store != null) {
+					storePut(entry.session);
+				}
+			}
+		}
+	}
+
+	private void storePut(final DTLSSession session) {
+		updateStore(new Runnable() {
+
+			@Override
+			public void run() {
+				store.put(session);
+			}
+		});
+	}
+
+	private void storeRemove(final SessionId id) {
+		updateStore(new Runnable() {
+
+			@Override
+			public void run() {
+				store.remove(id);
+			}
+		});
+	}
+
+	/**
+	 * Applies an update to the store on its own thread, keeping the order of
+	 * the updates.
+	 */
+	private void updateStore(Runnable update) {
+		ExecutorService writer = storeWriter;
+		if (writer != null) {
+			try {
+				writer.execute(update);
+				return;
+			} catch (RejectedExecutionException e) {
+				// stopped concurrently
+			}
+		}
+		update.run();
+	}
+
+	private void unindex(CacheEntry entry) {
+		SessionId id = entry.session.getSessionIdentifier();
+		if (id != null) {
+			// only remove the index entry if it still refers to this session
+			sessionsById.remove(id, entry);
+		}
+	}
+
+	// CacheEntry /////////////////////////////////////////////////////
+
+	private static final class CacheEntry {
+
+		private final InetSocketAddress peerAddress;
+
+		private final DTLSSession session;
+
+		private volatile long lastAccess;
+
+		/** Whether the session's handshake completed, i.e. it can be resumed. */
+		private volatile boolean established;
+
+		CacheEntry(InetSocketAddress peerAddress, DTLSSession session) {
+			this.peerAddress = peerAddress;
+			this.session = session;
+			this.lastAccess = System.currentTimeMillis();
+		}
+	}
+}
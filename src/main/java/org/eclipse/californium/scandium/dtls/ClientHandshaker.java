@@ -18,12 +18,13 @@ package org.eclipse.californium.scandium.dtls;
 
 import java.net.InetSocketAddress;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.cert.Certificate;
 import java.security.interfaces.ECPublicKey;
 import java.security.spec.ECParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 
 import org.eclipse.californium.elements.RawData;
@@ -32,9 +33,9 @@ import org.eclipse.californium.scandium.dtls.AlertMessage.AlertDescription;
 import org.eclipse.californium.scandium.dtls.AlertMessage.AlertLevel;
 import org.eclipse.californium.scandium.dtls.CertificateTypeExtension.CertificateType;
 import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite.CipherType;
 import org.eclipse.californium.scandium.dtls.cipher.ECDHECryptography;
 import org.eclipse.californium.scandium.dtls.pskstore.PskStore;
-import org.eclipse.californium.scandium.util.ByteArrayUtils;
 
 
 /**
@@ -46,6 +47,15 @@ public class ClientHandshaker extends Handshaker {
 
 	// Members ////////////////////////////////////////////////////////
 
+	/** the cipher suites the client is able to negotiate, ordered by preference */
+	private static final CipherSuite[] SUPPORTED_CIPHER_SUITES = {
+			CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CCM_8,
+			CipherSuite.TLS_PSK_WITH_AES_128_CCM_8,
+			CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,
+			CipherSuite.TLS_PSK_WITH_AES_128_GCM_SHA256,
+			CipherSuite.TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256,
+			CipherSuite.TLS_PSK_WITH_CHACHA20_POLY1305_SHA256 };
+
 	private ProtocolVersion maxProtocolVersion = new ProtocolVersion();
 
 	/** The server's public key from its certificate */
@@ -104,7 +114,9 @@ public class ClientHandshaker extends Handshaker {
 	 */
 	public ClientHandshaker(InetSocketAddress endpointAddress, RawData message, DTLSSession session,Certificate[] rootCerts, DTLSConnectorConfig config) {
 		super(endpointAddress, true, session,rootCerts);
-		this.message = message;
+		if (message != null) {
+			pendingMessages.add(message);
+		}
 		this.privateKey = config.privateKey;
 		this.certificates = config.certChain;
 		this.publicKey = certificates != null && certificates.length > 0 ? certificates[0].getPublicKey() : config.publicKey;
@@ -237,7 +249,8 @@ public class ClientHandshaker extends Handshaker {
 
 	/**
 	 * Called when the client received the server's finished message. If the
-	 * data can be verified, encrypted application data can be sent.
+	 * data can be verified, the connector sends the pending application
+	 * messages.
 	 * 
 	 * @param message
 	 *            the {@link Finished} message.
@@ -252,12 +265,7 @@ public class ClientHandshaker extends Handshaker {
 		state = HandshakeType.FINISHED.getCode();
 		session.setActive(true);
 
-		// received server's Finished message, now able to send encrypted
-		// message
-		ApplicationMessage applicationMessage = new ApplicationMessage(this.message.getBytes());
-
-		flight.addMessage(wrapMessage(applicationMessage));
-		// application data is not retransmitted
+		// nothing left to send, but the Finished flight is not retransmitted anymore
 		flight.setRetransmissionNeeded(false);
 
 		return flight;
@@ -288,7 +296,7 @@ public class ClientHandshaker extends Handshaker {
 	 *            the server's {@link HelloVerifyRequest}.
 	 * @return {@link ClientHello} with server's {@link Cookie} set.
 	 */
-	private DTLSFlight receivedHelloVerifyRequest(HelloVerifyRequest message) {
+	protected DTLSFlight receivedHelloVerifyRequest(HelloVerifyRequest message) {
 
 		clientHello.setCookie(message.getCookie());
 		// update the length (cookie added)
@@ -498,29 +506,47 @@ public class ClientHandshaker extends Handshaker {
 		}
 		flight.addMessage(wrapMessage(clientKeyExchange));
 
+		/*
+		 * Create the hash of the handshake messages, the messages are
+		 * serialized once for the hash and, if a CertificateVerify is sent,
+		 * its signature. It can't be done on the fly, since there is no
+		 * explicit ordering of received messages.
+		 */
+		keepHandshakeMessages(certificateRequest != null);
+		updateHandshakeHash(clientHello.toByteArray());
+		updateHandshakeHash(serverHello.toByteArray());
+		if (serverWebidUriMessage != null) {
+			updateHandshakeHash(serverWebidUriMessage.toByteArray());
+		}
+		if (serverCertificate != null) {
+			updateHandshakeHash(serverCertificate.toByteArray());
+		}
+		if (serverKeyExchange != null) {
+			updateHandshakeHash(serverKeyExchange.toByteArray());
+		}
+		if (certificateRequest != null) {
+			updateHandshakeHash(certificateRequest.toByteArray());
+		}
+		updateHandshakeHash(serverHelloDone.toByteArray());
+		if (clientWebidUriMessage != null) {
+			updateHandshakeHash(clientWebidUriMessage.toByteArray());
+		}
+		if (clientCertificate != null) {
+			updateHandshakeHash(clientCertificate.toByteArray());
+		}
+		updateHandshakeHash(clientKeyExchange.toByteArray());
+
 		/*
 		 * Third, send CertificateVerify message if necessary.
 		 */
 		if (certificateRequest != null) {
-			// prepare handshake messages
-			handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, clientHello.toByteArray());
-			handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, serverHello.toByteArray());
-			if (null != serverWebidUriMessage)
-				handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, serverWebidUriMessage.toByteArray());			
-			handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, serverCertificate.toByteArray());
-			handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, serverKeyExchange.toByteArray());
-			handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, certificateRequest.toByteArray());
-			handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, serverHelloDone.toByteArray());
-			if (null!=clientWebidUriMessage)
-				handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, clientWebidUriMessage.toByteArray());	
-			handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, clientCertificate.toByteArray());
-			handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, clientKeyExchange.toByteArray());
-			
 			// TODO make sure, that signature is supported
 			SignatureAndHashAlgorithm signatureAndHashAlgorithm = certificateRequest.getSupportedSignatureAlgorithms().get(0);
-			certificateVerify = new CertificateVerify(signatureAndHashAlgorithm, privateKey, handshakeMessages);
+			certificateVerify = new CertificateVerify(signatureAndHashAlgorithm, privateKey, getHandshakeMessages());
+			keepHandshakeMessages(false);
 			
 			flight.addMessage(wrapMessage(certificateVerify));
+			md.update(certificateVerify.toByteArray());
 		}
 
 		/*
@@ -534,61 +560,49 @@ public class ClientHandshaker extends Handshaker {
 		/*
 		 * Fifth, send the finished message.
 		 */
+		MessageDigest mdWithClientFinished = null;
 		try {
-			// create hash of handshake messages
-			// can't do this on the fly, since there is no explicit ordering of
-			// messages
-
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			md.update(clientHello.toByteArray());
-			md.update(serverHello.toByteArray());
-			if(serverWebidUriMessage != null)
-				md.update(serverWebidUriMessage.toByteArray());
-			if (serverCertificate != null) {
-				md.update(serverCertificate.toByteArray());
-			}
-			if (serverKeyExchange != null) {
-				md.update(serverKeyExchange.toByteArray());
-			}
-			if (certificateRequest != null) {
-				md.update(certificateRequest.toByteArray());
-			}
-			md.update(serverHelloDone.toByteArray());
-			
-			if (clientWebidUriMessage != null)
-				md.update(clientWebidUriMessage.toByteArray());
-
-			if (clientCertificate != null) {
-				md.update(clientCertificate.toByteArray());
-			}
-			md.update(clientKeyExchange.toByteArray());
+			mdWithClientFinished = (MessageDigest) md.clone();
+		} catch (CloneNotSupportedException e) {
+			LOGGER.log(Level.SEVERE,"Clone not supported.",e);
+		}
 
-			if (certificateVerify != null) {
-				md.update(certificateVerify.toByteArray());
-			}
+		handshakeHash = md.digest();
+		Finished finished = new Finished(getMasterSecret(), isClient, handshakeHash);
+		flight.addMessage(wrapMessage(finished));
+		
+		// compute handshake hash with client's finished message also
+		// included, used for server's finished message
+		mdWithClientFinished.update(finished.toByteArray());
+		handshakeHash = mdWithClientFinished.digest();
 
-			MessageDigest mdWithClientFinished = null;
-			try {
-				mdWithClientFinished = (MessageDigest) md.clone();
-			} catch (CloneNotSupportedException e) {
-				LOGGER.log(Level.SEVERE,"Clone not supported.",e);
-			}
+		return flight;
 
-			handshakeHash = md.digest();
-			Finished finished = new Finished(getMasterSecret(), isClient, handshakeHash);
-			flight.addMessage(wrapMessage(finished));
-			
-			// compute handshake hash with client's finished message also
-			// included, used for server's finished message
-			mdWithClientFinished.update(finished.toByteArray());
-			handshakeHash = mdWithClientFinished.digest();
+	}
 
-		} catch (NoSuchAlgorithmException e) {
-			LOGGER.log(Level.SEVERE,"No such Message Digest Algorithm available.",e);
+	/**
+	 * Determines the cipher suites proposed in the <em>ClientHello</em>. The
+	 * preferred cipher suite comes first, followed by the other suites using
+	 * the same key exchange algorithm and then by the remaining suites. The
+	 * mandatory to implement CCM_8 suites and the ChaCha20-Poly1305 suites are
+	 * always proposed, the GCM suites only if the JCE supports them.
+	 * 
+	 * @return the cipher suites ordered by preference
+	 */
+	private List<CipherSuite> getProposedCipherSuites() {
+		List<CipherSuite> cipherSuites = new ArrayList<CipherSuite>();
+		if (preferredCipherSuite != null && preferredCipherSuite.getCipherType() != CipherType.NULL && preferredCipherSuite.isSupported()) {
+			cipherSuites.add(preferredCipherSuite);
 		}
-
-		return flight;
-
+		for (boolean sameKeyExchange : new boolean[] { true, false }) {
+			for (CipherSuite cipherSuite : SUPPORTED_CIPHER_SUITES) {
+				boolean matches = preferredCipherSuite != null && cipherSuite.getKeyExchange() == preferredCipherSuite.getKeyExchange();
+				if (matches == sameKeyExchange && cipherSuite.isSupported() && !cipherSuites.contains(cipherSuite)) {
+					cipherSuites.add(cipherSuite);
+				}
+			}
+		}
+		return cipherSuites;
 	}
 
 	@Override
@@ -598,13 +612,9 @@ public class ClientHandshaker extends Handshaker {
 		// store client random for later calculations
 		clientRandom = message.getRandom();
 
-		// the mandatory to implement ciphersuites, the preferred one should be first in the list
-		if (preferredCipherSuite == CipherSuite.TLS_PSK_WITH_AES_128_CCM_8) {
-			message.addCipherSuite(CipherSuite.TLS_PSK_WITH_AES_128_CCM_8);
-			message.addCipherSuite(CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CCM_8);
-		} else {
-			message.addCipherSuite(CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CCM_8);
-			message.addCipherSuite(CipherSuite.TLS_PSK_WITH_AES_128_CCM_8);
+		// the preferred cipher suite should be first in the list
+		for (CipherSuite cipherSuite : getProposedCipherSuites()) {
+			message.addCipherSuite(cipherSuite);
 		}
 		
 		message.addCompressionMethod(CompressionMethod.NULL);
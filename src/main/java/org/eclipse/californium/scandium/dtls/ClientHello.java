@@ -417,5 +417,22 @@ public class ClientHello extends HandshakeMessage {
 		}
 		return null;
 	}
+	
+	/**
+	 * 
+	 * @return the client's session ticket extension if available,
+	 *         otherwise <code>null</code>.
+	 */
+	public SessionTicketExtension getSessionTicketExtension() {
+		if (extensions != null) {
+			List<HelloExtension> exts = extensions.getExtensions();
+			for (HelloExtension helloExtension : exts) {
+				if (helloExtension instanceof SessionTicketExtension) {
+					return (SessionTicketExtension) helloExtension;
+				}
+			}
+		}
+		return null;
+	}
 
 }
@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+
+
+/**
+ * Generates and verifies the {@link Cookie}s of HelloVerifyRequests without
+ * keeping any per-client state, as suggested by <a
+ * href="http://tools.ietf.org/html/rfc6347#section-4.2.1">RFC 6347</a>:
+ * 
+ * <pre>
+ * Cookie = HMAC(Secret, Client-IP, Client-Parameters)
+ * </pre>
+ * 
+ * The secret is random and replaced every rotation interval. Cookies
+ * generated with the previous secret are still accepted until the next
+ * rotation, so a client which received a HelloVerifyRequest just before a
+ * rotation can complete its handshake.
+ * <p>
+ * Each thread keeps its own HMAC-SHA256 instances, initialized once per
+ * secret. Generating a cookie allocates nothing but the cookie, verifying a
+ * cookie of an IPv4 client allocates nothing at all. Instances are thread
+ * safe.
+ */
+public class CookieGenerator {
+
+	// Constants //////////////////////////////////////////////////////
+
+	/** The default time in milliseconds after which the secret is replaced. */
+	public static final long DEFAULT_ROTATION_INTERVAL = 5 * 60 * 1000;
+
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private static final int SECRET_LENGTH = 32;
+
+	/** The length of the cookie, i.e. of the HMAC-SHA256 output. */
+	private static final int COOKIE_LENGTH = 32;
+
+	// Members ////////////////////////////////////////////////////////
+
+	private final long rotationInterval;
+
+	private final SecureRandom random = new SecureRandom();
+
+	/** The current and the previous secret. */
+	private volatile Secrets secrets;
+
+	private final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+
+		@Override
+		protected ThreadState initialValue() {
+			return new ThreadState();
+		}
+	};
+
+	// Constructors ///////////////////////////////////////////////////
+
+	public CookieGenerator() {
+		this(DEFAULT_ROTATION_INTERVAL);
+	}
+
+	/**
+	 * Creates a cookie generator.
+	 * 
+	 * @param rotationInterval
+	 *            the time in milliseconds after which the secret is replaced
+	 */
+	public CookieGenerator(long rotationInterval) {
+		if (rotationInterval <= 0) {
+			throw new IllegalArgumentException("the rotation interval must be positive");
+		}
+		this.rotationInterval = rotationInterval;
+		this.secrets = new Secrets(newSecret(0), null, System.currentTimeMillis() + rotationInterval);
+	}
+
+	// Methods ////////////////////////////////////////////////////////
+
+	/**
+	 * Generates the cookie for a client's hello message.
+	 * 
+	 * @param endpointAddress
+	 *            the client's address.
+	 * @param clientHello
+	 *            the client's hello message.
+	 * @return the cookie generated from the client's parameters.
+	 */
+	public Cookie generateCookie(InetSocketAddress endpointAddress, ClientHello clientHello) {
+		Mac mac = threadState.get().getMac(getSecrets().current);
+		update(mac, endpointAddress, clientHello);
+		return new Cookie(mac.doFinal());
+	}
+
+	/**
+	 * Checks whether the cookie in the client's hello message matches the
+	 * cookie generated from the client's parameters with the current or the
+	 * previous secret.
+	 * 
+	 * @param endpointAddress
+	 *            the client's address.
+	 * @param clientHello
+	 *            the client's hello message containing the cookie.
+	 * @return <code>true</code> if the cookie matches, <code>false</code>
+	 *         otherwise.
+	 */
+	public boolean isValidCookie(InetSocketAddress endpointAddress, ClientHello clientHello) {
+		byte[] cookie = clientHello.getCookie().getCookie();
+		if (cookie.length != COOKIE_LENGTH) {
+			return false;
+		}
+		Secrets secrets = getSecrets();
+		ThreadState state = threadState.get();
+		return matches(state, secrets.current, endpointAddress, clientHello, cookie)
+				|| (secrets.previous != null && matches(state, secrets.previous, endpointAddress, clientHello, cookie));
+	}
+
+	private boolean matches(ThreadState state, Secret secret, InetSocketAddress endpointAddress, ClientHello clientHello, byte[] cookie) {
+		Mac mac = state.getMac(secret);
+		update(mac, endpointAddress, clientHello);
+		try {
+			mac.doFinal(state.expected, 0);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		// constant time comparison
+		return MessageDigest.isEqual(state.expected, cookie);
+	}
+
+	/**
+	 * Feeds the client's address and parameters into the MAC.
+	 */
+	private static void update(Mac mac, InetSocketAddress endpointAddress, ClientHello clientHello) {
+		// Client-IP
+		InetAddress address = endpointAddress.getAddress();
+		if (address instanceof Inet4Address) {
+			// the hash code of an IPv4 address is the address, no copy needed
+			updateInt(mac, address.hashCode());
+		} else if (address != null) {
+			mac.update(address.getAddress());
+		} else {
+			mac.update(endpointAddress.getHostString().getBytes(StandardCharsets.UTF_8));
+		}
+		mac.update((byte) (endpointAddress.getPort() >>> 8));
+		mac.update((byte) endpointAddress.getPort());
+
+		// Client-Parameters
+		mac.update((byte) clientHello.getClientVersion().getMajor());
+		mac.update((byte) clientHello.getClientVersion().getMinor());
+		mac.update(clientHello.getRandom().getRandomBytes());
+		byte[] sessionId = clientHello.getSessionId().getSessionId();
+		mac.update((byte) sessionId.length);
+		mac.update(sessionId);
+		// indexed loops, the lists are array lists and iterators would be allocated
+		List<CipherSuite> cipherSuites = clientHello.getCipherSuites();
+		for (int i = 0; i < cipherSuites.size(); i++) {
+			int code = cipherSuites.get(i).getCode();
+			mac.update((byte) (code >>> 8));
+			mac.update((byte) code);
+		}
+		List<CompressionMethod> compressionMethods = clientHello.getCompressionMethods();
+		for (int i = 0; i < compressionMethods.size(); i++) {
+			mac.update((byte) compressionMethods.get(i).getCode());
+		}
+	}
+
+	private static void updateInt(Mac mac, int value) {
+		mac.update((byte) (value >>> 24));
+		mac.update((byte) (value >>> 16));
+		mac.update((byte) (value >>> 8));
+		mac.update((byte) value);
+	}
+
+	/**
+	 * Gets the secrets, replacing the current secret if it is due.
+	 */
+	private Secrets getSecrets() {
+		Secrets secrets = this.secrets;
+		if (System.currentTimeMillis() >= secrets.rotateAt) {
+			return rotate(secrets);
+		}
+		return secrets;
+	}
+
+	private synchronized Secrets rotate(Secrets expired) {
+		if (secrets != expired) {
+			// already rotated by another thread
+			return secrets;
+		}
+		long now = System.currentTimeMillis();
+		// the previous secret is only kept if the current one was in use until recently
+		Secret previous = now < expired.rotateAt + rotationInterval ? expired.current : null;
+		secrets = new Secrets(newSecret(expired.current.generation + 1), previous, now + rotationInterval);
+		return secrets;
+	}
+
+	private Secret newSecret(long generation) {
+		byte[] key = new byte[SECRET_LENGTH];
+		random.nextBytes(key);
+		return new Secret(new SecretKeySpec(key, MAC_ALGORITHM), generation);
+	}
+
+	// Secret /////////////////////////////////////////////////////////
+
+	private static final class Secret {
+
+		private final SecretKeySpec key;
+
+		private final long generation;
+
+		private Secret(SecretKeySpec key, long generation) {
+			this.key = key;
+			this.generation = generation;
+		}
+	}
+
+	private static final class Secrets {
+
+		private final Secret current;
+
+		private final Secret previous;
+
+		/** The time at which the current secret is replaced. */
+		private final long rotateAt;
+
+		private Secrets(Secret current, Secret previous, long rotateAt) {
+			this.current = current;
+			this.previous = previous;
+			this.rotateAt = rotateAt;
+		}
+	}
+
+	// ThreadState ////////////////////////////////////////////////////
+
+	/**
+	 * The MACs of a thread. Consecutive secrets use different slots, so the
+	 * current and the previous secret never replace each other's MAC.
+	 */
+	private static final class ThreadState {
+
+		private final Mac[] macs = new Mac[2];
+
+		private final SecretKeySpec[] keys = new SecretKeySpec[2];
+
+		/** The expected cookie when verifying. */
+		private final byte[] expected = new byte[COOKIE_LENGTH];
+
+		private ThreadState() {
+			try {
+				macs[0] = Mac.getInstance(MAC_ALGORITHM);
+				macs[1] = Mac.getInstance(MAC_ALGORITHM);
+			} catch (GeneralSecurityException e) {
+				// every Java platform supports HmacSHA256
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private Mac getMac(Secret secret) {
+			int slot = (int) (secret.generation & 1);
+			if (keys[slot] != secret.key) {
+				try {
+					macs[slot].init(secret.key);
+				} catch (GeneralSecurityException e) {
+					throw new IllegalStateException(e);
+				}
+				keys[slot] = secret.key;
+			}
+			return macs[slot];
+		}
+	}
+}
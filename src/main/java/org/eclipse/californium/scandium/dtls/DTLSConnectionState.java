@@ -16,10 +16,19 @@
  ******************************************************************************/
 package org.eclipse.californium.scandium.dtls;
 
+import java.security.GeneralSecurityException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 
+import org.eclipse.californium.scandium.dtls.cipher.AEADCipher;
+import org.eclipse.californium.scandium.dtls.cipher.CCMBlockCipher;
+import org.eclipse.californium.scandium.dtls.cipher.ChaCha20Poly1305Cipher;
 import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.eclipse.californium.scandium.dtls.cipher.GCMBlockCipher;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite.CipherType;
 
 /**
  * Represents a connection state. It specifies a compression algorithm, an
@@ -29,8 +38,16 @@ import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
  * read and write states. See <a
  * href="http://tools.ietf.org/html/rfc5246#section-6.1">RFC 5246</a> for
  * details.
+ * <p>
+ * For AEAD cipher suites the state also owns the cipher context prepared for
+ * its encryption key, so that the key schedule is only computed once when the
+ * state is installed, not for every record.
  */
 public class DTLSConnectionState {
+
+	// Logging ////////////////////////////////////////////////////////
+
+	private static final Logger LOGGER = Logger.getLogger(DTLSConnectionState.class.getCanonicalName());
 	
 	// Members ////////////////////////////////////////////////////////
 
@@ -40,6 +57,12 @@ public class DTLSConnectionState {
 	private IvParameterSpec iv;
 	private SecretKey macKey;
 
+	/** the cached bytes of the IV, avoiding the defensive copy of {@link IvParameterSpec#getIV()} */
+	private byte[] ivBytes;
+
+	/** the AEAD cipher initialized with the encryption key, created lazily if not yet available */
+	private AEADCipher aeadCipher;
+
 	// Constructors ///////////////////////////////////////////////////
 
 	/**
@@ -67,6 +90,62 @@ public class DTLSConnectionState {
 		this.encryptionKey = encryptionKey;
 		this.iv = iv;
 		this.macKey = macKey;
+		if (cipherSuite.getCipherType() == CipherType.AEAD && encryptionKey != null) {
+			try {
+				this.aeadCipher = createAeadCipher();
+			} catch (GeneralSecurityException e) {
+				// retried on first use
+				LOGGER.log(Level.WARNING, "Could not prepare cipher for " + cipherSuite, e);
+			}
+		}
+	}
+
+	// Methods ////////////////////////////////////////////////////////
+
+	/**
+	 * Gets the AEAD cipher prepared for this state's encryption key.
+	 * <p>
+	 * The returned cipher is shared by all records protected under this state
+	 * and is not thread safe, callers must synchronize on it.
+	 * 
+	 * @return the cipher
+	 * @throws GeneralSecurityException
+	 *             if the cipher cannot be initialized with the encryption key.
+	 */
+	public synchronized AEADCipher getAeadCipher() throws GeneralSecurityException {
+		if (aeadCipher == null) {
+			aeadCipher = createAeadCipher();
+		}
+		return aeadCipher;
+	}
+
+	/**
+	 * Gets the bytes of the (implicit) IV without copying them. The returned
+	 * array must not be modified.
+	 * 
+	 * @return the IV bytes or <code>null</code> if no IV is set
+	 */
+	public synchronized byte[] getIvBytes() {
+		if (ivBytes == null && iv != null) {
+			ivBytes = iv.getIV();
+		}
+		return ivBytes;
+	}
+
+	private AEADCipher createAeadCipher() throws GeneralSecurityException {
+		if (encryptionKey == null) {
+			throw new GeneralSecurityException("No encryption key available");
+		}
+		switch (cipherSuite.getBulkCipher()) {
+		case AES:
+			return new CCMBlockCipher(encryptionKey, cipherSuite.getBulkCipher().getTagLength());
+		case AES_GCM:
+			return new GCMBlockCipher(encryptionKey);
+		case CHACHA20_POLY1305:
+			return new ChaCha20Poly1305Cipher(encryptionKey);
+		default:
+			throw new GeneralSecurityException("No AEAD cipher available for " + cipherSuite);
+		}
 	}
 
 	// Getters and Setters ////////////////////////////////////////////
@@ -75,8 +154,9 @@ public class DTLSConnectionState {
 		return cipherSuite;
 	}
 
-	public void setCipherSuite(CipherSuite cipherSuite) {
+	public synchronized void setCipherSuite(CipherSuite cipherSuite) {
 		this.cipherSuite = cipherSuite;
+		this.aeadCipher = null;
 	}
 
 	public CompressionMethod getCompressionMethod() {
@@ -91,16 +171,18 @@ public class DTLSConnectionState {
 		return encryptionKey;
 	}
 
-	public void setEncryptionKey(SecretKey encryptionKey) {
+	public synchronized void setEncryptionKey(SecretKey encryptionKey) {
 		this.encryptionKey = encryptionKey;
+		this.aeadCipher = null;
 	}
 
 	public IvParameterSpec getIv() {
 		return iv;
 	}
 
-	public void setIv(IvParameterSpec iv) {
+	public synchronized void setIv(IvParameterSpec iv) {
 		this.iv = iv;
+		this.ivBytes = null;
 	}
 
 	public SecretKey getMacKey() {
@@ -19,7 +19,8 @@ package org.eclipse.californium.scandium.dtls;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.TimerTask;
+
+import org.eclipse.californium.scandium.util.HashedWheelTimer.Timeout;
 
 /**
  * DTLS messages are grouped into a series of message flights. One flight
@@ -50,6 +51,13 @@ public class DTLSFlight {
 	/** The number of retransmissions. */
 	private int tries;
 
+	/**
+	 * Indicates, whether this flight has been sent before. A flight sent again,
+	 * e.g. the last flight of a handshake resent on the peer's retransmission,
+	 * needs new record sequence numbers.
+	 */
+	private boolean sent = false;
+
 	/** The current timeout (in milliseconds). */
 	private int timeout;
 
@@ -59,8 +67,11 @@ public class DTLSFlight {
 	 */
 	private boolean retransmissionNeeded = true;
 
-	/** The retransmission task. Needed when to cancel the retransmission. */
-	private TimerTask retransmitTask;
+	/**
+	 * The handle of the retransmission timeout. Reused for all retransmissions
+	 * of this flight and needed to cancel the retransmission.
+	 */
+	private Timeout retransmitTimeout;
 
 	/**
 	 * Initializes an empty, fresh flight. The timeout is set to 0, it will be
@@ -112,6 +123,14 @@ public class DTLSFlight {
 		this.tries = tries;
 	}
 
+	public boolean isSent() {
+		return sent;
+	}
+
+	public void setSent(boolean sent) {
+		this.sent = sent;
+	}
+
 	public int getTimeout() {
 		return timeout;
 	}
@@ -136,12 +155,12 @@ public class DTLSFlight {
 		this.retransmissionNeeded = needsRetransmission;
 	}
 
-	public TimerTask getRetransmitTask() {
-		return retransmitTask;
+	public Timeout getRetransmitTimeout() {
+		return retransmitTimeout;
 	}
 
-	public void setRetransmitTask(TimerTask retransmitTask) {
-		this.retransmitTask = retransmitTask;
+	public void setRetransmitTimeout(Timeout retransmitTimeout) {
+		this.retransmitTimeout = retransmitTimeout;
 	}
 	@Override
 	public String toString(){
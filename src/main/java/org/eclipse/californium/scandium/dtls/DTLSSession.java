@@ -93,6 +93,9 @@ public class DTLSSession {
 	 */
 	private boolean isClient;
 
+	/** The time the session was created in milliseconds, limits its lifetime. */
+	private long creationTime = System.currentTimeMillis();
+
 	private DTLSConnectionState readState = new DTLSConnectionState();
 	private DTLSConnectionState writeState = new DTLSConnectionState();
 
@@ -102,6 +105,23 @@ public class DTLSSession {
 
 	/** The next sequence number the record must have for each epoch separately. */
 	private Map<Integer, Integer> sequenceNumbers = new HashMap<Integer, Integer>();
+
+	/**
+	 * The size of the sliding window used to detect replayed records, see <a
+	 * href="http://tools.ietf.org/html/rfc6347#section-4.1.2.6">RFC 6347,
+	 * section 4.1.2.6</a>.
+	 */
+	public static final int RECEIVE_WINDOW_SIZE = 64;
+
+	/** The highest sequence number authenticated in the current read epoch, -1 if none. */
+	private long receiveWindowUpperBound = -1;
+
+	/**
+	 * The sequence numbers authenticated in the current read epoch. Bit
+	 * <em>i</em> is set if the record with sequence number
+	 * <code>receiveWindowUpperBound - i</code> has been received.
+	 */
+	private long receiveWindow = 0;
 	
 	/** The key exchange algorithm used in this session. */
 	private KeyExchangeAlgorithm keyExchange;
@@ -138,6 +158,35 @@ public class DTLSSession {
 		this.sequenceNumbers.put(0, 0);
 	}
 
+	/**
+	 * Called when resuming a session with an abbreviated handshake. The fresh
+	 * session takes over the master secret, the cipher suite and the peer's
+	 * identity, but starts with new connection states, so the resumed session
+	 * is left untouched until the handshake completed.
+	 * 
+	 * @param peerAddress
+	 *            the address the peer resumes the session from.
+	 * @param resumedSession
+	 *            the session to resume.
+	 */
+	public DTLSSession(InetSocketAddress peerAddress, DTLSSession resumedSession) {
+		this(peerAddress, resumedSession.isClient());
+		this.sessionIdentifier = resumedSession.getSessionIdentifier();
+		this.creationTime = resumedSession.getCreationTime();
+		this.cipherSuite = resumedSession.getCipherSuite();
+		this.compressionMethod = resumedSession.getCompressionMethod();
+		this.keyExchange = resumedSession.getKeyExchange();
+		this.masterSecret = resumedSession.getMasterSecret();
+		this.isResumable = resumedSession.isResumable();
+		this.pskIdentity = resumedSession.getPskIdentity();
+		this.peerCertificate = resumedSession.getPeerCertificate();
+		this.peerRawPublicKey = resumedSession.getPeerRawPublicKey();
+		this.webidUri = resumedSession.getWebidUri();
+		this.sendRawPublicKey = resumedSession.sendRawPublicKey();
+		this.receiveRawPublicKey = resumedSession.receiveRawPublicKey();
+		this.exchangeWebIDURI = resumedSession.isExchangeWebIDURI();
+	}
+
 	// Getters and Setters ////////////////////////////////////////////
 
 	public SessionId getSessionIdentifier() {
@@ -204,48 +253,118 @@ public class DTLSSession {
 		this.isClient = isClient;
 	}
 
-	public int getWriteEpoch() {
+	public synchronized int getWriteEpoch() {
 		return writeEpoch;
 	}
 	
-	public void setWriteEpoch(int epoch) {
+	public synchronized void setWriteEpoch(int epoch) {
 		this.writeEpoch = epoch;
 	}
 
-	public int getReadEpoch() {
+	public synchronized int getReadEpoch() {
 		return readEpoch;
 	}
 	
-	public void setReadEpoch(int epoch) {
+	public synchronized void setReadEpoch(int epoch) {
 		this.readEpoch = epoch;
+		resetReceiveWindow();
 	}
 
-	public void incrementReadEpoch() {
+	/**
+	 * Increments the read epoch and resets the replay window, since sequence
+	 * numbers start at 0 in each epoch.
+	 */
+	public synchronized void incrementReadEpoch() {
 		this.readEpoch++;
+		resetReceiveWindow();
+	}
+
+	/**
+	 * Checks whether a record received in the current read epoch has already
+	 * been received or is too old to be checked (i.e. it lies left of the
+	 * replay window), see <a
+	 * href="http://tools.ietf.org/html/rfc6347#section-4.1.2.6">RFC 6347,
+	 * section 4.1.2.6</a>. Only the plaintext record header is needed, so
+	 * duplicates can be dropped before decryption.
+	 * <p>
+	 * Records of other epochs are not checked.
+	 * 
+	 * @param epoch
+	 *            the record's epoch.
+	 * @param sequenceNumber
+	 *            the record's sequence number.
+	 * @return <code>true</code> if the record must be discarded
+	 */
+	public synchronized boolean isDuplicate(int epoch, long sequenceNumber) {
+		if (epoch != readEpoch || sequenceNumber > receiveWindowUpperBound) {
+			return false;
+		}
+		long offset = receiveWindowUpperBound - sequenceNumber;
+		if (offset >= RECEIVE_WINDOW_SIZE) {
+			// too old, cannot tell whether it has been received before
+			return true;
+		}
+		return (receiveWindow & (1L << offset)) != 0;
+	}
+
+	/**
+	 * Marks a record as received, advancing the replay window if necessary.
+	 * Must only be called once the record has been authenticated, otherwise a
+	 * forged record could shift the window and cause legitimate records to be
+	 * dropped.
+	 * 
+	 * @param epoch
+	 *            the record's epoch.
+	 * @param sequenceNumber
+	 *            the record's sequence number.
+	 */
+	public synchronized void markRecordAsRead(int epoch, long sequenceNumber) {
+		if (epoch != readEpoch) {
+			return;
+		}
+		if (sequenceNumber > receiveWindowUpperBound) {
+			long shift = sequenceNumber - receiveWindowUpperBound;
+			receiveWindow = shift >= RECEIVE_WINDOW_SIZE ? 0 : receiveWindow << shift;
+			receiveWindow |= 1;
+			receiveWindowUpperBound = sequenceNumber;
+		} else {
+			long offset = receiveWindowUpperBound - sequenceNumber;
+			if (offset < RECEIVE_WINDOW_SIZE) {
+				receiveWindow |= 1L << offset;
+			}
+		}
+	}
+
+	private void resetReceiveWindow() {
+		receiveWindowUpperBound = -1;
+		receiveWindow = 0;
 	}
 
 	/**
 	 * Increments the epoch and sets the sequence number of the new epoch to 0.
 	 */
-	public void incrementWriteEpoch() {
+	public synchronized void incrementWriteEpoch() {
 		this.writeEpoch++;
 		// Sequence numbers are maintained separately for each epoch, with each
 		// sequence_number initially being 0 for each epoch.
 		this.sequenceNumbers.put(writeEpoch, 0);
 	}
 
-	public int getSequenceNumber() {
+	public synchronized int getSequenceNumber() {
 		return getSequenceNumber(writeEpoch);
 	}
 
 	/**
-	 * Gets the smallest unused sequence number from this epoch.
+	 * Gets the smallest unused sequence number from this epoch. Records are
+	 * sent by several threads, e.g. retransmissions by the timer, so each
+	 * sequence number must be handed out only once: it is part of the AEAD
+	 * nonce.
 	 * 
 	 * @param epoch
 	 *            the epoch from which to get the sequence number.
 	 * @return the next sequence number.
 	 */
-	public int getSequenceNumber(int epoch) {
+	public synchronized int getSequenceNumber(int epoch) {
 		int sequenceNumber = this.sequenceNumbers.get(epoch);
 		this.sequenceNumbers.put(epoch, sequenceNumber + 1);
 		return sequenceNumber;
@@ -281,7 +400,7 @@ public class DTLSSession {
 
 	public void setMasterSecret(byte[] masterSecret) {
 		// don't overwrite the master secret, once it has been set in this session
-		if (this.masterSecret != null) {
+		if (this.masterSecret == null) {
 			this.masterSecret = masterSecret;
 		}
 	}
@@ -309,6 +428,25 @@ public class DTLSSession {
 	public InetSocketAddress getPeer() {
 		return peer;
 	}
+
+	/**
+	 * Sets the peer's address, e.g. when the peer resumes the session from a
+	 * new address.
+	 * 
+	 * @param peer
+	 *            the peer's address
+	 */
+	public void setPeer(InetSocketAddress peer) {
+		this.peer = peer;
+	}
+
+	public long getCreationTime() {
+		return creationTime;
+	}
+
+	public void setCreationTime(long creationTime) {
+		this.creationTime = creationTime;
+	}
 	
 	public String getPskIdentity() {
         return pskIdentity;
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls;
+
+import java.util.BitSet;
+
+import org.eclipse.californium.scandium.dtls.AlertMessage.AlertDescription;
+import org.eclipse.californium.scandium.dtls.AlertMessage.AlertLevel;
+
+/**
+ * Reassembles a handshake message from its fragments. The buffer for the
+ * whole message is allocated once with the length announced by the first
+ * fragment and each fragment is copied to its offset. A bitmap tracks the
+ * bytes received so far, so duplicate and overlapping fragments only
+ * contribute their new bytes and the message is complete as soon as no byte
+ * is missing anymore, regardless of the order the fragments arrived in.
+ */
+class FragmentReassembler {
+
+	// Members ////////////////////////////////////////////////////////
+
+	private final HandshakeType type;
+
+	private final int messageSeq;
+
+	private final byte[] message;
+
+	/** The bytes of the message received so far. */
+	private final BitSet received;
+
+	private int missing;
+
+	// Constructors ///////////////////////////////////////////////////
+
+	/**
+	 * Creates a reassembler for the message a fragment belongs to. The
+	 * fragment itself is not added.
+	 * 
+	 * @param fragment
+	 *            a fragment of the message
+	 */
+	FragmentReassembler(FragmentedHandshakeMessage fragment) {
+		this.type = fragment.getMessageType();
+		this.messageSeq = fragment.getMessageSeq();
+		this.message = new byte[fragment.getMessageLength()];
+		this.received = new BitSet(message.length);
+		this.missing = message.length;
+	}
+
+	// Methods ////////////////////////////////////////////////////////
+
+	/**
+	 * Copies the bytes of a fragment not received before into the message.
+	 * 
+	 * @param fragment
+	 *            the fragment
+	 * @throws HandshakeException
+	 *             if the fragment does not fit the message announced by the
+	 *             first fragment
+	 */
+	void add(FragmentedHandshakeMessage fragment) throws HandshakeException {
+		byte[] bytes = fragment.fragmentToByteArray();
+		int offset = fragment.getFragmentOffset();
+		int end = offset + bytes.length;
+		if (fragment.getMessageType() != type || fragment.getMessageLength() != message.length || offset < 0 || end > message.length) {
+			AlertMessage alert = new AlertMessage(AlertLevel.FATAL, AlertDescription.DECODE_ERROR);
+			throw new HandshakeException("Fragment of " + type + " message (message_seq " + messageSeq + ") does not fit the message", alert);
+		}
+
+		// copy each range not received yet
+		int start = received.nextClearBit(offset);
+		while (start < end) {
+			int stop = received.nextSetBit(start);
+			if (stop < 0 || stop > end) {
+				stop = end;
+			}
+			System.arraycopy(bytes, start - offset, message, start, stop - start);
+			missing -= stop - start;
+			start = received.nextClearBit(stop);
+		}
+		received.set(offset, end);
+	}
+
+	boolean isComplete() {
+		return missing == 0;
+	}
+
+	int getMessageLength() {
+		return message.length;
+	}
+
+	/**
+	 * Gets the reassembled message as a single fragment covering the whole
+	 * message.
+	 * 
+	 * @return the message, only complete if {@link #isComplete()}
+	 */
+	FragmentedHandshakeMessage getMessage() {
+		return new FragmentedHandshakeMessage(type, message.length, messageSeq, 0, message);
+	}
+}
@@ -37,15 +37,12 @@ public abstract class HandshakeMessage implements DTLSMessage {
 
 	// CoAP-specific constants ////////////////////////////////////////
 
-	private static final int MESSAGE_TYPE_BITS = 8;
-
-	private static final int MESSAGE_LENGTH_BITS = 24;
-
-	private static final int MESSAGE_SEQ_BITS = 16;
-
-	private static final int FRAGMENT_OFFSET_BITS = 24;
-
-	private static final int FRAGMENT_LENGTH_BITS = 24;
+	/**
+	 * The length of the handshake message header: 8 bit message type, 24 bit
+	 * length, 16 bit message sequence, 24 bit fragment offset and 24 bit
+	 * fragment length.
+	 */
+	private static final int MESSAGE_HEADER_BYTES = 12;
 
 	// Members ////////////////////////////////////////////////////////
 
@@ -124,43 +121,45 @@ public abstract class HandshakeMessage implements DTLSMessage {
 	 * @return the byte representation of the handshake message.
 	 */
 	public byte[] toByteArray() {
+		byte[] fragment = fragmentToByteArray();
+
 		// create datagram writer to encode message data
-		DatagramWriter writer = new DatagramWriter();
+		DatagramWriter writer = new DatagramWriter(MESSAGE_HEADER_BYTES + fragment.length);
 
 		// write fixed-size handshake message header
-		writer.write(getMessageType().getCode(), MESSAGE_TYPE_BITS);
-		writer.write(getMessageLength(), MESSAGE_LENGTH_BITS);
+		writer.writeUint8(getMessageType().getCode());
+		writer.writeUint24(getMessageLength());
 
-		writer.write(messageSeq, MESSAGE_SEQ_BITS);
+		writer.writeUint16(messageSeq);
 		
 		if (fragmentOffset < 0) {
 			// message not fragmented
 			fragmentOffset = 0;
 		}
-		writer.write(fragmentOffset, FRAGMENT_OFFSET_BITS);
+		writer.writeUint24(fragmentOffset);
 		
 		if (fragmentLength < 0) {
 			// non-fragmented message is a degenerate case with fragment_offset=0
 			// and fragment_length=length
 			fragmentLength = getMessageLength();
 		}
-		writer.write(fragmentLength, FRAGMENT_LENGTH_BITS);
+		writer.writeUint24(fragmentLength);
 		
-		writer.writeBytes(fragmentToByteArray());
+		writer.writeBytes(fragment);
 
 		return writer.toByteArray();
 	}
 
 	public static HandshakeMessage fromByteArray(byte[] byteArray, KeyExchangeAlgorithm keyExchange, boolean useRawPublicKey) throws HandshakeException {
 		DatagramReader reader = new DatagramReader(byteArray);
-		HandshakeType type = HandshakeType.getTypeByCode(reader.read(MESSAGE_TYPE_BITS));
+		HandshakeType type = HandshakeType.getTypeByCode(reader.readUint8());
 
-		int length = reader.read(MESSAGE_LENGTH_BITS);
+		int length = reader.readUint24();
 
-		int messageSeq = reader.read(MESSAGE_SEQ_BITS);
+		int messageSeq = reader.readUint16();
 
-		int fragmentOffset = reader.read(FRAGMENT_OFFSET_BITS);
-		int fragmentLength = reader.read(FRAGMENT_LENGTH_BITS);
+		int fragmentOffset = reader.readUint24();
+		int fragmentLength = reader.readUint24();
 
 		byte[] bytesLeft = reader.readBytes(fragmentLength);
 		
@@ -244,6 +243,10 @@ public abstract class HandshakeMessage implements DTLSMessage {
 			
 			break;
 
+		case NEW_SESSION_TICKET:
+			body = NewSessionTicket.fromByteArray(bytesLeft);
+			break;
+
 		case FINISHED:
 			body = Finished.fromByteArray(bytesLeft);
 			break;
@@ -22,7 +22,7 @@ package org.eclipse.californium.scandium.dtls;
  * details.
  */
 public enum HandshakeType {
-	HELLO_REQUEST(0), CLIENT_HELLO(1), SERVER_HELLO(2), HELLO_VERIFY_REQUEST(3), CERTIFICATE(11), SERVER_KEY_EXCHANGE(12), CERTIFICATE_REQUEST(13), SERVER_HELLO_DONE(14), CERTIFICATE_VERIFY(15), CLIENT_KEY_EXCHANGE(16), FINISHED(20), WEBID_URI(30);
+	HELLO_REQUEST(0), CLIENT_HELLO(1), SERVER_HELLO(2), HELLO_VERIFY_REQUEST(3), NEW_SESSION_TICKET(4), CERTIFICATE(11), SERVER_KEY_EXCHANGE(12), CERTIFICATE_REQUEST(13), SERVER_HELLO_DONE(14), CERTIFICATE_VERIFY(15), CLIENT_KEY_EXCHANGE(16), FINISHED(20), WEBID_URI(30);
 
 	private int code;
 
@@ -44,6 +44,8 @@ public enum HandshakeType {
 			return HandshakeType.SERVER_HELLO;
 		case 3:
 			return HandshakeType.HELLO_VERIFY_REQUEST;
+		case 4:
+			return HandshakeType.NEW_SESSION_TICKET;
 		case 11:
 			return HandshakeType.CERTIFICATE;
 		case 12:
@@ -77,6 +79,8 @@ public enum HandshakeType {
 			return "Server Hello (2)";
 		case 3:
 			return "Hello Verify Request (3)";
+		case 4:
+			return "New Session Ticket (4)";
 		case 11:
 			return "Certificate (11)";
 		case 12:
@@ -16,17 +16,18 @@
  ******************************************************************************/
 package org.eclipse.californium.scandium.dtls;
 
+import java.io.ByteArrayOutputStream;
 import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.Certificate;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -34,11 +35,14 @@ import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.scandium.dtls.AlertMessage.AlertDescription;
+import org.eclipse.californium.scandium.dtls.AlertMessage.AlertLevel;
 import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
 import org.eclipse.californium.scandium.dtls.cipher.ECDHECryptography;
 import org.eclipse.californium.scandium.dtls.cipher.CipherSuite.KeyExchangeAlgorithm;
@@ -70,6 +74,34 @@ public abstract class Handshaker {
 	public final static int TEST_LABEL_2 = 6;
 
 	public final static int TEST_LABEL_3 = 7;
+
+	/** The HMAC of the PRF of the cipher suites defined in RFC 5246. */
+	public final static String PRF_SHA256 = "HmacSHA256";
+
+	/** The HMAC of the PRF of the cipher suites ending with <code>_SHA384</code>. */
+	public final static String PRF_SHA384 = "HmacSHA384";
+
+	private final static byte[] MASTER_SECRET = "master secret".getBytes();
+
+	private final static byte[] KEY_EXPANSION = "key expansion".getBytes();
+
+	private final static byte[] CLIENT_FINISHED = "client finished".getBytes();
+
+	private final static byte[] SERVER_FINISHED = "server finished".getBytes();
+
+	private final static byte[] TEST = "test label".getBytes();
+
+	/** The HMACs of each thread by algorithm, keyed anew for every PRF. */
+	private final static ThreadLocal<Map<String, Mac>> THREAD_MACS = new ThreadLocal<Map<String, Mac>>() {
+
+		@Override
+		protected Map<String, Mac> initialValue() {
+			return new HashMap<String, Mac>();
+		}
+	};
+
+	/** The maximum number of bytes allocated at once to reassemble fragmented messages. */
+	private final static int MAX_REASSEMBLY_BYTES = 65536;
 	
 	
 
@@ -118,14 +150,17 @@ public abstract class Handshaker {
 	/** The next expected handshake message sequence number. */
 	private int nextReceiveSeq = 0;
 
-	/** The raw UDP message that needs encryption. */
-	protected RawData message = null;
+	/** The application messages to send once the handshake completed, in order. */
+	protected final Deque<RawData> pendingMessages = new ArrayDeque<RawData>();
 
 	/** Queue for messages, that can not yet be processed. */
 	protected Collection<Record> queuedMessages;
 	
-	/** Store the fragmented messages until we are able to reassemble the handshake message. */
-	protected Map<Integer, List<FragmentedHandshakeMessage>> fragmentedMessages = new HashMap<Integer, List<FragmentedHandshakeMessage>>();
+	/** Reassembles the fragmented messages according to their message_seq. */
+	private final Map<Integer, FragmentReassembler> fragmentedMessages = new HashMap<Integer, FragmentReassembler>();
+
+	/** The number of bytes allocated to reassemble fragmented messages. */
+	private int reassemblyBytes = 0;
 
 	/**
 	 * The message digest to compute the handshake hashes sent in the
@@ -133,8 +168,12 @@ public abstract class Handshaker {
 	 */
 	protected MessageDigest md;
 
-	/** All the handshake messages exchanged before the CertificateVerify message. */
-	protected byte[] handshakeMessages = new byte[] {};
+	/**
+	 * All the handshake messages exchanged before the CertificateVerify
+	 * message. Only kept if a CertificateVerify is signed or verified,
+	 * <code>null</code> otherwise.
+	 */
+	private ByteArrayOutputStream handshakeMessages = null;
 
 	/**
 	 * The last flight that is sent during this handshake, will not be
@@ -225,6 +264,20 @@ public abstract class Handshaker {
 		calculateKeys(masterSecret);
 	}
 
+	/**
+	 * Generates the keys of an abbreviated handshake. The keys are derived
+	 * from the resumed session's master secret and the new random values, see
+	 * <a href="http://tools.ietf.org/html/rfc5246#section-7.3">RFC 5246</a>.
+	 * 
+	 * @param masterSecret
+	 *            the master secret of the resumed session.
+	 */
+	protected void generateKeysFromMasterSecret(byte[] masterSecret) {
+		this.masterSecret = masterSecret;
+
+		calculateKeys(masterSecret);
+	}
+
 	/**
 	 * Calculates the encryption key, MAC key and IV from a given master secret.
 	 * First, applies the key expansion to the master secret.
@@ -318,7 +371,8 @@ public abstract class Handshaker {
 
 	/**
 	 * Does the Pseudorandom function as defined in <a
-	 * href="http://tools.ietf.org/html/rfc5246#section-5">RFC 5246</a>.
+	 * href="http://tools.ietf.org/html/rfc5246#section-5">RFC 5246</a> with
+	 * the SHA-256 based PRF of all cipher suites supported so far.
 	 * 
 	 * @param secret
 	 *            the secret
@@ -329,191 +383,145 @@ public abstract class Handshaker {
 	 * @return the byte[]
 	 */
 	public static byte[] doPRF(byte[] secret, int labelId, byte[] seed) {
-		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
+		return doPRF(PRF_SHA256, secret, labelId, seed);
+	}
 
-			String label;
+	/**
+	 * Does the Pseudorandom function as defined in <a
+	 * href="http://tools.ietf.org/html/rfc5246#section-5">RFC 5246</a> with
+	 * the HMAC of the cipher suite's PRF, e.g. {@link #PRF_SHA384} for
+	 * cipher suites ending with <code>_SHA384</code>.
+	 * 
+	 * @param macAlgorithm
+	 *            the JCE name of the HMAC algorithm
+	 * @param secret
+	 *            the secret
+	 * @param labelId
+	 *            the label
+	 * @param seed
+	 *            the seed
+	 * @return the byte[]
+	 */
+	public static byte[] doPRF(String macAlgorithm, byte[] secret, int labelId, byte[] seed) {
+		try {
 			switch (labelId) {
 			case MASTER_SECRET_LABEL:
 				// The master secret is always 48 bytes long, see
 				// http://tools.ietf.org/html/rfc5246#section-8.1
-				label = "master secret";
-				return doExpansion(md, secret, ByteArrayUtils.concatenate(label.getBytes(), seed), 48);
+				return doExpansion(getMac(macAlgorithm), secret, MASTER_SECRET, seed, 48);
 
 			case KEY_EXPANSION_LABEL:
 				// The most key material required is 128 bytes, see
 				// http://tools.ietf.org/html/rfc5246#section-6.3
-				label = "key expansion";
-				return doExpansion(md, secret, ByteArrayUtils.concatenate(label.getBytes(), seed), 128);
+				return doExpansion(getMac(macAlgorithm), secret, KEY_EXPANSION, seed, 128);
 
 			case CLIENT_FINISHED_LABEL:
 				// The verify data is always 12 bytes long, see
 				// http://tools.ietf.org/html/rfc5246#section-7.4.9
-				label = "client finished";
-				return doExpansion(md, secret, ByteArrayUtils.concatenate(label.getBytes(), seed), 12);
+				return doExpansion(getMac(macAlgorithm), secret, CLIENT_FINISHED, seed, 12);
 
 			case SERVER_FINISHED_LABEL:
 				// The verify data is always 12 bytes long, see
 				// http://tools.ietf.org/html/rfc5246#section-7.4.9
-				label = "server finished";
-				return doExpansion(md, secret, ByteArrayUtils.concatenate(label.getBytes(), seed), 12);
+				return doExpansion(getMac(macAlgorithm), secret, SERVER_FINISHED, seed, 12);
 
 			case TEST_LABEL:
 				// http://www.ietf.org/mail-archive/web/tls/current/msg03416.html
-				label = "test label";
-				return doExpansion(md, secret, ByteArrayUtils.concatenate(label.getBytes(), seed), 100);
+				return doExpansion(getMac(PRF_SHA256), secret, TEST, seed, 100);
 
 			case TEST_LABEL_2:
 				// http://www.ietf.org/mail-archive/web/tls/current/msg03416.html
-				label = "test label";
-				md = MessageDigest.getInstance("SHA-512");
-				return doExpansion(md, secret, ByteArrayUtils.concatenate(label.getBytes(), seed), 196);
+				return doExpansion(getMac("HmacSHA512"), secret, TEST, seed, 196);
 
 			case TEST_LABEL_3:
 				// http://www.ietf.org/mail-archive/web/tls/current/msg03416.html
-				label = "test label";
-				md = MessageDigest.getInstance("SHA-384");
-				return doExpansion(md, secret, ByteArrayUtils.concatenate(label.getBytes(), seed), 148);
+				return doExpansion(getMac(PRF_SHA384), secret, TEST, seed, 148);
 
 			default:
 				LOGGER.severe("Unknwon label: " + labelId);
 				return null;
 			}
-		} catch (NoSuchAlgorithmException e) {
-			LOGGER.log(Level.SEVERE,"Message digest algorithm not available.",e);
+		} catch (GeneralSecurityException e) {
+			LOGGER.log(Level.SEVERE,"HMAC algorithm not available.",e);
 			return null;
 		}
 	}
 
 	/**
 	 * Performs the secret expansion as described in <a
-	 * href="http://tools.ietf.org/html/rfc5246#section-5">RFC 5246</a>.
+	 * href="http://tools.ietf.org/html/rfc5246#section-5">RFC 5246</a>. The
+	 * HMAC is keyed once with the secret and reused for every block.
 	 * 
-	 * @param md
-	 *            the cryptographic hash function.
+	 * @param hmac
+	 *            the HMAC of the PRF's hash function.
 	 * @param secret
 	 *            the secret.
-	 * @param data
-	 *            the data.
+	 * @param label
+	 *            the label.
+	 * @param seed
+	 *            the seed.
 	 * @param length
 	 *            the length of the expansion in <tt>bytes</tt>.
 	 * @return the expanded array with given length.
+	 * @throws GeneralSecurityException
+	 *             if the secret is not a valid key
 	 */
-	protected static byte[] doExpansion(MessageDigest md, byte[] secret, byte[] data, int length) {
+	protected static byte[] doExpansion(Mac hmac, byte[] secret, byte[] label, byte[] seed, int length) throws GeneralSecurityException {
 		/*
 		 * P_hash(secret, seed) = HMAC_hash(secret, A(1) + seed) +
 		 * HMAC_hash(secret, A(2) + seed) + HMAC_hash(secret, A(3) + seed) + ...
 		 * where + indicates concatenation. A() is defined as: A(0) = seed, A(i)
-		 * = HMAC_hash(secret, A(i-1))
+		 * = HMAC_hash(secret, A(i-1)). The PRF's seed is label + seed.
 		 */
-		double hashLength = 32;
-		if (md.getAlgorithm().equals("SHA-1")) {
-			hashLength = 20;
-		} else if (md.getAlgorithm().equals("SHA-384")) {
-			hashLength = 48;
-		}
-
-		int iterations = (int) Math.ceil(length / hashLength);
-		byte[] expansion = new byte[0];
-
-		byte[] A = data;
-		for (int i = 0; i < iterations; i++) {
-			A = doHMAC(md, secret, A);
-			expansion = ByteArrayUtils.concatenate(expansion, doHMAC(md, secret, ByteArrayUtils.concatenate(A, data)));
+		hmac.init(new SecretKeySpec(secret, "MAC"));
+		int macLength = hmac.getMacLength();
+		byte[] expansion = new byte[length];
+		byte[] A = new byte[macLength];
+
+		// A(1)
+		hmac.update(label);
+		hmac.update(seed);
+		hmac.doFinal(A, 0);
+		int offset = 0;
+		while (true) {
+			hmac.update(A);
+			hmac.update(label);
+			hmac.update(seed);
+			if (length - offset < macLength) {
+				// the last block is truncated
+				System.arraycopy(hmac.doFinal(), 0, expansion, offset, length - offset);
+				break;
+			}
+			hmac.doFinal(expansion, offset);
+			offset += macLength;
+			if (offset == length) {
+				break;
+			}
+			// A(i+1)
+			hmac.update(A);
+			hmac.doFinal(A, 0);
 		}
 
-		return ByteArrayUtils.truncate(expansion, length);
+		return expansion;
 	}
 
 	/**
-	 * Performs the HMAC computation as described in <a
-	 * href="http://tools.ietf.org/html/rfc2104#section-2">RFC 2104</a>.
+	 * Gets the calling thread's HMAC of an algorithm.
 	 * 
-	 * @param md
-	 *            the cryptographic hash function.
-	 * @param secret
-	 *            the secret key.
-	 * @param data
-	 *            the data.
-	 * @return the hash after HMAC has been applied.
+	 * @param macAlgorithm
+	 *            the JCE name of the HMAC algorithm
+	 * @return the HMAC, initialized by the caller
+	 * @throws NoSuchAlgorithmException
+	 *             if the algorithm is not available
 	 */
-	public static byte[] doHMAC(MessageDigest md, byte[] secret, byte[] data) {
-		// the block size of the hash function, always 64 bytes (for SHA-512 it
-		// would be 128 bytes, but not needed right now, except for test
-		// purpose)
-
-		int B = 64;
-		if (md.getAlgorithm().equals("SHA-512") || md.getAlgorithm().equals("SHA-384")) {
-			B = 128;
+	private static Mac getMac(String macAlgorithm) throws NoSuchAlgorithmException {
+		Map<String, Mac> macs = THREAD_MACS.get();
+		Mac mac = macs.get(macAlgorithm);
+		if (mac == null) {
+			mac = Mac.getInstance(macAlgorithm);
+			macs.put(macAlgorithm, mac);
 		}
-
-		// See http://tools.ietf.org/html/rfc2104#section-2
-		// ipad = the byte 0x36 repeated B times
-		byte[] ipad = new byte[B];
-		Arrays.fill(ipad, (byte) 0x36);
-
-		// opad = the byte 0x5C repeated B times
-		byte[] opad = new byte[B];
-		Arrays.fill(opad, (byte) 0x5C);
-
-		/*
-		 * (1) append zeros to the end of K to create a B byte string (e.g., if
-		 * K is of length 20 bytes and B=64, then K will be appended with 44
-		 * zero bytes 0x00)
-		 */
-		byte[] step1 = secret;
-		if (secret.length < B) {
-			// append zeros to the end of K to create a B byte string
-			step1 = ByteArrayUtils.padArray(secret, (byte) 0x00, B);
-		} else if (secret.length > B) {
-			// Applications that use keys longer
-			// than B bytes will first hash the key using H and then use the
-			// resultant L byte string as the actual key to HMAC.
-			md.update(secret);
-			step1 = md.digest();
-			md.reset();
-
-			step1 = ByteArrayUtils.padArray(step1, (byte) 0x00, B);
-		}
-
-		/*
-		 * (2) XOR (bitwise exclusive-OR) the B byte string computed in step (1)
-		 * with ipad
-		 */
-		byte[] step2 = ByteArrayUtils.xorArrays(step1, ipad);
-
-		/*
-		 * (3) append the stream of data 'text' to the B byte string resulting
-		 * from step (2)
-		 */
-		byte[] step3 = ByteArrayUtils.concatenate(step2, data);
-
-		/*
-		 * (4) apply H to the stream generated in step (3)
-		 */
-		md.update(step3);
-		byte[] step4 = md.digest();
-		md.reset();
-
-		/*
-		 * (5) XOR (bitwise exclusive-OR) the B byte string computed in step (1)
-		 * with opad
-		 */
-		byte[] step5 = ByteArrayUtils.xorArrays(step1, opad);
-
-		/*
-		 * (6) append the H result from step (4) to the B byte string resulting
-		 * from step (5)
-		 */
-		byte[] step6 = ByteArrayUtils.concatenate(step5, step4);
-
-		/*
-		 * (7) apply H to the stream generated in step (6) and output the result
-		 */
-		md.update(step6);
-		byte[] step7 = md.digest();
-
-		return step7;
+		return mac;
 	}
 
 	protected void setCurrentReadState() {
@@ -651,7 +659,8 @@ public abstract class Handshaker {
 				return false;
 			}
 		} else {
-			// newer epoch, queue message
+			// newer epoch, queue message, it can't be decrypted yet
+			record.detachFragment();
 			queuedMessages.add(record);
 			return false;
 		}
@@ -670,100 +679,35 @@ public abstract class Handshaker {
 	 * @throws HandshakeException
 	 */
 	protected HandshakeMessage handleFragmentation(FragmentedHandshakeMessage fragment) throws HandshakeException {
-		HandshakeMessage reassembledMessage = null;
-		
 		int messageSeq = fragment.getMessageSeq();
-		if (fragmentedMessages.get(messageSeq) == null) {
-			fragmentedMessages.put(messageSeq, new ArrayList<FragmentedHandshakeMessage>());
+		FragmentReassembler reassembler = fragmentedMessages.get(messageSeq);
+		if (reassembler == null) {
+			// the message's buffer is allocated once, bound the memory a peer can claim
+			if (reassemblyBytes + fragment.getMessageLength() > MAX_REASSEMBLY_BYTES) {
+				AlertMessage alert = new AlertMessage(AlertLevel.FATAL, AlertDescription.HANDSHAKE_FAILURE);
+				throw new HandshakeException("Fragmented messages exceed " + MAX_REASSEMBLY_BYTES + " bytes", alert);
+			}
+			reassembler = new FragmentReassembler(fragment);
+			fragmentedMessages.put(messageSeq, reassembler);
+			reassemblyBytes += reassembler.getMessageLength();
 		}
-		// store fragment together with other fragments of same message_seq
-		fragmentedMessages.get(messageSeq).add(fragment);
-		
-		reassembledMessage = reassembleFragments(messageSeq, fragment.getMessageLength(), fragment.getMessageType(), session);
-		if (reassembledMessage != null) {
-			// message could be reassembled, therefore increase the next_receive_seq
-			incrementNextReceiveSeq();
-			fragmentedMessages.remove(messageSeq);
+		reassembler.add(fragment);
+		if (!reassembler.isComplete()) {
+			return null;
 		}
-		
-		return reassembledMessage;
-	}
-	
-	/**
-	 * Tries to reassemble the handshake message with the available fragments.
-	 * 
-	 * @param messageSeq
-	 *            the fragment's message_seq
-	 * @param totalLength
-	 *            the expected total length of the reassembled fragment
-	 * @param type
-	 *            the type of the handshake message
-	 * @param session
-	 *            the {@link DTLSSession}
-	 * @return the reassembled handshake message (if all fragements available),
-	 *         <code>null</code> otherwise.
-	 * @throws HandshakeException
-	 */
-	protected HandshakeMessage reassembleFragments(int messageSeq, int totalLength, HandshakeType type, DTLSSession session) throws HandshakeException {
-		List<FragmentedHandshakeMessage> fragments = fragmentedMessages.get(messageSeq);
-		HandshakeMessage message = null;
-
-		// sort according to fragment offset
-		Collections.sort(fragments, new Comparator<FragmentedHandshakeMessage>() {
-
-			// @Override
-			public int compare(FragmentedHandshakeMessage o1, FragmentedHandshakeMessage o2) {
-				if (o1.getFragmentOffset() == o2.getFragmentOffset()) {
-					return 0;
-				} else if (o1.getFragmentOffset() < o2.getFragmentOffset()) {
-					return -1;
-				} else {
-					return 1;
-				}
-			}
-		});
 
-		byte[] reassembly = new byte[] {};
-		int offset = 0;
-		for (FragmentedHandshakeMessage fragmentedHandshakeMessage : fragments) {
-			
-			int fragmentOffset = fragmentedHandshakeMessage.getFragmentOffset();
-			int fragmentLength = fragmentedHandshakeMessage.getFragmentLength();
-			
-			if (fragmentOffset == offset) { // eliminate duplicates
-				// case: no overlap
-				reassembly = ByteArrayUtils.concatenate(reassembly, fragmentedHandshakeMessage.fragmentToByteArray());
-				offset = reassembly.length;
-			} else if (fragmentOffset < offset && (fragmentOffset + fragmentLength) > offset) {
-				// case: overlap fragment
-				
-				// determine the offset where the fragment adds new information for the reassembly
-				int newOffset = offset - fragmentOffset;
-				int newLength = fragmentLength - newOffset;
-				byte[] newBytes = new byte[newLength];
-				// take only the new bytes and add them
-				System.arraycopy(fragmentedHandshakeMessage.fragmentToByteArray(), newOffset, newBytes, 0, newLength);	
-				reassembly = ByteArrayUtils.concatenate(reassembly, newBytes);
-				
-				offset = reassembly.length;
-			}
-		}
-		
-		if (reassembly.length == totalLength) {
-			// the reassembled fragment has the expected length
-			FragmentedHandshakeMessage wholeMessage = new FragmentedHandshakeMessage(type, totalLength, messageSeq, 0, reassembly);
-			reassembly = wholeMessage.toByteArray();
-			
-			KeyExchangeAlgorithm keyExchangeAlgorithm = KeyExchangeAlgorithm.NULL;
-			boolean receiveRawPublicKey = false;
-			if (session != null) {
-				keyExchangeAlgorithm = session.getKeyExchange();
-				receiveRawPublicKey = session.receiveRawPublicKey();
-			}
-			message = HandshakeMessage.fromByteArray(reassembly, keyExchangeAlgorithm, receiveRawPublicKey);
+		// message could be reassembled, therefore increase the next_receive_seq
+		incrementNextReceiveSeq();
+		fragmentedMessages.remove(messageSeq);
+		reassemblyBytes -= reassembler.getMessageLength();
+
+		KeyExchangeAlgorithm keyExchangeAlgorithm = KeyExchangeAlgorithm.NULL;
+		boolean receiveRawPublicKey = false;
+		if (session != null) {
+			keyExchangeAlgorithm = session.getKeyExchange();
+			receiveRawPublicKey = session.receiveRawPublicKey();
 		}
-		
-		return message;
+		return HandshakeMessage.fromByteArray(reassembler.getMessage().toByteArray(), keyExchangeAlgorithm, receiveRawPublicKey);
 	}
 
 	// Getters and Setters ////////////////////////////////////////////
@@ -833,12 +777,102 @@ public abstract class Handshaker {
 		sequenceNumber++;
 	}
 
-	public RawData getMessage() {
+	/**
+	 * Starts or stops keeping the raw handshake messages for the
+	 * CertificateVerify message. Keeping them is stopped once the signature
+	 * has been created or verified, the running {@link #md} suffices for the
+	 * Finished messages.
+	 * 
+	 * @param keep
+	 *            <code>true</code> to keep the messages added from now on
+	 */
+	protected void keepHandshakeMessages(boolean keep) {
+		handshakeMessages = keep ? new ByteArrayOutputStream(1024) : null;
+	}
+
+	/**
+	 * Adds a handshake message to the kept raw messages, if they are kept.
+	 * 
+	 * @param message
+	 *            the serialized handshake message
+	 */
+	protected void addHandshakeMessage(byte[] message) {
+		if (handshakeMessages != null) {
+			handshakeMessages.write(message, 0, message.length);
+		}
+	}
+
+	/**
+	 * Adds a handshake message to the handshake hash and to the kept raw
+	 * messages.
+	 * 
+	 * @param message
+	 *            the serialized handshake message
+	 */
+	protected void updateHandshakeHash(byte[] message) {
+		md.update(message);
+		addHandshakeMessage(message);
+	}
+
+	/**
+	 * Gets the kept raw handshake messages.
+	 * 
+	 * @return the messages in the order they were added, empty if they are
+	 *         not kept
+	 */
+	protected byte[] getHandshakeMessages() {
+		return handshakeMessages == null ? new byte[0] : handshakeMessages.toByteArray();
+	}
+
+	/**
+	 * Queues an application message to send once the handshake completed. If
+	 * the queue is full, either the new or the oldest queued message is
+	 * dropped.
+	 * 
+	 * @param message
+	 *            the message
+	 * @param limit
+	 *            the maximum number of queued messages
+	 * @param dropOldest
+	 *            <code>true</code> to drop the oldest queued message instead
+	 *            of the new one
+	 * @return the dropped message or <code>null</code> if none was dropped
+	 */
+	public synchronized RawData addPendingMessage(RawData message, int limit, boolean dropOldest) {
+		if (pendingMessages.size() < limit) {
+			pendingMessages.add(message);
+			return null;
+		}
+		if (dropOldest && limit > 0) {
+			pendingMessages.add(message);
+			return pendingMessages.poll();
+		}
 		return message;
 	}
 
-	public void setMessage(RawData message) {
-		this.message = message;
+	/**
+	 * Takes the queued application messages to send them.
+	 * 
+	 * @return the messages in the order they were queued, possibly empty
+	 */
+	public synchronized List<RawData> takePendingMessages() {
+		List<RawData> messages = new ArrayList<RawData>(pendingMessages);
+		pendingMessages.clear();
+		return messages;
+	}
+
+	/**
+	 * Continues a handshake whose first messages have been exchanged without
+	 * this handshaker, e.g. the cookie exchange performed statelessly by the
+	 * connector. Both the next message expected from the peer and the next
+	 * message sent have the given message_seq.
+	 * 
+	 * @param messageSeq
+	 *            the message_seq to continue with.
+	 */
+	public void skipMessages(int messageSeq) {
+		this.nextReceiveSeq = messageSeq;
+		this.sequenceNumber = messageSeq;
 	}
 
 	public int getNextReceiveSeq() {
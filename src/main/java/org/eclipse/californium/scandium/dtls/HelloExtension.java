@@ -92,6 +92,8 @@ public abstract class HelloExtension {
 				return ClientCertificateTypeExtension.fromByteArray(extension);
 			case SERVER_CERT_TYPE:
 				return ServerCertificateTypeExtension.fromByteArray(extension);
+			case SESSION_TICKET_TLS:
+				return SessionTicketExtension.fromByteArray(extension);
 	
 			default:
 				return null;
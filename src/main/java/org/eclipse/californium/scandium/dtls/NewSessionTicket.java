@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls;
+
+import org.eclipse.californium.scandium.util.DatagramReader;
+import org.eclipse.californium.scandium.util.DatagramWriter;
+
+
+/**
+ * The server sends this message before its ChangeCipherSpec message to hand
+ * the client a ticket containing the encrypted session state. The client
+ * presents the ticket in a later ClientHello to resume the session without
+ * the server keeping any state. See <a
+ * href="http://tools.ietf.org/html/rfc5077#section-3.3">RFC 5077</a> for the
+ * definition.
+ */
+public class NewSessionTicket extends HandshakeMessage {
+
+	// DTLS-specific constants ///////////////////////////////////////////
+
+	private static final int LIFETIME_HINT_BITS = 32;
+
+	private static final int TICKET_LENGTH_BITS = 16;
+
+	// Members ///////////////////////////////////////////////////////////
+
+	/** The number of seconds the client should keep the ticket, 0 if unspecified. */
+	private long lifetimeHint;
+
+	/** The opaque ticket. */
+	private byte[] ticket;
+
+	// Constructor ////////////////////////////////////////////////////
+
+	public NewSessionTicket(long lifetimeHint, byte[] ticket) {
+		this.lifetimeHint = lifetimeHint;
+		this.ticket = ticket;
+	}
+
+	// Serialization //////////////////////////////////////////////////
+
+	@Override
+	public byte[] fragmentToByteArray() {
+		DatagramWriter writer = new DatagramWriter();
+
+		writer.writeLong(lifetimeHint, LIFETIME_HINT_BITS);
+		writer.write(ticket.length, TICKET_LENGTH_BITS);
+		writer.writeBytes(ticket);
+
+		return writer.toByteArray();
+	}
+
+	public static HandshakeMessage fromByteArray(byte[] byteArray) {
+		DatagramReader reader = new DatagramReader(byteArray);
+
+		long lifetimeHint = reader.readLong(LIFETIME_HINT_BITS);
+		int ticketLength = reader.read(TICKET_LENGTH_BITS);
+		byte[] ticket = reader.readBytes(ticketLength);
+
+		return new NewSessionTicket(lifetimeHint, ticket);
+	}
+
+	// Methods ////////////////////////////////////////////////////////
+
+	@Override
+	public HandshakeType getMessageType() {
+		return HandshakeType.NEW_SESSION_TICKET;
+	}
+
+	@Override
+	public int getMessageLength() {
+		// fixed: lifetime hint (4) + ticket length (2)
+		return 6 + ticket.length;
+	}
+
+	public long getLifetimeHint() {
+		return lifetimeHint;
+	}
+
+	public byte[] getTicket() {
+		return ticket;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(super.toString());
+		sb.append("\t\tTicket Lifetime Hint: " + lifetimeHint + "\n");
+		sb.append("\t\tTicket Length: " + ticket.length + "\n");
+
+		return sb.toString();
+	}
+
+}
@@ -16,6 +16,9 @@
  ******************************************************************************/
 package org.eclipse.californium.scandium.dtls;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -24,12 +27,12 @@ import java.util.logging.Logger;
 
 import org.eclipse.californium.scandium.dtls.AlertMessage.AlertDescription;
 import org.eclipse.californium.scandium.dtls.AlertMessage.AlertLevel;
-import org.eclipse.californium.scandium.dtls.cipher.CCMBlockCipher;
+import org.eclipse.californium.scandium.dtls.cipher.AEADCipher;
 import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite.BulkCipherAlgorithm;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite.CipherType;
 import org.eclipse.californium.scandium.dtls.cipher.CipherSuite.KeyExchangeAlgorithm;
 import org.eclipse.californium.scandium.util.ByteArrayUtils;
-import org.eclipse.californium.scandium.util.DatagramReader;
-import org.eclipse.californium.scandium.util.DatagramWriter;
 
 
 
@@ -51,6 +54,9 @@ public class Record {
 
 	private static final int LENGTH_BITS = 16;
 
+	/** The length of the DTLSCiphertext header in bytes. */
+	private static final int HEADER_BYTES = (CONTENT_TYPE_BITS + 2 * VERSION_BITS + EPOCH_BITS + SEQUENCE_NUMBER_BITS + LENGTH_BITS) / Byte.SIZE;
+
 	// Members ////////////////////////////////////////////////////////
 
 	/** The higher-level protocol used to process the enclosed fragment */
@@ -78,9 +84,41 @@ public class Record {
 	 */
 	private DTLSMessage fragment = null;
 
-	/** The raw byte representation of the fragment. */
+	/**
+	 * The raw byte representation of the fragment. For records parsed from a
+	 * datagram this is the datagram's buffer, the fragment starting at
+	 * {@link #fragmentOffset}. For records created from a {@link DTLSMessage}
+	 * this is the unprotected fragment, see {@link #writeState}.
+	 */
 	private byte[] fragmentBytes = null;
 
+	/** The offset of the fragment within {@link #fragmentBytes}. */
+	private int fragmentOffset = 0;
+
+	/** The number of bytes of the fragment within {@link #fragmentBytes}. */
+	private int fragmentLength = 0;
+
+	/**
+	 * The write state the fragment is protected under. It is captured when the
+	 * fragment is set, since the session's write state changes during the
+	 * handshake, and applied when the record is serialized. <code>null</code>
+	 * if the fragment needs no protection.
+	 */
+	private DTLSConnectionState writeState = null;
+
+	/**
+	 * The protected fragment as computed by {@link #getFragmentBytes()} or
+	 * {@link #toByteArray()}, kept so that the record can be serialized again
+	 * without encrypting the fragment a second time.
+	 */
+	private byte[] protectedFragment = null;
+
+	/**
+	 * The sequence number the fragment has last been encrypted with,
+	 * <code>-1</code> if it has not been encrypted yet.
+	 */
+	private long protectedSequenceNumber = -1;
+
 	/** The DTLS session. */
 	private DTLSSession session;
 
@@ -99,12 +137,32 @@ public class Record {
 	 * @param fragmentBytes the encrypted data
 	 */
 	public Record(ContentType type, ProtocolVersion version, int epoch, long sequenceNumber, int length, byte[] fragmentBytes) {
+		this(type, version, epoch, sequenceNumber, fragmentBytes, 0, length);
+	}
+
+	/**
+	 * Creates a record representing a DTLSCiphertext struct received from the
+	 * network without copying its fragment. The record refers to the given
+	 * buffer, so the buffer must not be modified until the fragment has been
+	 * decrypted using {@link #getFragment()}.
+	 * 
+	 * @param type
+	 * @param version
+	 * @param epoch
+	 * @param sequenceNumber
+	 * @param buffer the buffer containing the encrypted data
+	 * @param offset the offset of the encrypted data within the buffer
+	 * @param length the number of bytes of encrypted data
+	 */
+	public Record(ContentType type, ProtocolVersion version, int epoch, long sequenceNumber, byte[] buffer, int offset, int length) {
 		this.type = type;
 		this.version = version;
 		this.epoch = epoch;
 		this.sequenceNumber = sequenceNumber;
 		this.length = length;
-		this.fragmentBytes = fragmentBytes;
+		this.fragmentBytes = buffer;
+		this.fragmentOffset = offset;
+		this.fragmentLength = length;
 	}
 
 	/**
@@ -134,27 +192,91 @@ public class Record {
 
 	/**
 	 * Encodes the DTLS Record into its raw binary structure as defined in the
-	 * DTLS v.1.2 specification.
+	 * DTLS v.1.2 specification. The protected fragment is kept, so the record
+	 * can be serialized again afterwards.
 	 * 
 	 * @return the encoded byte array
+	 * @throws GeneralSecurityException
+	 *             if the fragment cannot be encrypted
 	 */
-	public byte[] toByteArray() {
-		DatagramWriter writer = new DatagramWriter();
-
-		writer.write(type.getCode(), CONTENT_TYPE_BITS);
-
-		writer.write(version.getMajor(), VERSION_BITS);
-		writer.write(version.getMinor(), VERSION_BITS);
-
-		writer.write(epoch, EPOCH_BITS);
-		writer.writeLong(sequenceNumber, SEQUENCE_NUMBER_BITS);
-
-		length = fragmentBytes.length;
-		writer.write(length, LENGTH_BITS);
+	public byte[] toByteArray() throws GeneralSecurityException {
+		if (writeState != null) {
+			getProtectedFragment();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size());
+		writeTo(buffer);
+		return buffer.array();
+	}
 
-		writer.writeBytes(fragmentBytes);
+	/**
+	 * Gets the number of bytes of the record's binary representation, i.e.
+	 * the header and the protected fragment.
+	 * 
+	 * @return the size of the encoded record
+	 */
+	public int size() {
+		return HEADER_BYTES + getProtectedFragmentLength();
+	}
 
-		return writer.toByteArray();
+	/**
+	 * Encodes the DTLS record into the given buffer in a single pass. The
+	 * fragment is encrypted directly into the buffer behind the header, so no
+	 * intermediate arrays are needed when the buffer is backed by an array.
+	 * <p>
+	 * The encrypted fragment is not kept, so a record protected by an AEAD
+	 * cipher can be written only once per sequence number: encrypting it again
+	 * would reuse the nonce, which the JCE refuses for GCM and ChaCha20. A
+	 * retransmitted record must get a new sequence number first, a record to
+	 * be written several times must be serialized using
+	 * {@link #toByteArray()} first, the fragment then is copied.
+	 * 
+	 * @param buffer
+	 *            the buffer to write to.
+	 * @throws BufferOverflowException
+	 *             if less than {@link #size()} bytes are remaining in the
+	 *             buffer.
+	 * @throws GeneralSecurityException
+	 *             if the fragment cannot be encrypted, nothing is written
+	 *             then.
+	 * @throws IllegalStateException
+	 *             if the fragment has already been encrypted with the
+	 *             record's sequence number.
+	 */
+	public void writeTo(ByteBuffer buffer) throws GeneralSecurityException {
+		int protectedLength = getProtectedFragmentLength();
+		if (buffer.remaining() < HEADER_BYTES + protectedLength) {
+			throw new BufferOverflowException();
+		}
+		int start = buffer.position();
+
+		buffer.put((byte) type.getCode());
+
+		buffer.put((byte) version.getMajor());
+		buffer.put((byte) version.getMinor());
+
+		buffer.putShort((short) epoch);
+		buffer.putShort((short) (sequenceNumber >>> 32));
+		buffer.putInt((int) sequenceNumber);
+
+		buffer.putShort((short) protectedLength);
+
+		if (writeState == null) {
+			buffer.put(fragmentBytes, fragmentOffset, fragmentLength);
+		} else if (protectedFragment != null && protectedSequenceNumber == sequenceNumber) {
+			buffer.put(protectedFragment);
+		} else {
+			try {
+				if (buffer.hasArray()) {
+					protectFragment(buffer.array(), buffer.arrayOffset() + buffer.position());
+					buffer.position(buffer.position() + protectedLength);
+				} else {
+					buffer.put(getProtectedFragment());
+				}
+			} catch (GeneralSecurityException | IllegalStateException e) {
+				buffer.position(start);
+				throw e;
+			}
+		}
 	}
 
 	/**
@@ -167,13 +289,34 @@ public class Record {
 	 * @return the object representations of the DTLS records
 	 */
 	public static List<Record> fromByteArray(byte[] byteArray) {
+		return fromByteArray(byteArray, 0, byteArray.length);
+	}
+
+	/**
+	 * Parses raw binary representations of DTLS records contained in a region
+	 * of a buffer, e.g. a received datagram, into an object representation.
+	 * <p>
+	 * The fragments are not copied, the records refer to the given buffer
+	 * instead (see
+	 * {@link #Record(ContentType, ProtocolVersion, int, long, byte[], int, int)}
+	 * ). A truncated record at the end of the region is discarded. If the
+	 * buffer is reused, records kept beyond the processing of the datagram
+	 * must be detached from it using {@link #detachFragment()}.
+	 * 
+	 * @param buffer the buffer containing one or more DTLS records
+	 * @param offset the offset of the first record within the buffer
+	 * @param length the number of bytes to parse
+	 * @return the object representations of the DTLS records
+	 */
+	public static List<Record> fromByteArray(byte[] buffer, int offset, int length) {
 		List<Record> records = new ArrayList<Record>();
 		
-		DatagramReader reader = new DatagramReader(byteArray);
+		int position = offset;
+		int end = offset + length;
 		
-		while (reader.bytesAvailable()) {
+		while (end - position >= HEADER_BYTES) {
 
-			int type = reader.read(CONTENT_TYPE_BITS);
+			int type = buffer[position] & 0xFF;
 			ContentType contentType = ContentType.getTypeByValue(type);
 			
 			if (contentType==null) {
@@ -183,64 +326,120 @@ public class Record {
 				break;
 			}
 	
-			int major = reader.read(VERSION_BITS);
-			int minor = reader.read(VERSION_BITS);
+			int major = buffer[position + 1] & 0xFF;
+			int minor = buffer[position + 2] & 0xFF;
 			ProtocolVersion version = new ProtocolVersion(major, minor);
 	
-			int epoch = reader.read(EPOCH_BITS);
-			long sequenceNumber = reader.readLong(SEQUENCE_NUMBER_BITS);
+			int epoch = readUint(buffer, position + 3, EPOCH_BITS / Byte.SIZE);
+			long sequenceNumber = readUint48(buffer, position + 5);
 	
-			int length = reader.read(LENGTH_BITS);
+			int fragmentLength = readUint(buffer, position + 11, LENGTH_BITS / Byte.SIZE);
+			position += HEADER_BYTES;
+			
+			if (fragmentLength > end - position) {
+				if (LOGGER.isLoggable(Level.WARNING)) {
+					LOGGER.warning(String.format("Discarded truncated record, expected %d bytes of fragment but only %d are left",
+							fragmentLength, end - position));
+				}
+				break;
+			}
 	
 			// delay decryption/interpretation of fragment
-			byte[] fragmentBytes = reader.readBytes(length);
-	
-			records.add(new Record(contentType, version, epoch, sequenceNumber, length, fragmentBytes));
+			records.add(new Record(contentType, version, epoch, sequenceNumber, buffer, position, fragmentLength));
+			position += fragmentLength;
 		}
 		
 		return records;
 	}
 
+	private static int readUint(byte[] buffer, int offset, int numBytes) {
+		int value = 0;
+		for (int i = 0; i < numBytes; i++) {
+			value = (value << Byte.SIZE) | (buffer[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static long readUint48(byte[] buffer, int offset) {
+		return ((long) readUint(buffer, offset, 2) << 32) | (readUint(buffer, offset + 2, 4) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Copies a region of a buffer, avoiding the copy if the region already
+	 * spans the whole buffer.
+	 */
+	private static byte[] copyOfRange(byte[] buffer, int offset, int length) {
+		if (offset == 0 && length == buffer.length) {
+			return buffer;
+		}
+		return Arrays.copyOfRange(buffer, offset, offset + length);
+	}
+
 	// Cryptography /////////////////////////////////////////////////////////
 
 	/**
-	 * Encrypts the fragment, if a ciphersuite is available that supports
-	 * encryption.
+	 * Gets the length of the fragment once it is protected under the
+	 * {@link #writeState}.
 	 * 
-	 * @param byteArray the fragment to encrypt
-	 * @return the encrypted fragment
+	 * @return the length of the protected fragment
 	 */
-	private byte[] encryptFragment(byte[] byteArray) {
-		if (session == null) {
-			return byteArray;
+	private int getProtectedFragmentLength() {
+		if (writeState != null && writeState.getCipherSuite().getCipherType() == CipherType.AEAD) {
+			BulkCipherAlgorithm bulkCipher = writeState.getCipherSuite().getBulkCipher();
+			return bulkCipher.getRecordIvLength() + fragmentLength + bulkCipher.getTagLength();
 		}
+		return fragmentLength;
+	}
 
-		byte[] encryptedFragment = byteArray;
+	/**
+	 * Gets the protected fragment, encrypting it once per sequence number.
+	 * 
+	 * @return the protected fragment
+	 * @throws GeneralSecurityException if the fragment cannot be encrypted
+	 */
+	private byte[] getProtectedFragment() throws GeneralSecurityException {
+		if (protectedFragment == null || protectedSequenceNumber != sequenceNumber) {
+			byte[] fragment = new byte[getProtectedFragmentLength()];
+			protectFragment(fragment, 0);
+			protectedFragment = fragment;
+			protectedSequenceNumber = sequenceNumber;
+		}
+		return protectedFragment;
+	}
 
-		CipherSuite cipherSuite = session.getWriteState().getCipherSuite();
-		
-		switch (cipherSuite.getCipherType()) {
-		case NULL:
-			// do nothing
-			break;
-			
+	/**
+	 * Encrypts the fragment into the given array, if the {@link #writeState}
+	 * supports encryption.
+	 * 
+	 * @param out the array to write the protected fragment to
+	 * @param outOffset the offset to start writing at
+	 * @throws GeneralSecurityException if the fragment cannot be encrypted
+	 * @throws IllegalStateException if the fragment has already been encrypted
+	 *             with the record's sequence number
+	 */
+	private void protectFragment(byte[] out, int outOffset) throws GeneralSecurityException {
+		switch (writeState.getCipherSuite().getCipherType()) {
 		case AEAD:
-			encryptedFragment = encryptAEAD(byteArray);
-			break;
+			if (protectedSequenceNumber == sequenceNumber) {
+				throw new IllegalStateException("Record with sequence number " + sequenceNumber
+						+ " has already been encrypted, encrypting it again would reuse the nonce");
+			}
+			// a fragment kept for another sequence number is outdated now
+			protectedFragment = null;
+			encryptAEAD(writeState, fragmentBytes, fragmentOffset, fragmentLength, out, outOffset);
+			protectedSequenceNumber = sequenceNumber;
+			return;
 			
 		case BLOCK:
 			// TODO implement block cipher
-			break;
 			
 		case STREAM:
 			// Not used in DTLS, see http://tools.ietf.org/html/rfc6347#section-4.1.2.2
-			break;
 
+		case NULL:
 		default:
-			break;
+			System.arraycopy(fragmentBytes, fragmentOffset, out, outOffset, fragmentLength);
 		}
-
-		return encryptedFragment;
 	}
 
 	/**
@@ -248,28 +447,32 @@ public class Record {
 	 * potentially no decryption takes place. Returns <code>null</code> if the
 	 * message can't be authenticated.
 	 * 
-	 * @param byteArray
-	 *            the potentially encrypted fragment.
+	 * @param buffer
+	 *            the buffer containing the potentially encrypted fragment.
+	 * @param offset
+	 *            the offset of the fragment within the buffer.
+	 * @param length
+	 *            the length of the fragment.
 	 * @return the decrypted fragment.
 	 * @throws HandshakeException
 	 *             if the decryption fails.
 	 */
-	private byte[] decryptFragment(byte[] byteArray) throws HandshakeException {
+	private byte[] decryptFragment(byte[] buffer, int offset, int length) throws HandshakeException {
 		if (session == null) {
-			return byteArray;
+			return copyOfRange(buffer, offset, length);
 		}
 
-		byte[] fragment = byteArray;
+		byte[] fragment = null;
 
 		CipherSuite cipherSuite = session.getReadState().getCipherSuite();
 		
 		switch (cipherSuite.getCipherType()) {
 		case NULL:
-			// do nothing
+			fragment = copyOfRange(buffer, offset, length);
 			break;
 			
 		case AEAD:
-			fragment = decryptAEAD(byteArray);
+			fragment = decryptAEAD(buffer, offset, length);
 			break;
 			
 		case BLOCK:
@@ -289,28 +492,55 @@ public class Record {
 	
 	// AEAD Cryptography //////////////////////////////////////////////
 	
-	protected byte[] encryptAEAD(byte[] byteArray) {
+	protected byte[] encryptAEAD(byte[] byteArray) throws GeneralSecurityException {
+		DTLSConnectionState state = writeState != null ? writeState : session.getWriteState();
+		BulkCipherAlgorithm bulkCipher = state.getCipherSuite().getBulkCipher();
+		byte[] encryptedFragment = new byte[bulkCipher.getRecordIvLength() + byteArray.length + bulkCipher.getTagLength()];
+		encryptAEAD(state, byteArray, 0, byteArray.length, encryptedFragment, 0);
+		return encryptedFragment;
+	}
+
+	/**
+	 * Encrypts a plaintext into a GenericAEADCipher struct, i.e. the explicit
+	 * nonce (if any) followed by the ciphertext and the authentication tag.
+	 * 
+	 * @param state the write state to encrypt under
+	 * @param plaintext the buffer containing the plaintext
+	 * @param plaintextOffset the offset of the plaintext within the buffer
+	 * @param plaintextLength the length of the plaintext
+	 * @param out the array to write the struct to
+	 * @param outOffset the offset to start writing at
+	 * @throws GeneralSecurityException if the encryption fails
+	 */
+	private void encryptAEAD(DTLSConnectionState state, byte[] plaintext, int plaintextOffset, int plaintextLength,
+			byte[] out, int outOffset) throws GeneralSecurityException {
 		/*
 		 * See http://tools.ietf.org/html/rfc5246#section-6.2.3.3 for
 		 * explanation of additional data or
 		 * http://tools.ietf.org/html/rfc5116#section-2.1
 		 */
-		byte[] iv = session.getWriteState().getIv().getIV();
-		byte[] nonce = generateNonce(iv);
-		byte[] key = session.getWriteState().getEncryptionKey().getEncoded();
-		byte[] additionalData = generateAdditionalData(getLength());
-		
-		byte[] encryptedFragment = CCMBlockCipher.encrypt(key, nonce, additionalData, byteArray, 8);
-		
-		/*
-		 * Prepend the explicit nonce as specified in
-		 * http://tools.ietf.org/html/rfc5246#section-6.2.3.3 and
-		 * http://tools.ietf.org/html/draft-mcgrew-tls-aes-ccm-04#section-3
-		 */
-		byte[] explicitNonce = generateExplicitNonce();
-		encryptedFragment = ByteArrayUtils.concatenate(explicitNonce, encryptedFragment);
+		int explicitNonceLength = state.getCipherSuite().getBulkCipher().getRecordIvLength();
+		byte[] nonce;
+		if (explicitNonceLength > 0) {
+			byte[] explicitNonce = generateExplicitNonce();
+			nonce = getNonce(state.getIvBytes(), explicitNonce);
+			/*
+			 * Prepend the explicit nonce as specified in
+			 * http://tools.ietf.org/html/rfc5246#section-6.2.3.3 and
+			 * http://tools.ietf.org/html/draft-mcgrew-tls-aes-ccm-04#section-3
+			 * and encrypt the message directly behind it.
+			 */
+			System.arraycopy(explicitNonce, 0, out, outOffset, explicitNonceLength);
+		} else {
+			nonce = getImplicitNonce(state.getIvBytes());
+		}
+		byte[] additionalData = generateAdditionalData(plaintextLength);
 		
-		return encryptedFragment;
+		AEADCipher cipher = state.getAeadCipher();
+		synchronized (cipher) {
+			cipher.encrypt(nonce, additionalData, 0, additionalData.length, plaintext, plaintextOffset, plaintextLength,
+					out, outOffset + explicitNonceLength);
+		}
 	}
 	
 	/**
@@ -323,41 +553,89 @@ public class Record {
 	 *             if the decryption fails.
 	 */
 	protected byte[] decryptAEAD(byte[] byteArray) throws HandshakeException {
-		/*
-		 */
-		
+		return decryptAEAD(byteArray, 0, byteArray.length);
+	}
+
+	/**
+	 * Decrypts a GenericAEADCipher struct contained in a buffer directly into
+	 * a new array holding only the plaintext.
+	 * 
+	 * @param buffer
+	 *            the buffer containing the encrypted message.
+	 * @param offset
+	 *            the offset of the encrypted message within the buffer.
+	 * @param length
+	 *            the length of the encrypted message.
+	 * @return the decrypted message.
+	 * @throws HandshakeException
+	 *             if the decryption fails.
+	 */
+	protected byte[] decryptAEAD(byte[] buffer, int offset, int length) throws HandshakeException {
+		DTLSConnectionState readState = session.getReadState();
 		// the "implicit" part of the nonce is the salt as exchanged during the session establishment
-		byte[] iv = session.getReadState().getIv().getIV();
-		// the symmetric key exchanged during the DTLS handshake
-		byte[] key = session.getReadState().getEncryptionKey().getEncoded();
+		byte[] iv = readState.getIvBytes();
+		// the cipher is prepared with the symmetric key exchanged during the DTLS handshake
+		AEADCipher cipher;
+		try {
+			cipher = readState.getAeadCipher();
+		} catch (GeneralSecurityException e) {
+			LOGGER.log(Level.SEVERE, "Could not decrypt the message.", e);
+			throw newDecryptionFailure();
+		}
 		/*
 		 * See http://tools.ietf.org/html/rfc5246#section-6.2.3.3 and
 		 * http://tools.ietf.org/html/rfc5116#section-2.1 for an
 		 * explanation of "additional data" and its structure
 		 * 
-		 * The decrypted message is always 16 bytes shorter than the cipher (8
-		 * for the authentication tag and 8 for the explicit nonce).
+		 * The decrypted message is shorter than the cipher by the explicit
+		 * nonce and the authentication tag (8 bytes each for AES_128_CCM_8).
 		 */
-		byte[] additionalData = generateAdditionalData(getLength() - 16);
+		int explicitNonceLength = readState.getCipherSuite().getBulkCipher().getRecordIvLength();
+		int plaintextLength = length - explicitNonceLength - cipher.getTagLength();
+		if (plaintextLength < 0) {
+			throw newDecryptionFailure();
+		}
+		byte[] additionalData = generateAdditionalData(plaintextLength);
 
-		DatagramReader reader = new DatagramReader(byteArray);
-		
-		// create explicit nonce from values provided in DTLS record 
-		byte[] explicitNonce = generateExplicitNonce();
 		// retrieve actual explicit nonce as contained in GenericAEADCipher struct (8 bytes long)
-		byte[] explicitNonceUsed = reader.readBytes(8);
-		if (!Arrays.equals(explicitNonce, explicitNonceUsed) && LOGGER.isLoggable(Level.FINE)) {
-			StringBuffer b = new StringBuffer("The explicit nonce used by the sender does not match the values provided in the DTLS record");
-			b.append("\nUsed    : ").append(ByteArrayUtils.toHexString(explicitNonceUsed));
-			b.append("\nExpected: ").append(ByteArrayUtils.toHexString(explicitNonce));
-			LOGGER.log(Level.FINE, b.toString());
+		byte[] explicitNonceUsed = Arrays.copyOfRange(buffer, offset, offset + explicitNonceLength);
+		if (explicitNonceLength > 0 && LOGGER.isLoggable(Level.FINE)) {
+			// create explicit nonce from values provided in DTLS record 
+			byte[] explicitNonce = generateExplicitNonce();
+			if (!Arrays.equals(explicitNonce, explicitNonceUsed)) {
+				StringBuffer b = new StringBuffer("The explicit nonce used by the sender does not match the values provided in the DTLS record");
+				b.append("\nUsed    : ").append(ByteArrayUtils.toHexString(explicitNonceUsed));
+				b.append("\nExpected: ").append(ByteArrayUtils.toHexString(explicitNonce));
+				LOGGER.log(Level.FINE, b.toString());
+			}
 		}
 
-		byte[] nonce = getNonce(iv, explicitNonceUsed);
-		byte[] decrypted = CCMBlockCipher.decrypt(key, nonce, additionalData, reader.readBytesLeft(), 8);
+		byte[] nonce = explicitNonceLength > 0 ? getNonce(iv, explicitNonceUsed) : getImplicitNonce(iv);
+		byte[] decrypted = new byte[plaintextLength];
+		try {
+			synchronized (cipher) {
+				cipher.decrypt(nonce, additionalData, 0, additionalData.length, buffer, offset + explicitNonceLength,
+						length - explicitNonceLength, decrypted, 0);
+			}
+		} catch (GeneralSecurityException e) {
+			LOGGER.log(Level.FINE, "Could not decrypt the message.", e);
+			throw newDecryptionFailure();
+		}
 
 		return decrypted;
 	}
+
+	/**
+	 * Creates the exception for a record that cannot be decrypted. Such a
+	 * record must neither be delivered nor advance the replay window.
+	 * 
+	 * http://tools.ietf.org/html/rfc5246#section-6.2.3.3: "If the decryption
+	 * fails, a fatal bad_record_mac alert MUST be generated."
+	 */
+	private static HandshakeException newDecryptionFailure() {
+		AlertMessage alert = new AlertMessage(AlertLevel.FATAL, AlertDescription.BAD_RECORD_MAC);
+		return new HandshakeException("The decryption failed.", alert);
+	}
 	
 	// Cryptography Helper Methods ////////////////////////////////////
 
@@ -374,24 +652,42 @@ public class Record {
 	 * } CCMNonce.
 	 * </pre>
 	 * 
-	 * @param iv
+	 * @param implicitNonce
 	 *            the write IV (either client or server).
+	 * @param explicitNonce
+	 *            the explicit nonce.
 	 * @return the 12 bytes nonce.
 	 */
-	private byte[] generateNonce(byte[] iv) {
-		return getNonce(iv, generateExplicitNonce());
-	}
-
 	private byte[] getNonce(byte[] implicitNonce, byte[] explicitNonce) {
-		DatagramWriter writer = new DatagramWriter();
-		
-		writer.writeBytes(implicitNonce);
-		writer.writeBytes(explicitNonce);
-		
-		return writer.toByteArray();
+		byte[] nonce = new byte[implicitNonce.length + explicitNonce.length];
+		System.arraycopy(implicitNonce, 0, nonce, 0, implicitNonce.length);
+		System.arraycopy(explicitNonce, 0, nonce, implicitNonce.length, explicitNonce.length);
+		return nonce;
 	}
 
 	
+	/**
+	 * Generates the nonce for AEAD ciphers without explicit nonce, as defined
+	 * in <a href="http://tools.ietf.org/html/rfc7905#section-2">RFC 7905</a>
+	 * for ChaCha20-Poly1305: the 64-bit record sequence number (epoch and
+	 * sequence number in DTLS) is padded on the left by zeros and XORed with
+	 * the write IV.
+	 * 
+	 * @param iv
+	 *            the 12 bytes write IV (either client or server).
+	 * @return the 12 bytes nonce.
+	 */
+	private byte[] getImplicitNonce(byte[] iv) {
+		byte[] nonce = iv.clone();
+		int offset = nonce.length - 8;
+		nonce[offset] ^= (byte) (epoch >>> 8);
+		nonce[offset + 1] ^= (byte) epoch;
+		for (int i = 0; i < 6; i++) {
+			nonce[offset + 2 + i] ^= (byte) (sequenceNumber >>> (40 - 8 * i));
+		}
+		return nonce;
+	}
+
 	/**
 	 * Generates the explicit part of the nonce to be used with the AEAD Cipher.
 	 * 
@@ -402,14 +698,9 @@ public class Record {
 	 * @return the explicit nonce constructed from the epoch and sequence number
 	 */
 	private byte[] generateExplicitNonce() {
-		
-		//TODO: re-factor to use simple byte array manipulation instead of using bit-based DatagramWriter
-		DatagramWriter writer = new DatagramWriter();
-		
-		writer.write(epoch, EPOCH_BITS);
-		writer.writeLong(sequenceNumber, SEQUENCE_NUMBER_BITS);
-		
-		return writer.toByteArray();
+		byte[] explicitNonce = new byte[(EPOCH_BITS + SEQUENCE_NUMBER_BITS) / Byte.SIZE];
+		writeSequenceNumber(explicitNonce);
+		return explicitNonce;
 	}
 
 	/**
@@ -426,19 +717,31 @@ public class Record {
 	 * @return the additional authentication data.
 	 */
 	private byte[] generateAdditionalData(int length) {
-		DatagramWriter writer = new DatagramWriter();
+		byte[] additionalData = new byte[HEADER_BYTES];
 		
-		writer.write(epoch, EPOCH_BITS);
-		writer.writeLong(sequenceNumber, SEQUENCE_NUMBER_BITS);
+		writeSequenceNumber(additionalData);
 
-		writer.write(type.getCode(), CONTENT_TYPE_BITS);
+		additionalData[8] = (byte) type.getCode();
 
-		writer.write(version.getMajor(), VERSION_BITS);
-		writer.write(version.getMinor(), VERSION_BITS);
+		additionalData[9] = (byte) version.getMajor();
+		additionalData[10] = (byte) version.getMinor();
 		
-		writer.write(length, LENGTH_BITS);
+		additionalData[11] = (byte) (length >>> 8);
+		additionalData[12] = (byte) length;
+
+		return additionalData;
+	}
 
-		return writer.toByteArray();
+	/**
+	 * Writes the 16 bit epoch followed by the 48 bit sequence number, i.e. the
+	 * 64 bit seq_num of TLS, to the first 8 bytes of the given array.
+	 */
+	private void writeSequenceNumber(byte[] buffer) {
+		buffer[0] = (byte) (epoch >>> 8);
+		buffer[1] = (byte) epoch;
+		for (int i = 7, shift = 0; i > 1; i--, shift += Byte.SIZE) {
+			buffer[i] = (byte) (sequenceNumber >>> shift);
+		}
 	}
 
 	// Getters and Setters ////////////////////////////////////////////
@@ -491,8 +794,28 @@ public class Record {
 		this.session = session;
 	}
 	
+	/**
+	 * Gets the raw (protected) byte representation of the fragment. For
+	 * records parsed from a datagram this returns a copy, use
+	 * {@link #getFragment()} to access the (decrypted) content without further
+	 * copying. For records to be sent the fragment is encrypted once and kept,
+	 * use {@link #writeTo(ByteBuffer)} to encrypt it into the outgoing
+	 * datagram directly instead.
+	 * 
+	 * @return the fragment's bytes
+	 * @throws IllegalStateException
+	 *             if the fragment cannot be encrypted or has already been
+	 *             written using {@link #writeTo(ByteBuffer)}.
+	 */
 	public byte[] getFragmentBytes() {
-		return fragmentBytes;
+		if (writeState != null) {
+			try {
+				return getProtectedFragment().clone();
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("Could not encrypt the fragment", e);
+			}
+		}
+		return copyOfRange(fragmentBytes, fragmentOffset, fragmentLength);
 	}
 
 	/**
@@ -508,14 +831,14 @@ public class Record {
 			// decide, which type of fragment need decryption
 			switch (type) {
 			case ALERT:
-				byte[] decryptedMessage = decryptFragment(fragmentBytes);
+				byte[] decryptedMessage = decryptFragment(fragmentBytes, fragmentOffset, fragmentLength);
 				if (decryptedMessage != null) {
 					fragment = AlertMessage.fromByteArray(decryptedMessage);
 				}
 				break;
 
 			case APPLICATION_DATA:
-				decryptedMessage = decryptFragment(fragmentBytes);
+				decryptedMessage = decryptFragment(fragmentBytes, fragmentOffset, fragmentLength);
 				if (decryptedMessage != null) {
 					fragment = ApplicationMessage.fromByteArray(decryptedMessage);
 				}
@@ -525,14 +848,14 @@ public class Record {
 				// http://tools.ietf.org/html/rfc5246#section-7.1: "is
 				// encrypted and compressed under the current (not the pending)
 				// connection state"
-				decryptedMessage = decryptFragment(fragmentBytes);
+				decryptedMessage = decryptFragment(fragmentBytes, fragmentOffset, fragmentLength);
 				if (decryptedMessage != null) {
 					fragment =  ChangeCipherSpecMessage.fromByteArray(decryptedMessage);
 				}
 				break;
 
 			case HANDSHAKE:
-				decryptedMessage = decryptFragment(fragmentBytes);
+				decryptedMessage = decryptFragment(fragmentBytes, fragmentOffset, fragmentLength);
 
 				KeyExchangeAlgorithm keyExchangeAlgorithm = KeyExchangeAlgorithm.NULL;
 				boolean receiveRawPublicKey = false;
@@ -549,6 +872,11 @@ public class Record {
 				LOGGER.severe("Unknown content type: " + type);
 				break;
 			}
+
+			if (fragment != null && session != null && epoch > 0) {
+				// the record has been authenticated, advance the replay window
+				session.markRecordAsRead(epoch, sequenceNumber);
+			}
 		}
 		
 		/*
@@ -565,10 +893,37 @@ public class Record {
 		return fragment;
 	}
 
+	/**
+	 * Copies the raw fragment out of the buffer the record has been parsed
+	 * from. Records keep referring to the receive buffer otherwise, so this
+	 * must be called before keeping a record whose fragment has not been
+	 * decrypted yet beyond the processing of its datagram.
+	 */
+	public void detachFragment() {
+		if (fragment == null && writeState == null) {
+			fragmentBytes = Arrays.copyOfRange(fragmentBytes, fragmentOffset, fragmentOffset + fragmentLength);
+			fragmentOffset = 0;
+		}
+	}
+
+	/**
+	 * Checks whether this record has already been received in the session's
+	 * current read epoch. Only the record header is used, so no decryption
+	 * takes place. Records protected under the initial NULL cipher (epoch 0)
+	 * are not checked.
+	 * 
+	 * @return <code>true</code> if the record is a duplicate and must be
+	 *         discarded silently
+	 */
+	public boolean isDuplicate() {
+		return session != null && epoch > 0 && session.isDuplicate(epoch, sequenceNumber);
+	}
+
 	/**
 	 * Sets the DTLS fragment. At the same time, it creates the corresponding
-	 * raw binary representation and encrypts it if necessary (depending on
-	 * current connection state).
+	 * raw binary representation and captures the current write state, the
+	 * fragment is encrypted under it (if necessary) when the record is
+	 * serialized.
 	 * 
 	 * @param fragment
 	 *            the DTLS fragment.
@@ -576,7 +931,7 @@ public class Record {
 	public void setFragment(DTLSMessage fragment) {
 
 		if (fragmentBytes == null) {
-			// serialize fragment and if necessary encrypt byte array
+			// serialize fragment, it is encrypted on serialization of the record
 
 			byte[] byteArray = fragment.toByteArray();
 			// the current length of the unprotected message
@@ -588,7 +943,9 @@ public class Record {
 			case APPLICATION_DATA:
 			case HANDSHAKE:
 			case CHANGE_CIPHER_SPEC:
-				byteArray = encryptFragment(byteArray);
+				if (session != null) {
+					writeState = session.getWriteState();
+				}
 				break;
 
 			default:
@@ -596,6 +953,8 @@ public class Record {
 				break;
 			}
 			this.fragmentBytes = byteArray;
+			this.fragmentOffset = 0;
+			this.fragmentLength = byteArray.length;
 
 		}
 		this.fragment = fragment;
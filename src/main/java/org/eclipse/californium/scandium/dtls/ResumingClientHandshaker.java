@@ -75,9 +75,18 @@ public class ResumingClientHandshaker extends ClientHandshaker {
 			HandshakeMessage fragment = (HandshakeMessage) record.getFragment();
 			switch (fragment.getMessageType()) {
 
+			case HELLO_VERIFY_REQUEST:
+				// the server requires a cookie before it resumes a session as well
+				flight = receivedHelloVerifyRequest((HelloVerifyRequest) fragment);
+				break;
+
 			case SERVER_HELLO:
 				// TODO if server's session ID does not match, make full handshake
 				serverHello = (ServerHello) fragment;
+				// the keys are needed for the server's ChangeCipherSpec following
+				clientRandom = clientHello.getRandom();
+				serverRandom = serverHello.getRandom();
+				generateKeysFromMasterSecret(session.getMasterSecret());
 				break;
 
 			case FINISHED:
@@ -149,10 +158,6 @@ public class ResumingClientHandshaker extends ClientHandshaker {
 		// server's finished message included)
 		handshakeHash = md.digest();
 		message.verifyData(getMasterSecret(), false, handshakeHash);
-		
-		clientRandom = clientHello.getRandom();
-		serverRandom = serverHello.getRandom();
-		generateKeys(session.getMasterSecret());
 
 		ChangeCipherSpecMessage changeCipherSpecMessage = new ChangeCipherSpecMessage();
 		flight.addMessage(wrapMessage(changeCipherSpecMessage));
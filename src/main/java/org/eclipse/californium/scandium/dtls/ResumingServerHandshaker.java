@@ -27,9 +27,9 @@ import org.eclipse.californium.scandium.dtls.AlertMessage.AlertLevel;
 
 /**
  * The resuming server handshaker executes an abbreviated handshake when
- * receiving a ClientHello with a set session identifier. It checks whether such
- * a session still exists and if so, generates the new keys from the previously
- * established master secret. The message flow is depicted in <a
+ * receiving a ClientHello with a set session identifier or a valid session
+ * ticket. It checks whether such a session still exists and if so, generates
+ * the new keys from the previously established master secret. The message flow is depicted in <a
  * href="http://tools.ietf.org/html/rfc5246#section-7.3">Figure 2</a>.
  */
 public class ResumingServerHandshaker extends ServerHandshaker {
@@ -41,26 +41,27 @@ public class ResumingServerHandshaker extends ServerHandshaker {
 	
 	// Constructor ////////////////////////////////////////////////////
 
-	
-	public ResumingServerHandshaker(InetSocketAddress endpointAddress, DTLSSession session, Certificate[] rootCerts, DTLSConnectorConfig config) {
-		super(endpointAddress, session, rootCerts, config);
-		setSessionToResume(session);
-	}
-	
-	// Methods ////////////////////////////////////////////////////////
-	
 	/**
-	 * Resets the state of a session, such that it can be used to resume it.
+	 * Creates a handshaker resuming a session.
 	 * 
+	 * @param endpointAddress
+	 *            the peer's address.
 	 * @param session
-	 *            the session to be resumed.
+	 *            a fresh copy of the session to resume, see
+	 *            {@link DTLSSession#DTLSSession(InetSocketAddress, DTLSSession)}.
+	 *            The session becomes active once the client's Finished message
+	 *            has been verified.
+	 * @param rootCerts
+	 *            the trusted root certificates.
+	 * @param config
+	 *            the connector's configuration.
 	 */
-	private void setSessionToResume(DTLSSession session) {
-		session.setActive(false);
-		session.setWriteEpoch(0);
-		session.setReadEpoch(0);
+	public ResumingServerHandshaker(InetSocketAddress endpointAddress, DTLSSession session, Certificate[] rootCerts, DTLSConnectorConfig config) {
+		super(endpointAddress, session, rootCerts, config);
 	}
 	
+	// Methods ////////////////////////////////////////////////////////
+	
 	@Override
 	public synchronized DTLSFlight processMessage(Record record) throws HandshakeException {
 		DTLSFlight flight = null;
@@ -122,7 +123,9 @@ public class ResumingServerHandshaker extends ServerHandshaker {
 	/**
 	 * The server generates new keys from the old master secret and sends
 	 * ChangeCipherSpec and Finished message. The ClientHello contains a fresh
-	 * random value which will be needed to generate the new keys.
+	 * random value which will be needed to generate the new keys. The
+	 * ServerHello echoes the client's session identifier, which the client
+	 * chose itself if it presented a session ticket.
 	 * 
 	 * @param message
 	 *            the client's hello message.
@@ -137,11 +140,11 @@ public class ResumingServerHandshaker extends ServerHandshaker {
 		clientRandom = message.getRandom();
 		serverRandom = new Random(new SecureRandom());
 
-		ServerHello serverHello = new ServerHello(message.getClientVersion(), serverRandom, session.getSessionIdentifier(), session.getCipherSuite(), session.getCompressionMethod(), null);
+		ServerHello serverHello = new ServerHello(message.getClientVersion(), serverRandom, message.getSessionId(), session.getCipherSuite(), session.getCompressionMethod(), null);
 		flight.addMessage(wrapMessage(serverHello));
 		md.update(serverHello.toByteArray());
 
-		generateKeys(session.getMasterSecret());
+		generateKeysFromMasterSecret(session.getMasterSecret());
 
 		ChangeCipherSpecMessage changeCipherSpecMessage = new ChangeCipherSpecMessage();
 		flight.addMessage(wrapMessage(changeCipherSpecMessage));
@@ -177,7 +180,10 @@ public class ResumingServerHandshaker extends ServerHandshaker {
 	 */
 	private void receivedClientFinished(Finished message) throws HandshakeException {
 
-		message.verifyData(getMasterSecret(), false, handshakeHash);
+		// the client's verify_data is computed with the client's label
+		message.verifyData(getMasterSecret(), true, handshakeHash);
+
+		session.setActive(true);
 	}
 
 }
@@ -18,7 +18,6 @@ package org.eclipse.californium.scandium.dtls;
 
 import java.net.InetSocketAddress;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.cert.Certificate;
@@ -38,6 +37,7 @@ import org.eclipse.californium.scandium.dtls.SupportedPointFormatsExtension.ECPo
 import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
 import org.eclipse.californium.scandium.dtls.cipher.ECDHECryptography;
 import org.eclipse.californium.scandium.dtls.pskstore.PskStore;
+import org.eclipse.californium.scandium.dtls.sessionstore.SessionTicketProtector;
 import org.eclipse.californium.scandium.util.ByteArrayUtils;
 
 
@@ -91,6 +91,15 @@ public class ServerHandshaker extends Handshaker {
 	
 	/** The server's webid uri */
 	protected String webIDUri = null;
+
+	/** Used to generate and verify the cookies of HelloVerifyRequests */
+	private final CookieGenerator cookieGenerator;
+
+	/** Used to issue session tickets, <code>null</code> if disabled */
+	protected final SessionTicketProtector ticketProtector;
+
+	/** Whether the server promised the client a session ticket in its ServerHello */
+	private boolean issueTicket = false;
 	
 	// Constructors ///////////////////////////////////////////////////
 
@@ -108,6 +117,12 @@ public class ServerHandshaker extends Handshaker {
 		this.supportedCipherSuites.add(CipherSuite.SSL_NULL_WITH_NULL_NULL);
 		this.supportedCipherSuites.add(CipherSuite.TLS_PSK_WITH_AES_128_CCM_8);
 		this.supportedCipherSuites.add(CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CCM_8);
+		if (CipherSuite.TLS_PSK_WITH_AES_128_GCM_SHA256.isSupported()) {
+			this.supportedCipherSuites.add(CipherSuite.TLS_PSK_WITH_AES_128_GCM_SHA256);
+			this.supportedCipherSuites.add(CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256);
+		}
+		this.supportedCipherSuites.add(CipherSuite.TLS_PSK_WITH_CHACHA20_POLY1305_SHA256);
+		this.supportedCipherSuites.add(CipherSuite.TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256);
 		
 		this.pskStore = config.pskStore;
 		
@@ -127,6 +142,8 @@ public class ServerHandshaker extends Handshaker {
 		this.supportedServerCertificateTypes
 				.add(CertificateType.RAW_PUBLIC_KEY);
 		this.webIDUri = config.webIDURI;
+		this.ticketProtector = config.getSessionTicketProtector();
+		this.cookieGenerator = config.getCookieGenerator();
 	}
 
 	// Methods ////////////////////////////////////////////////////////
@@ -206,7 +223,7 @@ public class ServerHandshaker extends Handshaker {
 					AlertMessage alertMessage = new AlertMessage(AlertLevel.FATAL, AlertDescription.HANDSHAKE_FAILURE);
 					throw new HandshakeException("Unknown key exchange algorithm: " + keyExchange, alertMessage);
 				}
-				handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, clientKeyExchange.getRawMessage());
+				addHandshakeMessage(clientKeyExchange.getRawMessage());
 				break;
 
 			case CERTIFICATE_VERIFY:
@@ -263,7 +280,7 @@ public class ServerHandshaker extends Handshaker {
 
 		clientWebIDUriMessage = message;
 		session.setWebidUri(clientWebIDUriMessage.getWebidUri());
-		handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, clientWebIDUriMessage.getRawMessage());
+		addHandshakeMessage(clientWebIDUriMessage.getRawMessage());
 	}
 	
 	/**
@@ -286,8 +303,8 @@ public class ServerHandshaker extends Handshaker {
 		clientPublicKey = clientCertificate.getPublicKey();
 		session.setPeerRawPublicKey(clientPublicKey);
 		
-		// TODO why don't we also update the MessageDigest at this point?
-		handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, clientCertificate.getRawMessage());
+		// the handshake hash is updated with the client's messages once its Finished is received
+		addHandshakeMessage(clientCertificate.getRawMessage());
 	}
 
 	/**
@@ -303,7 +320,8 @@ public class ServerHandshaker extends Handshaker {
 	private void receivedCertificateVerify(CertificateVerify message) throws HandshakeException {
 		certificateVerify = message;
 
-		message.verifySignature(clientPublicKey, handshakeMessages);
+		message.verifySignature(clientPublicKey, getHandshakeMessages());
+		keepHandshakeMessages(false);
 	}
 
 	/**
@@ -368,7 +386,17 @@ public class ServerHandshaker extends Handshaker {
 		message.verifyData(getMasterSecret(), true, handshakeHash);
 
 		/*
-		 * First, send ChangeCipherSpec
+		 * First, send NewSessionTicket if promised, see
+		 * http://tools.ietf.org/html/rfc5077#section-3.3
+		 */
+		if (issueTicket) {
+			NewSessionTicket newSessionTicket = new NewSessionTicket(ticketProtector.getLifetimeHint(), ticketProtector.protect(session));
+			flight.addMessage(wrapMessage(newSessionTicket));
+			mdWithClientFinished.update(newSessionTicket.toByteArray());
+		}
+
+		/*
+		 * Second, send ChangeCipherSpec
 		 */
 		ChangeCipherSpecMessage changeCipherSpecMessage = new ChangeCipherSpecMessage();
 		flight.addMessage(wrapMessage(changeCipherSpecMessage));
@@ -376,7 +404,7 @@ public class ServerHandshaker extends Handshaker {
 		session.incrementWriteEpoch();
 
 		/*
-		 * Second, send Finished message
+		 * Third, send Finished message
 		 */
 		handshakeHash = mdWithClientFinished.digest();
 		Finished finished = new Finished(getMasterSecret(), isClient, handshakeHash);
@@ -410,13 +438,15 @@ public class ServerHandshaker extends Handshaker {
 	private DTLSFlight receivedClientHello(ClientHello message) throws HandshakeException {
 		DTLSFlight flight = new DTLSFlight();
 
-		if (message.getCookie().length() > 0 && isValidCookie(message)) {
+		if (isValidCookie(message)) {
 			// client has set a cookie, so it is a response to
 			// HelloVerifyRequest
 
+			// the raw messages are only needed to verify a CertificateVerify
+			keepHandshakeMessages(clientAuthenticationRequired);
+
 			// update the handshake hash
-			md.update(message.getRawMessage());
-			handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, message.getRawMessage());
+			updateHandshakeHash(message.getRawMessage());
 
 			/*
 			 * First, send ServerHello (mandatory)
@@ -427,7 +457,15 @@ public class ServerHandshaker extends Handshaker {
 			clientRandom = message.getRandom();
 			serverRandom = new Random(new SecureRandom());
 
-			SessionId sessionId = new SessionId();
+			SessionId sessionId;
+			if (ticketProtector != null && message.getSessionTicketExtension() != null) {
+				// the client keeps the session state in a ticket, the server
+				// does not need to find the session by its identifier
+				issueTicket = true;
+				sessionId = new SessionId(new byte[0]);
+			} else {
+				sessionId = new SessionId();
+			}
 			session.setSessionIdentifier(sessionId);
 
 			CipherSuite cipherSuite = negotiateCipherSuite(message.getCipherSuites());
@@ -481,6 +519,13 @@ public class ServerHandshaker extends Handshaker {
 				}
 			}
 			
+			if (issueTicket) {
+				if (serverHelloExtensions == null) {
+					serverHelloExtensions = new HelloExtensions();
+				}
+				serverHelloExtensions.addExtension(new SessionTicketExtension());
+			}
+
 			if (keyExchange == CipherSuite.KeyExchangeAlgorithm.EC_DIFFIE_HELLMAN) {
 				// if we chose a ECC cipher suite, the server should send the
 				// supported point formats extension in its ServerHello
@@ -497,8 +542,7 @@ public class ServerHandshaker extends Handshaker {
 			flight.addMessage(wrapMessage(serverHello));
 			
 			// update the handshake hash
-			md.update(serverHello.toByteArray());
-			handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, serverHello.toByteArray());
+			updateHandshakeHash(serverHello.toByteArray());
 
 			/*
 			 * Second, send WebIDURI if there is a WebID uri to send
@@ -507,8 +551,7 @@ public class ServerHandshaker extends Handshaker {
 			if(webIDUri != null){
 				serverWebIDURIMessage = new WebIDUriMessage(webIDUri);
 				flight.addMessage(wrapMessage(serverWebIDURIMessage));
-				md.update(serverWebIDURIMessage.toByteArray());
-				handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, serverWebIDURIMessage.toByteArray());
+				updateHandshakeHash(serverWebIDURIMessage.toByteArray());
 			}
 			
 			
@@ -532,8 +575,7 @@ public class ServerHandshaker extends Handshaker {
 			}
 			if (certificateMessage != null) {
 				flight.addMessage(wrapMessage(certificateMessage));
-				md.update(certificateMessage.toByteArray());
-				handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, certificateMessage.toByteArray());
+				updateHandshakeHash(certificateMessage.toByteArray());
 			}
 
 			/*
@@ -568,8 +610,7 @@ public class ServerHandshaker extends Handshaker {
 			
 			if (serverKeyExchange != null) {
 				flight.addMessage(wrapMessage(serverKeyExchange));
-				md.update(serverKeyExchange.toByteArray());
-				handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, serverKeyExchange.toByteArray());
+				updateHandshakeHash(serverKeyExchange.toByteArray());
 			}
 
 			/*
@@ -585,8 +626,10 @@ public class ServerHandshaker extends Handshaker {
 				certificateRequest.addCertificateAuthorities(rootCertificates);
 
 				flight.addMessage(wrapMessage(certificateRequest));
-				md.update(certificateRequest.toByteArray());
-				handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, certificateRequest.toByteArray());
+				updateHandshakeHash(certificateRequest.toByteArray());
+			} else {
+				// no CertificateVerify to expect
+				keepHandshakeMessages(false);
 			}
 
 			/*
@@ -594,12 +637,11 @@ public class ServerHandshaker extends Handshaker {
 			 */
 			ServerHelloDone serverHelloDone = new ServerHelloDone();
 			flight.addMessage(wrapMessage(serverHelloDone));
-			md.update(serverHelloDone.toByteArray());
-			handshakeMessages = ByteArrayUtils.concatenate(handshakeMessages, serverHelloDone.toByteArray());
+			updateHandshakeHash(serverHelloDone.toByteArray());
 
 		} else {
 			// either first time, or cookies did not match
-			HelloVerifyRequest helloVerifyRequest = new HelloVerifyRequest(new ProtocolVersion(), generateCookie(message));
+			HelloVerifyRequest helloVerifyRequest = new HelloVerifyRequest(new ProtocolVersion(), cookieGenerator.generateCookie(endpointAddress, message));
 			flight.addMessage(wrapMessage(helloVerifyRequest));
 			flight.setRetransmissionNeeded(false);
 		}
@@ -667,54 +709,6 @@ public class ServerHandshaker extends Handshaker {
 		return new byte[] {};
 	}
 
-	/**
-	 * Generates a cookie in such a way that they can be verified without
-	 * retaining any per-client state on the server.
-	 * 
-	 * <pre>
-	 * Cookie = HMAC(Secret, Client - IP, Client - Parameters)
-	 * </pre>
-	 * 
-	 * as suggested <a
-	 * href="http://tools.ietf.org/html/rfc6347#section-4.2.1">here</a>.
-	 * 
-	 * @return the cookie generated from the client's parameters.
-	 */
-	private Cookie generateCookie(ClientHello clientHello) {
-
-		MessageDigest md;
-		byte[] cookie = null;
-
-		try {
-			md = MessageDigest.getInstance("SHA-256");
-
-			// Cookie = HMAC(Secret, Client-IP, Client-Parameters)
-			byte[] secret = "generate cookie".getBytes();
-
-			// Client-IP
-			md.update(endpointAddress.toString().getBytes());
-
-			// Client-Parameters
-			md.update((byte) clientHello.getClientVersion().getMajor());
-			md.update((byte) clientHello.getClientVersion().getMinor());
-			md.update(clientHello.getRandom().getRandomBytes());
-			md.update(clientHello.getSessionId().getSessionId());
-			md.update(CipherSuite.listToByteArray(clientHello.getCipherSuites()));
-			md.update(CompressionMethod.listToByteArray(clientHello.getCompressionMethods()));
-
-			byte[] data = md.digest();
-
-			cookie = Handshaker.doHMAC(md, secret, data);
-		} catch (NoSuchAlgorithmException e) {
-			LOGGER.log(Level.SEVERE,"Could not instantiate message digest algorithm.",e);
-		}
-		if (cookie == null) {
-			return new Cookie(new Random(new SecureRandom()).getRandomBytes());
-		} else {
-			return new Cookie(cookie);
-		}
-	}
-
 	/**
 	 * Checks whether the Cookie in the client's hello message matches the
 	 * expected cookie generated from the client's parameters.
@@ -725,13 +719,11 @@ public class ServerHandshaker extends Handshaker {
 	 *         otherwise.
 	 */
 	private boolean isValidCookie(ClientHello clientHello) {
-		Cookie expected = generateCookie(clientHello);
-		Cookie actual = clientHello.getCookie();
-		boolean valid = Arrays.equals(expected.getCookie(), actual.getCookie());
+		boolean valid = cookieGenerator.isValidCookie(endpointAddress, clientHello);
 
-		if (!valid) {
+		if (!valid && clientHello.getCookie().length() > 0) {
 			if (LOGGER.isLoggable(Level.INFO)) {
-			    LOGGER.info("Client's (" + endpointAddress.toString() + ") cookie did not match expected cookie:\n" + "Expected: " + ByteArrayUtils.toHexString(expected.getCookie()) + "\n" + "Actual: " + ByteArrayUtils.toHexString(actual.getCookie()));
+			    LOGGER.info("Client's (" + endpointAddress.toString() + ") cookie did not match expected cookie: " + ByteArrayUtils.toHexString(clientHello.getCookie().getCookie()));
 			}
 		}
 
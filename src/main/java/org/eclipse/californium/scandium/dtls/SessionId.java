@@ -17,10 +17,12 @@
 package org.eclipse.californium.scandium.dtls;
 
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 /**
  * A session identifier is a value generated by a server that identifies a
- * particular session.
+ * particular session. Two identifiers are equal if their bytes are equal, so
+ * they can be used as keys to look up sessions.
  */
 public class SessionId {
 	
@@ -47,4 +49,20 @@ public class SessionId {
 	public byte[] getSessionId() {
 		return sessionId;
 	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(sessionId);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof SessionId)) {
+			return false;
+		}
+		return Arrays.equals(sessionId, ((SessionId) obj).sessionId);
+	}
 }
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls;
+
+import org.eclipse.californium.scandium.util.DatagramWriter;
+
+
+/**
+ * The SessionTicket extension. See <a
+ * href="http://tools.ietf.org/html/rfc5077#section-3.2">RFC 5077</a>.
+ * <p>
+ * A client sends an empty extension to indicate that it supports tickets, or
+ * the ticket it received from the server to resume a session. The server
+ * sends an empty extension in its ServerHello if it will issue a ticket.
+ */
+public class SessionTicketExtension extends HelloExtension {
+
+	// Members ////////////////////////////////////////////////////////
+
+	/** The opaque ticket, empty if no ticket is sent. */
+	private byte[] ticket;
+
+	// Constructors ///////////////////////////////////////////////////
+
+	/**
+	 * Creates an empty extension.
+	 */
+	public SessionTicketExtension() {
+		this(new byte[0]);
+	}
+
+	public SessionTicketExtension(byte[] ticket) {
+		super(ExtensionType.SESSION_TICKET_TLS);
+		this.ticket = ticket;
+	}
+
+	// Methods ////////////////////////////////////////////////////////
+
+	public byte[] getTicket() {
+		return ticket;
+	}
+
+	@Override
+	public int getLength() {
+		// fixed: type (2 bytes), length (2 bytes)
+		// variable: the ticket
+		return 4 + ticket.length;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(super.toString());
+		sb.append("\t\t\t\tTicket Length: " + ticket.length + "\n");
+
+		return sb.toString();
+	}
+
+	// Serialization //////////////////////////////////////////////////
+
+	@Override
+	public byte[] toByteArray() {
+		DatagramWriter writer = new DatagramWriter();
+		writer.writeBytes(super.toByteArray());
+
+		writer.write(ticket.length, LENGTH_BITS);
+		writer.writeBytes(ticket);
+
+		return writer.toByteArray();
+	}
+
+	public static HelloExtension fromByteArray(byte[] byteArray) {
+		// the extension data is the ticket itself
+		return new SessionTicketExtension(byteArray);
+	}
+}
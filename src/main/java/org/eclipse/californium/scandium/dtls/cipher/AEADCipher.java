@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls.cipher;
+
+import java.security.GeneralSecurityException;
+
+import org.eclipse.californium.scandium.dtls.HandshakeException;
+
+/**
+ * An authenticated encryption with associated data (AEAD) cipher bound to a
+ * single key. See <a href="http://tools.ietf.org/html/rfc5116">RFC 5116</a>
+ * for the generic interface.
+ * <p>
+ * Implementations operate on caller supplied arrays and append the
+ * authentication tag to the ciphertext. They are <em>not</em> required to be
+ * thread safe.
+ */
+public interface AEADCipher {
+
+	/**
+	 * Gets the number of octets of the authentication tag appended to each
+	 * encrypted message.
+	 * 
+	 * @return the tag length
+	 */
+	int getTagLength();
+
+	/**
+	 * Encrypts and authenticates a message.
+	 * 
+	 * @param nonce
+	 *            the nonce.
+	 * @param a
+	 *            the array containing the additional authenticated data.
+	 * @param aOffset
+	 *            the offset of the additional authenticated data.
+	 * @param aLength
+	 *            the length of the additional authenticated data.
+	 * @param m
+	 *            the array containing the message.
+	 * @param mOffset
+	 *            the offset of the message.
+	 * @param mLength
+	 *            the length of the message.
+	 * @param out
+	 *            the array to write the ciphertext followed by the tag to. It
+	 *            must provide <code>mLength + getTagLength()</code> bytes
+	 *            starting at <code>outOffset</code>.
+	 * @param outOffset
+	 *            the offset to start writing at.
+	 * @return the number of bytes written to <code>out</code>.
+	 * @throws GeneralSecurityException
+	 *             if the underlying cipher fails.
+	 */
+	int encrypt(byte[] nonce, byte[] a, int aOffset, int aLength, byte[] m, int mOffset, int mLength,
+			byte[] out, int outOffset) throws GeneralSecurityException;
+
+	/**
+	 * Decrypts and verifies a message.
+	 * 
+	 * @param nonce
+	 *            the nonce.
+	 * @param a
+	 *            the array containing the additional authenticated data.
+	 * @param aOffset
+	 *            the offset of the additional authenticated data.
+	 * @param aLength
+	 *            the length of the additional authenticated data.
+	 * @param c
+	 *            the array containing the ciphertext followed by the tag.
+	 * @param cOffset
+	 *            the offset of the ciphertext.
+	 * @param cLength
+	 *            the length of the ciphertext including the tag.
+	 * @param out
+	 *            the array to write the decrypted message to. It must provide
+	 *            <code>cLength - getTagLength()</code> bytes starting at
+	 *            <code>outOffset</code>.
+	 * @param outOffset
+	 *            the offset to start writing at.
+	 * @return the length of the decrypted message.
+	 * @throws HandshakeException
+	 *             if the message could not be authenticated.
+	 * @throws GeneralSecurityException
+	 *             if the underlying cipher fails.
+	 */
+	int decrypt(byte[] nonce, byte[] a, int aOffset, int aLength, byte[] c, int cOffset, int cLength,
+			byte[] out, int outOffset) throws HandshakeException, GeneralSecurityException;
+}
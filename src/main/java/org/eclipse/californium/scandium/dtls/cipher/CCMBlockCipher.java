@@ -16,9 +16,10 @@
  ******************************************************************************/
 package org.eclipse.californium.scandium.dtls.cipher;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.util.Arrays;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,16 +30,26 @@ import org.eclipse.californium.scandium.dtls.AlertMessage;
 import org.eclipse.californium.scandium.dtls.HandshakeException;
 import org.eclipse.californium.scandium.dtls.AlertMessage.AlertDescription;
 import org.eclipse.californium.scandium.dtls.AlertMessage.AlertLevel;
-import org.eclipse.californium.scandium.util.ByteArrayUtils;
-import org.eclipse.californium.scandium.util.DatagramWriter;
 
 
 /**
  * A generic authenticated encryption block cipher mode which uses the 128-bit
  * block cipher AES. See <a href="http://tools.ietf.org/html/rfc3610">RFC
  * 3610</a> for details.
+ * <p>
+ * An instance is bound to a key and the size of the authentication field.
+ * It keeps the underlying AES block cipher and all intermediate blocks
+ * (CBC-MAC state, counter block and key stream block) as reusable scratch
+ * state, so that encryption and decryption run block by block directly on the
+ * caller's arrays without allocating any memory. The output may be written to
+ * the same array and offset as the input (in-place operation).
+ * <p>
+ * Instances are <em>not</em> thread safe, callers must synchronize access to
+ * a shared instance. The static {@link #encrypt(byte[], byte[], byte[], byte[], int)}
+ * and {@link #decrypt(byte[], byte[], byte[], byte[], int)} methods are kept
+ * for convenience and create a new instance per invocation.
  */
-public final class CCMBlockCipher {
+public final class CCMBlockCipher implements AEADCipher {
 
 	// Logging ////////////////////////////////////////////////////////
 
@@ -57,6 +68,330 @@ public final class CCMBlockCipher {
 	 */
 	private static final String BLOCK_CIPHER = "AES";
 
+	/**
+	 * The transformation used to encrypt single blocks. CCM only ever uses the
+	 * forward direction of the block cipher.
+	 */
+	private static final String BLOCK_CIPHER_TRANSFORMATION = "AES/ECB/NoPadding";
+
+	/** 2^16 - 2^8, the first length requiring the long encoding of l(a) */
+	private static final int SHORT_AAD_LENGTH_LIMIT = 0xFF00;
+
+	/** the AES block cipher initialized with the key K */
+	private final Cipher cipher;
+
+	/** number of octets in the authentication field (M) */
+	private final int numAuthenticationBytes;
+
+	/** the CBC-MAC state X_i */
+	private final byte[] mac = new byte[BLOCK_SIZE];
+
+	/** the counter block A_i */
+	private final byte[] counter = new byte[BLOCK_SIZE];
+
+	/** the key stream block S_i */
+	private final byte[] keyStream = new byte[BLOCK_SIZE];
+
+	/**
+	 * the output of the block cipher when encrypting in place, the JCE copies
+	 * the input on every call if input and output overlap
+	 */
+	private final byte[] blockOutput = new byte[BLOCK_SIZE];
+
+	// Constructors ///////////////////////////////////////////////////
+
+	/**
+	 * Creates a CCM engine for a key.
+	 * 
+	 * @param key
+	 *            the encryption key K.
+	 * @param numAuthenticationBytes
+	 *            Number of octets in authentication field (M).
+	 * @throws GeneralSecurityException
+	 *             if the AES block cipher is not available or the key is
+	 *             invalid.
+	 */
+	public CCMBlockCipher(byte[] key, int numAuthenticationBytes) throws GeneralSecurityException {
+		this(new SecretKeySpec(key, BLOCK_CIPHER), numAuthenticationBytes);
+	}
+
+	/**
+	 * Creates a CCM engine for a key.
+	 * 
+	 * @param key
+	 *            the encryption key K.
+	 * @param numAuthenticationBytes
+	 *            Number of octets in authentication field (M).
+	 * @throws GeneralSecurityException
+	 *             if the AES block cipher is not available or the key is
+	 *             invalid.
+	 */
+	public CCMBlockCipher(Key key, int numAuthenticationBytes) throws GeneralSecurityException {
+		// valid values for M are 4, 6, 8, 10, 12, 14, and 16 octets
+		if (numAuthenticationBytes < 4 || numAuthenticationBytes > BLOCK_SIZE || numAuthenticationBytes % 2 != 0) {
+			throw new IllegalArgumentException("Unsupported size of authentication field: " + numAuthenticationBytes);
+		}
+		this.numAuthenticationBytes = numAuthenticationBytes;
+		this.cipher = Cipher.getInstance(BLOCK_CIPHER_TRANSFORMATION);
+		this.cipher.init(Cipher.ENCRYPT_MODE, key);
+	}
+
+	// Methods ////////////////////////////////////////////////////////
+
+	@Override
+	public int getTagLength() {
+		return numAuthenticationBytes;
+	}
+
+	/**
+	 * Encrypts and authenticates a message. See <a
+	 * href="http://tools.ietf.org/html/rfc3610#section-2.2">RFC 3610</a> for
+	 * details.
+	 * 
+	 * @param nonce
+	 *            the nonce N.
+	 * @param a
+	 *            the array containing the additional authenticated data a.
+	 * @param aOffset
+	 *            the offset of a.
+	 * @param aLength
+	 *            the length of a.
+	 * @param m
+	 *            the array containing the message to authenticate and encrypt.
+	 * @param mOffset
+	 *            the offset of the message.
+	 * @param mLength
+	 *            the length of the message.
+	 * @param out
+	 *            the array to write the encrypted message followed by the
+	 *            encrypted authentication value U to. It must provide
+	 *            <code>mLength + M</code> bytes starting at
+	 *            <code>outOffset</code>.
+	 * @param outOffset
+	 *            the offset to start writing at.
+	 * @return the number of bytes written to <code>out</code>.
+	 * @throws GeneralSecurityException
+	 *             if the block cipher fails.
+	 */
+	@Override
+	public int encrypt(byte[] nonce, byte[] a, int aOffset, int aLength, byte[] m, int mOffset, int mLength,
+			byte[] out, int outOffset) throws GeneralSecurityException {
+
+		/*
+		 * First, authentication:
+		 * http://tools.ietf.org/html/rfc3610#section-2.2
+		 * 
+		 * Second, encryption http://tools.ietf.org/html/rfc3610#section-2.3
+		 * 
+		 * Both are done in a single pass over the message, the plain text
+		 * block is fed into the CBC-MAC before it gets overwritten by the
+		 * encrypted block (in case of in-place operation).
+		 */
+		startCbcMac(nonce, aLength, mLength);
+		updateCbcMac(a, aOffset, aLength);
+		initCounter(nonce);
+
+		int blockNo = 1;
+		for (int position = 0; position < mLength; position += BLOCK_SIZE, blockNo++) {
+			int blockLength = Math.min(BLOCK_SIZE, mLength - position);
+			generateKeyStreamBlock(blockNo);
+			int in = mOffset + position;
+			int o = outOffset + position;
+			for (int i = 0; i < blockLength; i++) {
+				byte plain = m[in + i];
+				mac[i] ^= plain;
+				out[o + i] = (byte) (plain ^ keyStream[i]);
+			}
+			encryptBlock(mac);
+		}
+
+		// U := T XOR first-M-bytes( S_0 )
+		generateKeyStreamBlock(0);
+		int tagOffset = outOffset + mLength;
+		for (int i = 0; i < numAuthenticationBytes; i++) {
+			out[tagOffset + i] = (byte) (mac[i] ^ keyStream[i]);
+		}
+
+		/*
+		 * The final result c consists of the encrypted message followed by
+		 * the encrypted authentication value U.
+		 */
+		return mLength + numAuthenticationBytes;
+	}
+
+	/**
+	 * Decrypts and verifies a message. See <a
+	 * href="http://tools.ietf.org/html/rfc3610#section-2.5">RFC 3610</a> for
+	 * details.
+	 * <p>
+	 * If the message cannot be authenticated, the (partially) decrypted
+	 * message written to <code>out</code> is wiped before the exception is
+	 * thrown.
+	 * 
+	 * @param nonce
+	 *            the nonce N.
+	 * @param a
+	 *            the array containing the additional authenticated data a.
+	 * @param aOffset
+	 *            the offset of a.
+	 * @param aLength
+	 *            the length of a.
+	 * @param c
+	 *            the array containing the encrypted and authenticated message
+	 *            c.
+	 * @param cOffset
+	 *            the offset of c.
+	 * @param cLength
+	 *            the length of c (including the authentication value).
+	 * @param out
+	 *            the array to write the decrypted message to. It must
+	 *            provide <code>cLength - M</code> bytes starting at
+	 *            <code>outOffset</code>.
+	 * @param outOffset
+	 *            the offset to start writing at.
+	 * @return the length of the decrypted message.
+	 * @throws HandshakeException
+	 *             if the message could not be authenticated.
+	 * @throws GeneralSecurityException
+	 *             if the block cipher fails.
+	 */
+	@Override
+	public int decrypt(byte[] nonce, byte[] a, int aOffset, int aLength, byte[] c, int cOffset, int cLength,
+			byte[] out, int outOffset) throws HandshakeException, GeneralSecurityException {
+		/*
+		 * http://tools.ietf.org/html/draft-mcgrew-tls-aes-ccm-04#section-6.1:
+		 * "AEAD_AES_128_CCM_8 ciphertext is exactly 8 octets longer than
+		 * its corresponding plaintext"
+		 */
+		int mLength = cLength - numAuthenticationBytes;
+		if (mLength < 0) {
+			throw newAuthenticationFailure();
+		}
+
+		startCbcMac(nonce, aLength, mLength);
+		updateCbcMac(a, aOffset, aLength);
+		initCounter(nonce);
+
+		/*
+		 * Decryption recomputes the key stream to recover the message m, the
+		 * recovered plain text is then used to recompute the CBC-MAC value.
+		 */
+		int blockNo = 1;
+		for (int position = 0; position < mLength; position += BLOCK_SIZE, blockNo++) {
+			int blockLength = Math.min(BLOCK_SIZE, mLength - position);
+			generateKeyStreamBlock(blockNo);
+			int in = cOffset + position;
+			int o = outOffset + position;
+			for (int i = 0; i < blockLength; i++) {
+				byte plain = (byte) (c[in + i] ^ keyStream[i]);
+				mac[i] ^= plain;
+				out[o + i] = plain;
+			}
+			encryptBlock(mac);
+		}
+
+		/*
+		 * T := U XOR first-M-bytes( S_0 ) is compared to the recomputed
+		 * CBC-MAC value in constant time.
+		 */
+		generateKeyStreamBlock(0);
+		int tagOffset = cOffset + mLength;
+		int diff = 0;
+		for (int i = 0; i < numAuthenticationBytes; i++) {
+			diff |= (c[tagOffset + i] ^ keyStream[i]) ^ mac[i];
+		}
+
+		/*
+		 * If the T value is not correct, the receiver MUST NOT reveal any
+		 * information except for the fact that T is incorrect. The receiver
+		 * MUST NOT reveal the decrypted message, the value T, or any other
+		 * information.
+		 */
+		if (diff != 0) {
+			Arrays.fill(out, outOffset, outOffset + mLength, (byte) 0);
+			throw newAuthenticationFailure();
+		}
+		return mLength;
+	}
+
+	/**
+	 * Encrypts and authenticates the remaining bytes of a buffer. The encrypted
+	 * message followed by the authentication value is put into
+	 * <code>out</code>, the positions of both buffers are advanced.
+	 * 
+	 * @param nonce
+	 *            the nonce N.
+	 * @param a
+	 *            the array containing the additional authenticated data a.
+	 * @param aOffset
+	 *            the offset of a.
+	 * @param aLength
+	 *            the length of a.
+	 * @param m
+	 *            the buffer containing the message.
+	 * @param out
+	 *            the buffer to put the result to.
+	 * @return the number of bytes put to <code>out</code>.
+	 * @throws GeneralSecurityException
+	 *             if the block cipher fails.
+	 * @throws IllegalArgumentException
+	 *             if one of the buffers is not backed by an accessible array.
+	 */
+	public int encrypt(byte[] nonce, byte[] a, int aOffset, int aLength, ByteBuffer m, ByteBuffer out) throws GeneralSecurityException {
+		assertArrayBacked(m);
+		assertArrayBacked(out);
+		int mLength = m.remaining();
+		if (out.remaining() < mLength + numAuthenticationBytes) {
+			throw new IllegalArgumentException("Output buffer too small");
+		}
+		int written = encrypt(nonce, a, aOffset, aLength, m.array(), m.arrayOffset() + m.position(), mLength,
+				out.array(), out.arrayOffset() + out.position());
+		m.position(m.limit());
+		out.position(out.position() + written);
+		return written;
+	}
+
+	/**
+	 * Decrypts and verifies the remaining bytes of a buffer. The decrypted
+	 * message is put into <code>out</code>, the positions of both buffers are
+	 * advanced.
+	 * 
+	 * @param nonce
+	 *            the nonce N.
+	 * @param a
+	 *            the array containing the additional authenticated data a.
+	 * @param aOffset
+	 *            the offset of a.
+	 * @param aLength
+	 *            the length of a.
+	 * @param c
+	 *            the buffer containing the encrypted and authenticated
+	 *            message.
+	 * @param out
+	 *            the buffer to put the decrypted message to.
+	 * @return the length of the decrypted message.
+	 * @throws HandshakeException
+	 *             if the message could not be authenticated.
+	 * @throws GeneralSecurityException
+	 *             if the block cipher fails.
+	 * @throws IllegalArgumentException
+	 *             if one of the buffers is not backed by an accessible array.
+	 */
+	public int decrypt(byte[] nonce, byte[] a, int aOffset, int aLength, ByteBuffer c, ByteBuffer out)
+			throws HandshakeException, GeneralSecurityException {
+		assertArrayBacked(c);
+		assertArrayBacked(out);
+		int cLength = c.remaining();
+		if (out.remaining() < cLength - numAuthenticationBytes) {
+			throw new IllegalArgumentException("Output buffer too small");
+		}
+		int written = decrypt(nonce, a, aOffset, aLength, c.array(), c.arrayOffset() + c.position(), cLength,
+				out.array(), out.arrayOffset() + out.position());
+		c.position(c.limit());
+		out.position(out.position() + written);
+		return written;
+	}
+
 	// Static methods /////////////////////////////////////////////////
 
 	/**
@@ -79,70 +414,18 @@ public final class CCMBlockCipher {
 	 *             if the message could not be authenticated.
 	 */
 	public static byte[] decrypt(byte[] key, byte[] nonce, byte[] a, byte[] c, int numAuthenticationBytes) throws HandshakeException {
-		byte[] T;
-		byte[] m;
-		byte[] mac;
+		if (c.length < numAuthenticationBytes) {
+			throw newAuthenticationFailure();
+		}
 		try {
-			/*
-			 * http://tools.ietf.org/html/draft-mcgrew-tls-aes-ccm-04#section-6.1:
-			 * "AEAD_AES_128_CCM_8 ciphertext is exactly 8 octets longer than
-			 * its corresponding plaintext"
-			 */
-			long lengthM = c.length - numAuthenticationBytes;
-
-			// instantiate the underlying block cipher
-			Cipher cipher = Cipher.getInstance(BLOCK_CIPHER);
-			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, BLOCK_CIPHER));
-
-			/*
-			 * Decryption starts by recomputing the key stream to recover the
-			 * message m and the MAC value T.
-			 */
-			List<byte[]> S_i = generateKeyStreamBlocks(lengthM, nonce, cipher);
-			byte[] S_0 = S_i.get(0);
-			byte[] concatenatedS_i = generateConcatenatedKeyStream(S_i, lengthM);
-
-			// extract the encrypted message (cut of authentication value)
-			byte[] encryptedM = ByteArrayUtils.truncate(c, (int) lengthM);
-
-			/*
-			 * The message is decrypted by XORing the octets of message m with
-			 * the first l(m) octets of the concatenation of S_1, S_2, S_3
-			 */
-			m = ByteArrayUtils.xorArrays(encryptedM, concatenatedS_i);
-
-			// extract the authentication value from the cipher text
-			byte[] encryptedT = new byte[numAuthenticationBytes];
-			System.arraycopy(c, (int) lengthM, encryptedT, 0, numAuthenticationBytes);
-
-			// T := U XOR first-M-bytes( S_0 )
-			T = ByteArrayUtils.xorArrays(encryptedT, ByteArrayUtils.truncate(S_0, numAuthenticationBytes));
-
-			/*
-			 * The message and additional authentication data is then used to
-			 * recompute the CBC-MAC value and check T.
-			 */
-			mac = computeCbcMac(nonce, m, a, cipher, numAuthenticationBytes);
-		} catch (Exception e) {
+			CCMBlockCipher ccm = new CCMBlockCipher(key, numAuthenticationBytes);
+			byte[] m = new byte[c.length - numAuthenticationBytes];
+			ccm.decrypt(nonce, a, 0, a.length, c, 0, c.length, m, 0);
+			return m;
+		} catch (GeneralSecurityException e) {
 			LOGGER.log(Level.SEVERE,"Could not decrypt the message.",e);
 			return new byte[] {};
 		}
-
-		/*
-		 * If the T value is not correct, the receiver MUST NOT reveal any
-		 * information except for the fact that T is incorrect. The receiver
-		 * MUST NOT reveal the decrypted message, the value T, or any other
-		 * information.
-		 */
-		if (Arrays.equals(T, mac)) {
-			return m;
-		} else {
-			String message = "The encrypted message could not be authenticated:\nExpected: " 
-			                + ByteArrayUtils.toHexString(T) + "\nActual:   " + ByteArrayUtils.toHexString(mac);
-			AlertMessage alert = new AlertMessage(AlertLevel.FATAL, AlertDescription.BAD_RECORD_MAC);
-			throw new HandshakeException(message, alert);
-		}
-
 	}
 
 	/**
@@ -163,46 +446,11 @@ public final class CCMBlockCipher {
 	 */
 	public static byte[] encrypt(byte[] key, byte[] nonce, byte[] a, byte[] m, int numAuthenticationBytes) {
 		try {
-			long lengthM = m.length;
-
-			// instantiate the cipher
-			Cipher cipher = Cipher.getInstance(BLOCK_CIPHER);
-			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, BLOCK_CIPHER));
-
-			/*
-			 * First, authentication:
-			 * http://tools.ietf.org/html/rfc3610#section-2.2
-			 */
-
-			// compute the authentication field T
-			byte[] T = computeCbcMac(nonce, m, a, cipher, numAuthenticationBytes);
-
-			/*
-			 * Second, encryption http://tools.ietf.org/html/rfc3610#section-2.3
-			 */
-
-			List<byte[]> S_i = generateKeyStreamBlocks(lengthM, nonce, cipher);
-			byte[] S_0 = S_i.get(0);
-			byte[] concatenatedS_i = generateConcatenatedKeyStream(S_i, lengthM);
-
-			/*
-			 * The message is encrypted by XORing the octets of message m with
-			 * the first l(m) octets of the concatenation of S_1, S_2, S_3, ...
-			 * . Note that S_0 is not used to encrypt the message.
-			 */
-			byte[] encryptedMessage = ByteArrayUtils.xorArrays(m, concatenatedS_i);
-
-			// U := T XOR first-M-bytes( S_0 )
-			byte[] U = ByteArrayUtils.xorArrays(T, ByteArrayUtils.truncate(S_0, numAuthenticationBytes));
-
-			/*
-			 * The final result c consists of the encrypted message followed by
-			 * the encrypted authentication value U.
-			 */
-			byte[] c = ByteArrayUtils.concatenate(encryptedMessage, U);
-
+			CCMBlockCipher ccm = new CCMBlockCipher(key, numAuthenticationBytes);
+			byte[] c = new byte[m.length + numAuthenticationBytes];
+			ccm.encrypt(nonce, a, 0, a.length, m, 0, m.length, c, 0);
 			return c;
-		} catch (Exception e) {
+		} catch (GeneralSecurityException e) {
 			LOGGER.log(Level.SEVERE,"Could not encrypt the message.",e);
 			return new byte[] {};
 		}
@@ -211,31 +459,23 @@ public final class CCMBlockCipher {
 	// Helper methods /////////////////////////////////////////////////
 
 	/**
-	 * Computes CBC-MAC. See <a
+	 * Builds the first block B_0 and initializes the CBC-MAC state with X_1 :=
+	 * E( K, B_0 ). See <a
 	 * href="http://tools.ietf.org/html/rfc3610#section-2.2">RFC 3610 -
 	 * Authentication</a> for details.
 	 * 
 	 * @param nonce
 	 *            the nonce.
-	 * @param m
-	 *            the message to authenticate and encrypt.
-	 * @param a
-	 *            the additional authenticated data.
-	 * @param cipher
-	 *            the cipher.
-	 * @param authenticationBytes
-	 *            Number of octets in authentication field.
-	 * @return the CBC-MAC
-	 * @throws Exception
-	 *             if cipher can not be realized.
+	 * @param lengthA
+	 *            the length of the additional authenticated data.
+	 * @param lengthM
+	 *            the length of the message.
+	 * @throws GeneralSecurityException
+	 *             if the block cipher fails.
 	 */
-	private static byte[] computeCbcMac(byte[] nonce, byte[] m, byte[] a, Cipher cipher, int authenticationBytes) throws Exception {
-		long lengthM = m.length;
-		long lengthA = a.length;
+	private void startCbcMac(byte[] nonce, int lengthA, int lengthM) throws GeneralSecurityException {
 		int L = 15 - nonce.length;
 
-		// build first block B_0
-
 		/*
 		 * Octet Number	Contents
 		 * ------------	---------
@@ -243,15 +483,11 @@ public final class CCMBlockCipher {
 		 * 1 ... 15-L 	Nonce N
 		 * 16-L ... 15 	l(m)
 		 */
-		byte[] b0 = new byte[BLOCK_SIZE];
 
-		int adata = 0;
 		// The Adata bit is set to zero if l(a)=0, and set to one if l(a)>0
-		if (lengthA > 0) {
-			adata = 1;
-		}
+		int adata = lengthA > 0 ? 1 : 0;
 		// M' field is set to (M-2)/2
-		int mPrime = (authenticationBytes - 2) / 2;
+		int mPrime = (numAuthenticationBytes - 2) / 2;
 		// L' = L-1 (the zero value is reserved)
 		int lPrime = L - 1;
 
@@ -265,174 +501,145 @@ public final class CCMBlockCipher {
 		 */
 
 		// Flags = 64*Adata + 8*M' + L'
-		b0[0] = (byte) (64 * adata + 8 * mPrime + lPrime);
+		mac[0] = (byte) (64 * adata + 8 * mPrime + lPrime);
 
 		// 1 ... 15-L Nonce N
-		System.arraycopy(nonce, 0, b0, 1, nonce.length);
-
-		b0[14] = (byte) (lengthM >> 8);
-		b0[15] = (byte) (lengthM);
-
-		List<byte[]> blocks = new ArrayList<byte[]>();
-
-		// If l(a)>0 (as indicated by the Adata field), then one or more blocks
-		// of authentication data are added.
-		if (lengthA > 0) {
-
-			/*
-			 * First two octets		Followed by			Comment
-			 * -----------------	----------------	-------------------------------
-			 * 0x0000				Nothing				Reserved
-			 * 0x0001 ... 0xFEFF	Nothing				For 0 < l(a) < (2^16 - 2^8)
-			 * 0xFF00 ... 0xFFFD	Nothing				Reserved
-			 * 0xFFFE				4 octets of l(a)	For (2^16 - 2^8) <= l(a) < 2^32
-			 * 0xFFFF				8 octets of l(a)	For 2^32 <= l(a) < 2^64
-			 */
-
-			// 2^16 - 2^8
-			final int first = 65280;
-			// 2^32
-			final long second = 4294967296L;
-
-			/*
-			 * The blocks encoding a are formed by concatenating this string
-			 * that encodes l(a) with a itself, and splitting the result into
-			 * 16-octet blocks, and then padding the last block with zeroes if
-			 * necessary.
-			 */
-
-			DatagramWriter writer = new DatagramWriter();
-			if (lengthA > 0 && lengthA < first) {
-				// 2 bytes (0x0001 ... 0xFEFF)
-				writer.writeLong(lengthA, 16);
-
-			} else if (lengthA >= first && lengthA < second) {
-				// 2 bytes (0xFFFE) + 4 octets of l(a)
-				int field = 0xFFFE;
-				writer.write(field, 16);
-				writer.writeLong(lengthA, 32);
-
-			} else {
-				// 2 bytes (0xFFFF) + 8 octets of l(a)
-				int field = 0xFFFF;
-				writer.write(field, 16);
-				writer.writeLong(lengthA, 64);
-			}
-			writer.writeBytes(a);
+		System.arraycopy(nonce, 0, mac, 1, nonce.length);
 
-			byte[] aEncoded = writer.toByteArray();
-			blocks.addAll(ByteArrayUtils.splitAndPad(aEncoded, BLOCK_SIZE));
+		// 16-L ... 15 l(m), most significant byte first
+		for (int i = BLOCK_SIZE - 1, value = lengthM; i > nonce.length; i--, value >>>= 8) {
+			mac[i] = (byte) value;
 		}
-		/*
-		 * After the (optional) additional authentication blocks have been
-		 * added, we add the message blocks. The message blocks are formed by
-		 * splitting the message m into 16-octet blocks, and then padding the
-		 * last block with zeroes if necessary. If the message m consists of the
-		 * empty string, then no blocks are added in this step.
-		 */
-		blocks.addAll(ByteArrayUtils.splitAndPad(m, BLOCK_SIZE));
 
-		byte[] X_i;
 		// X_1 := E( K, B_0 )
-		X_i = ByteArrayUtils.truncate(cipher.doFinal(b0), BLOCK_SIZE);
+		encryptBlock(mac);
+	}
 
-		// X_i+1 := E( K, X_i XOR B_i ) for i=1, ..., n
-		for (byte[] block : blocks) {
-			byte[] xor = ByteArrayUtils.xorArrays(block, X_i);
-			X_i = ByteArrayUtils.truncate(cipher.doFinal(xor), BLOCK_SIZE);
+	/**
+	 * Feeds the additional authenticated data into the CBC-MAC. If l(a)>0 (as
+	 * indicated by the Adata field), then one or more blocks of
+	 * authentication data are added.
+	 * 
+	 * @param a
+	 *            the array containing the additional authenticated data.
+	 * @param offset
+	 *            the offset of the data.
+	 * @param length
+	 *            the length of the data.
+	 * @throws GeneralSecurityException
+	 *             if the block cipher fails.
+	 */
+	private void updateCbcMac(byte[] a, int offset, int length) throws GeneralSecurityException {
+		if (length == 0) {
+			return;
 		}
 
-		// T := first-M-bytes( X_n+1 )
-		byte[] T = ByteArrayUtils.truncate(X_i, authenticationBytes);
+		/*
+		 * First two octets		Followed by			Comment
+		 * -----------------	----------------	-------------------------------
+		 * 0x0000				Nothing				Reserved
+		 * 0x0001 ... 0xFEFF	Nothing				For 0 < l(a) < (2^16 - 2^8)
+		 * 0xFF00 ... 0xFFFD	Nothing				Reserved
+		 * 0xFFFE				4 octets of l(a)	For (2^16 - 2^8) <= l(a) < 2^32
+		 * 0xFFFF				8 octets of l(a)	For 2^32 <= l(a) < 2^64
+		 * 
+		 * An int length never requires the 8 octets encoding.
+		 */
+		int position;
+		if (length < SHORT_AAD_LENGTH_LIMIT) {
+			mac[0] ^= (byte) (length >>> 8);
+			mac[1] ^= (byte) length;
+			position = 2;
+		} else {
+			mac[0] ^= (byte) 0xFF;
+			mac[1] ^= (byte) 0xFE;
+			mac[2] ^= (byte) (length >>> 24);
+			mac[3] ^= (byte) (length >>> 16);
+			mac[4] ^= (byte) (length >>> 8);
+			mac[5] ^= (byte) length;
+			position = 6;
+		}
 
-		return T;
+		/*
+		 * The blocks encoding a are formed by concatenating this string that
+		 * encodes l(a) with a itself, and splitting the result into 16-octet
+		 * blocks, and then padding the last block with zeroes if necessary.
+		 * XORing the zero padding is a no-op, so the last block is simply
+		 * encrypted as is.
+		 */
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			mac[position++] ^= a[i];
+			if (position == BLOCK_SIZE) {
+				encryptBlock(mac);
+				position = 0;
+			}
+		}
+		if (position > 0) {
+			encryptBlock(mac);
+		}
 	}
 
 	/**
-	 * See <a href="http://tools.ietf.org/html/rfc3610#section-2.3">RFC 3610 -
-	 * Key Stream Blocks</a> for details.
+	 * Initializes the counter block A_i with the flags and the nonce. See <a
+	 * href="http://tools.ietf.org/html/rfc3610#section-2.3">RFC 3610 - Key
+	 * Stream Blocks</a> for details.
+	 * 
+	 * <pre>
+	 * Octet Number	Contents
+	 * ------------	---------
+	 * 0			Flags
+	 * 1 ... 15-L	Nonce N
+	 * 16-L ... 15	Counter i
+	 * </pre>
 	 * 
-	 * @param lengthM
-	 *            the length of the message.
 	 * @param nonce
 	 *            the nonce.
-	 * @param cipher
-	 *            the cipher.
-	 * @return the key stream blocks.
-	 * @throws Exception
-	 *             if the cipher can not be realized.
 	 */
-	private static List<byte[]> generateKeyStreamBlocks(long lengthM, byte[] nonce, Cipher cipher) throws Exception {
+	private void initCounter(byte[] nonce) {
 		int L = 15 - nonce.length;
+		counter[0] = (byte) (L - 1);
+		System.arraycopy(nonce, 0, counter, 1, nonce.length);
+	}
 
-		List<byte[]> S_i = new ArrayList<byte[]>();
-
-		/*
-		 * Compute the material needed according to the message length and add
-		 * one more round to compute S_0 which is needed elsewhere.
-		 */
-		int numRounds = (int) (Math.ceil(lengthM / (double) BLOCK_SIZE) + 1);
-
-		// S_i := E( K, A_i ) for i=0, 1, 2, ...
-		for (int i = 0; i < numRounds; i++) {
-			DatagramWriter writer = new DatagramWriter();
-
-			/*
-			 * Octet Number	Contents
-			 * ------------	---------
-			 * 0			Flags
-			 * 1 ... 15-L	Nonce N
-			 * 16-L ... 15	Counter i
-			 */
-
-			// Octet Number Contents
-			// ------------ ---------
-			// 0 			Flags
-			// 1 ... 15-L 	Nonce N
-			// 16-L ... 15 	Counter i
-
-			int flag = L - 1;
-
-			// write the first byte: Flags
-			writer.write(flag, 8);
-
-			// the Nonce N
-			writer.writeBytes(nonce);
-
-			// writer the Counter i (L bytes)
-			writer.writeLong(i, L * 8);
-			byte[] S = writer.toByteArray();
-
-			// S_i := E( K, A_i )
-			S_i.add(ByteArrayUtils.truncate(cipher.doFinal(S), BLOCK_SIZE));
+	/**
+	 * Computes the key stream block S_i := E( K, A_i ) into the scratch
+	 * key stream block.
+	 * 
+	 * @param i
+	 *            the counter value.
+	 * @throws GeneralSecurityException
+	 *             if the block cipher fails.
+	 */
+	private void generateKeyStreamBlock(int i) throws GeneralSecurityException {
+		int nonceEnd = BLOCK_SIZE - (counter[0] + 1);
+		for (int index = BLOCK_SIZE - 1, value = i; index >= nonceEnd; index--, value >>>= 8) {
+			counter[index] = (byte) value;
 		}
-
-		return S_i;
+		cipher.doFinal(counter, 0, BLOCK_SIZE, keyStream, 0);
 	}
 
 	/**
-	 * Generates the concatenated key stream which is used to encrypt / decrypt
-	 * the message by XORing it with this key stream. Therefore, the message
-	 * length needs to be known.
+	 * Encrypts a single block in place.
 	 * 
-	 * @param S_i
-	 *            the list of key stream blocks.
-	 * @param lengthM
-	 *            the length of the message m.
-	 * @return the concatenated key stream which is long enough to cover the
-	 *         message.
+	 * @param block
+	 *            the block.
+	 * @throws GeneralSecurityException
+	 *             if the block cipher fails.
 	 */
-	private static byte[] generateConcatenatedKeyStream(List<byte[]> S_i, long lengthM) {
-		byte[] concatenatedS_i = new byte[0];
-
-		// determine, how much "material" needed, to cover whole message
-		int numRounds = (int) (Math.ceil(lengthM / (double) BLOCK_SIZE));
+	private void encryptBlock(byte[] block) throws GeneralSecurityException {
+		cipher.doFinal(block, 0, BLOCK_SIZE, blockOutput, 0);
+		System.arraycopy(blockOutput, 0, block, 0, BLOCK_SIZE);
+	}
 
-		// S_0 is not used to encrypt the message, therefore start with i = 1
-		for (int i = 1; i <= numRounds; i++) {
-			concatenatedS_i = ByteArrayUtils.concatenate(concatenatedS_i, S_i.get(i));
+	private static void assertArrayBacked(ByteBuffer buffer) {
+		if (!buffer.hasArray()) {
+			throw new IllegalArgumentException("Buffer must be backed by an accessible array");
 		}
+	}
 
-		return concatenatedS_i;
+	private static HandshakeException newAuthenticationFailure() {
+		AlertMessage alert = new AlertMessage(AlertLevel.FATAL, AlertDescription.BAD_RECORD_MAC);
+		return new HandshakeException("The encrypted message could not be authenticated", alert);
 	}
 }
@@ -0,0 +1,469 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls.cipher;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.eclipse.californium.scandium.dtls.AlertMessage;
+import org.eclipse.californium.scandium.dtls.HandshakeException;
+import org.eclipse.californium.scandium.dtls.AlertMessage.AlertDescription;
+import org.eclipse.californium.scandium.dtls.AlertMessage.AlertLevel;
+
+/**
+ * The ChaCha20-Poly1305 AEAD construction as used by the cipher suites of <a
+ * href="http://tools.ietf.org/html/rfc7905">RFC 7905</a>. See <a
+ * href="http://tools.ietf.org/html/rfc7539#section-2.8">RFC 7539</a> for
+ * details.
+ * <p>
+ * The cipher provided by the JCE (<code>ChaCha20-Poly1305</code>) is used if
+ * available. Otherwise, a pure Java implementation is used, which processes
+ * the message block by block using reusable scratch state. ChaCha20 only
+ * uses additions, rotations and XOR on 32-bit words, so it runs fast on hosts
+ * without AES acceleration.
+ * <p>
+ * Instances are <em>not</em> thread safe.
+ */
+public final class ChaCha20Poly1305Cipher implements AEADCipher {
+
+	// Logging ////////////////////////////////////////////////////////
+
+	private static final Logger LOGGER = Logger.getLogger(ChaCha20Poly1305Cipher.class.getCanonicalName());
+
+	// Members ////////////////////////////////////////////////////////
+
+	private static final String TRANSFORMATION = "ChaCha20-Poly1305";
+
+	private static final String KEY_ALGORITHM = "ChaCha20";
+
+	/** the length of the authentication tag */
+	private static final int TAG_LENGTH = 16;
+
+	/** the length of the key in bytes */
+	private static final int KEY_LENGTH = 32;
+
+	/** the length of the nonce in bytes */
+	private static final int NONCE_LENGTH = 12;
+
+	/** the length of a ChaCha20 block in bytes */
+	private static final int BLOCK_SIZE = 64;
+
+	/** the length of a Poly1305 block in bytes */
+	private static final int POLY_BLOCK_SIZE = 16;
+
+	/** "expand 32-byte k" */
+	private static final int[] SIGMA = { 0x61707865, 0x3320646e, 0x79622d32, 0x6b206574 };
+
+	private static final long MASK_26 = 0x3ffffff;
+
+	private static final boolean JCE_SUPPORTED = checkJceSupported();
+
+	/** the JCE cipher or <code>null</code> if the pure Java implementation is used */
+	private final Cipher jceCipher;
+
+	private final Key key;
+
+	/** the ChaCha20 key as little endian words */
+	private final int[] keyWords = new int[8];
+
+	/** the ChaCha20 input block */
+	private final int[] state = new int[16];
+
+	/** the ChaCha20 working state */
+	private final int[] working = new int[16];
+
+	/** the key stream block */
+	private final byte[] keyStream = new byte[BLOCK_SIZE];
+
+	/** the Poly1305 block used to pad partial blocks and encode the lengths */
+	private final byte[] polyBlock = new byte[POLY_BLOCK_SIZE];
+
+	/** the Poly1305 key r in 26-bit limbs */
+	private long r0, r1, r2, r3, r4;
+
+	/** the Poly1305 accumulator in 26-bit limbs */
+	private long h0, h1, h2, h3, h4;
+
+	/** the Poly1305 key s as 32-bit little endian words */
+	private long pad0, pad1, pad2, pad3;
+
+	// Constructors ///////////////////////////////////////////////////
+
+	/**
+	 * Creates a ChaCha20-Poly1305 cipher for a key.
+	 * 
+	 * @param key
+	 *            the 256 bit key.
+	 * @throws GeneralSecurityException
+	 *             if the key is invalid.
+	 */
+	public ChaCha20Poly1305Cipher(Key key) throws GeneralSecurityException {
+		this(key, JCE_SUPPORTED);
+	}
+
+	/**
+	 * Creates a ChaCha20-Poly1305 cipher for a key.
+	 * 
+	 * @param key
+	 *            the 256 bit key.
+	 * @param useJce
+	 *            <code>true</code> if the JCE implementation should be used,
+	 *            <code>false</code> for the pure Java implementation.
+	 * @throws GeneralSecurityException
+	 *             if the key is invalid or the JCE implementation is not
+	 *             available.
+	 */
+	ChaCha20Poly1305Cipher(Key key, boolean useJce) throws GeneralSecurityException {
+		byte[] encoded = key.getEncoded();
+		if (encoded == null || encoded.length != KEY_LENGTH) {
+			throw new GeneralSecurityException("ChaCha20 requires a " + KEY_LENGTH + " bytes key");
+		}
+		if (useJce) {
+			this.jceCipher = Cipher.getInstance(TRANSFORMATION);
+			this.key = new SecretKeySpec(encoded, KEY_ALGORITHM);
+		} else {
+			this.jceCipher = null;
+			this.key = null;
+		}
+		// also used with the JCE, if it refuses to decrypt with a repeated nonce
+		for (int i = 0; i < keyWords.length; i++) {
+			keyWords[i] = readIntLE(encoded, 4 * i);
+		}
+		Arrays.fill(encoded, (byte) 0);
+	}
+
+	// Methods ////////////////////////////////////////////////////////
+
+	@Override
+	public int getTagLength() {
+		return TAG_LENGTH;
+	}
+
+	@Override
+	public int encrypt(byte[] nonce, byte[] a, int aOffset, int aLength, byte[] m, int mOffset, int mLength,
+			byte[] out, int outOffset) throws GeneralSecurityException {
+		if (jceCipher != null) {
+			jceCipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(nonce));
+			jceCipher.updateAAD(a, aOffset, aLength);
+			return jceCipher.doFinal(m, mOffset, mLength, out, outOffset);
+		}
+
+		initState(nonce);
+		// the message is encrypted with the key stream starting at block 1
+		chacha20(m, mOffset, mLength, out, outOffset);
+		computeTag(a, aOffset, aLength, out, outOffset, mLength);
+		writeTag(out, outOffset + mLength);
+		return mLength + TAG_LENGTH;
+	}
+
+	@Override
+	public int decrypt(byte[] nonce, byte[] a, int aOffset, int aLength, byte[] c, int cOffset, int cLength,
+			byte[] out, int outOffset) throws HandshakeException, GeneralSecurityException {
+		int mLength = cLength - TAG_LENGTH;
+		if (mLength < 0) {
+			throw newAuthenticationFailure();
+		}
+
+		if (jceCipher != null && initJceDecryption(nonce)) {
+			jceCipher.updateAAD(a, aOffset, aLength);
+			try {
+				return jceCipher.doFinal(c, cOffset, cLength, out, outOffset);
+			} catch (AEADBadTagException e) {
+				throw newAuthenticationFailure();
+			}
+		}
+
+		// the tag is verified before any plain text is released
+		initState(nonce);
+		computeTag(a, aOffset, aLength, c, cOffset, mLength);
+		int tagOffset = cOffset + mLength;
+		int diff = 0;
+		diff |= compareWord(pad0, c, tagOffset);
+		diff |= compareWord(pad1, c, tagOffset + 4);
+		diff |= compareWord(pad2, c, tagOffset + 8);
+		diff |= compareWord(pad3, c, tagOffset + 12);
+		if (diff != 0) {
+			throw newAuthenticationFailure();
+		}
+		chacha20(c, cOffset, mLength, out, outOffset);
+		return mLength;
+	}
+
+	// Helper methods /////////////////////////////////////////////////
+
+	/**
+	 * Initializes the JCE cipher for decryption. The JCE refuses to be
+	 * initialized with the nonce of its previous initialization, which
+	 * happens for duplicated records. Such records are decrypted using the
+	 * Java implementation.
+	 * 
+	 * @return <code>true</code> if the JCE cipher is initialized,
+	 *         <code>false</code> if the nonce has been used before.
+	 */
+	private boolean initJceDecryption(byte[] nonce) throws GeneralSecurityException {
+		try {
+			jceCipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(nonce));
+			return true;
+		} catch (InvalidKeyException e) {
+			if (LOGGER.isLoggable(Level.FINEST)) {
+				LOGGER.finest("JCE refused nonce, falling back to Java implementation: " + e.getMessage());
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Sets up the ChaCha20 input block for a nonce, see <a
+	 * href="http://tools.ietf.org/html/rfc7539#section-2.3">RFC 7539</a>.
+	 */
+	private void initState(byte[] nonce) throws GeneralSecurityException {
+		if (nonce.length != NONCE_LENGTH) {
+			throw new GeneralSecurityException("ChaCha20 requires a " + NONCE_LENGTH + " bytes nonce");
+		}
+		System.arraycopy(SIGMA, 0, state, 0, 4);
+		System.arraycopy(keyWords, 0, state, 4, 8);
+		state[12] = 0;
+		state[13] = readIntLE(nonce, 0);
+		state[14] = readIntLE(nonce, 4);
+		state[15] = readIntLE(nonce, 8);
+	}
+
+	/**
+	 * XORs the input with the key stream starting with block counter 1.
+	 */
+	private void chacha20(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+		int counter = 1;
+		for (int position = 0; position < length; position += BLOCK_SIZE, counter++) {
+			generateKeyStreamBlock(counter);
+			int blockLength = Math.min(BLOCK_SIZE, length - position);
+			for (int i = 0; i < blockLength; i++) {
+				out[outOffset + position + i] = (byte) (in[inOffset + position + i] ^ keyStream[i]);
+			}
+		}
+	}
+
+	/**
+	 * Computes the Poly1305 tag over the additional data and the ciphertext,
+	 * see <a href="http://tools.ietf.org/html/rfc7539#section-2.8">RFC
+	 * 7539</a>. The one-time key is derived from key stream block 0. The
+	 * resulting tag is left in the <code>pad</code> words.
+	 */
+	private void computeTag(byte[] a, int aOffset, int aLength, byte[] c, int cOffset, int cLength) {
+		generateKeyStreamBlock(0);
+		initPoly1305(keyStream);
+
+		updatePadded(a, aOffset, aLength);
+		updatePadded(c, cOffset, cLength);
+		writeLongLE(polyBlock, 0, aLength);
+		writeLongLE(polyBlock, 8, cLength);
+		processPolyBlock(polyBlock, 0);
+
+		finishPoly1305();
+	}
+
+	/**
+	 * Computes a ChaCha20 block, see <a
+	 * href="http://tools.ietf.org/html/rfc7539#section-2.3">RFC 7539</a>.
+	 */
+	private void generateKeyStreamBlock(int counter) {
+		state[12] = counter;
+		System.arraycopy(state, 0, working, 0, 16);
+		int[] x = working;
+		for (int i = 0; i < 10; i++) {
+			// column rounds
+			quarterRound(x, 0, 4, 8, 12);
+			quarterRound(x, 1, 5, 9, 13);
+			quarterRound(x, 2, 6, 10, 14);
+			quarterRound(x, 3, 7, 11, 15);
+			// diagonal rounds
+			quarterRound(x, 0, 5, 10, 15);
+			quarterRound(x, 1, 6, 11, 12);
+			quarterRound(x, 2, 7, 8, 13);
+			quarterRound(x, 3, 4, 9, 14);
+		}
+		for (int i = 0; i < 16; i++) {
+			writeIntLE(keyStream, 4 * i, x[i] + state[i]);
+		}
+	}
+
+	private static void quarterRound(int[] x, int a, int b, int c, int d) {
+		x[a] += x[b]; x[d] = Integer.rotateLeft(x[d] ^ x[a], 16);
+		x[c] += x[d]; x[b] = Integer.rotateLeft(x[b] ^ x[c], 12);
+		x[a] += x[b]; x[d] = Integer.rotateLeft(x[d] ^ x[a], 8);
+		x[c] += x[d]; x[b] = Integer.rotateLeft(x[b] ^ x[c], 7);
+	}
+
+	/**
+	 * Initializes Poly1305 with the first 32 bytes of the given array as
+	 * one-time key, clamping r.
+	 */
+	private void initPoly1305(byte[] oneTimeKey) {
+		r0 = readUnsignedIntLE(oneTimeKey, 0) & 0x3ffffff;
+		r1 = (readUnsignedIntLE(oneTimeKey, 3) >>> 2) & 0x3ffff03;
+		r2 = (readUnsignedIntLE(oneTimeKey, 6) >>> 4) & 0x3ffc0ff;
+		r3 = (readUnsignedIntLE(oneTimeKey, 9) >>> 6) & 0x3f03fff;
+		r4 = (readUnsignedIntLE(oneTimeKey, 12) >>> 8) & 0x00fffff;
+		h0 = h1 = h2 = h3 = h4 = 0;
+		pad0 = readUnsignedIntLE(oneTimeKey, 16);
+		pad1 = readUnsignedIntLE(oneTimeKey, 20);
+		pad2 = readUnsignedIntLE(oneTimeKey, 24);
+		pad3 = readUnsignedIntLE(oneTimeKey, 28);
+	}
+
+	/**
+	 * Feeds data into Poly1305, padding the last block with zeros.
+	 */
+	private void updatePadded(byte[] data, int offset, int length) {
+		int full = length - length % POLY_BLOCK_SIZE;
+		for (int i = 0; i < full; i += POLY_BLOCK_SIZE) {
+			processPolyBlock(data, offset + i);
+		}
+		if (full < length) {
+			Arrays.fill(polyBlock, (byte) 0);
+			System.arraycopy(data, offset + full, polyBlock, 0, length - full);
+			processPolyBlock(polyBlock, 0);
+		}
+	}
+
+	/**
+	 * Adds a full 16 bytes block (with the high bit set) to the accumulator
+	 * and multiplies it by r modulo 2^130 - 5.
+	 */
+	private void processPolyBlock(byte[] m, int offset) {
+		long s1 = r1 * 5;
+		long s2 = r2 * 5;
+		long s3 = r3 * 5;
+		long s4 = r4 * 5;
+
+		h0 += readUnsignedIntLE(m, offset) & MASK_26;
+		h1 += (readUnsignedIntLE(m, offset + 3) >>> 2) & MASK_26;
+		h2 += (readUnsignedIntLE(m, offset + 6) >>> 4) & MASK_26;
+		h3 += (readUnsignedIntLE(m, offset + 9) >>> 6) & MASK_26;
+		h4 += (readUnsignedIntLE(m, offset + 12) >>> 8) | (1 << 24);
+
+		long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+		long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+		long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+		long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+		long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+		long c = d0 >>> 26; h0 = d0 & MASK_26;
+		d1 += c; c = d1 >>> 26; h1 = d1 & MASK_26;
+		d2 += c; c = d2 >>> 26; h2 = d2 & MASK_26;
+		d3 += c; c = d3 >>> 26; h3 = d3 & MASK_26;
+		d4 += c; c = d4 >>> 26; h4 = d4 & MASK_26;
+		h0 += c * 5; c = h0 >>> 26; h0 &= MASK_26;
+		h1 += c;
+	}
+
+	/**
+	 * Fully reduces the accumulator and adds s, leaving the tag in the
+	 * <code>pad</code> words.
+	 */
+	private void finishPoly1305() {
+		long c = h1 >>> 26; h1 &= MASK_26;
+		h2 += c; c = h2 >>> 26; h2 &= MASK_26;
+		h3 += c; c = h3 >>> 26; h3 &= MASK_26;
+		h4 += c; c = h4 >>> 26; h4 &= MASK_26;
+		h0 += c * 5; c = h0 >>> 26; h0 &= MASK_26;
+		h1 += c;
+
+		// compute h + -p
+		long g0 = h0 + 5; c = g0 >>> 26; g0 &= MASK_26;
+		long g1 = h1 + c; c = g1 >>> 26; g1 &= MASK_26;
+		long g2 = h2 + c; c = g2 >>> 26; g2 &= MASK_26;
+		long g3 = h3 + c; c = g3 >>> 26; g3 &= MASK_26;
+		long g4 = h4 + c - (1 << 26);
+
+		// select h if h < p, or h + -p if h >= p
+		long mask = (g4 >>> 63) - 1;
+		h0 = (h0 & ~mask) | (g0 & mask);
+		h1 = (h1 & ~mask) | (g1 & mask);
+		h2 = (h2 & ~mask) | (g2 & mask);
+		h3 = (h3 & ~mask) | (g3 & mask);
+		h4 = (h4 & ~mask) | (g4 & mask);
+
+		// h = h % (2^128)
+		long w0 = (h0 | (h1 << 26)) & 0xffffffffL;
+		long w1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+		long w2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+		long w3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+
+		// tag = (h + s) % (2^128)
+		long f = w0 + pad0; pad0 = f & 0xffffffffL;
+		f = w1 + pad1 + (f >>> 32); pad1 = f & 0xffffffffL;
+		f = w2 + pad2 + (f >>> 32); pad2 = f & 0xffffffffL;
+		f = w3 + pad3 + (f >>> 32); pad3 = f & 0xffffffffL;
+	}
+
+	private void writeTag(byte[] out, int offset) {
+		writeIntLE(out, offset, (int) pad0);
+		writeIntLE(out, offset + 4, (int) pad1);
+		writeIntLE(out, offset + 8, (int) pad2);
+		writeIntLE(out, offset + 12, (int) pad3);
+	}
+
+	private static int compareWord(long word, byte[] tag, int offset) {
+		return ((int) word) ^ readIntLE(tag, offset);
+	}
+
+	private static int readIntLE(byte[] b, int offset) {
+		return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8) | ((b[offset + 2] & 0xff) << 16) | ((b[offset + 3] & 0xff) << 24);
+	}
+
+	private static long readUnsignedIntLE(byte[] b, int offset) {
+		return readIntLE(b, offset) & 0xffffffffL;
+	}
+
+	private static void writeIntLE(byte[] b, int offset, int value) {
+		b[offset] = (byte) value;
+		b[offset + 1] = (byte) (value >>> 8);
+		b[offset + 2] = (byte) (value >>> 16);
+		b[offset + 3] = (byte) (value >>> 24);
+	}
+
+	private static void writeLongLE(byte[] b, int offset, long value) {
+		writeIntLE(b, offset, (int) value);
+		writeIntLE(b, offset + 4, (int) (value >>> 32));
+	}
+
+	private static boolean checkJceSupported() {
+		try {
+			Cipher.getInstance(TRANSFORMATION);
+			return true;
+		} catch (GeneralSecurityException e) {
+			if (LOGGER.isLoggable(Level.CONFIG)) {
+				LOGGER.config(TRANSFORMATION + " is not supported by the JCE, using the Java implementation");
+			}
+			return false;
+		}
+	}
+
+	private static HandshakeException newAuthenticationFailure() {
+		AlertMessage alert = new AlertMessage(AlertLevel.FATAL, AlertDescription.BAD_RECORD_MAC);
+		return new HandshakeException("The encrypted message could not be authenticated", alert);
+	}
+}
@@ -39,7 +39,11 @@ public enum CipherSuite {
 	
 	SSL_NULL_WITH_NULL_NULL("SSL_NULL_WITH_NULL_NULL", 0x0000, KeyExchangeAlgorithm.NULL, BulkCipherAlgorithm.NULL, MACAlgorithm.NULL, PRFAlgorithm.TLS_PRF_SHA256, CipherType.NULL),
 	TLS_PSK_WITH_AES_128_CCM_8("TLS_PSK_WITH_AES_128_CCM_8", 0xC0A8, KeyExchangeAlgorithm.PSK, BulkCipherAlgorithm.AES,	MACAlgorithm.NULL, PRFAlgorithm.TLS_PRF_SHA256,	CipherType.AEAD),
-	TLS_ECDHE_ECDSA_WITH_AES_128_CCM_8("TLS_ECDHE_ECDSA_WITH_AES_128_CCM_8", 0xC0AE, KeyExchangeAlgorithm.EC_DIFFIE_HELLMAN, BulkCipherAlgorithm.AES, MACAlgorithm.NULL, PRFAlgorithm.TLS_PRF_SHA256, CipherType.AEAD);
+	TLS_ECDHE_ECDSA_WITH_AES_128_CCM_8("TLS_ECDHE_ECDSA_WITH_AES_128_CCM_8", 0xC0AE, KeyExchangeAlgorithm.EC_DIFFIE_HELLMAN, BulkCipherAlgorithm.AES, MACAlgorithm.NULL, PRFAlgorithm.TLS_PRF_SHA256, CipherType.AEAD),
+	TLS_PSK_WITH_AES_128_GCM_SHA256("TLS_PSK_WITH_AES_128_GCM_SHA256", 0x00A8, KeyExchangeAlgorithm.PSK, BulkCipherAlgorithm.AES_GCM, MACAlgorithm.NULL, PRFAlgorithm.TLS_PRF_SHA256, CipherType.AEAD),
+	TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256("TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256", 0xC02B, KeyExchangeAlgorithm.EC_DIFFIE_HELLMAN, BulkCipherAlgorithm.AES_GCM, MACAlgorithm.NULL, PRFAlgorithm.TLS_PRF_SHA256, CipherType.AEAD),
+	TLS_PSK_WITH_CHACHA20_POLY1305_SHA256("TLS_PSK_WITH_CHACHA20_POLY1305_SHA256", 0xCCAB, KeyExchangeAlgorithm.PSK, BulkCipherAlgorithm.CHACHA20_POLY1305, MACAlgorithm.NULL, PRFAlgorithm.TLS_PRF_SHA256, CipherType.AEAD),
+	TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256("TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256", 0xCCA9, KeyExchangeAlgorithm.EC_DIFFIE_HELLMAN, BulkCipherAlgorithm.CHACHA20_POLY1305, MACAlgorithm.NULL, PRFAlgorithm.TLS_PRF_SHA256, CipherType.AEAD);
 	
 	// Logging ////////////////////////////////////////////////////////
 
@@ -108,6 +112,16 @@ public enum CipherSuite {
 		return cipherType;
 	}
 
+	/**
+	 * Checks whether the algorithms of this cipher suite are available in the
+	 * current runtime.
+	 * 
+	 * @return <code>true</code> if the cipher suite can be negotiated
+	 */
+	public boolean isSupported() {
+		return bulkCipher.isSupported();
+	}
+
 	/**
 	 * Returns the cipher suite to a given code.
 	 * 
@@ -122,6 +136,14 @@ public enum CipherSuite {
 			return CipherSuite.TLS_PSK_WITH_AES_128_CCM_8;
 		case 0xC0AE:
 			return CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CCM_8;
+		case 0x00A8:
+			return CipherSuite.TLS_PSK_WITH_AES_128_GCM_SHA256;
+		case 0xC02B:
+			return CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256;
+		case 0xCCAB:
+			return CipherSuite.TLS_PSK_WITH_CHACHA20_POLY1305_SHA256;
+		case 0xCCA9:
+			return CipherSuite.TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256;
 
 		default:
 			if (LOGGER.isLoggable(Level.WARNING)) {
@@ -172,22 +194,40 @@ public enum CipherSuite {
 	}
 
 	public enum BulkCipherAlgorithm {
-		NULL(0, 0, 0, 0),
-		RC4(0, 16, 4, 8), // don't know
-		B_3DES(0, 16, 4, 8), // don't know
-		AES(0, 16, 4, 8); // http://www.ietf.org/mail-archive/web/tls/current/msg08445.html
+		NULL(0, 0, 0, 0, 0),
+		RC4(0, 16, 4, 8, 0), // don't know
+		B_3DES(0, 16, 4, 8, 0), // don't know
+		AES(0, 16, 4, 8, 8), // AES_128_CCM_8, http://www.ietf.org/mail-archive/web/tls/current/msg08445.html
+		AES_GCM(0, 16, 4, 8, 16), // AES_128_GCM, http://tools.ietf.org/html/rfc5288#section-3
+		CHACHA20_POLY1305(0, 32, 12, 0, 16); // http://tools.ietf.org/html/rfc7905#section-2
 		
 		// values in octets!
 		private int macKeyLength;
 		private int encKeyLength;
 		private int fixedIvLength;
 		private int recordIvLength;
+		private int tagLength;
 		
-		private BulkCipherAlgorithm(int mac_key_length, int enc_key_length, int fixed_iv_length, int recordIvLength) {
+		private BulkCipherAlgorithm(int mac_key_length, int enc_key_length, int fixed_iv_length, int recordIvLength, int tagLength) {
 			this.macKeyLength = mac_key_length;
 			this.encKeyLength = enc_key_length;
 			this.fixedIvLength = fixed_iv_length;
 			this.recordIvLength = recordIvLength;
+			this.tagLength = tagLength;
+		}
+
+		/**
+		 * Checks whether the cipher is available in the current runtime.
+		 * 
+		 * @return <code>true</code> if the cipher can be used
+		 */
+		public boolean isSupported() {
+			switch (this) {
+			case AES_GCM:
+				return GCMBlockCipher.isSupported();
+			default:
+				return true;
+			}
 		}
 
 		public int getMacKeyLength() {
@@ -205,6 +245,15 @@ public enum CipherSuite {
 		public int getRecordIvLength() {
 			return recordIvLength;
 		}
+
+		/**
+		 * Gets the length of the authentication tag appended by AEAD ciphers.
+		 * 
+		 * @return the tag length in octets
+		 */
+		public int getTagLength() {
+			return tagLength;
+		}
 	}
 
 	public enum KeyExchangeAlgorithm {
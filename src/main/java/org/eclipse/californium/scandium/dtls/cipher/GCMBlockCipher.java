@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls.cipher;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+import org.eclipse.californium.scandium.dtls.AlertMessage;
+import org.eclipse.californium.scandium.dtls.HandshakeException;
+import org.eclipse.californium.scandium.dtls.AlertMessage.AlertDescription;
+import org.eclipse.californium.scandium.dtls.AlertMessage.AlertLevel;
+
+/**
+ * AES in Galois/Counter Mode as used by the AES-GCM cipher suites. See <a
+ * href="http://tools.ietf.org/html/rfc5288">RFC 5288</a> for details.
+ * <p>
+ * The cipher is provided by the JCE (<code>AES/GCM/NoPadding</code>), which
+ * uses the AES-NI and carry-less multiplication instructions of the CPU where
+ * available. The JCE of older Java runtimes does not provide GCM, use
+ * {@link #isSupported()} before offering a GCM cipher suite.
+ * <p>
+ * Instances are <em>not</em> thread safe.
+ */
+public final class GCMBlockCipher implements AEADCipher {
+
+	// Logging ////////////////////////////////////////////////////////
+
+	private static final Logger LOGGER = Logger.getLogger(GCMBlockCipher.class.getCanonicalName());
+
+	// Members ////////////////////////////////////////////////////////
+
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+	/** the length of the authentication tag, see RFC 5288, section 3 */
+	private static final int TAG_LENGTH = 16;
+
+	private static final boolean SUPPORTED = checkSupported();
+
+	private final Cipher cipher;
+
+	private final Key key;
+
+	// Constructors ///////////////////////////////////////////////////
+
+	/**
+	 * Creates a GCM cipher for a key.
+	 * 
+	 * @param key
+	 *            the AES key.
+	 * @throws GeneralSecurityException
+	 *             if AES/GCM is not available.
+	 */
+	public GCMBlockCipher(Key key) throws GeneralSecurityException {
+		this.cipher = Cipher.getInstance(TRANSFORMATION);
+		this.key = key;
+	}
+
+	// Methods ////////////////////////////////////////////////////////
+
+	/**
+	 * Checks whether the JCE provides AES/GCM.
+	 * 
+	 * @return <code>true</code> if GCM cipher suites can be used
+	 */
+	public static boolean isSupported() {
+		return SUPPORTED;
+	}
+
+	@Override
+	public int getTagLength() {
+		return TAG_LENGTH;
+	}
+
+	@Override
+	public int encrypt(byte[] nonce, byte[] a, int aOffset, int aLength, byte[] m, int mOffset, int mLength,
+			byte[] out, int outOffset) throws GeneralSecurityException {
+		cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+		cipher.updateAAD(a, aOffset, aLength);
+		return cipher.doFinal(m, mOffset, mLength, out, outOffset);
+	}
+
+	@Override
+	public int decrypt(byte[] nonce, byte[] a, int aOffset, int aLength, byte[] c, int cOffset, int cLength,
+			byte[] out, int outOffset) throws HandshakeException, GeneralSecurityException {
+		if (cLength < TAG_LENGTH) {
+			throw newAuthenticationFailure();
+		}
+		cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+		cipher.updateAAD(a, aOffset, aLength);
+		try {
+			return cipher.doFinal(c, cOffset, cLength, out, outOffset);
+		} catch (AEADBadTagException e) {
+			// the JCE does not release any plaintext on failure, wipe it anyway
+			Arrays.fill(out, outOffset, outOffset + cLength - TAG_LENGTH, (byte) 0);
+			throw newAuthenticationFailure();
+		}
+	}
+
+	// Helper methods /////////////////////////////////////////////////
+
+	private static boolean checkSupported() {
+		try {
+			Cipher.getInstance(TRANSFORMATION);
+			return true;
+		} catch (GeneralSecurityException e) {
+			if (LOGGER.isLoggable(Level.CONFIG)) {
+				LOGGER.config(TRANSFORMATION + " is not supported by the JCE, AES-GCM cipher suites are disabled");
+			}
+			return false;
+		}
+	}
+
+	private static HandshakeException newAuthenticationFailure() {
+		AlertMessage alert = new AlertMessage(AlertLevel.FATAL, AlertDescription.BAD_RECORD_MAC);
+		return new HandshakeException("The encrypted message could not be authenticated", alert);
+	}
+}
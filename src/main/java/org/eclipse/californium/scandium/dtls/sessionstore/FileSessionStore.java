@@ -0,0 +1,433 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls.sessionstore;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.scandium.dtls.DTLSSession;
+import org.eclipse.californium.scandium.dtls.HandshakeException;
+import org.eclipse.californium.scandium.dtls.SessionId;
+import org.eclipse.californium.scandium.dtls.cipher.CCMBlockCipher;
+
+/**
+ * A {@link SessionStore} keeping the sessions in an append-only log file.
+ * <p>
+ * Every stored or removed session appends a record to the log. The sessions
+ * are encrypted and authenticated with AES-CCM under a key provided by the
+ * application, so the master secrets are never written in plain text. The log
+ * is read when the store is created: only the position of each session's
+ * latest record is kept in memory, the session itself is read and decrypted
+ * when a peer resumes it. Once the log contains more obsolete records than
+ * live ones, it is compacted into a new log, which then atomically replaces
+ * the old one.
+ * <p>
+ * Sessions are read through a handle of their own, so {@link #get(SessionId)}
+ * neither waits for records being appended nor for the log being compacted.
+ * <p>
+ * Records are not forced to disk, a crash may lose the latest sessions. Their
+ * peers then simply perform a full handshake.
+ */
+public class FileSessionStore implements SessionStore {
+
+	private static final Logger LOGGER = Logger.getLogger(FileSessionStore.class.getCanonicalName());
+
+	private static final byte PUT = 1;
+
+	private static final byte REMOVE = 2;
+
+	private static final int NONCE_LENGTH = 12;
+
+	private static final int TAG_LENGTH = 16;
+
+	/**
+	 * The maximum length of a record's payload. A session with the peer's
+	 * certificate chain takes a few kilobytes, a larger length is a corrupt
+	 * record.
+	 */
+	private static final int MAX_PAYLOAD_LENGTH = 65536;
+
+	/** The minimum number of obsolete records before the log is compacted. */
+	private static final int MIN_GARBAGE_TO_COMPACT = 1000;
+
+	// Members ////////////////////////////////////////////////////////
+
+	private final File file;
+
+	/** The cipher to encrypt the sessions with, only used when appending. */
+	private final CCMBlockCipher cipher;
+
+	/** The cipher to decrypt the sessions with, guarded by {@link #readLock}. */
+	private final CCMBlockCipher readCipher;
+
+	private final SecureRandom random = new SecureRandom();
+
+	/** Guarding the reading of sessions and the replacement of {@link #view}. */
+	private final Object readLock = new Object();
+
+	/** The index and read handle of the current log, <code>null</code> while the store is closed. */
+	private volatile LogView view;
+
+	/** The handle to append records with, guarded by this store. */
+	private RandomAccessFile log;
+
+	/** The length of the valid part of the log, new records are appended here. */
+	private long end;
+
+	/** The number of obsolete records in the log. */
+	private int garbage;
+
+	// Constructors ///////////////////////////////////////////////////
+
+	/**
+	 * Creates a store for a log file and reads its index. The file is created
+	 * if it does not exist.
+	 *
+	 * @param file
+	 *            the log file
+	 * @param key
+	 *            the AES key (16, 24 or 32 bytes) to encrypt the sessions
+	 *            with
+	 * @throws GeneralSecurityException
+	 *             if AES is not available or the key is invalid
+	 * @throws IOException
+	 *             if the log cannot be read
+	 */
+	public FileSessionStore(File file, byte[] key) throws GeneralSecurityException, IOException {
+		this.file = file;
+		this.cipher = new CCMBlockCipher(key, TAG_LENGTH);
+		this.readCipher = new CCMBlockCipher(key, TAG_LENGTH);
+		synchronized (this) {
+			open();
+		}
+	}
+
+	// Methods ////////////////////////////////////////////////////////
+
+	@Override
+	public synchronized void put(DTLSSession session) {
+		SessionId id = session.getSessionIdentifier();
+		try {
+			Map<SessionId, Long> index = ensureOpen().index;
+			byte[] payload = encrypt(id.getSessionId(), SessionSerializer.serialize(session));
+			long position = append(PUT, id.getSessionId(), payload);
+			if (index.put(id, position) != null) {
+				garbage++;
+			}
+			if (garbage >= MIN_GARBAGE_TO_COMPACT && garbage > index.size()) {
+				compact();
+			}
+		} catch (IOException | GeneralSecurityException e) {
+			LOGGER.log(Level.WARNING, "Could not store session in " + file, e);
+		}
+	}
+
+	/**
+	 * Gets a session to resume. The session is read through the store's read
+	 * handle, without waiting for the records being appended concurrently.
+	 * Returns <code>null</code> while the store is closed.
+	 */
+	@Override
+	public DTLSSession get(SessionId id) {
+		try {
+			while (true) {
+				LogView view = this.view;
+				if (view == null) {
+					return null;
+				}
+				Long position = view.index.get(id);
+				if (position == null) {
+					return null;
+				}
+				byte[] plaintext;
+				synchronized (readLock) {
+					if (view != this.view) {
+						// compacted meanwhile, the position refers to the replaced log
+						continue;
+					}
+					view.reader.seek(position);
+					byte[] payload = readRecord(view.reader, id.getSessionId());
+					plaintext = decrypt(id.getSessionId(), payload);
+				}
+				return SessionSerializer.deserialize(id, plaintext);
+			}
+		} catch (IOException | GeneralSecurityException | HandshakeException e) {
+			LOGGER.log(Level.WARNING, "Could not restore session from " + file, e);
+			return null;
+		}
+	}
+
+	@Override
+	public synchronized void remove(SessionId id) {
+		try {
+			if (ensureOpen().index.remove(id) != null) {
+				append(REMOVE, id.getSessionId(), new byte[0]);
+				// the session's record and the removal record
+				garbage += 2;
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not remove session from " + file, e);
+		}
+	}
+
+	/**
+	 * Closes the log file. No sessions are restored until the store is
+	 * updated next, which reads the log again.
+	 */
+	public synchronized void close() {
+		LogView view = this.view;
+		if (view != null) {
+			synchronized (readLock) {
+				this.view = null;
+				closeQuietly(view.reader);
+			}
+			closeQuietly(log);
+			log = null;
+		}
+	}
+
+	private void closeQuietly(RandomAccessFile handle) {
+		try {
+			handle.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not close " + file, e);
+		}
+	}
+
+	/**
+	 * Opens the log again, if the store has been closed.
+	 *
+	 * @return the view of the log
+	 */
+	private LogView ensureOpen() throws IOException {
+		LogView view = this.view;
+		return view != null ? view : open();
+	}
+
+	/**
+	 * Reads the log and builds the index. A truncated record at the end of the
+	 * log, e.g. after a crash, is discarded together with a corrupt record and
+	 * all records following it. The payloads are skipped, they are read when a
+	 * session is restored.
+	 *
+	 * @return the view of the log
+	 */
+	private LogView open() throws IOException {
+		Map<SessionId, Long> positions = new ConcurrentHashMap<SessionId, Long>();
+		int obsolete = 0;
+		long position = 0;
+		if (file.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while (true) {
+					int type = in.read();
+					if (type < 0) {
+						break;
+					}
+					byte[] id = new byte[in.readUnsignedByte()];
+					in.readFully(id);
+					int length = in.readInt();
+					if (length < 0 || length > MAX_PAYLOAD_LENGTH || in.skipBytes(length) < length) {
+						break;
+					}
+					SessionId sessionId = new SessionId(id);
+					if (type == PUT) {
+						if (positions.put(sessionId, position) != null) {
+							obsolete++;
+						}
+					} else if (positions.remove(sessionId) != null) {
+						obsolete += 2;
+					} else {
+						obsolete++;
+					}
+					position += 1 + 1 + id.length + 4 + length;
+				}
+			} catch (EOFException e) {
+				// truncated record
+			} finally {
+				in.close();
+			}
+		}
+		log = new RandomAccessFile(file, "rw");
+		if (log.length() != position) {
+			LOGGER.warning("Discarded truncated or corrupt record at the end of " + file);
+			log.setLength(position);
+		}
+		end = position;
+		garbage = obsolete;
+		LogView view = new LogView(positions, new RandomAccessFile(file, "r"));
+		this.view = view;
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Loaded " + positions.size() + " sessions from " + file);
+		}
+		return view;
+	}
+
+	private long append(byte type, byte[] id, byte[] payload) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 + 1 + id.length + 4 + payload.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeByte(id.length);
+		out.write(id);
+		out.writeInt(payload.length);
+		out.write(payload);
+
+		long position = end;
+		log.seek(position);
+		log.write(bytes.toByteArray());
+		end = log.getFilePointer();
+		return position;
+	}
+
+	private static byte[] readRecord(RandomAccessFile in, byte[] expectedId) throws IOException {
+		in.readByte();
+		byte[] id = new byte[in.readUnsignedByte()];
+		in.readFully(id);
+		if (expectedId != null && !Arrays.equals(id, expectedId)) {
+			throw new IOException("Index does not match the log");
+		}
+		int length = in.readInt();
+		if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+			throw new IOException("Invalid length " + length + " of stored session");
+		}
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return payload;
+	}
+
+	/**
+	 * Rewrites the log with the live records only. The compacted log is
+	 * written to a temporary file, which then atomically replaces the log. If
+	 * that fails, the store keeps using the original log. The handles are
+	 * closed during the replacement, some platforms, e.g. Windows, cannot
+	 * replace a file that is still open.
+	 */
+	private void compact() throws IOException {
+		File compacted = new File(file.getPath() + ".tmp");
+		Map<SessionId, Long> positions = new ConcurrentHashMap<SessionId, Long>();
+		RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+		try {
+			out.setLength(0);
+			for (Map.Entry<SessionId, Long> entry : view.index.entrySet()) {
+				byte[] id = entry.getKey().getSessionId();
+				log.seek(entry.getValue());
+				byte[] payload = readRecord(log, id);
+				positions.put(entry.getKey(), out.getFilePointer());
+				out.writeByte(PUT);
+				out.writeByte(id.length);
+				out.write(id);
+				out.writeInt(payload.length);
+				out.write(payload);
+			}
+			// the compacted log must be complete on disk before it replaces the log
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		IOException failure = null;
+		synchronized (readLock) {
+			LogView replaced = view;
+			closeQuietly(replaced.reader);
+			closeQuietly(log);
+			try {
+				Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				failure = e;
+				positions = replaced.index;
+			}
+			try {
+				// reopen the compacted log, or the original one if it has not been replaced
+				log = new RandomAccessFile(file, "rw");
+				view = new LogView(positions, new RandomAccessFile(file, "r"));
+			} catch (IOException e) {
+				// the log is read again on the next update
+				closeQuietly(log);
+				log = null;
+				view = null;
+				throw e;
+			}
+		}
+		if (failure != null) {
+			compacted.delete();
+			// retry once as many obsolete records accumulated again
+			garbage = 0;
+			throw failure;
+		}
+		end = log.length();
+		garbage = 0;
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Compacted " + file + " to " + positions.size() + " sessions");
+		}
+	}
+
+	// Serialization //////////////////////////////////////////////////
+
+	private byte[] encrypt(byte[] id, byte[] plaintext) throws GeneralSecurityException {
+		byte[] payload = new byte[NONCE_LENGTH + plaintext.length + TAG_LENGTH];
+		byte[] nonce = new byte[NONCE_LENGTH];
+		random.nextBytes(nonce);
+		System.arraycopy(nonce, 0, payload, 0, NONCE_LENGTH);
+		// the session identifier is authenticated as additional data
+		cipher.encrypt(nonce, id, 0, id.length, plaintext, 0, plaintext.length, payload, NONCE_LENGTH);
+		return payload;
+	}
+
+	private byte[] decrypt(byte[] id, byte[] payload) throws GeneralSecurityException, HandshakeException {
+		if (payload.length < NONCE_LENGTH + TAG_LENGTH) {
+			throw new GeneralSecurityException("Stored session is too short");
+		}
+		byte[] nonce = new byte[NONCE_LENGTH];
+		System.arraycopy(payload, 0, nonce, 0, NONCE_LENGTH);
+		byte[] plaintext = new byte[payload.length - NONCE_LENGTH - TAG_LENGTH];
+		readCipher.decrypt(nonce, id, 0, id.length, payload, NONCE_LENGTH, payload.length - NONCE_LENGTH, plaintext, 0);
+		return plaintext;
+	}
+
+	/**
+	 * The index of a log together with the handle to read its sessions. Both
+	 * are replaced together when the log is compacted.
+	 */
+	private static final class LogView {
+
+		/** The position of each session's record in the log. */
+		private final Map<SessionId, Long> index;
+
+		/** The handle to read sessions with, guarded by {@link FileSessionStore#readLock}. */
+		private final RandomAccessFile reader;
+
+		LogView(Map<SessionId, Long> index, RandomAccessFile reader) {
+			this.index = index;
+			this.reader = reader;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls.sessionstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.X509EncodedKeySpec;
+
+import org.eclipse.californium.scandium.dtls.CompressionMethod;
+import org.eclipse.californium.scandium.dtls.DTLSSession;
+import org.eclipse.californium.scandium.dtls.SessionId;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+
+/**
+ * Serializes the state needed to resume a session, i.e. the cipher suite,
+ * compression method, master secret, creation time and the peer's identity.
+ * The session identifier and the peer's address are not part of the
+ * serialized state.
+ */
+public final class SessionSerializer {
+
+	private static final int FORMAT_VERSION = 1;
+
+	private SessionSerializer() {
+	}
+
+	/**
+	 * Serializes the resumable state of a session.
+	 *
+	 * @param session
+	 *            the session
+	 * @return the serialized state
+	 * @throws IOException
+	 *             if the state cannot be written
+	 * @throws GeneralSecurityException
+	 *             if the peer's certificate cannot be encoded
+	 */
+	public static byte[] serialize(DTLSSession session) throws IOException, GeneralSecurityException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(FORMAT_VERSION);
+		out.writeLong(session.getCreationTime());
+		out.writeShort(session.getCipherSuite().getCode());
+		out.writeByte(session.getCompressionMethod().getCode());
+		writeBytes(out, session.getMasterSecret());
+		writeString(out, session.getPskIdentity());
+		X509Certificate certificate = session.getPeerCertificate();
+		writeBytes(out, certificate == null ? null : certificate.getEncoded());
+		PublicKey publicKey = session.getPeerRawPublicKey();
+		writeString(out, publicKey == null ? null : publicKey.getAlgorithm());
+		writeBytes(out, publicKey == null ? null : publicKey.getEncoded());
+		writeString(out, session.getWebidUri());
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Restores a session from its serialized state. The peer's address is not
+	 * set, it is set when the session is resumed.
+	 *
+	 * @param id
+	 *            the identifier of the restored session
+	 * @param plaintext
+	 *            the serialized state
+	 * @return the session
+	 * @throws IOException
+	 *             if the state is malformed
+	 * @throws GeneralSecurityException
+	 *             if the peer's certificate or public key cannot be decoded
+	 */
+	public static DTLSSession deserialize(SessionId id, byte[] plaintext) throws IOException, GeneralSecurityException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(plaintext));
+		if (in.readUnsignedByte() != FORMAT_VERSION) {
+			throw new IOException("Unsupported format of stored session");
+		}
+		// the peer's address is set when the session is resumed
+		DTLSSession session = new DTLSSession(null, false);
+		session.setSessionIdentifier(id);
+		session.setCreationTime(in.readLong());
+		CipherSuite cipherSuite = CipherSuite.getTypeByCode(in.readUnsignedShort());
+		session.setCipherSuite(cipherSuite);
+		session.setKeyExchange(cipherSuite.getKeyExchange());
+		session.setCompressionMethod(CompressionMethod.getMethodByCode(in.readUnsignedByte()));
+		session.setMasterSecret(readBytes(in));
+		session.setPskIdentity(readString(in));
+		byte[] certificate = readBytes(in);
+		if (certificate != null) {
+			CertificateFactory factory = CertificateFactory.getInstance("X.509");
+			session.setPeerCertificate((X509Certificate) factory.generateCertificate(new ByteArrayInputStream(certificate)));
+		}
+		String algorithm = readString(in);
+		byte[] publicKey = readBytes(in);
+		if (publicKey != null) {
+			session.setPeerRawPublicKey(KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(publicKey)));
+		}
+		String webidUri = readString(in);
+		if (webidUri != null) {
+			session.setWebidUri(webidUri);
+		}
+		return session;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(value.length);
+			out.write(value);
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] value = new byte[length];
+		in.readFully(value);
+		return value;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls.sessionstore;
+
+import org.eclipse.californium.scandium.dtls.DTLSSession;
+import org.eclipse.californium.scandium.dtls.SessionId;
+
+/**
+ * A storage for established server-side sessions which outlives the
+ * connector, so peers can resume their sessions with an abbreviated handshake
+ * after the connector has been restarted.
+ * <p>
+ * The connector stores a session once its handshake has completed and
+ * consults the store for session identifiers it does not know. A restored
+ * session only needs the state required by the
+ * {@link org.eclipse.californium.scandium.dtls.ResumingServerHandshaker}: the
+ * session identifier, cipher suite, compression method, master secret and the
+ * peer's identity.
+ */
+public interface SessionStore {
+
+	/**
+	 * Stores an established session, replacing a session with the same
+	 * identifier.
+	 *
+	 * @param session
+	 *            the session
+	 */
+	void put(DTLSSession session);
+
+	/**
+	 * Gets a session to resume. Called by the thread processing the peer's
+	 * ClientHello, while updates are applied on a thread of their own, so
+	 * implementations must not make a lookup wait for pending updates.
+	 *
+	 * @param id
+	 *            the session identifier
+	 * @return the restored session or <code>null</code> if not found
+	 */
+	DTLSSession get(SessionId id);
+
+	/**
+	 * Removes a session, it cannot be resumed anymore.
+	 *
+	 * @param id
+	 *            the session identifier
+	 */
+	void remove(SessionId id);
+}
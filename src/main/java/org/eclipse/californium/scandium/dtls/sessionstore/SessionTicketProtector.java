@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls.sessionstore;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.eclipse.californium.scandium.dtls.DTLSSession;
+import org.eclipse.californium.scandium.dtls.HandshakeException;
+import org.eclipse.californium.scandium.dtls.SessionId;
+import org.eclipse.californium.scandium.dtls.cipher.CCMBlockCipher;
+
+/**
+ * Encrypts the state of a session into a ticket the client keeps, so the
+ * server can resume the session without keeping any state. See <a
+ * href="http://tools.ietf.org/html/rfc5077">RFC 5077</a>.
+ * <p>
+ * The tickets are encrypted and authenticated with AES-CCM. The key rotates
+ * every rotation interval: the key of a period is derived from a long-term
+ * secret and the number of the period, so all servers sharing the secret use
+ * the same keys without coordination and can resume each other's sessions. A
+ * ticket is accepted until the end of the period following the one it was
+ * issued in. The ticket format is private to the server:
+ * 
+ * <pre>
+ * period (8 bytes) | nonce (12 bytes) | encrypted state | tag (16 bytes)
+ * </pre>
+ */
+public class SessionTicketProtector {
+
+	private static final Logger LOGGER = Logger.getLogger(SessionTicketProtector.class.getCanonicalName());
+
+	private static final int PERIOD_LENGTH = 8;
+
+	private static final int NONCE_LENGTH = 12;
+
+	private static final int TAG_LENGTH = 16;
+
+	private static final int KEY_LENGTH = 16;
+
+	private static final int MIN_SECRET_LENGTH = 16;
+
+	private static final String KEY_DERIVATION_ALGORITHM = "HmacSHA256";
+
+	private static final byte[] KEY_LABEL = "ticket key".getBytes(StandardCharsets.US_ASCII);
+
+	// Members ////////////////////////////////////////////////////////
+
+	private final SecretKeySpec secret;
+
+	private final long rotationInterval;
+
+	private final SecureRandom random = new SecureRandom();
+
+	/** The keys of the latest two periods used, guarded by this. */
+	private TicketKey current;
+
+	private TicketKey previous;
+
+	// Constructors ///////////////////////////////////////////////////
+
+	/**
+	 * Creates a protector for tickets.
+	 * 
+	 * @param secret
+	 *            the long-term secret (at least 16 bytes) the ticket keys are
+	 *            derived from, shared by all servers which resume each
+	 *            other's sessions
+	 * @param rotationInterval
+	 *            the time in milliseconds after which a new key is used
+	 */
+	public SessionTicketProtector(byte[] secret, long rotationInterval) {
+		if (secret == null || secret.length < MIN_SECRET_LENGTH) {
+			throw new IllegalArgumentException("the ticket secret must have at least " + MIN_SECRET_LENGTH + " bytes");
+		}
+		if (rotationInterval <= 0) {
+			throw new IllegalArgumentException("the rotation interval must be positive");
+		}
+		this.secret = new SecretKeySpec(secret, KEY_DERIVATION_ALGORITHM);
+		this.rotationInterval = rotationInterval;
+	}
+
+	// Methods ////////////////////////////////////////////////////////
+
+	/**
+	 * Gets the number of seconds a client should keep a ticket.
+	 * 
+	 * @return the lifetime hint for the NewSessionTicket message
+	 */
+	public long getLifetimeHint() {
+		// a ticket is valid for at least one rotation interval
+		return rotationInterval / 1000;
+	}
+
+	/**
+	 * Encrypts the state of a session into a ticket.
+	 * 
+	 * @param session
+	 *            the established session
+	 * @return the ticket or an empty array if the session cannot be
+	 *         encrypted, the server then sends an empty ticket as defined by
+	 *         RFC 5077
+	 */
+	public byte[] protect(DTLSSession session) {
+		long period = System.currentTimeMillis() / rotationInterval;
+		try {
+			byte[] state = SessionSerializer.serialize(session);
+			byte[] ticket = new byte[PERIOD_LENGTH + NONCE_LENGTH + state.length + TAG_LENGTH];
+			writePeriod(period, ticket);
+			byte[] nonce = new byte[NONCE_LENGTH];
+			synchronized (this) {
+				random.nextBytes(nonce);
+				System.arraycopy(nonce, 0, ticket, PERIOD_LENGTH, NONCE_LENGTH);
+				// the period is authenticated as additional data
+				getKey(period).cipher.encrypt(nonce, ticket, 0, PERIOD_LENGTH, state, 0, state.length, ticket,
+						PERIOD_LENGTH + NONCE_LENGTH);
+			}
+			return ticket;
+		} catch (IOException | GeneralSecurityException e) {
+			LOGGER.log(Level.WARNING, "Could not create session ticket", e);
+			return new byte[0];
+		}
+	}
+
+	/**
+	 * Decrypts a ticket presented by a client.
+	 * 
+	 * @param ticket
+	 *            the ticket
+	 * @return the session without identifier or <code>null</code> if the
+	 *         ticket is invalid or its key has expired
+	 */
+	public DTLSSession unprotect(byte[] ticket) {
+		if (ticket.length < PERIOD_LENGTH + NONCE_LENGTH + TAG_LENGTH) {
+			return null;
+		}
+		long period = readPeriod(ticket);
+		long now = System.currentTimeMillis() / rotationInterval;
+		// tolerate tickets of the next period issued by a server with a clock running ahead
+		if (period < now - 1 || period > now + 1) {
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Rejected session ticket of expired period " + period);
+			}
+			return null;
+		}
+		byte[] nonce = new byte[NONCE_LENGTH];
+		System.arraycopy(ticket, PERIOD_LENGTH, nonce, 0, NONCE_LENGTH);
+		byte[] state = new byte[ticket.length - PERIOD_LENGTH - NONCE_LENGTH - TAG_LENGTH];
+		try {
+			synchronized (this) {
+				getKey(period).cipher.decrypt(nonce, ticket, 0, PERIOD_LENGTH, ticket, PERIOD_LENGTH + NONCE_LENGTH,
+						ticket.length - PERIOD_LENGTH - NONCE_LENGTH, state, 0);
+			}
+			return SessionSerializer.deserialize(new SessionId(new byte[0]), state);
+		} catch (IOException | GeneralSecurityException | HandshakeException e) {
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Rejected invalid session ticket: " + e.getMessage());
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the key of a period, deriving it if it is neither the current nor
+	 * the previous one. Must be called while holding the lock.
+	 */
+	private TicketKey getKey(long period) throws GeneralSecurityException {
+		if (current != null && current.period == period) {
+			return current;
+		}
+		if (previous != null && previous.period == period) {
+			return previous;
+		}
+		TicketKey key = new TicketKey(period, deriveKey(period));
+		if (current == null || period > current.period) {
+			previous = current;
+			current = key;
+		} else {
+			previous = key;
+		}
+		return key;
+	}
+
+	/**
+	 * Derives the key of a period as HMAC-SHA256(secret, "ticket key" +
+	 * period), truncated to the AES key length.
+	 */
+	private byte[] deriveKey(long period) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance(KEY_DERIVATION_ALGORITHM);
+		mac.init(secret);
+		mac.update(KEY_LABEL);
+		byte[] periodBytes = new byte[PERIOD_LENGTH];
+		writePeriod(period, periodBytes);
+		byte[] key = new byte[KEY_LENGTH];
+		System.arraycopy(mac.doFinal(periodBytes), 0, key, 0, KEY_LENGTH);
+		return key;
+	}
+
+	private static void writePeriod(long period, byte[] bytes) {
+		for (int i = PERIOD_LENGTH - 1; i >= 0; i--) {
+			bytes[i] = (byte) period;
+			period >>>= 8;
+		}
+	}
+
+	private static long readPeriod(byte[] bytes) {
+		long period = 0;
+		for (int i = 0; i < PERIOD_LENGTH; i++) {
+			period = (period << 8) | (bytes[i] & 0xFF);
+		}
+		return period;
+	}
+
+	// TicketKey //////////////////////////////////////////////////////
+
+	private static final class TicketKey {
+
+		private final long period;
+
+		private final CCMBlockCipher cipher;
+
+		private TicketKey(long period, byte[] key) throws GeneralSecurityException {
+			this.period = period;
+			this.cipher = new CCMBlockCipher(key, TAG_LENGTH);
+		}
+	}
+}
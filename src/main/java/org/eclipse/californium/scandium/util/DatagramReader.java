@@ -16,17 +16,25 @@
  ******************************************************************************/
 package org.eclipse.californium.scandium.util;
 
-import java.io.ByteArrayInputStream;
-
 /**
  * This class describes the functionality to read raw network-ordered datagrams
  * on bit-level.
+ * <p>
+ * Since almost all fields of DTLS are whole bytes, reads of whole bytes at a
+ * byte boundary take a fast path using direct index arithmetic, see e.g.
+ * {@link #readUint16()}.
  */
 public class DatagramReader {
 
 	// Attributes //////////////////////////////////////////////////////////////
 
-	private ByteArrayInputStream byteStream;
+	private final byte[] buffer;
+
+	/** the index of the next byte to read */
+	private int position;
+
+	/** the index behind the last byte to read */
+	private final int end;
 
 	private byte currentByte;
 	private int currentBitIndex;
@@ -40,9 +48,25 @@ public class DatagramReader {
 	 *            The byte array to read from
 	 */
 	public DatagramReader(byte[] byteArray) {
+		this(byteArray, 0, byteArray.length);
+	}
+
+	/**
+	 * Initializes a new BitReader object reading a region of a byte array
+	 * 
+	 * @param byteArray
+	 *            The byte array to read from
+	 * @param offset
+	 *            The index of the first byte to read
+	 * @param length
+	 *            The number of bytes to read
+	 */
+	public DatagramReader(byte[] byteArray, int offset, int length) {
 
-		// initialize underlying byte stream
-		byteStream = new ByteArrayInputStream(byteArray);
+		// initialize underlying buffer
+		buffer = byteArray;
+		position = offset;
+		end = offset + length;
 
 		// initialize bit buffer
 		currentByte = 0;
@@ -62,6 +86,10 @@ public class DatagramReader {
 	 */
 	public long readLong(int numBits) {
 
+		if (currentBitIndex < 0 && numBits % Byte.SIZE == 0) {
+			return readAligned(numBits / Byte.SIZE);
+		}
+
 		long bits = 0; // initialize all bits to zero
 
 		for (int i = numBits - 1; i >= 0; i--) {
@@ -96,6 +124,10 @@ public class DatagramReader {
 	 */
 	public int read(int numBits) {
 
+		if (currentBitIndex < 0 && numBits % Byte.SIZE == 0) {
+			return (int) readAligned(numBits / Byte.SIZE);
+		}
+
 		int bits = 0; // initialize all bits to zero
 
 		for (int i = numBits - 1; i >= 0; i--) {
@@ -132,7 +164,7 @@ public class DatagramReader {
 
 		// for negative count values, read all bytes left
 		if (count < 0)
-			count = byteStream.available();
+			count = end - position;
 
 		// allocate byte array
 		byte[] bytes = new byte[count];
@@ -146,9 +178,11 @@ public class DatagramReader {
 
 		} else {
 
-			// if bit buffer is empty, call can be delegated
-			// to byte stream to increase performance
-			byteStream.read(bytes, 0, bytes.length);
+			// if bit buffer is empty, the bytes can be copied
+			// at once, missing bytes are left zero
+			int available = Math.min(count, end - position);
+			System.arraycopy(buffer, position, bytes, 0, available);
+			position += available;
 		}
 
 		return bytes;
@@ -160,9 +194,44 @@ public class DatagramReader {
 	 * @return The next byte.
 	 */
 	public byte readNextByte() {
-		byte[] bytes = readBytes(1);
+		return (byte) readUint8();
+	}
 
-		return bytes[0];
+	/**
+	 * Reads an unsigned 8 bit integer.
+	 * 
+	 * @return the value read
+	 */
+	public int readUint8() {
+		return read(8);
+	}
+
+	/**
+	 * Reads an unsigned 16 bit integer in network byte order.
+	 * 
+	 * @return the value read
+	 */
+	public int readUint16() {
+		return read(16);
+	}
+
+	/**
+	 * Reads an unsigned 24 bit integer in network byte order.
+	 * 
+	 * @return the value read
+	 */
+	public int readUint24() {
+		return read(24);
+	}
+
+	/**
+	 * Reads an unsigned 48 bit integer in network byte order, e.g. a DTLS
+	 * record sequence number.
+	 * 
+	 * @return the value read
+	 */
+	public long readUint48() {
+		return readLong(48);
 	}
 
 	/**
@@ -180,22 +249,36 @@ public class DatagramReader {
 	 *         <code>false</code> otherwise.
 	 */
 	public boolean bytesAvailable() {
-		return byteStream.available() > 0;
+		return position < end;
 	}
 
 	// Utilities ///////////////////////////////////////////////////////////////
 
+	/**
+	 * Reads whole bytes while the bit buffer is empty.
+	 * 
+	 * @param numBytes
+	 *            The number of bytes to read, at most 8
+	 * @return A long containing the bytes read
+	 */
+	private long readAligned(int numBytes) {
+		long value = 0;
+		for (int i = 0; i < numBytes; i++) {
+			// return implicit zero bytes beyond the end
+			value = (value << Byte.SIZE) | (position < end ? buffer[position++] & 0xFF : 0);
+		}
+		return value;
+	}
+
 	/**
 	 * Reads new bits from the stream
 	 */
 	private void readCurrentByte() {
 
-		// try to read from byte stream
-		int val = byteStream.read();
-
-		if (val >= 0) {
+		// try to read from buffer
+		if (position < end) {
 			// byte successfully read
-			currentByte = (byte) val;
+			currentByte = buffer[position++];
 		} else {
 			// end of stream reached;
 			// return implicit zero bytes
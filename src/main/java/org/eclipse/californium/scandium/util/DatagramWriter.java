@@ -16,17 +16,24 @@
  ******************************************************************************/
 package org.eclipse.californium.scandium.util;
 
-import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 
 /**
  * This class describes the functionality to write raw network-ordered datagrams
  * on bit-level.
+ * <p>
+ * Since almost all fields of DTLS are whole bytes, writes of whole bytes at a
+ * byte boundary take a fast path using direct index arithmetic, see e.g.
+ * {@link #writeUint16(int)}.
  */
 public class DatagramWriter {
 
 	// Attributes //////////////////////////////////////////////////////////////
 
-	private ByteArrayOutputStream byteStream;
+	private byte[] buffer;
+
+	/** the number of bytes written to the buffer */
+	private int count;
 
 	private byte currentByte;
 	private int currentBitIndex;
@@ -37,9 +44,20 @@ public class DatagramWriter {
 	 * Initializes a new BitWriter object
 	 */
 	public DatagramWriter() {
+		this(32);
+	}
+
+	/**
+	 * Initializes a new BitWriter object
+	 * 
+	 * @param size
+	 *            The expected number of bytes to write
+	 */
+	public DatagramWriter(int size) {
 
-		// initialize underlying byte stream
-		byteStream = new ByteArrayOutputStream();
+		// initialize underlying buffer
+		buffer = new byte[size];
+		count = 0;
 
 		// initialize bit buffer
 		currentByte = 0;
@@ -62,6 +80,11 @@ public class DatagramWriter {
 			throw new RuntimeException(String.format("Truncating value %d to %d-bit integer\n", data, numBits));
 		}
 
+		if (currentBitIndex == Byte.SIZE - 1 && numBits % Byte.SIZE == 0) {
+			writeAligned(data, numBits / Byte.SIZE);
+			return;
+		}
+
 		for (int i = numBits - 1; i >= 0; i--) {
 
 			// test bit
@@ -96,6 +119,11 @@ public class DatagramWriter {
 			throw new RuntimeException(String.format("Truncating value %d to %d-bit integer\n", data, numBits));
 		}
 
+		if (currentBitIndex == Byte.SIZE - 1 && numBits % Byte.SIZE == 0) {
+			writeAligned(data, numBits / Byte.SIZE);
+			return;
+		}
+
 		for (int i = numBits - 1; i >= 0; i--) {
 
 			// test bit
@@ -127,18 +155,34 @@ public class DatagramWriter {
 		if (bytes == null)
 			return;
 
+		writeBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Writes a region of a byte array to the stream
+	 * 
+	 * @param bytes
+	 *            The array containing the bytes to write
+	 * @param offset
+	 *            The index of the first byte to write
+	 * @param length
+	 *            The number of bytes to write
+	 */
+	public void writeBytes(byte[] bytes, int offset, int length) {
+
 		// are there bits left to write in buffer?
 		if (currentBitIndex < Byte.SIZE - 1) {
 
-			for (int i = 0; i < bytes.length; i++) {
-				write(bytes[i], Byte.SIZE);
+			for (int i = offset; i < offset + length; i++) {
+				write(bytes[i] & 0xFF, Byte.SIZE);
 			}
 
 		} else {
 
-			// if bit buffer is empty, call can be delegated
-			// to byte stream to increase
-			byteStream.write(bytes, 0, bytes.length);
+			// if bit buffer is empty, the bytes can be copied at once
+			ensureCapacity(length);
+			System.arraycopy(bytes, offset, buffer, count, length);
+			count += length;
 		}
 	}
 	
@@ -149,7 +193,48 @@ public class DatagramWriter {
 	 *            The byte to be written.
 	 */
 	public void writeByte(byte b) {
-		writeBytes(new byte[] { b });
+		write(b & 0xFF, Byte.SIZE);
+	}
+
+	/**
+	 * Writes an unsigned 8 bit integer.
+	 * 
+	 * @param value
+	 *            The value to write
+	 */
+	public void writeUint8(int value) {
+		write(value, 8);
+	}
+
+	/**
+	 * Writes an unsigned 16 bit integer in network byte order.
+	 * 
+	 * @param value
+	 *            The value to write
+	 */
+	public void writeUint16(int value) {
+		write(value, 16);
+	}
+
+	/**
+	 * Writes an unsigned 24 bit integer in network byte order.
+	 * 
+	 * @param value
+	 *            The value to write
+	 */
+	public void writeUint24(int value) {
+		write(value, 24);
+	}
+
+	/**
+	 * Writes an unsigned 48 bit integer in network byte order, e.g. a DTLS
+	 * record sequence number.
+	 * 
+	 * @param value
+	 *            The value to write
+	 */
+	public void writeUint48(long value) {
+		writeLong(value, 48);
 	}
 
 	// Functions ///////////////////////////////////////////////////////////////
@@ -164,11 +249,11 @@ public class DatagramWriter {
 		// write any bits left in the buffer to the stream
 		writeCurrentByte();
 
-		// retrieve the byte array from the stream
-		byte[] byteArray = byteStream.toByteArray();
+		// retrieve the byte array from the buffer
+		byte[] byteArray = Arrays.copyOf(buffer, count);
 
 		// reset stream for the sake of consistency
-		byteStream.reset();
+		count = 0;
 
 		// return the byte array
 		return byteArray;
@@ -176,6 +261,27 @@ public class DatagramWriter {
 
 	// Utilities ///////////////////////////////////////////////////////////////
 
+	/**
+	 * Writes whole bytes while the bit buffer is empty.
+	 * 
+	 * @param data
+	 *            A long containing the bytes to write
+	 * @param numBytes
+	 *            The number of bytes to write, at most 8
+	 */
+	private void writeAligned(long data, int numBytes) {
+		ensureCapacity(numBytes);
+		for (int i = numBytes - 1; i >= 0; i--) {
+			buffer[count++] = (byte) (data >>> (i * Byte.SIZE));
+		}
+	}
+
+	private void ensureCapacity(int numBytes) {
+		if (count + numBytes > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, count + numBytes));
+		}
+	}
+
 	/**
 	 * Writes pending bits to the stream
 	 */
@@ -183,7 +289,8 @@ public class DatagramWriter {
 
 		if (currentBitIndex < Byte.SIZE - 1) {
 
-			byteStream.write(currentByte);
+			ensureCapacity(1);
+			buffer[count++] = currentByte;
 
 			currentByte = 0;
 			currentBitIndex = Byte.SIZE - 1;
@@ -192,7 +299,7 @@ public class DatagramWriter {
 
 	@Override
 	public String toString() {
-		byte[] byteArray = byteStream.toByteArray();
+		byte[] byteArray = Arrays.copyOf(buffer, count);
 		if (byteArray != null && byteArray.length != 0) {
 
 			StringBuilder builder = new StringBuilder(byteArray.length * 3);
@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A timer scheduling {@link Timeout}s on a hashed timing wheel, see <a
+ * href="http://www.cs.columbia.edu/~nahum/w6998/papers/ton97-timing-wheels.pdf"
+ * >Varghese and Lauck, Hashed and Hierarchical Timing Wheels</a>.
+ * <p>
+ * The wheel consists of a fixed number of buckets, each covering one tick. A
+ * timeout is linked into the bucket of its deadline tick, so scheduling and
+ * cancelling take constant time and cancelled timeouts are unlinked at once.
+ * Timeouts expire with a resolution of one tick, which suits retransmission
+ * timers measured in (fractions of) seconds. The expired timeouts are executed
+ * by the timer's single daemon thread.
+ * <p>
+ * A {@link Timeout} can be scheduled again once it expired or was cancelled,
+ * so a handle can be reused for all retransmissions of a flight.
+ */
+public class HashedWheelTimer {
+
+	// Logging ////////////////////////////////////////////////////////
+
+	private static final Logger LOGGER = Logger.getLogger(HashedWheelTimer.class.getCanonicalName());
+
+	// Constants //////////////////////////////////////////////////////
+
+	/** The default tick duration in milliseconds. */
+	public static final int DEFAULT_TICK_MILLIS = 100;
+
+	/** The default number of buckets. */
+	public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+	private static final int IDLE = 0;
+
+	private static final int SCHEDULED = 1;
+
+	private static final int EXPIRED = 2;
+
+	// Members ////////////////////////////////////////////////////////
+
+	private static HashedWheelTimer sharedTimer;
+
+	private final Object lock = new Object();
+
+	/** The first timeout of each bucket's list. */
+	private final Timeout[] wheel;
+
+	private final int mask;
+
+	private final long tickNanos;
+
+	private final long startTime;
+
+	/** The tick to be processed next, ticks are counted from {@link #startTime}. */
+	private long nextTick = 1;
+
+	private final Thread worker;
+
+	private volatile boolean stopped = false;
+
+	// Constructors ///////////////////////////////////////////////////
+
+	/**
+	 * Creates a timer and starts its worker thread.
+	 *
+	 * @param tickDuration
+	 *            the duration of a tick, i.e. the timer's resolution
+	 * @param unit
+	 *            the unit of the tick duration
+	 * @param ticksPerWheel
+	 *            the number of buckets, rounded up to a power of two. Should
+	 *            cover the typical timeout to keep the buckets short.
+	 */
+	public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("tick duration must be positive");
+		}
+		if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+			throw new IllegalArgumentException("ticks per wheel must be in range 1 - 2^30");
+		}
+		int buckets = Integer.highestOneBit(ticksPerWheel);
+		if (buckets < ticksPerWheel) {
+			buckets <<= 1;
+		}
+		this.wheel = new Timeout[buckets];
+		this.mask = buckets - 1;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.startTime = System.nanoTime();
+
+		this.worker = new Thread(new Worker(), "HashedWheelTimer");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Gets the timer shared by all connectors which have no timer configured.
+	 * It uses the default tick duration and wheel size and is never stopped.
+	 *
+	 * @return the shared timer
+	 */
+	public static synchronized HashedWheelTimer getSharedTimer() {
+		if (sharedTimer == null) {
+			sharedTimer = new HashedWheelTimer(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+		}
+		return sharedTimer;
+	}
+
+	// Methods ////////////////////////////////////////////////////////
+
+	/**
+	 * Schedules a timeout to expire after the given delay. A timeout which is
+	 * already scheduled is rescheduled.
+	 *
+	 * @param timeout
+	 *            the timeout
+	 * @param delay
+	 *            the delay
+	 * @param unit
+	 *            the unit of the delay
+	 */
+	public void schedule(Timeout timeout, long delay, TimeUnit unit) {
+		if (stopped) {
+			throw new IllegalStateException("timer has been stopped");
+		}
+		long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0));
+		// round up, a timeout must never expire early
+		long deadlineTick = (deadline + tickNanos - 1) / tickNanos;
+
+		synchronized (lock) {
+			if (timeout.timer != null && timeout.timer != this) {
+				throw new IllegalArgumentException("timeout belongs to another timer");
+			}
+			if (timeout.state == SCHEDULED) {
+				unlink(timeout);
+			}
+			timeout.timer = this;
+			timeout.deadlineTick = Math.max(deadlineTick, nextTick);
+			timeout.state = SCHEDULED;
+
+			int bucket = (int) (timeout.deadlineTick & mask);
+			timeout.prev = null;
+			timeout.next = wheel[bucket];
+			if (wheel[bucket] != null) {
+				wheel[bucket].prev = timeout;
+			}
+			wheel[bucket] = timeout;
+		}
+	}
+
+	/**
+	 * Stops the worker thread. Pending timeouts do not expire anymore.
+	 */
+	public void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	private boolean cancel(Timeout timeout) {
+		synchronized (lock) {
+			if (timeout.state == SCHEDULED) {
+				unlink(timeout);
+			} else if (timeout.state != EXPIRED) {
+				return false;
+			}
+			timeout.state = IDLE;
+			return true;
+		}
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			wheel[(int) (timeout.deadlineTick & mask)] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+	}
+
+	/**
+	 * Unlinks the timeouts of the current tick from the wheel.
+	 *
+	 * @return the expired timeouts, chained by {@link Timeout#nextExpired}
+	 */
+	private Timeout expireTimeouts() {
+		Timeout expired = null;
+		synchronized (lock) {
+			long tick = nextTick++;
+			Timeout timeout = wheel[(int) (tick & mask)];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				// timeouts of later rounds stay in the bucket
+				if (timeout.deadlineTick <= tick) {
+					unlink(timeout);
+					timeout.state = EXPIRED;
+					timeout.nextExpired = expired;
+					expired = timeout;
+				}
+				timeout = next;
+			}
+		}
+		return expired;
+	}
+
+	private void runExpiredTimeouts(Timeout expired) {
+		while (expired != null) {
+			Timeout timeout = expired;
+			expired = timeout.nextExpired;
+			timeout.nextExpired = null;
+			synchronized (lock) {
+				if (timeout.state != EXPIRED) {
+					// cancelled or rescheduled in the meantime
+					continue;
+				}
+				timeout.state = IDLE;
+			}
+			try {
+				timeout.task.run();
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.SEVERE, "Timeout task failed", e);
+			}
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			while (!stopped) {
+				long sleepNanos;
+				synchronized (lock) {
+					sleepNanos = startTime + nextTick * tickNanos - System.nanoTime();
+				}
+				if (sleepNanos > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(sleepNanos);
+					} catch (InterruptedException e) {
+						continue;
+					}
+				}
+				runExpiredTimeouts(expireTimeouts());
+			}
+		}
+	}
+
+	// Timeout ////////////////////////////////////////////////////////
+
+	/**
+	 * A handle for a task to execute when it expires. The handle can be
+	 * scheduled repeatedly, but only with a single timer.
+	 */
+	public static final class Timeout {
+
+		private final Runnable task;
+
+		private HashedWheelTimer timer;
+
+		private int state = IDLE;
+
+		private long deadlineTick;
+
+		private Timeout prev;
+
+		private Timeout next;
+
+		private Timeout nextExpired;
+
+		/**
+		 * Creates a handle for a task.
+		 *
+		 * @param task
+		 *            the task to run on expiry
+		 */
+		public Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * Cancels the timeout. A task that is already running is not
+		 * interrupted.
+		 *
+		 * @return <code>true</code> if the timeout was pending
+		 */
+		public boolean cancel() {
+			HashedWheelTimer timer = this.timer;
+			return timer != null && timer.cancel(this);
+		}
+
+		/**
+		 * Checks whether the timeout is scheduled and has not yet expired.
+		 *
+		 * @return <code>true</code> if the timeout is pending
+		 */
+		public boolean isPending() {
+			HashedWheelTimer timer = this.timer;
+			if (timer == null) {
+				return false;
+			}
+			synchronized (timer.lock) {
+				return state != IDLE;
+			}
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.scandium.util.HashedWheelTimer;
+import org.junit.Test;
+
+public class AdmissionControllerTest {
+
+	private final AdmissionController admission = new AdmissionController();
+
+	@Test
+	public void testCapacityIsReservedForResumption() {
+		DTLSConnectorConfig config = newConfig();
+		config.setMaxConcurrentHandshakes(10);
+		start(config);
+
+		for (int i = 0; i < 9; i++) {
+			assertTrue(admission.admit(peer(i), false));
+		}
+		assertFalse(admission.admit(peer(9), false));
+		assertTrue(admission.admit(peer(9), true));
+		assertFalse(admission.admit(peer(10), true));
+		assertEquals(2, admission.getRejectedByCapacity());
+
+		// a restarted handshake needs no further capacity
+		assertTrue(admission.admit(peer(0), false));
+	}
+
+	@Test
+	public void testCompletedHandshakeReleasesCapacity() {
+		DTLSConnectorConfig config = newConfig();
+		config.setMaxConcurrentHandshakes(1);
+		start(config);
+
+		assertTrue(admission.admit(peer(0), true));
+		assertFalse(admission.admit(peer(1), true));
+		admission.completed(peer(0));
+		assertTrue(admission.admit(peer(1), true));
+	}
+
+	@Test
+	public void testSweepReleasesAbandonedHandshakes() {
+		DTLSConnectorConfig config = newConfig();
+		config.setMaxConcurrentHandshakes(1);
+		start(config);
+
+		assertTrue(admission.admit(peer(0), true));
+		admission.sweep(System.currentTimeMillis() + AdmissionController.HANDSHAKE_TIMEOUT);
+		assertEquals(0, admission.getPendingHandshakes());
+	}
+
+	@Test
+	public void testAddressRateIsLimited() {
+		DTLSConnectorConfig config = newConfig();
+		config.setAddressHandshakeLimit(5);
+		start(config);
+
+		for (int i = 0; i < 5; i++) {
+			assertTrue(admission.admit(new InetSocketAddress("192.168.0.1", 1000 + i), false));
+		}
+		// further ports of the same address share its bucket
+		assertFalse(admission.admit(new InetSocketAddress("192.168.0.1", 2000), false));
+		assertTrue(admission.admit(new InetSocketAddress("192.168.0.2", 1000), false));
+		assertEquals(1, admission.getRejectedByRate());
+	}
+
+	@Test
+	public void testSubnetRateIsLimited() {
+		DTLSConnectorConfig config = newConfig();
+		config.setAddressHandshakeLimit(0);
+		config.setSubnetHandshakeLimit(3);
+		start(config);
+
+		for (int i = 1; i <= 3; i++) {
+			assertTrue(admission.admit(new InetSocketAddress("192.168.0." + i, 1000), false));
+		}
+		assertFalse(admission.admit(new InetSocketAddress("192.168.0.4", 1000), false));
+		assertTrue(admission.admit(new InetSocketAddress("192.168.1.1", 1000), false));
+	}
+
+	@Test
+	public void testRateLimitsAreDisabledByDefault() {
+		start(new DTLSConnectorConfig(new DTLSConnector(new InetSocketAddress(0))));
+
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(admission.admit(new InetSocketAddress("192.168.1.1", 1000 + i), false));
+			admission.completed(new InetSocketAddress("192.168.1.1", 1000 + i));
+		}
+		assertEquals(0, admission.getRejectedByRate());
+	}
+
+	private static DTLSConnectorConfig newConfig() {
+		DTLSConnectorConfig config = new DTLSConnectorConfig(new DTLSConnector(new InetSocketAddress(0)));
+		config.setAddressHandshakeLimit(0);
+		config.setSubnetHandshakeLimit(0);
+		return config;
+	}
+
+	private static InetSocketAddress peer(int index) {
+		return new InetSocketAddress("10.0." + (index / 256) + "." + (index % 256), 5684);
+	}
+
+	private void start(DTLSConnectorConfig config) {
+		HashedWheelTimer timer = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 8);
+		admission.start(config, timer);
+		admission.stop();
+		timer.stop();
+	}
+}
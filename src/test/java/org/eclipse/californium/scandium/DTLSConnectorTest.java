@@ -0,0 +1,402 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+import org.eclipse.californium.scandium.dtls.ClientHello;
+import org.eclipse.californium.scandium.dtls.CompressionMethod;
+import org.eclipse.californium.scandium.dtls.Cookie;
+import org.eclipse.californium.scandium.dtls.DTLSMessage;
+import org.eclipse.californium.scandium.dtls.DTLSSession;
+import org.eclipse.californium.scandium.dtls.DtlsTestTools;
+import org.eclipse.californium.scandium.dtls.HelloVerifyRequest;
+import org.eclipse.californium.scandium.dtls.ProtocolVersion;
+import org.eclipse.californium.scandium.dtls.Record;
+import org.eclipse.californium.scandium.dtls.ServerHello;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.eclipse.californium.scandium.dtls.pskstore.StaticPskStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DTLSConnectorTest {
+
+	private static final String IDENTITY = "client";
+
+	private static final byte[] KEY = "secret".getBytes();
+
+	private static final int HANDSHAKE_HEADER_LENGTH = 12;
+
+	private final BlockingQueue<RawData> received = new LinkedBlockingQueue<RawData>();
+
+	private final BlockingQueue<RawData> clientReceived = new LinkedBlockingQueue<RawData>();
+
+	private DTLSConnector server;
+
+	private DTLSConnector client;
+
+	@Before
+	public void startConnectors() throws Exception {
+		server = new DTLSConnector(new InetSocketAddress("127.0.0.1", 0));
+		server.getConfig().setPskStore(new StaticPskStore(IDENTITY, KEY));
+		server.getConfig().setRequireClientAuth(false);
+		server.setRawDataReceiver(new RawDataChannel() {
+
+			@Override
+			public void receiveData(RawData raw) {
+				received.add(raw);
+			}
+		});
+		server.start();
+
+		client = new DTLSConnector(new InetSocketAddress("127.0.0.1", 0));
+		client.getConfig().setPskStore(new StaticPskStore(IDENTITY, KEY));
+		client.getConfig().setPreferredCipherSuite(CipherSuite.TLS_PSK_WITH_AES_128_CCM_8);
+		// pack the following records into a single datagram
+		client.getConfig().setCoalescingDelay(500);
+		client.setRawDataReceiver(new RawDataChannel() {
+
+			@Override
+			public void receiveData(RawData raw) {
+				clientReceived.add(raw);
+			}
+		});
+		client.start();
+	}
+
+	@After
+	public void stopConnectors() {
+		client.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testReceiveAllRecordsOfDatagram() throws Exception {
+		InetSocketAddress serverAddress = server.getAddress();
+		// the first message waits for the handshake
+		client.send(new RawData("0".getBytes(), serverAddress));
+		assertMessage("0");
+
+		for (int i = 1; i <= 5; i++) {
+			client.send(new RawData(String.valueOf(i).getBytes(), serverAddress));
+		}
+		for (int i = 1; i <= 5; i++) {
+			assertMessage(String.valueOf(i));
+		}
+	}
+
+	@Test
+	public void testResumeSession() throws Exception {
+		InetSocketAddress serverAddress = server.getAddress();
+		client.send(new RawData("0".getBytes(), serverAddress));
+		InetSocketAddress clientAddress = assertMessage("0").getInetSocketAddress();
+		DTLSSession established = server.getSessionByAddress(clientAddress);
+		// the client keeps its handshaker until it received application data
+		server.send(new RawData("ack".getBytes(), clientAddress));
+		assertNotNull(clientReceived.poll(10, TimeUnit.SECONDS));
+
+		// the next message resumes the session with an abbreviated handshake
+		client.getSessionByAddress(serverAddress).setActive(false);
+		client.send(new RawData("1".getBytes(), serverAddress));
+		assertMessage("1");
+
+		DTLSSession resumed = server.getSessionByAddress(clientAddress);
+		assertNotSame(established, resumed);
+		assertEquals(established.getSessionIdentifier(), resumed.getSessionIdentifier());
+		assertArrayEquals(established.getMasterSecret(), resumed.getMasterSecret());
+	}
+
+	@Test
+	public void testHandshakeCompletesWhenServersLastFlightIsLost() throws Exception {
+		// the client retransmits its last flight, the server then resends its own
+		client.getConfig().setRetransmissionTimeout(500);
+		Relay relay = new Relay(client.getAddress(), server.getAddress());
+		try {
+			client.send(new RawData("0".getBytes(), relay.getAddress()));
+			assertMessage("0");
+			assertTrue("server's last flight not dropped", relay.droppedLastFlight.get());
+		} finally {
+			relay.close();
+		}
+	}
+
+	@Test
+	public void testUnansweredHandshakeIsAbandoned() throws Exception {
+		client.getConfig().setRetransmissionTimeout(100);
+		client.getConfig().setMaxRetransmit(1);
+		DatagramSocket peer = newPeer();
+		try {
+			InetSocketAddress peerAddress = (InetSocketAddress) peer.getLocalSocketAddress();
+			client.send(new RawData("0".getBytes(), peerAddress));
+			client.send(new RawData("1".getBytes(), peerAddress));
+			assertTrue(receive(peer) instanceof ClientHello);
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (client.getSessionByAddress(peerAddress) != null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertNull(client.getSessionByAddress(peerAddress));
+			assertNull(client.getHandshaker(peerAddress));
+			assertEquals(2, client.getDroppedPendingMessageCount());
+
+			// discard the ClientHellos of the abandoned handshake
+			peer.setSoTimeout(500);
+			try {
+				while (true) {
+					receive(peer);
+				}
+			} catch (SocketTimeoutException e) {
+				// none left
+			}
+			// the next message starts a fresh handshake
+			peer.setSoTimeout(10000);
+			client.send(new RawData("2".getBytes(), peerAddress));
+			assertTrue(receive(peer) instanceof ClientHello);
+		} finally {
+			peer.close();
+		}
+	}
+
+	@Test
+	public void testClientHelloWithoutCookieIsAnsweredStatelessly() throws Exception {
+		DatagramSocket peer = newPeer();
+		try {
+			InetSocketAddress peerAddress = (InetSocketAddress) peer.getLocalSocketAddress();
+			send(peer, newClientHello(), 0);
+
+			assertTrue(receive(peer) instanceof HelloVerifyRequest);
+			assertNull(server.getSessionByAddress(peerAddress));
+			assertNull(server.getHandshaker(peerAddress));
+		} finally {
+			peer.close();
+		}
+	}
+
+	@Test
+	public void testClientHelloWithValidCookieCreatesOneSession() throws Exception {
+		DatagramSocket peer = newPeer();
+		try {
+			InetSocketAddress peerAddress = (InetSocketAddress) peer.getLocalSocketAddress();
+			ClientHello clientHello = newClientHello();
+			send(peer, clientHello, 0);
+			setCookie(clientHello, (HelloVerifyRequest) receive(peer));
+
+			send(peer, clientHello, 1);
+			assertTrue(receive(peer) instanceof ServerHello);
+			DTLSSession session = server.getSessionByAddress(peerAddress);
+			assertNotNull(session);
+			assertNotNull(server.getHandshaker(peerAddress));
+
+			// a retransmission is handled by the same handshake
+			send(peer, clientHello, 2);
+			assertSame(session, server.getSessionByAddress(peerAddress));
+		} finally {
+			peer.close();
+		}
+	}
+
+	@Test
+	public void testClientHelloWithInvalidCookieIsNotProcessed() throws Exception {
+		DatagramSocket peer = newPeer();
+		try {
+			InetSocketAddress peerAddress = (InetSocketAddress) peer.getLocalSocketAddress();
+			ClientHello clientHello = newClientHello();
+			clientHello.setCookie(new Cookie(new byte[32]));
+			clientHello.setFragmentLength(clientHello.getMessageLength());
+			clientHello.setMessageSeq(1);
+			send(peer, clientHello, 0);
+
+			// a new cookie is requested
+			assertTrue(receive(peer) instanceof HelloVerifyRequest);
+			assertNull(server.getSessionByAddress(peerAddress));
+			assertNull(server.getHandshaker(peerAddress));
+		} finally {
+			peer.close();
+		}
+	}
+
+	@Test
+	public void testFragmentedClientHelloIsDropped() throws Exception {
+		DatagramSocket peer = newPeer();
+		try {
+			InetSocketAddress peerAddress = (InetSocketAddress) peer.getLocalSocketAddress();
+			ClientHello clientHello = newClientHello();
+			send(peer, clientHello, 0);
+			setCookie(clientHello, (HelloVerifyRequest) receive(peer));
+
+			// the first half of the ClientHello with a valid cookie
+			byte[] message = clientHello.toByteArray();
+			int length = (message.length - HANDSHAKE_HEADER_LENGTH) / 2;
+			byte[] fragment = Arrays.copyOf(message, HANDSHAKE_HEADER_LENGTH + length);
+			fragment[9] = (byte) (length >> 16);
+			fragment[10] = (byte) (length >> 8);
+			fragment[11] = (byte) length;
+			peer.send(newDatagram(DtlsTestTools.newDTLSRecord(22, 0, 1, fragment)));
+
+			// the datagrams are processed in order, the fragment has been discarded once this is answered
+			send(peer, newClientHello(), 2);
+			assertTrue(receive(peer) instanceof HelloVerifyRequest);
+			assertNull(server.getSessionByAddress(peerAddress));
+			assertNull(server.getHandshaker(peerAddress));
+		} finally {
+			peer.close();
+		}
+	}
+
+	@Test
+	public void testClientHelloResumingSessionRequiresCookie() throws Exception {
+		client.send(new RawData("0".getBytes(), server.getAddress()));
+		InetSocketAddress clientAddress = assertMessage("0").getInetSocketAddress();
+		DTLSSession established = server.getSessionByAddress(clientAddress);
+
+		DatagramSocket peer = newPeer();
+		try {
+			InetSocketAddress peerAddress = (InetSocketAddress) peer.getLocalSocketAddress();
+			ClientHello clientHello = newClientHello();
+			clientHello.setSessionId(established.getSessionIdentifier());
+			send(peer, clientHello, 0);
+
+			assertTrue(receive(peer) instanceof HelloVerifyRequest);
+			assertNull(server.getSessionByAddress(peerAddress));
+			assertNull(server.getHandshaker(peerAddress));
+			assertSame(established, server.getSessionByAddress(clientAddress));
+			assertTrue(established.isActive());
+		} finally {
+			peer.close();
+		}
+	}
+
+	/**
+	 * Forwards the datagrams between client and server, except for the
+	 * server's last flight of the handshake, which is dropped once.
+	 */
+	private static class Relay implements Runnable {
+
+		private static final int CHANGE_CIPHER_SPEC = 20;
+
+		private final DatagramSocket socket;
+
+		private final InetSocketAddress clientAddress;
+
+		private final InetSocketAddress serverAddress;
+
+		private final AtomicBoolean droppedLastFlight = new AtomicBoolean();
+
+		Relay(InetSocketAddress clientAddress, InetSocketAddress serverAddress) throws IOException {
+			this.socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+			this.clientAddress = clientAddress;
+			this.serverAddress = serverAddress;
+			Thread thread = new Thread(this, "DTLS-Test-Relay");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		InetSocketAddress getAddress() {
+			return (InetSocketAddress) socket.getLocalSocketAddress();
+		}
+
+		void close() {
+			socket.close();
+		}
+
+		@Override
+		public void run() {
+			DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+			try {
+				while (true) {
+					packet.setLength(2048);
+					socket.receive(packet);
+					if (serverAddress.equals(packet.getSocketAddress())) {
+						// the server's flight ChangeCipherSpec, Finished
+						if (packet.getData()[0] == CHANGE_CIPHER_SPEC && droppedLastFlight.compareAndSet(false, true)) {
+							continue;
+						}
+						packet.setSocketAddress(clientAddress);
+					} else {
+						packet.setSocketAddress(serverAddress);
+					}
+					socket.send(packet);
+				}
+			} catch (IOException e) {
+				// relay closed
+			}
+		}
+	}
+
+	private DatagramSocket newPeer() throws IOException {
+		DatagramSocket peer = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+		peer.setSoTimeout(10000);
+		return peer;
+	}
+
+	private DatagramPacket newDatagram(byte[] data) {
+		return new DatagramPacket(data, data.length, server.getAddress());
+	}
+
+	private void send(DatagramSocket peer, ClientHello clientHello, long sequenceNumber) throws IOException {
+		peer.send(newDatagram(DtlsTestTools.newDTLSRecord(22, 0, sequenceNumber, clientHello.toByteArray())));
+	}
+
+	private static DTLSMessage receive(DatagramSocket peer) throws Exception {
+		DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+		peer.receive(packet);
+		List<Record> records = Record.fromByteArray(Arrays.copyOf(packet.getData(), packet.getLength()));
+		return records.get(0).getFragment();
+	}
+
+	private static ClientHello newClientHello() {
+		ClientHello clientHello = new ClientHello(new ProtocolVersion(), new SecureRandom(), false);
+		clientHello.addCipherSuite(CipherSuite.TLS_PSK_WITH_AES_128_CCM_8);
+		clientHello.addCompressionMethod(CompressionMethod.NULL);
+		return clientHello;
+	}
+
+	private static void setCookie(ClientHello clientHello, HelloVerifyRequest helloVerifyRequest) {
+		clientHello.setCookie(helloVerifyRequest.getCookie());
+		clientHello.setFragmentLength(clientHello.getMessageLength());
+		clientHello.setMessageSeq(1);
+	}
+
+	private RawData assertMessage(String expected) throws InterruptedException {
+		RawData raw = received.poll(10, TimeUnit.SECONDS);
+		assertNotNull("no message received", raw);
+		assertEquals(expected, new String(raw.getBytes()));
+		return raw;
+	}
+}
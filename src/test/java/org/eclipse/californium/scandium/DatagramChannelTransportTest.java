@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DatagramChannelTransportTest {
+
+	private DatagramChannelTransport sender;
+
+	private DatagramChannelTransport receiver;
+
+	@Before
+	public void openTransports() throws IOException {
+		DTLSConnectorConfig config = new DTLSConnector(new InetSocketAddress(0)).getConfig();
+		config.setReceiveBufferSize(1 << 20);
+		sender = new DatagramChannelTransport(new InetSocketAddress("127.0.0.1", 0), config);
+		receiver = new DatagramChannelTransport(new InetSocketAddress("127.0.0.1", 0), config);
+	}
+
+	@After
+	public void closeTransports() {
+		sender.close();
+		receiver.close();
+	}
+
+	@Test
+	public void testSendAndReceive() throws IOException {
+		byte[] datagram = newDatagram(100);
+		ByteBuffer buffer = ByteBuffer.wrap(datagram);
+		sender.send(buffer, receiver.getLocalAddress());
+		assertEquals(0, buffer.remaining());
+
+		ByteBuffer received = ByteBuffer.allocate(200);
+		InetSocketAddress source = receiver.receive(received);
+		assertEquals(sender.getLocalAddress(), source);
+		assertArrayEquals(datagram, Arrays.copyOf(received.array(), received.position()));
+	}
+
+	@Test
+	public void testReceiveTruncatesDatagramToBuffer() throws IOException {
+		byte[] datagram = newDatagram(100);
+		sender.send(ByteBuffer.wrap(datagram), receiver.getLocalAddress());
+
+		ByteBuffer received = ByteBuffer.allocate(60);
+		received.position(10);
+		receiver.receive(received);
+		assertEquals(60, received.position());
+		assertArrayEquals(Arrays.copyOf(datagram, 50), Arrays.copyOfRange(received.array(), 10, 60));
+	}
+
+	@Test
+	public void testBurstIsNotDropped() throws IOException {
+		int count = 500;
+		for (int i = 0; i < count; i++) {
+			sender.send(ByteBuffer.wrap(newDatagram(1000)), receiver.getLocalAddress());
+		}
+		assertEquals(0, sender.getDroppedDatagramCount());
+
+		ByteBuffer received = ByteBuffer.allocate(1000);
+		for (int i = 0; i < count; i++) {
+			received.clear();
+			receiver.receive(received);
+			assertEquals(1000, received.position());
+		}
+	}
+
+	@Test
+	public void testCloseUnblocksReceive() throws Exception {
+		final CountDownLatch failed = new CountDownLatch(1);
+		Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					receiver.receive(ByteBuffer.allocate(100));
+				} catch (IOException e) {
+					failed.countDown();
+				}
+			}
+		};
+		thread.start();
+		// let the thread block in the selector
+		Thread.sleep(100);
+		receiver.close();
+		assertTrue(failed.await(2, TimeUnit.SECONDS));
+	}
+
+	private static byte[] newDatagram(int length) {
+		byte[] datagram = new byte[length];
+		for (int i = 0; i < length; i++) {
+			datagram[i] = (byte) i;
+		}
+		return datagram;
+	}
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PeerAddressMapTest {
+
+	@Test
+	public void testIpv4AndIpv6PeersAreDistinct() throws Exception {
+		PeerAddressMap<String> map = new PeerAddressMap<String>();
+		InetSocketAddress ipv4 = new InetSocketAddress(InetAddress.getByName("192.168.0.1"), 5684);
+		InetSocketAddress ipv4OtherPort = new InetSocketAddress(InetAddress.getByName("192.168.0.1"), 5685);
+		InetSocketAddress ipv6 = new InetSocketAddress(InetAddress.getByName("fe80::1"), 5684);
+
+		assertNull(map.put(ipv4, "a"));
+		assertNull(map.put(ipv4OtherPort, "b"));
+		assertNull(map.put(ipv6, "c"));
+		assertEquals("a", map.put(ipv4, "d"));
+		assertEquals(3, map.size());
+
+		assertEquals("d", map.get(new InetSocketAddress(InetAddress.getByName("192.168.0.1"), 5684)));
+		assertEquals("c", map.get(new InetSocketAddress(InetAddress.getByName("fe80::1"), 5684)));
+		assertEquals("b", map.remove(ipv4OtherPort));
+		assertNull(map.get(ipv4OtherPort));
+		assertEquals(2, map.values().size());
+	}
+
+	@Test
+	public void testBehavesLikeHashMap() throws Exception {
+		PeerAddressMap<Integer> map = new PeerAddressMap<Integer>();
+		Map<InetSocketAddress, Integer> expected = new HashMap<InetSocketAddress, Integer>();
+		Random random = new Random(42);
+
+		// few distinct peers to exercise collisions, growth and removal
+		for (int i = 0; i < 50000; i++) {
+			byte[] address = new byte[]{10, 0, 0, (byte) random.nextInt(64)};
+			InetSocketAddress peer = new InetSocketAddress(InetAddress.getByAddress(address), random.nextInt(32));
+			switch (random.nextInt(3)) {
+			case 0:
+				assertEquals(expected.put(peer, i), map.put(peer, i));
+				break;
+			case 1:
+				assertEquals(expected.remove(peer), map.remove(peer));
+				break;
+			default:
+				assertEquals(expected.get(peer), map.get(peer));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (Map.Entry<InetSocketAddress, Integer> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+		}
+	}
+}
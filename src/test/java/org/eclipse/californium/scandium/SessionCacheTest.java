@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.scandium.dtls.DTLSSession;
+import org.eclipse.californium.scandium.dtls.SessionId;
+import org.eclipse.californium.scandium.dtls.sessionstore.SessionStore;
+import org.eclipse.californium.scandium.util.HashedWheelTimer;
+import org.junit.Test;
+
+public class SessionCacheTest {
+
+	private static final InetSocketAddress PEER = new InetSocketAddress("127.0.0.1", 5684);
+
+	private final List<InetSocketAddress> evictedPeers = new ArrayList<InetSocketAddress>();
+
+	private final SessionCache cache = new SessionCache(new SessionCache.EvictionListener() {
+
+		@Override
+		public void sessionEvicted(InetSocketAddress peerAddress, DTLSSession session) {
+			evictedPeers.add(peerAddress);
+		}
+	});
+
+	@Test
+	public void testFindByIdAfterIndexing() {
+		DTLSSession session = new DTLSSession(PEER, false);
+		cache.put(PEER, session);
+
+		SessionId id = new SessionId();
+		assertNull(cache.findById(id));
+		session.setSessionIdentifier(id);
+		cache.index(PEER);
+
+		// lookup with an equal identifier as received in a ClientHello
+		assertSame(session, cache.findById(new SessionId(id.getSessionId().clone())));
+	}
+
+	@Test
+	public void testRemoveAndReplaceUnindexSession() {
+		DTLSSession session = new DTLSSession(PEER, false);
+		session.setSessionIdentifier(new SessionId());
+		cache.put(PEER, session);
+		assertSame(session, cache.findById(session.getSessionIdentifier()));
+
+		DTLSSession newSession = new DTLSSession(PEER, false);
+		newSession.setSessionIdentifier(new SessionId());
+		cache.put(PEER, newSession);
+		assertNull(cache.findById(session.getSessionIdentifier()));
+		assertSame(newSession, cache.findById(newSession.getSessionIdentifier()));
+
+		assertSame(newSession, cache.remove(PEER));
+		assertNull(cache.findById(newSession.getSessionIdentifier()));
+	}
+
+	@Test
+	public void testResumeFromNewAddressDropsPreviousAddress() {
+		DTLSSession session = new DTLSSession(PEER, false);
+		session.setSessionIdentifier(new SessionId());
+		session.setActive(true);
+		cache.put(PEER, session);
+
+		InetSocketAddress newPeer = new InetSocketAddress("127.0.0.1", 5685);
+		DTLSSession resumed = new DTLSSession(newPeer, cache.findById(session.getSessionIdentifier()));
+		// the peer has not proved yet that it knows the master secret
+		assertSame(session, cache.get(PEER));
+		assertNull(cache.get(newPeer));
+
+		resumed.setActive(true);
+		cache.resume(newPeer, resumed);
+		assertSame(resumed, cache.get(newPeer));
+		assertNull(cache.get(PEER));
+		assertSame(resumed, cache.findById(session.getSessionIdentifier()));
+		assertEquals(1, evictedPeers.size());
+		assertEquals(PEER, evictedPeers.get(0));
+	}
+
+	@Test
+	public void testClientSessionsAreNotIndexed() {
+		DTLSSession session = new DTLSSession(PEER, true);
+		session.setSessionIdentifier(new SessionId());
+		cache.put(PEER, session);
+		assertNull(cache.findById(session.getSessionIdentifier()));
+	}
+
+	@Test
+	public void testFullCacheEvictsSession() {
+		DTLSConnectorConfig config = new DTLSConnectorConfig(new DTLSConnector(PEER));
+		config.setMaxSessions(10);
+		startCache(config);
+
+		for (int port = 1; port <= 20; port++) {
+			cache.put(new InetSocketAddress("127.0.0.1", port), new DTLSSession(PEER, false));
+		}
+		assertEquals(10, cache.size());
+		assertEquals(10, evictedPeers.size());
+	}
+
+	@Test
+	public void testIdleSessionStaysResumable() {
+		DTLSConnectorConfig config = new DTLSConnectorConfig(new DTLSConnector(PEER));
+		config.setSessionIdleTimeout(1000);
+		startCache(config);
+
+		DTLSSession established = new DTLSSession(PEER, false);
+		established.setSessionIdentifier(new SessionId());
+		established.setActive(true);
+		cache.put(PEER, established);
+		InetSocketAddress otherPeer = new InetSocketAddress("127.0.0.1", 5685);
+		cache.put(otherPeer, new DTLSSession(otherPeer, false));
+
+		cache.sweep(System.currentTimeMillis() + 2000);
+		assertEquals(0, cache.size());
+		assertEquals(2, evictedPeers.size());
+		assertNull(cache.get(PEER));
+		assertSame(established, cache.findById(established.getSessionIdentifier()));
+	}
+
+	@Test
+	public void testExpiredSessionIsNotResumable() {
+		DTLSConnectorConfig config = new DTLSConnectorConfig(new DTLSConnector(PEER));
+		config.setSessionLifetime(1000);
+		startCache(config);
+
+		DTLSSession session = new DTLSSession(PEER, false);
+		session.setSessionIdentifier(new SessionId());
+		session.setActive(true);
+		session.setCreationTime(System.currentTimeMillis() - 2000);
+		cache.put(PEER, session);
+		assertNull(cache.findById(session.getSessionIdentifier()));
+
+		cache.sweep(System.currentTimeMillis());
+		assertNull(cache.get(PEER));
+		assertNull(cache.findById(session.getSessionIdentifier()));
+	}
+
+	@Test
+	public void testStoreIsUpdatedOffTheCallingThread() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<DTLSSession> stored = new CopyOnWriteArrayList<DTLSSession>();
+		DTLSConnectorConfig config = new DTLSConnectorConfig(new DTLSConnector(PEER));
+		config.setSessionStore(new SessionStore() {
+
+			@Override
+			public void put(DTLSSession session) {
+				try {
+					// slow I/O
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				stored.add(session);
+			}
+
+			@Override
+			public DTLSSession get(SessionId id) {
+				return null;
+			}
+
+			@Override
+			public void remove(SessionId id) {
+			}
+		});
+		HashedWheelTimer timer = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 8);
+		cache.start(config, timer);
+		try {
+			DTLSSession session = new DTLSSession(PEER, false);
+			session.setSessionIdentifier(new SessionId());
+			cache.put(PEER, session);
+			session.setActive(true);
+			// returns although the store blocks
+			cache.index(PEER);
+			assertTrue(stored.isEmpty());
+
+			release.countDown();
+		} finally {
+			// waits for the pending update
+			cache.stop();
+			timer.stop();
+		}
+		assertEquals(1, stored.size());
+	}
+
+	private void startCache(DTLSConnectorConfig config) {
+		HashedWheelTimer timer = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 8);
+		cache.start(config, timer);
+		cache.stop();
+		timer.stop();
+	}
+}
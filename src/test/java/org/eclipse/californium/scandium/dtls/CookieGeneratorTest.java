@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.junit.Test;
+
+public class CookieGeneratorTest {
+
+	private static final InetSocketAddress CLIENT = new InetSocketAddress("10.192.10.1", 7000);
+
+	@Test
+	public void testCookieOfSameClientIsValid() {
+		CookieGenerator generator = new CookieGenerator();
+		ClientHello clientHello = newClientHello();
+
+		clientHello.setCookie(generator.generateCookie(CLIENT, clientHello));
+		assertTrue(generator.isValidCookie(CLIENT, clientHello));
+	}
+
+	@Test
+	public void testCookieOfOtherAddressIsInvalid() {
+		CookieGenerator generator = new CookieGenerator();
+		ClientHello clientHello = newClientHello();
+
+		clientHello.setCookie(generator.generateCookie(CLIENT, clientHello));
+		assertFalse(generator.isValidCookie(new InetSocketAddress("10.192.10.1", 7001), clientHello));
+		assertFalse(generator.isValidCookie(new InetSocketAddress("10.192.10.2", 7000), clientHello));
+		assertFalse(new CookieGenerator().isValidCookie(CLIENT, clientHello));
+	}
+
+	@Test
+	public void testCookieOfPreviousSecretIsValidUntilNextRotation() throws Exception {
+		CookieGenerator generator = new CookieGenerator(200);
+		ClientHello clientHello = newClientHello();
+		clientHello.setCookie(generator.generateCookie(CLIENT, clientHello));
+
+		Thread.sleep(250);
+		assertTrue(generator.isValidCookie(CLIENT, clientHello));
+
+		Thread.sleep(250);
+		assertFalse(generator.isValidCookie(CLIENT, clientHello));
+	}
+
+	private static ClientHello newClientHello() {
+		ClientHello clientHello = new ClientHello(new ProtocolVersion(), new SecureRandom(), false);
+		clientHello.addCipherSuite(CipherSuite.TLS_PSK_WITH_AES_128_CCM_8);
+		clientHello.addCompressionMethod(CompressionMethod.NULL);
+		return clientHello;
+	}
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DTLSSessionTest {
+
+	DTLSSession session;
+
+	@Before
+	public void setUp() {
+		session = new DTLSSession(new InetSocketAddress("10.192.10.1", 7000), true);
+		session.setReadEpoch(1);
+	}
+
+	@Test
+	public void testIsDuplicateDetectsReceivedRecords() {
+		session.markRecordAsRead(1, 0);
+		session.markRecordAsRead(1, 2);
+
+		assertTrue(session.isDuplicate(1, 0));
+		assertFalse(session.isDuplicate(1, 1));
+		assertTrue(session.isDuplicate(1, 2));
+		assertFalse(session.isDuplicate(1, 3));
+	}
+
+	@Test
+	public void testIsDuplicateRejectsRecordsLeftOfWindow() {
+		session.markRecordAsRead(1, 0);
+		session.markRecordAsRead(1, DTLSSession.RECEIVE_WINDOW_SIZE + 10);
+
+		assertTrue(session.isDuplicate(1, 10));
+		assertFalse(session.isDuplicate(1, 11));
+	}
+
+	@Test
+	public void testResumingLeavesResumedSessionIntact() {
+		session.setSessionIdentifier(new SessionId());
+		session.setCipherSuite(CipherSuite.TLS_PSK_WITH_AES_128_CCM_8);
+		session.setMasterSecret(new byte[48]);
+		session.setPskIdentity("client");
+		session.incrementWriteEpoch();
+		session.setActive(true);
+
+		InetSocketAddress newPeer = new InetSocketAddress("10.192.10.2", 7000);
+		DTLSSession resumed = new DTLSSession(newPeer, session);
+		assertEquals(newPeer, resumed.getPeer());
+		assertEquals(session.getSessionIdentifier(), resumed.getSessionIdentifier());
+		assertEquals(session.getCipherSuite(), resumed.getCipherSuite());
+		assertEquals(session.getPskIdentity(), resumed.getPskIdentity());
+		assertEquals(session.getCreationTime(), resumed.getCreationTime());
+		assertFalse(resumed.isActive());
+		assertEquals(0, resumed.getReadEpoch());
+		assertEquals(0, resumed.getWriteEpoch());
+
+		resumed.incrementReadEpoch();
+		assertTrue(session.isActive());
+		assertEquals(1, session.getReadEpoch());
+		assertEquals(1, session.getWriteEpoch());
+		assertEquals(new InetSocketAddress("10.192.10.1", 7000), session.getPeer());
+	}
+
+	@Test
+	public void testIsDuplicateIgnoresOtherEpochs() {
+		session.markRecordAsRead(1, 5);
+		assertFalse(session.isDuplicate(2, 5));
+
+		session.incrementReadEpoch();
+		assertFalse(session.isDuplicate(2, 5));
+		// records of the old epoch are not marked anymore
+		session.markRecordAsRead(1, 6);
+		assertFalse(session.isDuplicate(2, 6));
+	}
+
+	@Test
+	public void testSequenceNumbersAreUniqueAcrossThreads() throws Exception {
+		session.incrementWriteEpoch();
+		final int perThread = 10000;
+		final boolean[] used = new boolean[4 * perThread];
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < perThread; j++) {
+						int sequenceNumber = session.getSequenceNumber(1);
+						synchronized (used) {
+							assertFalse(used[sequenceNumber]);
+							used[sequenceNumber] = true;
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(4 * perThread, session.getSequenceNumber(1));
+	}
+}
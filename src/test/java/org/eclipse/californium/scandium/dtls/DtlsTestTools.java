@@ -16,8 +16,11 @@
 package org.eclipse.californium.scandium.dtls;
 
 import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
 import org.eclipse.californium.scandium.util.DatagramWriter;
@@ -39,7 +42,7 @@ public class DtlsTestTools {
     	return writer.toByteArray();
     }
 
-    public static final byte[] generateCookie(InetSocketAddress endpointAddress, ClientHello clientHello) throws NoSuchAlgorithmException {
+    public static final byte[] generateCookie(InetSocketAddress endpointAddress, ClientHello clientHello) throws GeneralSecurityException {
 
         MessageDigest md;
         byte[] cookie = null;
@@ -62,7 +65,9 @@ public class DtlsTestTools {
 
         byte[] data = md.digest();
 
-        cookie = Handshaker.doHMAC(md, secret, data);
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(secret, "MAC"));
+        cookie = hmac.doFinal(data);
         return cookie;
     }
 
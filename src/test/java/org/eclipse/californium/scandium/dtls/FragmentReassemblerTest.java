@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class FragmentReassemblerTest {
+
+	private static final byte[] MESSAGE = new byte[100];
+
+	static {
+		for (int i = 0; i < MESSAGE.length; i++) {
+			MESSAGE[i] = (byte) i;
+		}
+	}
+
+	@Test
+	public void testReassemblesFragmentsInAnyOrder() throws Exception {
+		FragmentReassembler reassembler = new FragmentReassembler(fragment(60, 40));
+
+		reassembler.add(fragment(60, 40));
+		assertFalse(reassembler.isComplete());
+		reassembler.add(fragment(0, 30));
+		assertFalse(reassembler.isComplete());
+		reassembler.add(fragment(30, 30));
+		assertTrue(reassembler.isComplete());
+
+		FragmentedHandshakeMessage message = reassembler.getMessage();
+		assertEquals(0, message.getFragmentOffset());
+		assertEquals(MESSAGE.length, message.getMessageLength());
+		assertEquals(3, message.getMessageSeq());
+		assertArrayEquals(MESSAGE, message.fragmentToByteArray());
+	}
+
+	@Test
+	public void testReassemblesOverlappingAndDuplicateFragments() throws Exception {
+		FragmentReassembler reassembler = new FragmentReassembler(fragment(0, 40));
+
+		reassembler.add(fragment(0, 40));
+		reassembler.add(fragment(0, 40));
+		reassembler.add(fragment(70, 30));
+		reassembler.add(fragment(20, 30));
+		assertFalse(reassembler.isComplete());
+		// covers the gap as well as parts received before
+		reassembler.add(fragment(30, 50));
+		assertTrue(reassembler.isComplete());
+		assertArrayEquals(MESSAGE, reassembler.getMessage().fragmentToByteArray());
+	}
+
+	@Test(expected = HandshakeException.class)
+	public void testRejectsFragmentBeyondMessageLength() throws Exception {
+		FragmentReassembler reassembler = new FragmentReassembler(fragment(0, 40));
+		reassembler.add(new FragmentedHandshakeMessage(HandshakeType.CERTIFICATE, MESSAGE.length, 3, 90, new byte[20]));
+	}
+
+	@Test(expected = HandshakeException.class)
+	public void testRejectsFragmentWithOtherMessageLength() throws Exception {
+		FragmentReassembler reassembler = new FragmentReassembler(fragment(0, 40));
+		reassembler.add(fragment(0, 40));
+		reassembler.add(new FragmentedHandshakeMessage(HandshakeType.CERTIFICATE, MESSAGE.length + 1, 3, 40, new byte[20]));
+	}
+
+	private static FragmentedHandshakeMessage fragment(int offset, int length) {
+		byte[] bytes = Arrays.copyOfRange(MESSAGE, offset, offset + length);
+		return new FragmentedHandshakeMessage(HandshakeType.CERTIFICATE, MESSAGE.length, 3, offset, bytes);
+	}
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+/**
+ * Verifies the PRF with the test vectors of
+ * http://www.ietf.org/mail-archive/web/tls/current/msg03416.html.
+ */
+public class HandshakerTest {
+
+	@Test
+	public void testPrfSha256() {
+		byte[] secret = hex("9bbe436ba940f017b17652849a71db35");
+		byte[] seed = hex("a0ba9f936cda311827a6f796ffd5198c");
+		byte[] expected = hex("e3f229ba727be17b8d122620557cd453c2aab21d07c3d495329b52d4e61edb5a6b301791e90d35c9c9a46b4e14baf9af"
+				+ "0fa022f7077def17abfd3797c0564bab4fbc91666e9def9b97fce34f796789baa48082d122ee42c5a72e5a5110fff70187347b66");
+
+		assertArrayEquals(expected, Handshaker.doPRF(secret, Handshaker.TEST_LABEL, seed));
+	}
+
+	@Test
+	public void testPrfSha512() {
+		byte[] secret = hex("b0323523c1853599584d88568bbb05eb");
+		byte[] seed = hex("d4640e12e4bcdbfb437f03e6ae418ee5");
+		byte[] expected = hex("1261f588c798c5c201ff036e7a9cb5edcd7fe3f94c669a122a4638d7d508b283042df6789875c7147e906d868bc75c45"
+				+ "e20eb40c1cf4a1713b27371f68432592f7dc8ea8ef223e12ea8507841311bf68653d0cfc4056d811f025c45ddfa6e6fec702f054b409d6f28dd0a3233e498da41a3e75c5630eedbe22fe254e33a1b0e9f6b9826675bec7d01a845658dc9c397545401d40b9f46c7a400ee1b8f81ca0a60d1a397a1028bff5d2ef5066126842fb8da4197632bdb54ff6633f86bbc836e640d4d898");
+
+		assertArrayEquals(expected, Handshaker.doPRF(secret, Handshaker.TEST_LABEL_2, seed));
+	}
+
+	@Test
+	public void testPrfSha384() {
+		byte[] secret = hex("b80b733d6ceefcdc71566ea48e5567df");
+		byte[] seed = hex("cd665cf6a8447dd6ff8b27555edb7465");
+		byte[] expected = hex("7b0c18e9ced410ed1804f2cfa34a336a1c14dffb4900bb5fd7942107e81c83cde9ca0faa60be9fe34f82b1233c9146a0"
+				+ "e534cb400fed2700884f9dc236f80edd8bfa961144c9e8d792eca722a7b32fc3d416d473ebc2c5fd4abfdad05d9184259b5bf8cd4d90fa0d31e2dec479e4f1a26066f2eea9a69236a3e52655c9e9aee691c8f3a26854308d5eaa3be85e0990703d73e56f");
+
+		assertArrayEquals(expected, Handshaker.doPRF(secret, Handshaker.TEST_LABEL_3, seed));
+	}
+
+	@Test
+	public void testPrfSha384ForFinished() {
+		byte[] secret = hex("b80b733d6ceefcdc71566ea48e5567df");
+		byte[] seed = hex("cd665cf6a8447dd6ff8b27555edb7465");
+		// the verify data is a truncated SHA-384 block
+		byte[] expected = hex("61f57bd9b6caf92e46d43421");
+
+		assertArrayEquals(expected, Handshaker.doPRF(Handshaker.PRF_SHA384, secret, Handshaker.CLIENT_FINISHED_LABEL, seed));
+	}
+
+	private static byte[] hex(String hex) {
+		byte[] bytes = new BigInteger("10" + hex, 16).toByteArray();
+		byte[] result = new byte[hex.length() / 2];
+		System.arraycopy(bytes, bytes.length - result.length, result, 0, result.length);
+		return result;
+	}
+}
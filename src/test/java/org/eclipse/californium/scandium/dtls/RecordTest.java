@@ -18,9 +18,14 @@
 package org.eclipse.californium.scandium.dtls;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 import static org.junit.Assert.assertTrue;
 
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.List;
 
@@ -32,7 +37,9 @@ import org.eclipse.californium.scandium.dtls.ContentType;
 import org.eclipse.californium.scandium.dtls.ProtocolVersion;
 import org.eclipse.californium.scandium.dtls.cipher.CCMBlockCipher;
 import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.eclipse.californium.scandium.dtls.cipher.GCMBlockCipher;
 import org.eclipse.californium.scandium.util.ByteArrayUtils;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -83,6 +90,34 @@ public class RecordTest {
 		assertEquals(protocolVer.getMinor(), record.getVersion().getMinor());
 	}
 	
+	@Test
+	public void testFromByteArrayParsesRecordsWithinBuffer() throws HandshakeException {
+		
+		byte[] fragment = newGenericAEADCipherFragment();
+		byte[] application_record = DtlsTestTools.newDTLSRecord(TYPE_APPL_DATA, EPOCH, SEQUENCE_NO, fragment);
+		// two records surrounded by some unrelated bytes
+		byte[] buffer = new byte[3 + 2 * application_record.length + 5];
+		System.arraycopy(application_record, 0, buffer, 3, application_record.length);
+		System.arraycopy(application_record, 0, buffer, 3 + application_record.length, application_record.length);
+		
+		List<Record> recordList = Record.fromByteArray(buffer, 3, 2 * application_record.length);
+		assertEquals(2, recordList.size());
+		for (Record record : recordList) {
+			assertEquals(SEQUENCE_NO, record.getSequenceNumber());
+			assertTrue(Arrays.equals(fragment, record.getFragmentBytes()));
+			record.setSession(session);
+			assertTrue(Arrays.equals(payloadData, ((ApplicationMessage) record.getFragment()).getData()));
+		}
+	}
+	
+	@Test
+	public void testFromByteArrayDiscardsTruncatedRecord() {
+		
+		byte[] application_record = DtlsTestTools.newDTLSRecord(TYPE_APPL_DATA, EPOCH, SEQUENCE_NO, newGenericAEADCipherFragment());
+		List<Record> recordList = Record.fromByteArray(application_record, 0, application_record.length - 1);
+		assertTrue(recordList.isEmpty());
+	}
+	
 	@Test
 	public void testFromByteArrayRejectsUnknownTypeCode() {
 		
@@ -110,6 +145,158 @@ public class RecordTest {
 		assertTrue(Arrays.equals(decryptedData, payloadData));
 	}
 	
+	@Test
+	public void testGetFragmentRejectsRecordThatCannotBeDecrypted() {
+		
+		byte[] fragment = newGenericAEADCipherFragment();
+		session.setReadEpoch(1);
+		// the cipher cannot be created without a key
+		session.getReadState().setEncryptionKey(null);
+		Record record = new Record(ContentType.APPLICATION_DATA, protocolVer, 1, SEQUENCE_NO, fragment.length, fragment);
+		record.setSession(session);
+		
+		try {
+			record.getFragment();
+			fail("Record must not be delivered");
+		} catch (HandshakeException e) {
+			assertEquals(AlertMessage.AlertDescription.BAD_RECORD_MAC, e.getAlert().getDescription());
+		}
+		// the replay window must only advance for authenticated records
+		assertFalse(record.isDuplicate());
+	}
+	
+	@Test
+	public void testEncryptAEADRoundTripWithGcmCipherSuite() throws Exception {
+		Assume.assumeTrue(GCMBlockCipher.isSupported());
+		for (DTLSConnectionState state : new DTLSConnectionState[]{session.getReadState(), session.getWriteState()}) {
+			state.setIv(new IvParameterSpec(client_iv));
+			state.setCipherSuite(CipherSuite.TLS_PSK_WITH_AES_128_GCM_SHA256);
+			state.setEncryptionKey(key);
+		}
+		Record record = new Record(ContentType.APPLICATION_DATA, protocolVer, EPOCH, SEQUENCE_NO, payloadLength, payloadData);
+		record.setSession(session);
+		
+		byte[] fragment = record.encryptAEAD(payloadData);
+		// 8 bytes explicit nonce and 16 bytes authentication tag
+		assertEquals(payloadLength + 24, fragment.length);
+		assertTrue(Arrays.equals(payloadData, record.decryptAEAD(fragment)));
+	}
+	
+	@Test
+	public void testWriteToEncryptsIntoBuffer() throws Exception {
+		session.setWriteState(session.getReadState());
+		Record record = new Record(ContentType.APPLICATION_DATA, EPOCH, (int) SEQUENCE_NO, new ApplicationMessage(payloadData), session);
+		
+		// keeps the encrypted fragment, so the record can be written again
+		byte[] expected = record.toByteArray();
+		ByteBuffer buffer = ByteBuffer.allocate(2 * record.size());
+		record.writeTo(buffer);
+		record.writeTo(buffer);
+		assertEquals(buffer.capacity(), buffer.position());
+		assertTrue(Arrays.equals(expected, Arrays.copyOf(buffer.array(), record.size())));
+		assertTrue(Arrays.equals(expected, Arrays.copyOfRange(buffer.array(), record.size(), buffer.capacity())));
+		
+		List<Record> recordList = Record.fromByteArray(buffer.array(), 0, buffer.position());
+		assertEquals(2, recordList.size());
+		for (Record received : recordList) {
+			received.setSession(session);
+			assertTrue(Arrays.equals(payloadData, ((ApplicationMessage) received.getFragment()).getData()));
+		}
+	}
+	
+	@Test
+	public void testWriteToEncryptsOncePerSequenceNumber() throws Exception {
+		session.setWriteState(session.getReadState());
+		Record record = new Record(ContentType.APPLICATION_DATA, EPOCH, (int) SEQUENCE_NO, new ApplicationMessage(payloadData), session);
+		ByteBuffer buffer = ByteBuffer.allocate(2 * record.size());
+		record.writeTo(buffer);
+		
+		try {
+			record.writeTo(buffer);
+			fail("Record must not be encrypted twice with the same nonce");
+		} catch (IllegalStateException e) {
+			// nothing must have been written
+			assertEquals(record.size(), buffer.position());
+		}
+		// a retransmitted record gets a new sequence number
+		record.setSequenceNumber((int) SEQUENCE_NO + 1);
+		record.writeTo(buffer);
+		assertEquals(buffer.capacity(), buffer.position());
+	}
+	
+	@Test
+	public void testWriteToDoesNotReuseFragmentOfOtherSequenceNumber() throws Exception {
+		session.setWriteState(session.getReadState());
+		Record record = new Record(ContentType.APPLICATION_DATA, EPOCH, (int) SEQUENCE_NO, new ApplicationMessage(payloadData), session);
+		record.toByteArray();
+		
+		record.setSequenceNumber((int) SEQUENCE_NO + 1);
+		ByteBuffer buffer = ByteBuffer.allocate(2 * record.size());
+		record.writeTo(buffer);
+		try {
+			record.writeTo(buffer);
+			fail("Record must not be written with the fragment encrypted for another sequence number");
+		} catch (IllegalStateException e) {
+			assertEquals(record.size(), buffer.position());
+		}
+		
+		List<Record> recordList = Record.fromByteArray(buffer.array(), 0, buffer.position());
+		assertEquals(1, recordList.size());
+		recordList.get(0).setSession(session);
+		assertTrue(Arrays.equals(payloadData, ((ApplicationMessage) recordList.get(0).getFragment()).getData()));
+	}
+	
+	@Test
+	public void testWriteToPropagatesEncryptionFailure() throws Exception {
+		session.setWriteState(session.getReadState());
+		// the cipher cannot be created without a key
+		session.getWriteState().setEncryptionKey(null);
+		Record record = new Record(ContentType.APPLICATION_DATA, EPOCH, (int) SEQUENCE_NO, new ApplicationMessage(payloadData), session);
+		ByteBuffer buffer = ByteBuffer.allocate(record.size());
+		
+		try {
+			record.writeTo(buffer);
+			fail("Record must not be written without its fragment");
+		} catch (GeneralSecurityException e) {
+			assertEquals(0, buffer.position());
+		}
+	}
+	
+	@Test
+	public void testWriteToDoesNotAllocateFragment() throws Exception {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+		
+		session.setWriteState(session.getReadState());
+		byte[] data = new byte[1024];
+		Record plaintextRecord = new Record(ContentType.HANDSHAKE, EPOCH, (int) SEQUENCE_NO, new ApplicationMessage(data), null);
+		Record encryptedRecord = new Record(ContentType.APPLICATION_DATA, EPOCH, (int) SEQUENCE_NO, new ApplicationMessage(data), session);
+		ByteBuffer buffer = ByteBuffer.allocate(encryptedRecord.size());
+		
+		int iterations = 1000;
+		for (Record record : new Record[]{plaintextRecord, encryptedRecord}) {
+			// warm up
+			for (int i = 0; i < iterations; i++) {
+				buffer.clear();
+				record.setSequenceNumber(i);
+				record.writeTo(buffer);
+			}
+			long threadId = Thread.currentThread().getId();
+			long allocated = threadBean.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < iterations; i++) {
+				buffer.clear();
+				// each encryption needs a new nonce
+				record.setSequenceNumber(iterations + i);
+				record.writeTo(buffer);
+			}
+			allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+			// neither the record nor its fragment must be copied, only the small nonce and
+			// additional data arrays of the AEAD cipher are allocated per record
+			assertTrue("allocated " + allocated / iterations + " bytes per record", allocated / iterations < 256);
+		}
+	}
+	
 	byte[] newGenericAEADCipherFragment() {
 		// 64bit sequence number, consisting of 16bit epoch (0) + 48bit sequence number (5)
 		byte[] seq_num = new byte[]{0x00, (byte) EPOCH, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) SEQUENCE_NO};
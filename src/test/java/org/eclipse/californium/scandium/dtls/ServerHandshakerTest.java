@@ -16,14 +16,18 @@
 package org.eclipse.californium.scandium.dtls;
 
 import java.net.InetSocketAddress;
+import java.security.MessageDigest;
 import java.security.cert.Certificate;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.scandium.DTLSConnector;
 import org.eclipse.californium.scandium.DTLSConnectorConfig;
 import org.eclipse.californium.scandium.dtls.AlertMessage.AlertDescription;
 import org.eclipse.californium.scandium.dtls.CertificateTypeExtension.CertificateType;
+import org.eclipse.californium.scandium.dtls.sessionstore.SessionTicketProtector;
 import org.eclipse.californium.scandium.util.DatagramWriter;
 import org.junit.Assert;
 import org.junit.Before;
@@ -59,16 +63,20 @@ public class ServerHandshakerTest {
     }
     
     @Test
-    public void testReceiveClientHelloSupportsUnknownCiphers() throws HandshakeException {
+    public void testReceiveClientHelloSupportsUnknownCiphers() throws Exception {
         
     	byte[] cookie = getCookieForClientHello(0, supportedCiphers, null);
         
         // process Client Hello including Cookie
-        processClientHello(1, cookie, supportedCiphers, null);
+        DTLSFlight flight = processClientHello(1, cookie, supportedCiphers, null);
         
-        byte[] loggedMsg = new byte[clientHelloMsg.length];
-        System.arraycopy(handshaker.handshakeMessages, 0, loggedMsg, 0, clientHelloMsg.length);
-        Assert.assertArrayEquals(clientHelloMsg, loggedMsg);
+        // the handshake hash covers the Client Hello and the server's flight
+        MessageDigest expected = MessageDigest.getInstance("SHA-256");
+        expected.update(clientHelloMsg);
+        for (Record record : flight.getMessages()) {
+        	expected.update(((HandshakeMessage) record.getFragment()).toByteArray());
+        }
+        Assert.assertArrayEquals(expected.digest(), ((MessageDigest) handshaker.md.clone()).digest());
     }
 
     @Test
@@ -120,6 +128,44 @@ public class ServerHandshakerTest {
 		Assert.assertTrue(ext.getCertificateTypes().contains(CertificateType.X_509));
     }
     
+    @Test
+    public void testReceiveClientHelloPromisesSessionTicket() throws HandshakeException {
+    	DTLSConnectorConfig config = new DTLSConnectorConfig(new DTLSConnector(new InetSocketAddress(0)));
+    	config.setSessionTicketProtector(new SessionTicketProtector(new byte[16], 60000));
+    	handshaker = new ServerHandshaker(endpoint, session, new Certificate[]{}, config);
+    	List<byte[]> extensions = new LinkedList<>();
+    	// empty SessionTicket extension (type 35)
+    	extensions.add(new byte[]{(byte) 0x00, (byte) 0x23, (byte) 0x00, (byte) 0x00});
+    	
+    	byte[] cookie = getCookieForClientHello(0, supportedCiphers, extensions);
+		DTLSFlight flight = processClientHello(1, cookie, supportedCiphers, extensions);
+		ServerHello serverHello = (ServerHello) flight.getMessages().get(0).getFragment();
+		// the session is kept by the client, not by its identifier
+		Assert.assertEquals(0, serverHello.getSessionId().length());
+		boolean promised = false;
+		for (HelloExtension ext : serverHello.getExtensions().getExtensions()) {
+			promised |= ext instanceof SessionTicketExtension;
+		}
+		Assert.assertTrue(promised);
+    }
+    
+    @Test
+    public void testPendingMessagesOverflow() {
+    	RawData first = new RawData(new byte[]{1});
+    	RawData second = new RawData(new byte[]{2});
+    	RawData third = new RawData(new byte[]{3});
+    	Assert.assertNull(handshaker.addPendingMessage(first, 2, false));
+    	Assert.assertNull(handshaker.addPendingMessage(second, 2, false));
+    	Assert.assertSame(third, handshaker.addPendingMessage(third, 2, false));
+    	Assert.assertSame(first, handshaker.addPendingMessage(third, 2, true));
+
+    	List<RawData> pending = handshaker.takePendingMessages();
+    	Assert.assertEquals(2, pending.size());
+    	Assert.assertSame(second, pending.get(0));
+    	Assert.assertSame(third, pending.get(1));
+    	Assert.assertTrue(handshaker.takePendingMessages().isEmpty());
+    }
+    
     @Test
     public void testReceiveClientHelloAbortsOnUnknownServerCertificateType() {
     	List<byte[]> extensions = new LinkedList<>();
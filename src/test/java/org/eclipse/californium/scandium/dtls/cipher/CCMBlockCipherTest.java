@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls.cipher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.eclipse.californium.scandium.dtls.AlertMessage.AlertDescription;
+import org.eclipse.californium.scandium.dtls.HandshakeException;
+import org.eclipse.californium.scandium.util.ByteArrayUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CCMBlockCipherTest {
+
+	// RFC 3610, Packet Vector #1
+	private static final byte[] RFC_NONCE = ByteArrayUtils.hexStreamToByteArray("00000003020100A0A1A2A3A4A5");
+	private static final byte[] RFC_CIPHERTEXT = ByteArrayUtils.hexStreamToByteArray(
+			"588C979A61C663D2F066D0C2C0F989806D5F6B61DAC38417E8D12CFDF926E0");
+
+	// 12 bytes nonce as used by TLS_PSK_WITH_AES_128_CCM_8, output of the former list based implementation
+	private static final byte[] DTLS_NONCE = ByteArrayUtils.hexStreamToByteArray("0102030405060708090A0B0C");
+	private static final byte[] DTLS_AAD = ByteArrayUtils.hexStreamToByteArray("0001000000000005170303002A");
+	private static final byte[] DTLS_CIPHERTEXT = ByteArrayUtils.hexStreamToByteArray(
+			"3C4289EF73A5A3D4494056C348AA7C4D9FA240E418E9373B2DC2AD21A5CAE0D92569752C773234F40065C6CD8CCBBAC58E0A");
+
+	byte[] key;
+	byte[] rfcAad;
+	byte[] rfcPayload;
+	byte[] dtlsPayload;
+
+	@Before
+	public void setUp() {
+		key = new byte[16];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = (byte) (0xC0 + i);
+		}
+		rfcAad = new byte[8];
+		for (int i = 0; i < rfcAad.length; i++) {
+			rfcAad[i] = (byte) i;
+		}
+		rfcPayload = new byte[23];
+		for (int i = 0; i < rfcPayload.length; i++) {
+			rfcPayload[i] = (byte) (8 + i);
+		}
+		dtlsPayload = new byte[42];
+		for (int i = 0; i < dtlsPayload.length; i++) {
+			dtlsPayload[i] = (byte) (i * 7);
+		}
+	}
+
+	@Test
+	public void testEncryptMatchesRfc3610PacketVector() throws Exception {
+		assertArrayEquals(RFC_CIPHERTEXT, CCMBlockCipher.encrypt(key, RFC_NONCE, rfcAad, rfcPayload, 8));
+
+		CCMBlockCipher ccm = new CCMBlockCipher(key, 8);
+		byte[] out = new byte[rfcPayload.length + 8];
+		assertEquals(out.length, ccm.encrypt(RFC_NONCE, rfcAad, 0, rfcAad.length, rfcPayload, 0, rfcPayload.length, out, 0));
+		assertArrayEquals(RFC_CIPHERTEXT, out);
+	}
+
+	@Test
+	public void testDecryptMatchesRfc3610PacketVector() throws Exception {
+		assertArrayEquals(rfcPayload, CCMBlockCipher.decrypt(key, RFC_NONCE, rfcAad, RFC_CIPHERTEXT, 8));
+	}
+
+	@Test
+	public void testEncryptIsCompatibleWithPreviousImplementation() throws Exception {
+		assertArrayEquals(DTLS_CIPHERTEXT, CCMBlockCipher.encrypt(key, DTLS_NONCE, DTLS_AAD, dtlsPayload, 8));
+	}
+
+	@Test
+	public void testEngineIsReusable() throws Exception {
+		CCMBlockCipher ccm = new CCMBlockCipher(key, 8);
+		byte[] out = new byte[dtlsPayload.length + 8];
+		for (int i = 0; i < 3; i++) {
+			ccm.encrypt(DTLS_NONCE, DTLS_AAD, 0, DTLS_AAD.length, dtlsPayload, 0, dtlsPayload.length, out, 0);
+			assertArrayEquals(DTLS_CIPHERTEXT, out);
+			ccm.encrypt(RFC_NONCE, rfcAad, 0, rfcAad.length, rfcPayload, 0, rfcPayload.length, out, 0);
+			assertArrayEquals(RFC_CIPHERTEXT, Arrays.copyOf(out, RFC_CIPHERTEXT.length));
+		}
+	}
+
+	@Test
+	public void testInPlaceRoundTripWithOffsets() throws Exception {
+		CCMBlockCipher ccm = new CCMBlockCipher(key, 8);
+		int offset = 5;
+		byte[] buffer = new byte[offset + dtlsPayload.length + 8 + 3];
+		System.arraycopy(dtlsPayload, 0, buffer, offset, dtlsPayload.length);
+
+		ccm.encrypt(DTLS_NONCE, DTLS_AAD, 0, DTLS_AAD.length, buffer, offset, dtlsPayload.length, buffer, offset);
+		assertArrayEquals(DTLS_CIPHERTEXT, Arrays.copyOfRange(buffer, offset, offset + DTLS_CIPHERTEXT.length));
+
+		int length = ccm.decrypt(DTLS_NONCE, DTLS_AAD, 0, DTLS_AAD.length, buffer, offset, DTLS_CIPHERTEXT.length, buffer, offset);
+		assertEquals(dtlsPayload.length, length);
+		assertArrayEquals(dtlsPayload, Arrays.copyOfRange(buffer, offset, offset + length));
+	}
+
+	@Test
+	public void testByteBufferRoundTrip() throws Exception {
+		CCMBlockCipher ccm = new CCMBlockCipher(key, 8);
+		ByteBuffer plain = ByteBuffer.wrap(dtlsPayload);
+		ByteBuffer encrypted = ByteBuffer.allocate(DTLS_CIPHERTEXT.length);
+		ccm.encrypt(DTLS_NONCE, DTLS_AAD, 0, DTLS_AAD.length, plain, encrypted);
+		assertArrayEquals(DTLS_CIPHERTEXT, encrypted.array());
+
+		encrypted.flip();
+		ByteBuffer decrypted = ByteBuffer.allocate(dtlsPayload.length);
+		ccm.decrypt(DTLS_NONCE, DTLS_AAD, 0, DTLS_AAD.length, encrypted, decrypted);
+		assertArrayEquals(dtlsPayload, decrypted.array());
+	}
+
+	@Test
+	public void testDecryptRejectsModifiedTagAndWipesOutput() throws Exception {
+		CCMBlockCipher ccm = new CCMBlockCipher(key, 8);
+		byte[] c = DTLS_CIPHERTEXT.clone();
+		c[c.length - 1] ^= 0x01;
+		byte[] out = new byte[dtlsPayload.length];
+		try {
+			ccm.decrypt(DTLS_NONCE, DTLS_AAD, 0, DTLS_AAD.length, c, 0, c.length, out, 0);
+			fail("Should have thrown " + HandshakeException.class.getSimpleName());
+		} catch (HandshakeException e) {
+			assertEquals(AlertDescription.BAD_RECORD_MAC, e.getAlert().getDescription());
+		}
+		assertArrayEquals(new byte[dtlsPayload.length], out);
+	}
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls.cipher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.eclipse.californium.scandium.dtls.AlertMessage.AlertDescription;
+import org.eclipse.californium.scandium.dtls.HandshakeException;
+import org.eclipse.californium.scandium.util.ByteArrayUtils;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChaCha20Poly1305CipherTest {
+
+	// RFC 7539, section 2.8.2
+	private static final byte[] NONCE = ByteArrayUtils.hexStreamToByteArray("070000004041424344454647");
+	private static final byte[] AAD = ByteArrayUtils.hexStreamToByteArray("50515253C0C1C2C3C4C5C6C7");
+	private static final byte[] CIPHERTEXT = ByteArrayUtils.hexStreamToByteArray(
+			"D31A8D34648E60DB7B86AFBC53EF7EC2A4ADED51296E08FEA9E2B5A736EE62D6"
+			+ "3DBEA45E8CA9671282FAFB69DA92728B1A71DE0A9E060B2905D6A5B67ECD3B36"
+			+ "92DDBD7F2D778B8C9803AEE328091B58FAB324E4FAD675945585808B4831D7BC"
+			+ "3FF4DEF08E4B7A9DE576D26586CEC64B6116"
+			+ "1AE10B594F09E26A7E902ECBD0600691");
+
+	SecretKeySpec key;
+	byte[] plaintext;
+
+	@Before
+	public void setUp() throws Exception {
+		byte[] rawKey = new byte[32];
+		for (int i = 0; i < rawKey.length; i++) {
+			rawKey[i] = (byte) (0x80 + i);
+		}
+		key = new SecretKeySpec(rawKey, "ChaCha20");
+		plaintext = ("Ladies and Gentlemen of the class of '99: If I could offer you only one tip for the future, "
+				+ "sunscreen would be it.").getBytes("US-ASCII");
+	}
+
+	@Test
+	public void testJavaImplementationMatchesRfc7539TestVector() throws Exception {
+		assertRoundTrip(new ChaCha20Poly1305Cipher(key, false));
+	}
+
+	@Test
+	public void testJceImplementationMatchesRfc7539TestVector() throws Exception {
+		Assume.assumeTrue(isJceSupported());
+		assertRoundTrip(new ChaCha20Poly1305Cipher(key, true));
+	}
+
+	@Test
+	public void testJavaImplementationRejectsModifiedCiphertext() throws Exception {
+		ChaCha20Poly1305Cipher cipher = new ChaCha20Poly1305Cipher(key, false);
+		byte[] c = CIPHERTEXT.clone();
+		c[3] ^= 0x01;
+		try {
+			cipher.decrypt(NONCE, AAD, 0, AAD.length, c, 0, c.length, new byte[plaintext.length], 0);
+			fail("Should have thrown " + HandshakeException.class.getSimpleName());
+		} catch (HandshakeException e) {
+			assertEquals(AlertDescription.BAD_RECORD_MAC, e.getAlert().getDescription());
+		}
+	}
+
+	private void assertRoundTrip(ChaCha20Poly1305Cipher cipher) throws Exception {
+		byte[] c = new byte[plaintext.length + cipher.getTagLength()];
+		assertEquals(c.length, cipher.encrypt(NONCE, AAD, 0, AAD.length, plaintext, 0, plaintext.length, c, 0));
+		assertArrayEquals(CIPHERTEXT, c);
+
+		byte[] m = new byte[plaintext.length];
+		assertEquals(m.length, cipher.decrypt(NONCE, AAD, 0, AAD.length, c, 0, c.length, m, 0));
+		assertArrayEquals(plaintext, m);
+	}
+
+	private static boolean isJceSupported() {
+		try {
+			Cipher.getInstance("ChaCha20-Poly1305");
+			return true;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls.sessionstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+
+import org.eclipse.californium.scandium.dtls.CompressionMethod;
+import org.eclipse.californium.scandium.dtls.DTLSSession;
+import org.eclipse.californium.scandium.dtls.SessionId;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileSessionStoreTest {
+
+	private static final byte[] KEY = new byte[16];
+
+	private File file;
+
+	private FileSessionStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("sessions", ".log");
+		file.delete();
+		store = new FileSessionStore(file, KEY);
+	}
+
+	@After
+	public void tearDown() {
+		store.close();
+		file.delete();
+	}
+
+	@Test
+	public void testSessionSurvivesReopening() throws Exception {
+		DTLSSession session = newSession();
+		store.put(session);
+
+		DTLSSession restored = reopen(KEY).get(new SessionId(session.getSessionIdentifier().getSessionId().clone()));
+		assertEquals(session.getSessionIdentifier(), restored.getSessionIdentifier());
+		assertEquals(session.getCipherSuite(), restored.getCipherSuite());
+		assertEquals(session.getCompressionMethod(), restored.getCompressionMethod());
+		assertArrayEquals(session.getMasterSecret(), restored.getMasterSecret());
+		assertEquals(session.getPskIdentity(), restored.getPskIdentity());
+		assertEquals(session.getCreationTime(), restored.getCreationTime());
+	}
+
+	@Test
+	public void testRemovedSessionIsNotRestored() throws Exception {
+		DTLSSession session = newSession();
+		store.put(session);
+		store.put(newSession());
+		store.remove(session.getSessionIdentifier());
+
+		assertNull(reopen(KEY).get(session.getSessionIdentifier()));
+	}
+
+	@Test
+	public void testWrongKeyDoesNotRestoreSession() throws Exception {
+		DTLSSession session = newSession();
+		store.put(session);
+
+		byte[] otherKey = new byte[16];
+		otherKey[0] = 1;
+		assertNull(reopen(otherKey).get(session.getSessionIdentifier()));
+	}
+
+	@Test
+	public void testTruncatedRecordIsIgnored() throws Exception {
+		DTLSSession session = newSession();
+		store.put(session);
+		DTLSSession torn = newSession();
+		store.put(torn);
+		store.close();
+
+		RandomAccessFile log = new RandomAccessFile(file, "rw");
+		log.setLength(log.length() - 5);
+		log.close();
+
+		FileSessionStore reopened = reopen(KEY);
+		assertNull(reopened.get(torn.getSessionIdentifier()));
+		assertArrayEquals(session.getMasterSecret(), reopened.get(session.getSessionIdentifier()).getMasterSecret());
+	}
+
+	@Test
+	public void testRecordWithCorruptLengthIsDiscarded() throws Exception {
+		DTLSSession session = newSession();
+		store.put(session);
+		store.close();
+		long validLength = file.length();
+
+		// a record announcing a payload of 2 GB
+		RandomAccessFile log = new RandomAccessFile(file, "rw");
+		log.seek(validLength);
+		log.writeByte(1);
+		log.writeByte(32);
+		log.write(new byte[32]);
+		log.writeInt(Integer.MAX_VALUE);
+		log.write(new byte[100]);
+		log.close();
+
+		FileSessionStore reopened = reopen(KEY);
+		assertArrayEquals(session.getMasterSecret(), reopened.get(session.getSessionIdentifier()).getMasterSecret());
+		assertEquals(validLength, file.length());
+
+		DTLSSession later = newSession();
+		reopened.put(later);
+		assertArrayEquals(later.getMasterSecret(), reopen(KEY).get(later.getSessionIdentifier()).getMasterSecret());
+	}
+
+	@Test
+	public void testCompactionKeepsLiveSessions() throws Exception {
+		DTLSSession session = newSession();
+		store.put(session);
+		long recordLength = file.length();
+		DTLSSession updated = newSession();
+		// enough obsolete records to compact the log
+		for (int i = 0; i < 1100; i++) {
+			store.put(updated);
+		}
+		// the log has been replaced by the compacted one
+		assertTrue(file.length() < 200 * recordLength);
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+		assertArrayEquals(session.getMasterSecret(), store.get(session.getSessionIdentifier()).getMasterSecret());
+		assertArrayEquals(updated.getMasterSecret(), store.get(updated.getSessionIdentifier()).getMasterSecret());
+
+		FileSessionStore reopened = reopen(KEY);
+		assertArrayEquals(session.getMasterSecret(), reopened.get(session.getSessionIdentifier()).getMasterSecret());
+		assertArrayEquals(updated.getMasterSecret(), reopened.get(updated.getSessionIdentifier()).getMasterSecret());
+	}
+
+	@Test
+	public void testGetDoesNotWaitForUpdates() throws Exception {
+		final DTLSSession session = newSession();
+		store.put(session);
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread writer = new Thread() {
+
+			@Override
+			public void run() {
+				// an update in progress, e.g. compacting the log
+				synchronized (store) {
+					locked.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		};
+		writer.start();
+		try {
+			locked.await();
+			assertArrayEquals(session.getMasterSecret(), store.get(session.getSessionIdentifier()).getMasterSecret());
+		} finally {
+			release.countDown();
+			writer.join();
+		}
+	}
+
+	private FileSessionStore reopen(byte[] key) throws Exception {
+		store.close();
+		store = new FileSessionStore(file, key);
+		return store;
+	}
+
+	private static DTLSSession newSession() {
+		DTLSSession session = new DTLSSession(null, false);
+		session.setSessionIdentifier(new SessionId());
+		session.setCipherSuite(CipherSuite.TLS_PSK_WITH_AES_128_CCM_8);
+		session.setCompressionMethod(CompressionMethod.NULL);
+		session.setPskIdentity("client");
+		byte[] masterSecret = new byte[48];
+		masterSecret[0] = 42;
+		session.setMasterSecret(masterSecret);
+		return session;
+	}
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.dtls.sessionstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.eclipse.californium.scandium.dtls.CompressionMethod;
+import org.eclipse.californium.scandium.dtls.DTLSSession;
+import org.eclipse.californium.scandium.dtls.SessionId;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.junit.Test;
+
+public class SessionTicketProtectorTest {
+
+	private static final byte[] SECRET = new byte[32];
+
+	@Test
+	public void testTicketRestoresSession() {
+		DTLSSession session = newSession();
+		byte[] ticket = new SessionTicketProtector(SECRET, 60000).protect(session);
+
+		// another server sharing the secret
+		DTLSSession restored = new SessionTicketProtector(SECRET, 60000).unprotect(ticket);
+		assertEquals(0, restored.getSessionIdentifier().length());
+		assertEquals(session.getCipherSuite(), restored.getCipherSuite());
+		assertArrayEquals(session.getMasterSecret(), restored.getMasterSecret());
+		assertEquals(session.getPskIdentity(), restored.getPskIdentity());
+		assertEquals(session.getCreationTime(), restored.getCreationTime());
+	}
+
+	@Test
+	public void testModifiedTicketIsRejected() {
+		SessionTicketProtector protector = new SessionTicketProtector(SECRET, 60000);
+		byte[] ticket = protector.protect(newSession());
+		ticket[ticket.length - 20] ^= 1;
+
+		assertNull(protector.unprotect(ticket));
+	}
+
+	@Test
+	public void testTicketOfOtherSecretIsRejected() {
+		byte[] ticket = new SessionTicketProtector(SECRET, 60000).protect(newSession());
+		byte[] otherSecret = new byte[32];
+		otherSecret[0] = 1;
+
+		assertNull(new SessionTicketProtector(otherSecret, 60000).unprotect(ticket));
+	}
+
+	@Test
+	public void testTicketOfExpiredKeyIsRejected() throws Exception {
+		SessionTicketProtector protector = new SessionTicketProtector(SECRET, 1);
+		byte[] ticket = protector.protect(newSession());
+		// the key rotates every millisecond
+		Thread.sleep(10);
+
+		assertNull(protector.unprotect(ticket));
+	}
+
+	private static DTLSSession newSession() {
+		DTLSSession session = new DTLSSession(null, false);
+		session.setSessionIdentifier(new SessionId());
+		session.setCipherSuite(CipherSuite.TLS_PSK_WITH_AES_128_CCM_8);
+		session.setCompressionMethod(CompressionMethod.NULL);
+		session.setPskIdentity("client");
+		byte[] masterSecret = new byte[48];
+		masterSecret[0] = 42;
+		session.setMasterSecret(masterSecret);
+		return session;
+	}
+}
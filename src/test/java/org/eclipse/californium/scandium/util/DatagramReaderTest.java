@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class DatagramReaderTest {
+
+	@Test
+	public void testByteAlignedValuesRoundTrip() {
+		DatagramWriter writer = new DatagramWriter(2);
+		writer.writeUint8(0xFE);
+		writer.writeUint16(0xFEFD);
+		writer.writeUint24(0x123456);
+		writer.writeUint48(0xABCDEF012345L);
+		writer.writeBytes(new byte[]{0, 1, 2, 3}, 1, 2);
+		byte[] bytes = writer.toByteArray();
+
+		assertTrue(Arrays.equals(new byte[]{(byte) 0xFE, (byte) 0xFE, (byte) 0xFD, 0x12, 0x34, 0x56,
+				(byte) 0xAB, (byte) 0xCD, (byte) 0xEF, 0x01, 0x23, 0x45, 1, 2}, bytes));
+
+		DatagramReader reader = new DatagramReader(bytes);
+		assertEquals(0xFE, reader.readUint8());
+		assertEquals(0xFEFD, reader.readUint16());
+		assertEquals(0x123456, reader.readUint24());
+		assertEquals(0xABCDEF012345L, reader.readUint48());
+		assertTrue(Arrays.equals(new byte[]{1, 2}, reader.readBytesLeft()));
+		assertFalse(reader.bytesAvailable());
+	}
+
+	@Test
+	public void testUnalignedValuesRoundTrip() {
+		DatagramWriter writer = new DatagramWriter();
+		writer.write(5, 3);
+		writer.writeUint16(0xBEEF);
+		writer.writeByte((byte) 0x80);
+		writer.write(1, 5);
+		byte[] bytes = writer.toByteArray();
+		assertEquals(4, bytes.length);
+
+		DatagramReader reader = new DatagramReader(bytes);
+		assertEquals(5, reader.read(3));
+		assertEquals(0xBEEF, reader.readUint16());
+		assertEquals((byte) 0x80, reader.readNextByte());
+		assertEquals(1, reader.read(5));
+	}
+
+	@Test
+	public void testReadRegionOfArray() {
+		byte[] bytes = new byte[]{1, 2, 3, 4, 5};
+		DatagramReader reader = new DatagramReader(bytes, 1, 3);
+		assertEquals(0x0203, reader.readUint16());
+		assertTrue(reader.bytesAvailable());
+		// bytes beyond the region are read as zero
+		assertEquals(0x0400, reader.readUint16());
+		assertFalse(reader.bytesAvailable());
+	}
+}
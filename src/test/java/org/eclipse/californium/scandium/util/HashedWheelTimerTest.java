@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Stefan Jucker - DTLS implementation
+ ******************************************************************************/
+package org.eclipse.californium.scandium.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.scandium.util.HashedWheelTimer.Timeout;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashedWheelTimerTest {
+
+	private HashedWheelTimer timer;
+
+	@Before
+	public void setUp() {
+		// a small wheel to have timeouts of several rounds
+		timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 4);
+	}
+
+	@After
+	public void tearDown() {
+		timer.stop();
+	}
+
+	@Test
+	public void testTimeoutExpiresNotEarly() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		Timeout timeout = new Timeout(new Runnable() {
+
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		});
+		long start = System.nanoTime();
+		timer.schedule(timeout, 100, TimeUnit.MILLISECONDS);
+		assertTrue(timeout.isPending());
+
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+		assertFalse(timeout.isPending());
+	}
+
+	@Test
+	public void testCancelledTimeoutDoesNotExpire() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		Timeout timeout = new Timeout(new Runnable() {
+
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+			}
+		});
+		timer.schedule(timeout, 50, TimeUnit.MILLISECONDS);
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+
+		Thread.sleep(150);
+		assertEquals(0, runs.get());
+	}
+
+	@Test
+	public void testRescheduleReusesHandle() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		final CountDownLatch latch = new CountDownLatch(2);
+		Timeout timeout = new Timeout(new Runnable() {
+
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+				latch.countDown();
+			}
+		});
+		timer.schedule(timeout, 500, TimeUnit.MILLISECONDS);
+		// rescheduling replaces the pending deadline
+		timer.schedule(timeout, 20, TimeUnit.MILLISECONDS);
+		Thread.sleep(100);
+		assertEquals(1, runs.get());
+
+		timer.schedule(timeout, 20, TimeUnit.MILLISECONDS);
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		Thread.sleep(600);
+		assertEquals(2, runs.get());
+	}
+}